@@ -111,7 +111,7 @@ public class Absorber implements Gadget {
     private void updateEjectingBall() {
 
         if (ejectingBall != null) {
-            double bottomOfBall = ejectingBall.getLoc().getY()
+            double bottomOfBall = ejectingBall.getY()
                     + ejectingBall.getCirc().getRadius();
             if (bottomOfBall <= this.origin.getY()) {
                 ejectingBall.setGravity(true);
@@ -92,33 +92,72 @@ public class Ball {
 
     /**
      * Gets the current Vect of the ball representing the velocity vector that
-     * the ball
+     * the ball. Vect is immutable, so the ball's own Vect is returned without
+     * copying.
      * 
      * @return Vect representing the current velocity vector
      */
     public Vect getVec() {
-        return new Vect(this.vec.angle(), this.vec.length());
+        return this.vec;
     }
 
     /**
-     * Gets the current Circle object that represents the ball
+     * Gets the current Circle object that represents the ball. Circle is
+     * immutable, so the ball's own Circle is returned without copying.
      * 
      * @return Circle representing the Circle associated to the ball centered at
      *         the ball's location
      */
     public Circle getCirc() {
-        return new Circle(this.circ.getCenter(), this.circ.getRadius());
+        return this.circ;
     }
 
     /**
-     * Gets the current location the ball as an OrderedPair object
+     * Gets the current location the ball as an OrderedPair object. OrderedPair
+     * is immutable, so the ball's own OrderedPair is returned without copying.
      * 
      * @return OrderedPair representing the location of the ball, or the center
      *         of the ball's circle representation. OrderedPair has a getX() and
      *         getY() functions to return the coordinates of the location.
      */
     public OrderedPair getLoc() {
-        return new OrderedPair(this.pos.getX(), this.pos.getY());
+        return this.pos;
+    }
+
+    /**
+     * Gets the x coordinate of the center of the ball
+     * 
+     * @return double x coordinate of the ball's location
+     */
+    public double getX() {
+        return this.pos.getX();
+    }
+
+    /**
+     * Gets the y coordinate of the center of the ball
+     * 
+     * @return double y coordinate of the ball's location
+     */
+    public double getY() {
+        return this.pos.getY();
+    }
+
+    /**
+     * Gets the x component of the ball's velocity
+     * 
+     * @return double x component of the current velocity vector
+     */
+    public double getVx() {
+        return this.vec.x();
+    }
+
+    /**
+     * Gets the y component of the ball's velocity
+     * 
+     * @return double y component of the current velocity vector
+     */
+    public double getVy() {
+        return this.vec.y();
     }
 
     /**
@@ -216,12 +255,12 @@ public class Ball {
         double timeUntilCollision = Geometry.timeUntilBallBallCollision(
                 this.getCirc(), this.getVec(), ball.getCirc(), ball.getVec());
 
-        double newX = this.pos.getX() + this.vec.x() * timeUntilCollision;
-        double newY = this.pos.getY() + this.vec.y() * timeUntilCollision;
+        double newX = this.getX() + this.getVx() * timeUntilCollision;
+        double newY = this.getY() + this.getVy() * timeUntilCollision;
         this.setLoc(newX, newY);
 
-        newX = ball.getLoc().getX() + ball.getVec().x() * timeUntilCollision;
-        newY = ball.getLoc().getY() + ball.getVec().y() * timeUntilCollision;
+        newX = ball.getX() + ball.getVx() * timeUntilCollision;
+        newY = ball.getY() + ball.getVy() * timeUntilCollision;
         ball.setLoc(newX, newY);
 
         VectPair pairOfVecs = Geometry.reflectBalls(this.getCirc().getCenter(),
@@ -241,7 +280,7 @@ public class Ball {
      */
     @Override
     public String toString() {
-        return "Ball(" + getLoc().getX() + ", " + getLoc().getY() + ")";
+        return "Ball(" + getX() + ", " + getY() + ")";
     }
 
     /**
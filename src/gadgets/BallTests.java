@@ -15,6 +15,9 @@ import physics.Vect;
  *   - Output space: correct velocities of the ball after collision (details in each
  *                  individual test)
  *  
+ *  getX(), getY(), getVx(), getVy():
+ *   - agree with getLoc() and getVec() after the ball is moved
+ *  
  */
 
 public class BallTests {
@@ -63,4 +66,20 @@ public class BallTests {
         assertEquals(ball2.getVec(), new Vect(1, 0));
     }
 
+    /*
+     * Tests that the primitive accessors agree with getLoc() and getVec().
+     */
+    @Test
+    public void testPrimitiveAccessors() {
+        Ball ball = new Ball(1.5, 2.5);
+        ball.setVec(new Vect(-3, 4));
+        ball.setLoc(7.25, 8.75);
+        assertEquals(7.25, ball.getX(), 0.0);
+        assertEquals(8.75, ball.getY(), 0.0);
+        assertEquals(-3, ball.getVx(), 0.0);
+        assertEquals(4, ball.getVy(), 0.0);
+        assertEquals(ball.getLoc().getX(), ball.getX(), 0.0);
+        assertEquals(ball.getVec().y(), ball.getVy(), 0.0);
+    }
+
 }
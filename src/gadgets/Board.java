@@ -1,23 +1,27 @@
 package gadgets;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 
 import physics.Angle;
 import physics.Geometry;
 import physics.Vect;
+import pingball.protocol.ClientConnection;
+import pingball.protocol.HeartbeatMonitor;
+import pingball.protocol.Message;
+import pingball.protocol.TcpTransport;
+import pingball.protocol.Transport;
 
 /**
  * A Board class that represents the playing board and contains the outer walls
@@ -33,11 +37,21 @@ import physics.Vect;
  * Rep Invariant: Dimensions are unchanging and all objects are contained in the
  * board, which they are by definition, or the objects would failed to be added.
  * 
- * Thread-safety argument: There are two Threads in Board: one that runs the
- * board, and another that listens to server messages.
+ * Thread-safety argument: The thread that runs the board is the only one that
+ * changes it. Messages from the server are decoded by the connection's own
+ * selector thread into a lock-free mailbox, which the thread running the
+ * board drains at the start of each substep, so server messages never contend
+ * for the board's lock and wait at most one substep to be applied. Sending
+ * never blocks over TCP; see NioClientConnection.
  * 
- * Access within each of these threads to shared variables are protected by
- * locks, and PrintWriter's thread-unsafety is resolved with this protection.
+ * When the connection drops, a reconnect thread tries to open a new one. It
+ * only hands the new connection over through the volatile connection field,
+ * under connectionLock, so it cannot race an explicit connect or disconnect.
+ * 
+ * Key events may be reported from any thread (usually the GUI event dispatch
+ * thread). They are only placed on the lock-free pendingKeyInputs queue; the
+ * thread that runs the board drains it at substep boundaries and is the only
+ * one that calls doAction on the bound gadgets.
  */
 public class Board {
 
@@ -46,6 +60,11 @@ public class Board {
     private static final double FPS = 1.0 / 50.0;
     private static final int DIMENSION_SIZE = 22;
     private static final double DELTA_T = 0.0005; // 0.0024
+    private static final int SUBSTEPS_PER_FRAME = (int) Math.round(FPS
+            / DELTA_T);
+    // Longest handoff delay an incoming ball is advanced by; anything slower
+    // is a stall rather than latency
+    private static final double MAX_HANDOFF_AGE = 0.25;
 
     private double accelerationGravity = 25.0;
     private double mu1 = 0.025;
@@ -55,15 +74,50 @@ public class Board {
     protected List<Gadget> gadgets;
     protected char[][] boardAsString;
     protected List<String> portalNames;
+    protected final PortalTransfers portalTransfers = new PortalTransfers();
+    // Balls sent through each portal with NEWBALLTHROUGHPORTAL, to servers
+    // that predate transfer ids, until the server accepts or rejects them
     protected Map<String, Set<Ball>> ballsToRemove;
 
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
-    private Thread serverListener;
+    // Registry of named gadgets: each name is interned to an integer id,
+    // which is its index in gadgetsById
+    private final Map<String, Integer> gadgetIds = new HashMap<String, Integer>();
+    private final List<Gadget> gadgetsById = new ArrayList<Gadget>();
+
+    // Read-only views of balls and gadgets, created once
+    private final List<Ball> ballsView;
+    private final List<Gadget> gadgetsView;
+
+    // Simulation time of the board in seconds, and the substep of the frame
+    // being computed
+    private double simulationTime = 0;
+    private int currentSubstep = 0;
+
+    // Previews of balls handed to neighbouring boards, drawn until the
+    // neighbour has had time to show them
+    private boolean ghostBallsEnabled = false;
+    private final List<GhostBall> ghostBalls = new ArrayList<GhostBall>();
+    private final List<GhostBall> ghostBallsView = Collections
+            .unmodifiableList(ghostBalls);
+
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 100;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 5000;
+
+    private volatile ClientConnection connection;
+    private Transport transport = new TcpTransport();
+    private boolean binaryProtocol = false;
+    private boolean autoReconnect = true;
+    private long heartbeatMillis = HeartbeatMonitor.DEFAULT_INTERVAL_MILLIS;
+    private long heartbeatTimeoutMillis =
+            HeartbeatMonitor.DEFAULT_TIMEOUT_MILLIS;
+    // Guards reconnector and connectionGeneration, which changes whenever the
+    // user connects or disconnects so a late reconnect can tell it is stale
+    private final Object connectionLock = new Object();
+    private Thread reconnector;
+    private int connectionGeneration = 0;
 
     protected String name;
-    protected boolean serverPlay;
+    protected volatile boolean serverPlay;
     protected String currentHost;
     protected int currentPort;
 
@@ -73,8 +127,16 @@ public class Board {
     private static final int FRAME_HEIGHT = FRAME_WIDTH * 24 / 20;
     private static final double SCALE_FACTOR = 60.0 * FRAME_WIDTH / 1600;
 
-    protected static final Map<Integer, HashSet<String>> KEYUP_MAPPINGS = new HashMap<Integer, HashSet<String>>();
-    protected static final Map<Integer, HashSet<String>> KEYDOWN_MAPPINGS = new HashMap<Integer, HashSet<String>>();
+    // Key mappings by gadget name, as declared in the board file
+    private final Map<Integer, HashSet<String>> keyUpMappings = new HashMap<Integer, HashSet<String>>();
+    private final Map<Integer, HashSet<String>> keyDownMappings = new HashMap<Integer, HashSet<String>>();
+    // The same mappings resolved to the gadgets themselves
+    private final Map<Integer, List<Gadget>> keyUpBindings = new HashMap<Integer, List<Gadget>>();
+    private final Map<Integer, List<Gadget>> keyDownBindings = new HashMap<Integer, List<Gadget>>();
+    private boolean keyBindingsResolved = true;
+
+    private final Queue<KeyInput> pendingKeyInputs = new ConcurrentLinkedQueue<KeyInput>();
+    private volatile long lastInputLatency = 0;
 
     /**
      * Single-machine play constructor method for Board class. Each outer wall
@@ -86,6 +148,8 @@ public class Board {
     public Board() {
         balls = new ArrayList<Ball>();
         gadgets = new ArrayList<Gadget>();
+        ballsView = Collections.unmodifiableList(balls);
+        gadgetsView = Collections.unmodifiableList(gadgets);
         portalNames = new ArrayList<String>();
         setBallsToRemove(new ConcurrentHashMap<String, Set<Ball>>());
 
@@ -117,6 +181,80 @@ public class Board {
         this.name = name;
     }
 
+    /**
+     * Choose whether the next connection to a server asks for the binary
+     * protocol instead of the text one. Servers that predate the binary
+     * protocol do not understand the request, so this is off by default.
+     * 
+     * @param binaryProtocol
+     *            true to ask for the binary protocol
+     */
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    /**
+     * Gets whether connections to a server ask for the binary protocol.
+     * 
+     * @return true if the binary protocol is requested
+     */
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    /**
+     * Choose whether the board reconnects by itself when its connection to the
+     * server drops. On by default.
+     * 
+     * @param autoReconnect
+     *            true to reconnect automatically
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    /**
+     * Choose the transport the next connection to a server uses. TCP by
+     * default; an InMemoryTransport shared with a PingballServer runs both in
+     * this JVM.
+     * 
+     * @param transport
+     *            Transport to connect with
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Choose how often the next connection to a server sends heartbeats, and
+     * how long the server may stay silent before the connection counts as
+     * dropped.
+     * 
+     * @param intervalMillis
+     *            time between PINGs, > 0
+     * @param timeoutMillis
+     *            silence after which the server counts as dead, > 0
+     */
+    public void setHeartbeat(long intervalMillis, long timeoutMillis) {
+        if (intervalMillis <= 0 || timeoutMillis <= 0)
+            throw new IllegalArgumentException("heartbeat interval and "
+                    + "timeout must be positive");
+        heartbeatMillis = intervalMillis;
+        heartbeatTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Choose whether a ball handed to a neighbouring board keeps being drawn
+     * here, as a ghost that moves on in a straight line, until the neighbour
+     * has had time to show it. Off by default.
+     * 
+     * @param ghostBallsEnabled
+     *            true to draw ghosts of balls handed off
+     */
+    public void setGhostBalls(boolean ghostBallsEnabled) {
+        this.ghostBallsEnabled = ghostBallsEnabled;
+    }
+
     /**
      * Connect to a server by specifying host and port
      * 
@@ -128,42 +266,23 @@ public class Board {
      * @return true if successfully connected, false otherwise.
      */
     public boolean setHostAndPort(String host, int port) {
+        stopReconnecting();
         if (!host.equals("") && host != null && (0 <= port && port <= 65535)) {
             currentHost = host;
             currentPort = port;
             setServerPlay(true);
             try {
-                socket = new Socket(host, port);
-                in = new BufferedReader(new InputStreamReader(
-                        socket.getInputStream()));
-                out = new PrintWriter(new OutputStreamWriter(
-                        socket.getOutputStream()));
+                // Give the server the client's name and portals, asking for
+                // the binary protocol first if it is enabled
+                connection = transport.connect(host, port, this.name,
+                        portalNames, binaryProtocol, false);
+                connection.setHeartbeat(heartbeatMillis,
+                        heartbeatTimeoutMillis);
             } catch (Exception e) {
                 setServerPlay(false);
                 return false;
                 // Do nothing with exceptions
             }
-            out.println(this.name); // Give the server the client's name
-            out.println(portalNames.size()); // Tell the server how many portals
-                                             // are
-            // there on the board
-            for (String portalName : portalNames)
-                out.println(portalName);
-            out.flush();
-
-            if (isServerPlay()) {
-                // Create thread that listens to server
-                serverListener = new Thread(new Runnable() {
-                    public void run() {
-                        try {
-                            listenToServer();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                });
-                serverListener.start();
-            }
             return true;
         }
         setServerPlay(false);
@@ -175,100 +294,201 @@ public class Board {
      */
     public void disconnectFromServer() {
         System.out.println(isServerPlay());
+        stopReconnecting();
         if (isServerPlay()) {
             setServerPlay(false);
-            try {
-                socket.close();
-                in.close();
-                out.close();
-            } catch (IOException e) {
-                setServerPlay(false);
+            connection.close();
+        }
+    }
+
+    /**
+     * Applies every message received from the server so far, in order.
+     * Messages can be: - new ball messages - other client joining messages -
+     * other client disconnect messages. If the connection to the server was
+     * lost, server play ends and every wall becomes solid again. Called by the
+     * thread running the board at the start of each substep.
+     */
+    protected void applyServerMessages() {
+        ClientConnection connection = this.connection;
+        if (connection == null)
+            return;
+        Message message;
+        while ((message = connection.poll()) != null) {
+            // New ball message format: NEWBALL xLoc yLoc xVelocity
+            // yVelocity
+            // Example: NEWBALL 0.0 3.3 -5.0 6.0
+            // Timed new ball format: NEWBALLTIMED xLoc yLoc xVelocity
+            // yVelocity age
+            // Example: NEWBALLTIMED 0.0 3.3 -5.0 6.0 0.035
+            // New ball through portal format: NEWBALLTHROUGHPORTAL
+            // portalName
+            // xVelocity yVelocity
+            // Example: NEWBALLTHROUGHPORTAL Gamma -5.0 6.0
+            // New client message format: NEWCLIENT clientName side
+            // Example: NEWCLIENT Mars 0
+            // Client disconnect message: DISCONNECT clientName side
+            // Example: DISCONNECT Mars 0
+            // Ball has been accepted into portal: PORTALACK transferId
+            // Example: PORTALACK 7
+            // Ball has been rejected from portal: PORTALNACK transferId
+            // Example: PORTALNACK 7
+            // The same from servers that predate transfer ids:
+            // PORTALBALLACCEPTED portalName and PORTALBALLREJECTED
+            // portalName
+            // Example: PORTALBALLACCEPTED Gamma
+            switch (message.getType()) {
+            case NEWBALL: {
+                Ball newBall = new Ball(message.getNumber(0),
+                        message.getNumber(1));
+                newBall.setVec(new Vect(message.getNumber(2), message
+                        .getNumber(3)));
+                balls.add(newBall);
+                break;
+            }
+            case NEWBALLTIMED: {
+                Ball newBall = new Ball(message.getNumber(0),
+                        message.getNumber(1));
+                newBall.setVec(new Vect(message.getNumber(2), message
+                        .getNumber(3)));
+                advanceHandoff(newBall, message.getNumber(4));
+                balls.add(newBall);
+                break;
+            }
+            case NEWBALLTHROUGHPORTAL: {
+                System.out.println(message);
+                Gadget g = getGadget(message.getName(0));
+                if (g != null) {
+                    double xLoc = (double) g.getLoc().getX()
+                            + (double) g.getSize().getX() * 0.5;
+                    double yLoc = (double) g.getLoc().getY()
+                            + (double) g.getSize().getY() * 0.5;
+                    Ball newBall = new Ball(xLoc, yLoc);
+                    newBall.setVec(new Vect(message.getNumber(0), message
+                            .getNumber(1)));
+                    balls.add(newBall);
+                }
+                break;
             }
+            case NEWCLIENT:
+                makeWallInvisible(message.getName(0), message.getInt(0));
+                break;
+            case DISCONNECT:
+                makeWallSolid(message.getInt(0));
+                break;
+            case PORTALACK: {
+                Ball b = portalTransfers.settle(message.getInt(0));
+                if (b != null)
+                    balls.remove(b);
+                break;
+            }
+            case PORTALNACK:
+                portalTransfers.settle(message.getInt(0));
+                break;
+            case PORTALBALLACCEPTED: {
+                String portalName = message.getName(0);
+                if (getBallsToRemove().containsKey(portalName)) {
+                    for (Ball b : getBallsToRemove().get(portalName))
+                        balls.remove(b);
+                    getBallsToRemove().put(portalName, new HashSet<Ball>());
+                }
+                break;
+            }
+            case PORTALBALLREJECTED: {
+                String portalName = message.getName(0);
+                if (getBallsToRemove().containsKey(portalName)) {
+                    getBallsToRemove().put(portalName, new HashSet<Ball>());
+                }
+                break;
+            }
+            }
+        }
+        // Balls whose transfer went unanswered stay on this board, until a
+        // late PORTALACK settles their tombstone
+        portalTransfers.expire(System.nanoTime());
+        if (!connection.isOpen() && isServerPlay()) {
+            setServerPlay(false);
+            for (int side = 0; side < 4; side++)
+                makeWallSolid(side);
+            // Balls still waiting to go through a portal stay on this board.
+            // A server that resumes the session sends its last PORTALACKs
+            // again, which settle the cleared transfers; replies by portal
+            // name cannot be matched up later, so those are forgotten
+            portalTransfers.clear();
+            for (Set<Ball> pending : getBallsToRemove().values())
+                pending.clear();
+            if (autoReconnect)
+                startReconnecting();
         }
     }
 
     /**
-     * Method used to listen for messages from the server. Messages can be: -
-     * new ball messages - other client joining messages - other client
-     * disconnect messages
+     * Starts a thread that reconnects to the current server with exponential
+     * backoff and a resume handshake, so the server restores the board's
+     * joins. It gives up once the user connects elsewhere or disconnects.
+     */
+    private void startReconnecting() {
+        synchronized (connectionLock) {
+            final int generation = connectionGeneration;
+            reconnector = new Thread(new Runnable() {
+                public void run() {
+                    reconnect(generation);
+                }
+            }, "pingball-reconnect");
+            reconnector.setDaemon(true);
+            reconnector.start();
+        }
+    }
+
+    /**
+     * Tries to reconnect until it succeeds or the connection it would replace
+     * is no longer current.
      * 
-     * @throws IOException
+     * @param generation
+     *            int connectionGeneration when the connection dropped
      */
-    protected void listenToServer() throws IOException {
-        String line = "";
+    private void reconnect(int generation) {
+        long delay = MIN_RECONNECT_DELAY_MILLIS;
         while (true) {
             try {
-                line = in.readLine();
-            } catch (Exception e) {
+                // jitter keeps boards that lost the same server from all
+                // retrying at once
+                Thread.sleep(delay
+                        + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+            } catch (InterruptedException ie) {
+                return;
             }
-            synchronized (this) {
-                String messageType = line.split(" ")[0];
-                // New ball message format: NEWBALL xLoc yLoc xVelocity
-                // yVelocity
-                // Example: NEWBALL 0.0 3.3 -5.0 6.0
-                // New ball through portal format: NEWBALLTHROUGHPORTAL
-                // portalName
-                // xVelocity yVelocity
-                // Example: NEWBALLTHROUGHPORTAL Gamma -5.0 6.0
-                // New client message format: NEWCLIENT clientName side
-                // Example: NEWCLIENT Mars 0
-                // Client disconnect message: DISCONNECT clientName side
-                // Example: DISCONNECT Mars 0
-                // Ball has been accepted into portal: PORTALBALLACCEPTED
-                // portalName
-                // Example: PORTALBALLACCEPTED Gamma
-                // Ball has been rejected from portal: PORTALBALLREJECTED
-                // portalName
-                // Example: PORTALBALLREJECTED Gamma
-                if (messageType.equals("NEWBALL")) {
-                    double xLoc = Double.parseDouble(line.split(" ")[1]);
-                    double yLoc = Double.parseDouble(line.split(" ")[2]);
-                    double xVec = Double.parseDouble(line.split(" ")[3]);
-                    double yVec = Double.parseDouble(line.split(" ")[4]);
-                    Ball newBall = new Ball(xLoc, yLoc);
-                    newBall.setVec(new Vect(xVec, yVec));
-                    balls.add(newBall);
-                } else if (messageType.equals("NEWBALLTHROUGHPORTAL")) {
-                    System.out.println(line);
-                    String portalName = line.split(" ")[1];
-                    double xVec = Double.parseDouble(line.split(" ")[2]);
-                    double yVec = Double.parseDouble(line.split(" ")[3]);
-
-                    for (Gadget g : gadgets) {
-                        String name = g.getName();
-                        if (name != null) {
-                            if (name.equals(portalName)) {
-                                double xLoc = (double) g.getLoc().getX()
-                                        + (double) g.getSize().getX() * 0.5;
-                                double yLoc = (double) g.getLoc().getY()
-                                        + (double) g.getSize().getY() * 0.5;
-                                Ball newBall = new Ball(xLoc, yLoc);
-                                newBall.setVec(new Vect(xVec, yVec));
-                                balls.add(newBall);
-                                break;
-                            }
-                        }
-                    }
-                } else if (messageType.equals("NEWCLIENT")) {
-                    String clientName = line.split(" ")[1];
-                    int side = Integer.parseInt(line.split(" ")[2]);
-                    makeWallInvisible(clientName, side);
-                } else if (messageType.equals("DISCONNECT")) {
-                    int side = Integer.parseInt(line.split(" ")[2]);
-                    makeWallSolid(side);
-                } else if (messageType.equals("PORTALBALLACCEPTED")) {
-                    String portalName = line.split(" ")[1];
-                    if (getBallsToRemove().containsKey(portalName)) {
-                        for (Ball b : getBallsToRemove().get(portalName))
-                            balls.remove(b);
-                        getBallsToRemove().put(portalName, new HashSet<Ball>());
-                    }
-                } else if (messageType.equals("PORTALBALLREJECTED")) {
-                    String portalName = line.split(" ")[1];
-                    if (getBallsToRemove().containsKey(portalName)) {
-                        getBallsToRemove().put(portalName, new HashSet<Ball>());
-                    }
+            ClientConnection resumed;
+            try {
+                resumed = transport.connect(currentHost, currentPort, name,
+                        portalNames, binaryProtocol, true);
+                resumed.setHeartbeat(heartbeatMillis, heartbeatTimeoutMillis);
+            } catch (IOException ioe) {
+                delay = Math.min(2 * delay, MAX_RECONNECT_DELAY_MILLIS);
+                continue;
+            }
+            synchronized (connectionLock) {
+                if (generation != connectionGeneration) {
+                    resumed.close();
+                    return;
                 }
+                connection = resumed;
+                setServerPlay(true);
+                reconnector = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops any reconnect in progress, because the user is connecting or
+     * disconnecting explicitly.
+     */
+    private void stopReconnecting() {
+        synchronized (connectionLock) {
+            connectionGeneration++;
+            if (reconnector != null) {
+                reconnector.interrupt();
+                reconnector = null;
             }
         }
     }
@@ -292,16 +512,96 @@ public class Board {
         // First, remove ball from current list of balls
         removeBall(ball);
 
+        ClientConnection connection = this.connection;
+        long roundTrip = connection == null ? -1 : connection
+                .getSmoothedRoundTripTime();
+        if (ghostBallsEnabled) {
+            ghostBalls.add(new GhostBall(ball.getX(), ball.getY(), ball
+                    .getVx(), ball.getVy(), simulationTime
+                    + Math.max(FPS, Math.max(0, roundTrip) / 1e9)));
+        }
+
         // Next, send new ball message to server
-        // Format: NEWBALL newClientName xLoc yLoc xVelocity yVelocity
-        // Example: NEWBALL Mars 0.0 3.3 -5.0 6.0
-        String message = "NEWBALL " + newClientName + " ";
-        message += Double.toString(xLoc) + " ";
-        message += Double.toString(yLoc) + " ";
-        message += Double.toString(ball.getVec().x()) + " ";
-        message += Double.toString(ball.getVec().y()) + " ";
-        out.println(message);
-        out.flush();
+        if (connection != null && connection.isServerSpeakingHeartbeats()) {
+            // The message leaves with the frame, the rest of which this
+            // board has yet to simulate, and then takes about half a round
+            // trip to reach the server
+            double age = (SUBSTEPS_PER_FRAME - currentSubstep) * DELTA_T
+                    + Math.max(0, roundTrip) / 2e9;
+            // Format: NEWBALLTIMED newClientName xLoc yLoc xVelocity
+            // yVelocity age
+            // Example: NEWBALLTIMED Mars 0.0 3.3 -5.0 6.0 0.035
+            sendMessage(Message.newBallTimed(newClientName, xLoc, yLoc,
+                    ball.getVx(), ball.getVy(), age));
+        } else {
+            // Format: NEWBALL newClientName xLoc yLoc xVelocity yVelocity
+            // Example: NEWBALL Mars 0.0 3.3 -5.0 6.0
+            sendMessage(Message.newBall(newClientName, xLoc, yLoc,
+                    ball.getVx(), ball.getVy()));
+        }
+    }
+
+    /**
+     * Moves a ball arriving from another board forward by the time its
+     * handoff took, so it shows up where it would be had it crossed over
+     * instantly. The ball flies freely under gravity and friction, and stops
+     * short of its first collision, which the regular simulation then
+     * handles.
+     * 
+     * @param ball
+     *            Ball not yet on the board, at its handed-off location
+     * @param age
+     *            double seconds since the ball had that location
+     */
+    protected void advanceHandoff(Ball ball, double age) {
+        double remaining = Math.min(age, MAX_HANDOFF_AGE);
+        while (remaining > 0) {
+            double step = Math.min(DELTA_T, remaining);
+            for (Gadget gadget : this.gadgets)
+                if (gadget.timeUntilCollision(ball) <= step)
+                    return;
+            ball.setLoc(ball.getX() + ball.getVx() * step, ball.getY()
+                    + ball.getVy() * step);
+            applyForces(ball, step);
+            remaining -= step;
+        }
+    }
+
+    /**
+     * Applies gravity and friction to a ball's velocity.
+     * 
+     * @param ball
+     *            Ball to slow down and pull downwards
+     * @param timeStep
+     *            double seconds the forces act for
+     */
+    private void applyForces(Ball ball, double timeStep) {
+        if (ball.getGravityValue()) {
+            ball.setVec(ball.getVec().plus(
+                    new Vect(Angle.DEG_90, accelerationGravity * timeStep)));
+        }
+        if (ball.getFrictionValue()) {
+            ball.setVec(ball.getVec().times(
+                    1.0 - mu1 * timeStep - mu2 * ball.getVec().length()
+                            * timeStep));
+        }
+    }
+
+    /**
+     * Moves the ghosts of handed-off balls in a straight line, and drops
+     * those whose time is up.
+     * 
+     * @param timeStep
+     *            double seconds to move them by
+     */
+    private void moveGhostBalls(double timeStep) {
+        for (int i = ghostBalls.size() - 1; i >= 0; i--) {
+            GhostBall ghost = ghostBalls.get(i);
+            if (ghost.getDeadline() <= simulationTime)
+                ghostBalls.remove(i);
+            else
+                ghostBalls.set(i, ghost.moved(timeStep));
+        }
     }
 
     /**
@@ -317,31 +617,129 @@ public class Board {
      */
     protected void sendBallThroughPortal(Ball ball, String portalName,
             String newClientName, String newPortalName) {
-        Set<Ball> ballsPendingRemoval = new HashSet<Ball>();
-        for (String portal : getBallsToRemove().keySet())
-            ballsPendingRemoval.addAll(getBallsToRemove().get(portal));
-        if (!ballsPendingRemoval.contains(ball) && isServerPlay()) {
-            // First, send new ball message to server
+        if (isBallInFlight(ball) || !isServerPlay())
+            return;
+        ClientConnection connection = this.connection;
+        if (connection == null || !connection.isServerSpeakingHeartbeats()) {
+            // Servers that predate heartbeats also predate transfer ids,
+            // and skip PORTALTRANSFER as an unknown line
             // Format: NEWBALLTHROUGHPORTAL oldClientName oldPortalName
-            // newClientName
-            // newPortalName xVelocity yVelocity
-            // Example: NEWBALLTHROUGHPORTAL Mars Gamma -5.0 6.0
-            String message = "NEWBALLTHROUGHPORTAL " + this.name + " "
-                    + portalName + " " + newClientName + " " + newPortalName
-                    + " ";
-            message += Double.toString(ball.getVec().x()) + " ";
-            message += Double.toString(ball.getVec().y()) + " ";
-            out.println(message);
-            out.flush();
-
-            // Next, remove ball from current list of balls
+            // newClientName newPortalName xVelocity yVelocity
+            // Example: NEWBALLTHROUGHPORTAL Mars Gamma Earth Alpha -5.0 6.0
+            sendMessage(Message.newBallThroughPortal(this.name, portalName,
+                    newClientName, newPortalName, ball.getVx(), ball.getVy()));
 
+            // The ball stays on the board until the server accepts it
             if (!getBallsToRemove().containsKey(portalName))
                 getBallsToRemove().put(portalName, new HashSet<Ball>());
             getBallsToRemove().get(portalName).add(ball);
+        } else {
+            // The ball stays on the board until the server acknowledges
+            // this transfer by its id
+            int transferId = portalTransfers.start(ball, portalName,
+                    System.nanoTime());
+            // Format: PORTALTRANSFER oldClientName oldPortalName
+            // newClientName newPortalName transferId xVelocity yVelocity
+            // Example: PORTALTRANSFER Mars Gamma Earth Alpha 7 -5.0 6.0
+            sendMessage(Message.portalTransfer(this.name, portalName,
+                    newClientName, newPortalName, transferId, ball.getVx(),
+                    ball.getVy()));
         }
     }
 
+    /**
+     * Checks whether a ball is waiting for the server to answer its way
+     * through a portal.
+     * 
+     * @param ball
+     *            Ball to look up
+     * @return boolean true if the ball was sent through any portal and not
+     *         yet answered
+     */
+    private boolean isBallInFlight(Ball ball) {
+        if (portalTransfers.isInFlight(ball))
+            return true;
+        for (Set<Ball> pending : getBallsToRemove().values())
+            if (pending.contains(ball))
+                return true;
+        return false;
+    }
+
+    /**
+     * Checks whether a ball is waiting for the server to answer its way
+     * through a particular portal.
+     * 
+     * @param ball
+     *            Ball to look up
+     * @param portalName
+     *            String name of the portal
+     * @return boolean true if the ball was sent through that portal and not
+     *         yet answered
+     */
+    public boolean isBallInFlight(Ball ball, String portalName) {
+        if (portalTransfers.isInFlight(ball, portalName))
+            return true;
+        Set<Ball> pending = getBallsToRemove().get(portalName);
+        return pending != null && pending.contains(ball);
+    }
+
+    /**
+     * Queues a message for the server, to be sent with the rest of the frame's
+     * messages by flushServerMessages. A failed connection is noticed by
+     * applyServerMessages, so send errors are ignored here.
+     * 
+     * @param message
+     *            Message to be sent
+     */
+    private void sendMessage(Message message) {
+        ClientConnection connection = this.connection;
+        if (connection != null)
+            connection.queue(message);
+    }
+
+    /**
+     * Sends every message queued during the frame in one batch. Called by the
+     * thread running the board at the end of each frame.
+     */
+    protected void flushServerMessages() {
+        ClientConnection connection = this.connection;
+        if (connection != null)
+            connection.flush();
+    }
+
+    /**
+     * Gets the number of messages the most recent outgoing batch held.
+     * 
+     * @return int size of the last batch sent to the server, or 0 if none was
+     *         sent yet
+     */
+    public int getLastSendBatchSize() {
+        ClientConnection connection = this.connection;
+        return connection == null ? 0 : connection.getLastBatchSize();
+    }
+
+    /**
+     * Gets the time the most recent outgoing batch took to flush.
+     * 
+     * @return long duration in nanoseconds, or 0 if no batch was sent yet
+     */
+    public long getLastSendFlushTime() {
+        ClientConnection connection = this.connection;
+        return connection == null ? 0 : connection.getLastFlushTime();
+    }
+
+    /**
+     * Gets the smoothed round-trip time to the server, measured with
+     * heartbeats.
+     * 
+     * @return long duration in nanoseconds, or -1 if not connected or no
+     *         heartbeat was answered yet
+     */
+    public long getRoundTripTime() {
+        ClientConnection connection = this.connection;
+        return connection == null ? -1 : connection.getSmoothedRoundTripTime();
+    }
+
     /**
      * Adds a portal name to the list of portal names.
      * 
@@ -389,9 +787,64 @@ public class Board {
         }
 
         this.gadgets.add(gadget);
+        registerGadget(gadget);
+        keyBindingsResolved = false;
         return true;
     }
 
+    /**
+     * Adds a gadget to the registry of named gadgets, interning its name to
+     * the next free id. Unnamed gadgets, and gadgets whose name is already
+     * registered, are left out.
+     * 
+     * @param gadget
+     *            Gadget that has just been added to the board
+     */
+    private void registerGadget(Gadget gadget) {
+        String gadgetName = gadget.getName();
+        if (gadgetName == null || gadgetIds.containsKey(gadgetName))
+            return;
+        gadgetIds.put(gadgetName, gadgetsById.size());
+        gadgetsById.add(gadget);
+    }
+
+    /**
+     * Looks up a gadget on the board by name in constant time.
+     * 
+     * @param gadgetName
+     *            String name of the gadget
+     * @return Gadget with that name, or null if the board has none
+     */
+    public Gadget getGadget(String gadgetName) {
+        Integer id = gadgetIds.get(gadgetName);
+        return id == null ? null : gadgetsById.get(id);
+    }
+
+    /**
+     * Gets the id a gadget's name was interned to when it was added. Ids are
+     * assigned consecutively from 0 in the order gadgets were added.
+     * 
+     * @param gadgetName
+     *            String name of the gadget
+     * @return int id of the gadget, or -1 if the board has no such gadget
+     */
+    public int getGadgetId(String gadgetName) {
+        Integer id = gadgetIds.get(gadgetName);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Looks up a gadget on the board by its interned id.
+     * 
+     * @param id
+     *            int id returned by getGadgetId, 0 <= id < number of named
+     *            gadgets
+     * @return Gadget with that id
+     */
+    public Gadget getGadget(int id) {
+        return gadgetsById.get(id);
+    }
+
     /**
      * Method that adds a key mapping between a KeyEvent.Integer int and a
      * Gadget, referenced by its name. Additionally, due to optional keyup or
@@ -411,23 +864,114 @@ public class Board {
      *            will be ignored.
      */
     public void addKeyMapping(Integer key, String nameOfGadget, String keyDir) {
-        if (keyDir.equals("keyup")) {
-            HashSet<String> currentValues = Board.KEYUP_MAPPINGS.get(key);
-            if (currentValues == null) {
-                currentValues = new HashSet<String>();
-                Board.KEYUP_MAPPINGS.put(key, currentValues);
-            }
-            currentValues.add(nameOfGadget);
-        } else if (keyDir.equals("keydown")) {
-            HashSet<String> currentValues = Board.KEYDOWN_MAPPINGS.get(key);
-            if (currentValues == null) {
-                currentValues = new HashSet<String>();
-                Board.KEYDOWN_MAPPINGS.put(key, currentValues);
+        Map<Integer, HashSet<String>> mappings;
+        if (keyDir.equals("keyup"))
+            mappings = keyUpMappings;
+        else if (keyDir.equals("keydown"))
+            mappings = keyDownMappings;
+        else
+            return;
+
+        HashSet<String> currentValues = mappings.get(key);
+        if (currentValues == null) {
+            currentValues = new HashSet<String>();
+            mappings.put(key, currentValues);
+        }
+        currentValues.add(nameOfGadget);
+        keyBindingsResolved = false;
+    }
+
+    /**
+     * Resolves the key mappings, which refer to gadgets by name, to the gadgets
+     * themselves, so that handling a key event needs no name lookups. Names
+     * that match no gadget on the board are ignored. Called once the board has
+     * been loaded; it is also called again automatically if gadgets or
+     * mappings are added afterwards.
+     */
+    public synchronized void resolveKeyBindings() {
+        resolveKeyBindings(keyUpMappings, keyUpBindings);
+        resolveKeyBindings(keyDownMappings, keyDownBindings);
+        keyBindingsResolved = true;
+    }
+
+    /**
+     * Helper for resolveKeyBindings(): rebuilds one table of bindings.
+     * 
+     * @param mappings
+     *            Map from key to the names of the gadgets it triggers
+     * @param bindings
+     *            Map from key to the gadgets it triggers, to be rebuilt
+     */
+    private void resolveKeyBindings(Map<Integer, HashSet<String>> mappings,
+            Map<Integer, List<Gadget>> bindings) {
+        bindings.clear();
+        for (Map.Entry<Integer, HashSet<String>> entry : mappings.entrySet()) {
+            List<Gadget> boundGadgets = new ArrayList<Gadget>();
+            for (String nameOfGadget : entry.getValue()) {
+                Gadget gadget = getGadget(nameOfGadget);
+                if (gadget != null)
+                    boundGadgets.add(gadget);
             }
-            currentValues.add(nameOfGadget);
+            if (!boundGadgets.isEmpty())
+                bindings.put(entry.getKey(), boundGadgets);
+        }
+    }
+
+    /**
+     * Reports that a key was pressed. May be called from any thread; the
+     * bound gadgets act at the next substep of the simulation.
+     * 
+     * @param keyCode
+     *            int KeyEvent.VK_ code of the key
+     */
+    public void keyPressed(int keyCode) {
+        pendingKeyInputs.add(new KeyInput(keyCode, true, System.nanoTime()));
+    }
+
+    /**
+     * Reports that a key was released. May be called from any thread; the
+     * bound gadgets act at the next substep of the simulation.
+     * 
+     * @param keyCode
+     *            int KeyEvent.VK_ code of the key
+     */
+    public void keyReleased(int keyCode) {
+        pendingKeyInputs.add(new KeyInput(keyCode, false, System.nanoTime()));
+    }
+
+    /**
+     * Applies every key event reported so far, in the order they were
+     * received, by triggering the gadgets bound to each key. Called by the
+     * thread running the board at substep boundaries.
+     */
+    protected void applyKeyInputs() {
+        if (pendingKeyInputs.isEmpty())
+            return;
+        if (!keyBindingsResolved)
+            resolveKeyBindings();
+
+        KeyInput input;
+        while ((input = pendingKeyInputs.poll()) != null) {
+            List<Gadget> boundGadgets = input.isKeyDown() ? keyDownBindings
+                    .get(input.getKeyCode()) : keyUpBindings.get(input
+                    .getKeyCode());
+            if (boundGadgets != null)
+                for (Gadget gadget : boundGadgets)
+                    gadget.doAction();
+            lastInputLatency = System.nanoTime() - input.getTimestamp();
         }
     }
 
+    /**
+     * Gets the time between the most recently applied key event being
+     * reported and its gadgets being triggered.
+     * 
+     * @return long latency in nanoseconds, or 0 if no key event was applied yet
+     */
+    public long getLastInputLatency() {
+        return lastInputLatency;
+    }
+
     /**
      * Lets a gadget know if it can be placed on this board.
      * 
@@ -641,6 +1185,41 @@ public class Board {
         return listOfGadgets;
     }
 
+    /**
+     * Gets a read-only live view of the balls currently on the board. Unlike
+     * getListOfBalls() nothing is copied, so the view reflects later changes;
+     * it must only be iterated by the thread running the board, or while
+     * holding the board's lock.
+     * 
+     * @return List<Ball> unmodifiable view of the balls in the board
+     */
+    public List<Ball> getBallsView() {
+        return ballsView;
+    }
+
+    /**
+     * Gets a read-only live view of the ghosts of balls recently handed to
+     * neighbouring boards, with the same restrictions as getBallsView(). Empty
+     * unless setGhostBalls(true) was called.
+     * 
+     * @return List<GhostBall> unmodifiable view of the ghost balls
+     */
+    public List<GhostBall> getGhostBallsView() {
+        return ghostBallsView;
+    }
+
+    /**
+     * Gets a read-only live view of the gadgets on the board, walls included.
+     * Unlike getListOfGadgets() nothing is copied, so the view reflects later
+     * changes; it must only be iterated by the thread running the board, or
+     * while holding the board's lock.
+     * 
+     * @return List<Gadget> unmodifiable view of all gadgets
+     */
+    public List<Gadget> getGadgetsView() {
+        return gadgetsView;
+    }
+
     /**
      * Gets the appropriate key-to-string mappings that will indicate what keys
      * trigger what gadgets, who are referenced by their name.
@@ -653,9 +1232,9 @@ public class Board {
     public Map<Integer, HashSet<String>> getKeyDirMapping(String keyDir) {
         Map<Integer, HashSet<String>> keyMappings = new HashMap<Integer, HashSet<String>>();
         if (keyDir.equals("keyup"))
-            keyMappings.putAll(Board.KEYUP_MAPPINGS);
+            keyMappings.putAll(keyUpMappings);
         else if (keyDir.equals("keydown"))
-            keyMappings.putAll(Board.KEYDOWN_MAPPINGS);
+            keyMappings.putAll(keyDownMappings);
         return keyMappings;
     }
 
@@ -796,9 +1375,9 @@ public class Board {
         for (Ball ball : this.balls) {
 
             if (!ballSet.contains(ball)) {
-                double newX = ball.getLoc().getX() + ball.getVec().x()
+                double newX = ball.getX() + ball.getVx()
                         * minTime;
-                double newY = ball.getLoc().getY() + ball.getVec().y()
+                double newY = ball.getY() + ball.getVy()
                         * minTime;
                 ball.setLoc(newX, newY);
             }
@@ -820,21 +1399,18 @@ public class Board {
      * display the board in the main program.
      */
     protected synchronized void moveForwardFrame() {
-        for (int i = 0; i < FPS / DELTA_T; i++) {
-            for (Ball ball : this.balls) {
-                if (ball.getGravityValue()) {
-                    ball.setVec(ball.getVec().plus(
-                            new Vect(Angle.DEG_90, accelerationGravity
-                                    * DELTA_T)));
-                }
-                if (ball.getFrictionValue()) {
-                    ball.setVec(ball.getVec().times(
-                            1.0 - mu1 * DELTA_T - mu2 * ball.getVec().length()
-                                    * DELTA_T));
-                }
-            }
+        for (int i = 0; i < SUBSTEPS_PER_FRAME; i++) {
+            currentSubstep = i;
+            applyServerMessages();
+            applyKeyInputs();
+            for (Ball ball : this.balls)
+                applyForces(ball, DELTA_T);
             affectBoardState(DELTA_T);
+            if (!ghostBalls.isEmpty())
+                moveGhostBalls(DELTA_T);
+            simulationTime += DELTA_T;
         }
+        flushServerMessages();
     }
 
     /**
@@ -842,45 +1418,53 @@ public class Board {
      * corners, and the balls
      */
     public void displayBoard() {
+        char[][] frame = new char[DIMENSION_SIZE][DIMENSION_SIZE];
+        renderText(frame);
 
-        List<OrderedPair> listOfLocs = new ArrayList<OrderedPair>();
+        StringBuilder text = new StringBuilder(DIMENSION_SIZE
+                * (DIMENSION_SIZE + 1) + 1);
+        for (int i = 0; i < DIMENSION_SIZE; i++) {
+            text.append(frame[i]);
+            text.append('\n');
+        }
+        text.append('\n');
+        System.out.print(text);
+    }
 
-        for (Ball ball : this.balls) {
+    /**
+     * Writes the text view of the board into a frame: every cell holds the
+     * character of the gadget or wall covering it, or '*' where a ball is.
+     * Each ball is stamped onto its cell directly, so the cost is linear in
+     * the number of cells plus the number of balls.
+     * 
+     * @param frame
+     *            char[][] of size getTextSize() x getTextSize() to be
+     *            overwritten, indexed as frame[row][column]
+     */
+    protected synchronized void renderText(char[][] frame) {
+        for (int i = 0; i < DIMENSION_SIZE; i++)
+            for (int j = 0; j < DIMENSION_SIZE; j++)
+                frame[i][j] = boardAsString[j][i];
 
+        for (Ball ball : this.balls) {
             OrderedPair ballLoc = ball.getLoc();
-            if ((int) ballLoc.getX() == DIMENSION_SIZE - 2
-                    && (int) ballLoc.getY() == DIMENSION_SIZE - 2) {
-                listOfLocs.add(new OrderedPair((int) ballLoc.getX(),
-                        (int) ballLoc.getY()));
-            } else if ((int) ballLoc.getX() == DIMENSION_SIZE - 2) {
-                listOfLocs.add(new OrderedPair((int) ballLoc.getX(),
-                        (int) ballLoc.getY() + 1));
-            } else if ((int) ballLoc.getY() == DIMENSION_SIZE - 2) {
-                listOfLocs.add(new OrderedPair((int) ballLoc.getX() + 1,
-                        (int) ballLoc.getY()));
-            } else {
-                listOfLocs.add(new OrderedPair((int) ballLoc.getX() + 1,
-                        (int) ballLoc.getY() + 1));
-            }
+            int column = (int) ballLoc.getX();
+            int row = (int) ballLoc.getY();
+            if (column != DIMENSION_SIZE - 2)
+                column++;
+            if (row != DIMENSION_SIZE - 2)
+                row++;
+            frame[row][column] = '*';
         }
+    }
 
-        for (int i = 0; i < DIMENSION_SIZE; i++) {
-            for (int j = 0; j < DIMENSION_SIZE; j++) {
-                boolean check = true;
-                for (OrderedPair loc : listOfLocs) {
-                    if (j == (int) loc.getX() && (int) loc.getY() == i) {
-                        System.out.print('*');
-                        check = false;
-                        break;
-                    }
-                }
-                if (check) {
-                    System.out.print(boardAsString[j][i]);
-                }
-            }
-            System.out.println();
-        }
-        System.out.println();
+    /**
+     * Gets the number of rows, and of columns, in the text view of the board.
+     * 
+     * @return int side length of the text view, walls included
+     */
+    public static int getTextSize() {
+        return DIMENSION_SIZE;
     }
 
     /**
@@ -897,13 +1481,11 @@ public class Board {
         if (other instanceof Board) {
             Board otherBoard = (Board) other;
 
-            if (this.getListOfGadgets().size() == otherBoard.getListOfGadgets()
-                    .size()
+            if (this.gadgets.size() == otherBoard.gadgets.size()
                     && (this.name == otherBoard.name || (this.name != null
                             && otherBoard.name != null && this.name
                                 .equals(otherBoard.name)))
-                    && this.getListOfBalls().size() == otherBoard
-                            .getListOfBalls().size()) {
+                    && this.balls.size() == otherBoard.balls.size()) {
 
                 return true;
             }
@@ -932,7 +1514,18 @@ public class Board {
     }
 
     /**
-     * Getter method to return the balls to remove during portals' actions.
+     * Getter method to return the balls in flight through portals.
+     * 
+     * @return PortalTransfers of the balls sent through portals whose transfer
+     *         the server has not answered yet
+     */
+    public PortalTransfers getPortalTransfers() {
+        return portalTransfers;
+    }
+
+    /**
+     * Getter method to return the balls to remove during portals' actions,
+     * for servers that predate transfer ids.
      * 
      * @return Map<String, Set<Ball>> the mapping of portals to the balls they
      *         need to remove.
@@ -952,6 +1545,15 @@ public class Board {
         this.ballsToRemove = ballsToRemove;
     }
 
+    /**
+     * Getter method to get the current frame width of the GUI.
+     * 
+     * @return int representing frame width
+     */
+    public static int getFrameWidth() {
+        return FRAME_WIDTH;
+    }
+
     /**
      * Getter method to get the current frame height of the GUI.
      * 
@@ -1,8 +1,11 @@
 package gadgets;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.awt.event.KeyEvent;
+import java.io.BufferedOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -10,6 +13,13 @@ import org.junit.Test;
 
 import physics.Angle;
 import physics.Vect;
+import pingball.protocol.Acceptor;
+import pingball.protocol.Handshake;
+import pingball.protocol.InMemoryTransport;
+import pingball.protocol.Link;
+import pingball.protocol.Message;
+import pingball.protocol.MessageStream;
+import pingball.protocol.MessageType;
 
 /**
  * BoardTests don't work on Didit, but work fine on local machines.
@@ -28,6 +38,14 @@ public class BoardTest {
      * - SquareBumper triggers Absorber listener 
      * - TriangleBumper triggers Absorber listener 
      * - Self-triggering Absorber triggers itself
+     * - Key events trigger bound gadgets only at the next frame
+     * - Key mappings are not shared between boards
+     * - Named gadgets can be looked up by name and by interned id
+     * - Balls handed over are advanced by their age, but not through a gadget
+     * - Ghosts of balls handed across a wall move on past the edge, then
+     * disappear
+     * - A server without heartbeats gets NEWBALLTHROUGHPORTAL, and its
+     * PORTALBALLREJECTED and PORTALBALLACCEPTED are applied
      */
 
     private final static double EPSILON = 0.0001;
@@ -286,4 +304,200 @@ public class BoardTest {
         board.displayBoard();
     }
 
+    /*
+     * A key press is queued and only triggers the bound flipper when the board
+     * moves forward, which then shoots the ball to the right and up.
+     */
+    @Test
+    public void testKeyPressTriggersBoundGadgetAtNextFrame()
+            throws Exception {
+        Board board = new Board();
+        board.setGravity(0);
+        board.setMu1(0);
+        board.setMu2(0);
+        Ball ball = new Ball(10, 10);
+        ball.setVec(new Vect(0, 0));
+        board.addBall(ball);
+        Flipper flipper = new Flipper(9, 9, true, Angle.ZERO, board,
+                new ArrayList<Gadget>());
+        flipper.setName("FlipA");
+        board.addGadget(flipper);
+        board.addKeyMapping(KeyEvent.VK_A, "FlipA", "keydown");
+        board.resolveKeyBindings();
+
+        board.keyPressed(KeyEvent.VK_A);
+        assertEquals(0, ball.getVec().length(), EPSILON);
+
+        for (int i = 0; i < 10; i++)
+            board.moveForwardFrame();
+        assertTrue(ball.getVec().x() > 0);
+        assertTrue(ball.getVec().y() < 0);
+    }
+
+    /*
+     * Key mappings added to one board are invisible to another board.
+     */
+    @Test
+    public void testKeyMappingsArePerBoard() {
+        Board first = new Board();
+        Board second = new Board();
+        first.addKeyMapping(KeyEvent.VK_SPACE, "Abs", "keyup");
+        assertEquals(1, first.getKeyDirMapping("keyup").size());
+        assertEquals(0, second.getKeyDirMapping("keyup").size());
+        assertEquals(0, first.getKeyDirMapping("keydown").size());
+    }
+
+    /*
+     * Named gadgets are registered in the order they are added; unnamed
+     * gadgets and gadgets that could not be placed are not.
+     */
+    @Test
+    public void testGadgetRegistry() {
+        Board board = new Board();
+        Gadget first = new SquareBumper(1, 1, new ArrayList<Gadget>());
+        first.setName("First");
+        Gadget unnamed = new SquareBumper(2, 2, new ArrayList<Gadget>());
+        Gadget second = new CircleBumper(3, 3, new ArrayList<Gadget>());
+        second.setName("Second");
+        Gadget overlapping = new CircleBumper(3, 3, new ArrayList<Gadget>());
+        overlapping.setName("Overlapping");
+
+        board.addGadget(first);
+        board.addGadget(unnamed);
+        board.addGadget(second);
+        board.addGadget(overlapping);
+
+        assertEquals(first, board.getGadget("First"));
+        assertEquals(second, board.getGadget("Second"));
+        assertEquals(null, board.getGadget("Overlapping"));
+        assertEquals(0, board.getGadgetId("First"));
+        assertEquals(1, board.getGadgetId("Second"));
+        assertEquals(-1, board.getGadgetId("Missing"));
+        assertEquals(second, board.getGadget(board.getGadgetId("Second")));
+    }
+
+    /*
+     * A ball handed over with an age flies on for that long; one headed for a
+     * bumper stops short of it.
+     */
+    @Test
+    public void testAdvanceHandoff() {
+        Board board = new Board();
+        Ball ball = new Ball(1, 10);
+        ball.setGravity(false);
+        ball.setFriction(false);
+        ball.setVec(new Vect(10, 0));
+        board.advanceHandoff(ball, 0.1);
+        assertEquals(2.0, ball.getX(), EPSILON);
+        assertEquals(10.0, ball.getY(), EPSILON);
+
+        board.addGadget(new SquareBumper(4, 9, new ArrayList<Gadget>()));
+        board.advanceHandoff(ball, 0.2);
+        assertTrue(ball.getX() < 4 - 0.25);
+        assertTrue(ball.getX() > 4 - 0.25 - 10 * 0.001);
+
+        // a stalled handoff is not replayed in full
+        Ball slow = new Ball(1, 1);
+        slow.setGravity(false);
+        slow.setFriction(false);
+        slow.setVec(new Vect(1, 0));
+        board.advanceHandoff(slow, 60);
+        assertTrue(slow.getX() < 2);
+    }
+
+    /*
+     * The ghost of a ball handed across the top wall flies on past the edge of
+     * the board, where a Ball could not be, and disappears after a while.
+     */
+    @Test
+    public void testGhostBallsPastTheWall() {
+        Board board = new Board();
+        board.setGhostBalls(true);
+        board.makeWallInvisible("Above", 0);
+        Ball ball = new Ball(10, 2);
+        ball.setGravity(false);
+        ball.setFriction(false);
+        ball.setVec(new Vect(0, -30));
+        board.addBall(ball);
+        // the ball crosses the wall in the third frame
+        for (int frame = 0; frame < 3; frame++)
+            board.moveForwardFrame();
+        assertFalse(board.getBallsView().contains(ball));
+        assertEquals(1, board.getGhostBallsView().size());
+        GhostBall ghost = board.getGhostBallsView().get(0);
+        assertEquals(10.0, ghost.getX(), EPSILON);
+        assertTrue(ghost.moved(0.1).getY() < 0);
+
+        // it flies past the edge during the next frame, then disappears
+        board.moveForwardFrame();
+        assertTrue(board.getGhostBallsView().isEmpty());
+    }
+
+    /*
+     * A server from before heartbeats skips PORTALTRANSFER, so the board falls
+     * back to NEWBALLTHROUGHPORTAL and keeps the ball until it is accepted.
+     */
+    @Test
+    public void testPortalToOldServer() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        Acceptor acceptor = transport.listen(0);
+        final Board board = new Board();
+        board.setBoardName("Mars");
+        board.setTransport(transport);
+        final int port = acceptor.getPort();
+        Thread connector = new Thread(new Runnable() {
+            public void run() {
+                board.setHostAndPort("localhost", port);
+            }
+        });
+        connector.start();
+        Link link = acceptor.accept();
+        BufferedOutputStream out = new BufferedOutputStream(
+                link.getOutputStream());
+        Handshake handshake = Handshake.accept(link.getInputStream(), out);
+        connector.join();
+        MessageStream server = new MessageStream(link.getInputStream(), out,
+                handshake.getCodec());
+
+        Ball ball = new Ball(10, 10);
+        board.addBall(ball);
+        board.sendBallThroughPortal(ball, "Gamma", "Earth", "Alpha");
+        board.flushServerMessages();
+        Message sent = server.read();
+        while (sent.getType() == MessageType.PING)
+            sent = server.read();
+        assertEquals(Message.newBallThroughPortal("Mars", "Gamma", "Earth",
+                "Alpha", ball.getVx(), ball.getVy()), sent);
+        assertTrue(board.isBallInFlight(ball, "Gamma"));
+
+        server.write(Message.portalBallRejected("Gamma"));
+        server.write(Message.portalBallAccepted("Beta"));
+        awaitAnswered(board, ball);
+        assertTrue(board.getBallsView().contains(ball));
+
+        board.sendBallThroughPortal(ball, "Gamma", "Earth", "Alpha");
+        board.flushServerMessages();
+        server.write(Message.portalBallAccepted("Gamma"));
+        awaitAnswered(board, ball);
+        assertFalse(board.getBallsView().contains(ball));
+
+        link.close();
+        acceptor.close();
+    }
+
+    /**
+     * Applies the server's messages until the ball's portal transfer is
+     * answered, or a few seconds pass.
+     */
+    private static void awaitAnswered(Board board, Ball ball)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            board.applyServerMessages();
+            if (!board.isBallInFlight(ball, "Gamma"))
+                return;
+            Thread.sleep(1);
+        }
+        assertFalse(board.isBallInFlight(ball, "Gamma"));
+    }
 }
@@ -60,8 +60,8 @@ public class CircleBumper implements Gadget {
     public void affectBall(Ball ball) {
         double minTime = timeUntilCollision(ball);
 
-        double newX = ball.getLoc().getX() + ball.getVec().x() * minTime;
-        double newY = ball.getLoc().getY() + ball.getVec().y() * minTime;
+        double newX = ball.getX() + ball.getVx() * minTime;
+        double newY = ball.getY() + ball.getVy() * minTime;
         ball.setLoc(newX, newY);
 
         Vect circleVec = this.bumper.getCenter();
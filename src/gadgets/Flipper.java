@@ -290,8 +290,8 @@ public class Flipper implements Gadget {
             if (minTime == Double.MAX_VALUE)
                 return;
 
-            double newX = ball.getLoc().getX() + ball.getVec().x() * minTime;
-            double newY = ball.getLoc().getY() + ball.getVec().y() * minTime;
+            double newX = ball.getX() + ball.getVx() * minTime;
+            double newY = ball.getY() + ball.getVy() * minTime;
             ball.setLoc(newX, newY);
 
             if (minTime == minCornerTime) {
@@ -330,13 +330,13 @@ public class Flipper implements Gadget {
             if (minTime == Double.MAX_VALUE)
                 return;
 
-            double newX = ball.getLoc().getX() + ball.getVec().x() * minTime;
-            double newY = ball.getLoc().getY() + ball.getVec().y() * minTime;
+            double newX = ball.getX() + ball.getVx() * minTime;
+            double newY = ball.getY() + ball.getVy() * minTime;
             ball.setLoc(newX, newY);
 
             if (minTime == minCornerTime) {
                 ball.setVec(Geometry.reflectCircle(minCorner.getCenter(),
-                        new Vect(ball.getLoc().getX(), ball.getLoc().getY()),
+                        new Vect(ball.getX(), ball.getY()),
                         ball.getVec(), COEFFICIENT_OF_REFLECTION));
             } else if (minTime == minEdgeTime) {
                 ball.setVec(Geometry.reflectWall(new LineSegment(minEdge.p1(),
@@ -0,0 +1,101 @@
+package gadgets;
+
+import java.awt.Graphics2D;
+
+/**
+ * Preview of a ball handed to a neighbouring board, drawn on the board it
+ * left until the neighbour has had time to show the ball itself. A ghost
+ * moves in a straight line and collides with nothing, so unlike a Ball it may
+ * be anywhere, including past the edge of the board.
+ *
+ * Abstraction function: The outline of a ball of radius 0.25 centred at
+ * (x, y), moving with velocity (vx, vy), shown until simulation time
+ * deadline.
+ *
+ * Representation: the coordinates, velocity and deadline as doubles.
+ *
+ * Rep Invariant: true.
+ *
+ * Thread-safety argument: Immutable, so a renderer may draw a ghost while the
+ * board replaces it with a moved one.
+ */
+public final class GhostBall {
+    private static final double BALL_RADIUS = 0.25;
+
+    private final double x;
+    private final double y;
+    private final double vx;
+    private final double vy;
+    private final double deadline;
+
+    /**
+     * Makes a ghost.
+     *
+     * @param x
+     *            double x coordinate of its centre
+     * @param y
+     *            double y coordinate of its centre
+     * @param vx
+     *            double x velocity
+     * @param vy
+     *            double y velocity
+     * @param deadline
+     *            double simulation time it disappears at
+     */
+    public GhostBall(double x, double y, double vx, double vy, double deadline) {
+        this.x = x;
+        this.y = y;
+        this.vx = vx;
+        this.vy = vy;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @param timeStep
+     *            double seconds to move for
+     * @return GhostBall this ghost, moved on in a straight line
+     */
+    public GhostBall moved(double timeStep) {
+        return new GhostBall(x + vx * timeStep, y + vy * timeStep, vx, vy,
+                deadline);
+    }
+
+    /** OBSERVER METHODS **/
+
+    /**
+     * @return double x coordinate of its centre
+     */
+    public double getX() {
+        return x;
+    }
+
+    /**
+     * @return double y coordinate of its centre
+     */
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * @return double simulation time it disappears at
+     */
+    public double getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Draws the ghost: the outline of the ball only.
+     *
+     * @param g2d
+     *            Graphics2D to draw on
+     * @param SCALE_FACTOR
+     *            double pixels per board unit
+     */
+    public void drawOnFrame(Graphics2D g2d, double SCALE_FACTOR) {
+        g2d.drawOval(
+                (int) ((x - BALL_RADIUS + Gadget.DRAW_OFFSET) * SCALE_FACTOR),
+                (int) ((y - BALL_RADIUS + Gadget.DRAW_OFFSET) * SCALE_FACTOR),
+                (int) (2 * BALL_RADIUS * SCALE_FACTOR),
+                (int) (2 * BALL_RADIUS * SCALE_FACTOR));
+    }
+}
@@ -0,0 +1,300 @@
+package gadgets;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.imageio.ImageIO;
+
+import parser.BoardBuilder;
+
+/**
+ * HeadlessRenderer steps a Board without any JFrame and draws every frame
+ * through the gadgets' and balls' drawOnFrame methods into off-screen images,
+ * which a background thread encodes as a numbered PNG sequence
+ * (frame_00000.png, frame_00001.png, ...). The simulation is not paced to the
+ * wall clock, so recording runs as fast as the machine allows.
+ *
+ * Abstraction Function: Represents a recorder of a single board that turns
+ * each simulated frame into one image file in an output directory.
+ *
+ * Representation: A fixed pool of reusable BufferedImages shared by the
+ * simulation thread and the writer thread through two bounded queues: free
+ * images waiting to be drawn on, and drawn frames waiting to be written.
+ *
+ * Rep Invariant: Every image in the pool is either in freeImages, in
+ * pendingFrames, or held by exactly one of the two threads. The number of
+ * images never exceeds POOL_SIZE.
+ *
+ * Thread-Safety Argument: There are two threads: the caller's thread that
+ * steps the board and draws, and the writer thread that encodes PNGs. The board
+ * is only touched by the caller's thread. Images are handed between threads
+ * exclusively through BlockingQueues, so an image is never drawn on while it
+ * is being encoded. The first error seen by the writer thread is published
+ * through a volatile field and rethrown on the caller's thread.
+ */
+public class HeadlessRenderer {
+
+    /** Number of off-screen images cycling between the two threads. */
+    private static final int POOL_SIZE = 8;
+    /** Background colour of the Pingball panel. */
+    private static final Color BACKGROUND = new Color(238, 238, 238);
+
+    private final Board board;
+    private final File outputDirectory;
+    private final int width;
+    private final int height;
+    private final double scaleFactor;
+
+    private final BlockingQueue<BufferedImage> freeImages;
+    private final BlockingQueue<Frame> pendingFrames;
+
+    private volatile IOException writerError = null;
+
+    /**
+     * A drawn image together with its position in the sequence. A Frame with
+     * a null image marks the end of the sequence.
+     */
+    private static class Frame {
+        private final int index;
+        private final BufferedImage image;
+
+        private Frame(int index, BufferedImage image) {
+            this.index = index;
+            this.image = image;
+        }
+    }
+
+    /**
+     * Creates a renderer for a board using the same frame size and scale
+     * factor as the Pingball GUI.
+     *
+     * @param board
+     *            Board to be simulated and drawn
+     * @param outputDirectory
+     *            directory the PNG files are written to; created if missing
+     */
+    public HeadlessRenderer(Board board, File outputDirectory) {
+        this(board, outputDirectory, Board.getFrameWidth(), Board
+                .getFrameHeight(), Board.getScaleFactor());
+    }
+
+    /**
+     * Creates a renderer for a board with a custom image size.
+     *
+     * @param board
+     *            Board to be simulated and drawn
+     * @param outputDirectory
+     *            directory the PNG files are written to; created if missing
+     * @param width
+     *            int width of every frame in pixels, must be positive
+     * @param height
+     *            int height of every frame in pixels, must be positive
+     * @param scaleFactor
+     *            double number of pixels per board unit
+     */
+    public HeadlessRenderer(Board board, File outputDirectory, int width,
+            int height, double scaleFactor) {
+        this.board = board;
+        this.outputDirectory = outputDirectory;
+        this.width = width;
+        this.height = height;
+        this.scaleFactor = scaleFactor;
+        this.freeImages = new ArrayBlockingQueue<BufferedImage>(POOL_SIZE);
+        this.pendingFrames = new ArrayBlockingQueue<Frame>(POOL_SIZE + 1);
+        for (int i = 0; i < POOL_SIZE; i++)
+            freeImages.add(new BufferedImage(width, height,
+                    BufferedImage.TYPE_INT_RGB));
+        checkRep();
+    }
+
+    /**
+     * Checks that all instance variables are not null and the frame size is
+     * positive.
+     */
+    private void checkRep() {
+        assert board != null;
+        assert outputDirectory != null;
+        assert width > 0 && height > 0;
+        assert freeImages.size() + pendingFrames.size() <= POOL_SIZE;
+    }
+
+    /**
+     * Simulates and records a number of frames. The first image shows the
+     * board before any simulation step; each following image is taken after
+     * one call to moveForwardFrame. Returns once every frame has been written.
+     *
+     * @param numberOfFrames
+     *            int number of images to produce, must be non-negative
+     * @throws IOException
+     *             if the output directory cannot be created or a frame cannot
+     *             be written
+     * @throws InterruptedException
+     *             if the calling thread is interrupted while waiting for the
+     *             writer
+     */
+    public void record(int numberOfFrames) throws IOException,
+            InterruptedException {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+            throw new IOException("unable to create " + outputDirectory);
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                writeFrames();
+            }
+        });
+        writer.start();
+
+        try {
+            for (int i = 0; i < numberOfFrames && writerError == null; i++) {
+                if (i > 0)
+                    board.moveForwardFrame();
+                BufferedImage image = freeImages.take();
+                drawFrame(image);
+                pendingFrames.put(new Frame(i, image));
+            }
+        } finally {
+            pendingFrames.put(new Frame(-1, null));
+            writer.join();
+        }
+        if (writerError != null)
+            throw writerError;
+        checkRep();
+    }
+
+    /**
+     * Draws the current state of the board onto an image, in the same order as
+     * Pingball.paint: gadgets first, then balls, then ghost balls.
+     *
+     * @param image
+     *            BufferedImage to be overwritten
+     */
+    protected void drawFrame(BufferedImage image) {
+        Graphics2D g2d = image.createGraphics();
+        try {
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_OFF);
+            g2d.setColor(BACKGROUND);
+            g2d.fillRect(0, 0, width, height);
+            g2d.setColor(Color.BLACK);
+
+            List<Gadget> gadgets = board.getGadgetsView();
+            for (int i = 0; i < gadgets.size(); i++)
+                gadgets.get(i).drawOnFrame(g2d, scaleFactor);
+
+            for (Ball b : board.getBallsView())
+                b.drawOnFrame(g2d, scaleFactor);
+            for (GhostBall ghost : board.getGhostBallsView())
+                ghost.drawOnFrame(g2d, scaleFactor);
+        } finally {
+            g2d.dispose();
+        }
+    }
+
+    /**
+     * Body of the writer thread: encodes frames until the end marker arrives,
+     * returning every image to the pool afterwards. After the first failure
+     * the remaining frames are drained without being written.
+     */
+    private void writeFrames() {
+        try {
+            while (true) {
+                Frame frame = pendingFrames.take();
+                if (frame.image == null)
+                    return;
+                try {
+                    if (writerError == null)
+                        ImageIO.write(frame.image, "png",
+                                fileForFrame(frame.index));
+                } catch (IOException ioe) {
+                    writerError = ioe;
+                } finally {
+                    freeImages.put(frame.image);
+                }
+            }
+        } catch (InterruptedException ie) {
+            writerError = new IOException("writer interrupted", ie);
+        }
+    }
+
+    /**
+     * Gets the file a given frame is written to.
+     *
+     * @param index
+     *            int position of the frame in the sequence
+     * @return File frame_NNNNN.png inside the output directory
+     */
+    public File fileForFrame(int index) {
+        return new File(outputDirectory, String.format("frame_%05d.png",
+                index));
+    }
+
+    /**
+     * Records a board file to a PNG sequence without opening a window.
+     *
+     * usage: HeadlessRenderer [--frames N] [--out DIRECTORY] FILE
+     *
+     * @param args
+     *            arguments as described
+     * @throws Exception
+     *             if the board file cannot be parsed or a frame cannot be
+     *             written
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int frames = 500;
+        String directory = "frames";
+        String filename = null;
+
+        Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
+        try {
+            while (!arguments.isEmpty()) {
+                String flag = arguments.remove();
+                try {
+                    if (flag.equals("--frames")) {
+                        frames = Integer.parseInt(arguments.remove());
+                        if (frames < 0)
+                            throw new IllegalArgumentException(
+                                    "frame count must be non-negative");
+                    } else if (flag.equals("--out")) {
+                        directory = arguments.remove();
+                    } else {
+                        filename = flag;
+                    }
+                } catch (NoSuchElementException nsee) {
+                    throw new IllegalArgumentException("missing argument for "
+                            + flag);
+                } catch (NumberFormatException nfe) {
+                    throw new IllegalArgumentException(
+                            "unable to parse number for " + flag);
+                }
+            }
+            if (filename == null)
+                throw new IllegalArgumentException("missing board file");
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err
+                    .println("usage: HeadlessRenderer [--frames N] [--out DIRECTORY] FILE");
+            return;
+        }
+
+        Board board = BoardBuilder.constructBoard(new File(filename));
+        HeadlessRenderer renderer = new HeadlessRenderer(board, new File(
+                directory));
+        long start = System.currentTimeMillis();
+        renderer.record(frames);
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("Wrote " + frames + " frames to " + directory
+                + " in " + elapsed + " ms");
+    }
+}
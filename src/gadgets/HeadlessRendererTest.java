@@ -0,0 +1,108 @@
+package gadgets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import physics.Vect;
+
+public class HeadlessRendererTest {
+    /**
+     * Testing Strategy
+     *
+     * record:
+     * -zero frames, one frame, more frames than images in the pool
+     * -every frame is written with the requested size
+     *
+     * drawFrame:
+     * -a ball is drawn at the position given by the scale factor
+     */
+
+    /**
+     * Deletes a directory of frames and everything in it.
+     */
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void testRecordWritesNumberedSequence() throws Exception {
+        File directory = Files.createTempDirectory("frames").toFile();
+        try {
+            Board board = new Board();
+            Ball ball = new Ball(10, 10);
+            ball.setVec(new Vect(3, 0));
+            board.addBall(ball);
+
+            HeadlessRenderer renderer = new HeadlessRenderer(board, directory,
+                    60, 72, 2.25);
+            renderer.record(20);
+
+            for (int i = 0; i < 20; i++) {
+                BufferedImage image = ImageIO.read(renderer.fileForFrame(i));
+                assertEquals(60, image.getWidth());
+                assertEquals(72, image.getHeight());
+            }
+            assertTrue(!renderer.fileForFrame(20).exists());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testRecordOneFrame() throws Exception {
+        File directory = Files.createTempDirectory("frames").toFile();
+        try {
+            HeadlessRenderer renderer = new HeadlessRenderer(new Board(),
+                    directory, 40, 30, 1.5);
+            renderer.record(1);
+
+            assertEquals(1, directory.listFiles().length);
+            BufferedImage image = ImageIO.read(renderer.fileForFrame(0));
+            assertEquals(40, image.getWidth());
+            assertEquals(30, image.getHeight());
+            assertTrue(!renderer.fileForFrame(1).exists());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testRecordZeroFrames() throws Exception {
+        File directory = Files.createTempDirectory("frames").toFile();
+        try {
+            HeadlessRenderer renderer = new HeadlessRenderer(new Board(),
+                    directory);
+            renderer.record(0);
+            assertEquals(0, directory.listFiles().length);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testDrawFrameDrawsBall() {
+        Board board = new Board();
+        board.addBall(new Ball(10, 10));
+        HeadlessRenderer renderer = new HeadlessRenderer(board, new File(
+                "unused"), 100, 100, 4.0);
+        BufferedImage image = new BufferedImage(100, 100,
+                BufferedImage.TYPE_INT_RGB);
+        renderer.drawFrame(image);
+
+        // the ball's centre is at (10 + DRAW_OFFSET) * 4.0 pixels
+        assertEquals(0x000000, image.getRGB(48, 48) & 0xffffff);
+        assertTrue((image.getRGB(30, 30) & 0xffffff) != 0);
+    }
+}
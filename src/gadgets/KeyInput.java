@@ -0,0 +1,56 @@
+package gadgets;
+
+/**
+ * Simple immutable class representing a single key press or release, stamped
+ * with the time it was received.
+ */
+public class KeyInput {
+    private final int keyCode;
+    private final boolean keyDown;
+    private final long timestamp;
+
+    /**
+     * Constructor for the KeyInput
+     *
+     * @param keyCode
+     *            int KeyEvent.VK_ code of the key
+     * @param keyDown
+     *            boolean true for a key press, false for a key release
+     * @param timestamp
+     *            long System.nanoTime() at which the event was received
+     */
+    public KeyInput(int keyCode, boolean keyDown, long timestamp) {
+        this.keyCode = keyCode;
+        this.keyDown = keyDown;
+        this.timestamp = timestamp;
+    }
+
+    /** OBSERVER METHODS **/
+
+    /**
+     * Gets the KeyEvent.VK_ code of the key
+     *
+     * @return int key code
+     */
+    public int getKeyCode() {
+        return this.keyCode;
+    }
+
+    /**
+     * Gets whether the key was pressed or released
+     *
+     * @return boolean true for a key press, false for a key release
+     */
+    public boolean isKeyDown() {
+        return this.keyDown;
+    }
+
+    /**
+     * Gets the time at which the event was received
+     *
+     * @return long System.nanoTime() at which the event was received
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+}
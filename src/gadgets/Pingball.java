@@ -12,8 +12,8 @@ import java.awt.event.MouseEvent;
 import java.awt.event.WindowEvent;
 import java.io.File;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
 
@@ -41,11 +41,12 @@ import parser.BoardBuilder;
  * Rep Invariant: All instance variable are not null.
  * 
  * Thread-Safety Argument: There are two threads in Pingball, the main thread
- * listening to key presses and a GUI event dispatch thread. The data from key
- * presses is not shared, and each click is processed on the fly and then
- * discarded. There is no central pool of key click data kept. The action
- * listeners are only called in the event dispatch thread, as verified below. No
- * other data is shared between threads. Thus, the system is thread safe.
+ * running the board and a GUI event dispatch thread. Key presses received on
+ * the event dispatch thread are handed to the board through its thread-safe
+ * key input queue and applied by the main thread, so gadgets are only ever
+ * triggered by the thread running the physics. The action listeners are only
+ * called in the event dispatch thread, as verified below. No other data is
+ * shared between threads. Thus, the system is thread safe.
  * 
  */
 public class Pingball extends JPanel {
@@ -60,6 +61,7 @@ public class Pingball extends JPanel {
 
     private File boardFile;
     private Board board;
+    private final boolean binaryProtocol;
     private JLabel currentServerLabel = new JLabel();
 
     @Override
@@ -67,11 +69,14 @@ public class Pingball extends JPanel {
         super.paint(g);
         Graphics2D g2d = (Graphics2D) g;
 
-        for (int i = 0; i < board.gadgets.size(); i++)
-            board.gadgets.get(i).drawOnFrame(g2d, SCALE_FACTOR);
+        List<Gadget> gadgets = board.getGadgetsView();
+        for (int i = 0; i < gadgets.size(); i++)
+            gadgets.get(i).drawOnFrame(g2d, SCALE_FACTOR);
 
-        for (Ball b : board.balls)
+        for (Ball b : board.getBallsView())
             b.drawOnFrame(g2d, SCALE_FACTOR);
+        for (GhostBall ghost : board.getGhostBallsView())
+            ghost.drawOnFrame(g2d, SCALE_FACTOR);
     }
 
     /**
@@ -97,15 +102,40 @@ public class Pingball extends JPanel {
      */
     public Pingball(boolean clientServer, String host, String filename, int port)
             throws Exception {
+        this(clientServer, host, filename, port, false);
+    }
+
+    /**
+     * Pingball constructor that can ask the server for the binary protocol.
+     * 
+     * @param clientServer
+     *            boolean indicating if client-server play is enabled
+     * @param host
+     *            String indicating name of server host
+     * @param filename
+     *            String indicating name of file to be parsed
+     * @param port
+     *            int indicating number of port to connect to
+     * @param binaryProtocol
+     *            boolean true to ask the server for the binary protocol on
+     *            every connection
+     * @throws Exception
+     *             Exception thrown if file can't be parsed
+     */
+    public Pingball(boolean clientServer, String host, String filename,
+            int port, boolean binaryProtocol) throws Exception {
+        this.binaryProtocol = binaryProtocol;
         boardFile = new File(filename);
         if (!clientServer || host == null) {
             if (filename != null) {
                 board = BoardBuilder.constructBoard(boardFile);
+                board.setBinaryProtocol(binaryProtocol);
             } else {
                 throw new IllegalArgumentException("unable to parse file");
             }
         } else {
             board = BoardBuilder.constructBoard(boardFile);
+            board.setBinaryProtocol(binaryProtocol);
             board.setHostAndPort(host, port);
         }
 
@@ -136,32 +166,14 @@ public class Pingball extends JPanel {
                 requestFocusInWindow();
             }
 
+            // Key events are only queued here; the board applies them on its
+            // own thread at the next substep.
             private void handleKeyUp(int keyCode) {
-                HashSet<String> names = Board.KEYUP_MAPPINGS.get(keyCode);
-                System.out.println("handleKeyUp names: " + names);
-                if (names != null) {
-                    for (String s : names) {
-                        for (Gadget g : board.getListOfGadgets()) {
-                            if (s.equals(g.getName())) {
-                                g.doAction();
-                            }
-                        }
-                    }
-                }
+                board.keyReleased(keyCode);
             }
 
             private void handleKeyDown(int keyCode) {
-                HashSet<String> names = Board.KEYDOWN_MAPPINGS.get(keyCode);
-                System.out.println("handleKeyDown names: " + names);
-                if (names != null) {
-                    for (String s : names) {
-                        for (Gadget g : board.getListOfGadgets()) {
-                            if (s.equals(g.getName())) {
-                                g.doAction();
-                            }
-                        }
-                    }
-                }
+                board.keyPressed(keyCode);
             }
         };
 
@@ -203,6 +215,7 @@ public class Pingball extends JPanel {
                             if (serverPlay)
                                 board.disconnectFromServer();
                             board = BoardBuilder.constructBoard(boardFile);
+                            board.setBinaryProtocol(binaryProtocol);
                             if (serverPlay) {
                                 board.setHostAndPort(host, port);
                                 currentServerLabel.setText("Connected to "
@@ -243,6 +256,7 @@ public class Pingball extends JPanel {
                             if (serverPlay)
                                 board.disconnectFromServer();
                             board = BoardBuilder.constructBoard(boardFile);
+                            board.setBinaryProtocol(binaryProtocol);
                             if (serverPlay) {
                                 board.setHostAndPort(host, port);
                                 currentServerLabel.setText("Connected to "
@@ -462,6 +476,7 @@ public class Pingball extends JPanel {
      */
     public static void main(String[] args) throws Exception {
         boolean clientServer;
+        boolean binaryProtocol = false;
         String host = null;
         int port = DEFAULT_PORT;
         String filename = null;
@@ -482,6 +497,8 @@ public class Pingball extends JPanel {
                     try {
                         if (flag.equals("--host"))
                             host = arguments.remove();
+                        else if (flag.equals("--binary"))
+                            binaryProtocol = true;
                         else if (flag.equals("--port")) {
                             port = Integer.parseInt(arguments.remove());
                             if (port < 0 || port > MAXIMUM_PORT) {
@@ -503,11 +520,12 @@ public class Pingball extends JPanel {
                 System.err.println(iae.getMessage());
                 System.err
                         .println("usage: (single machine play) Pingball [FILE]\n"
-                                + "(client-server mode) Pingball [--host HOST] [--port PORT] FILE");
+                                + "(client-server mode) Pingball [--host HOST] [--port PORT] [--binary] FILE");
                 return;
             }
         }
-        Pingball pingballGame = new Pingball(clientServer, host, filename, port);
+        Pingball pingballGame = new Pingball(clientServer, host, filename,
+                port, binaryProtocol);
         pingballGame.run();
     }
 
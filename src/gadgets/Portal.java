@@ -98,8 +98,7 @@ public class Portal implements Gadget {
     @Override
     public double timeUntilCollision(Ball ball) {
         if (!board.isServerPlay()
-                || (board.getBallsToRemove().keySet().contains(portalName) && board.getBallsToRemove()
-                        .get(portalName).contains(ball)))
+                || board.isBallInFlight(ball, portalName))
             return Double.MAX_VALUE;
         Circle ballCircle = ball.getCirc();
         Vect ballVec = ball.getVec();
@@ -111,8 +110,8 @@ public class Portal implements Gadget {
     @Override
     public void affectBall(Ball ball) {
         double minTime = timeUntilCollision(ball);
-        double newX = ball.getLoc().getX() + ball.getVec().x() * minTime;
-        double newY = ball.getLoc().getY() + ball.getVec().y() * minTime;
+        double newX = ball.getX() + ball.getVx() * minTime;
+        double newY = ball.getY() + ball.getVy() * minTime;
         ball.setLoc(newX, newY);
 
         this.board.sendBallThroughPortal(ball, this.portalName,
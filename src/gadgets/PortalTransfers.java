@@ -0,0 +1,259 @@
+package gadgets;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Table of the balls a board has sent through portals and not yet heard back
+ * about. Each transfer gets its own id, which the server echoes in its
+ * PORTALACK or PORTALNACK, so any number of balls may be in flight through
+ * the same portal and each reply settles exactly one of them.
+ *
+ * A transfer that gets no reply before its deadline expires, and one whose
+ * connection is lost is cleared; either way its ball stays on the board. The
+ * server may still have delivered the ball, so for a while it can be on two
+ * boards: keeping it risks a duplicate, where dropping it would risk losing a
+ * ball the server had rejected. To bound the duplicate, an expired or cleared
+ * transfer is kept as a tombstone for one more timeout, and a PORTALACK that
+ * arrives late still settles it, so the board removes its copy; a server
+ * that resumes a dropped session sends its last ACKs again for this. A reply
+ * later still, or lost with a session that is not resumed, leaves the
+ * duplicate in play.
+ *
+ * Abstraction Function: Represents the set of transfers in flight, each a
+ * ball, the portal it entered, an id and a deadline, and the set of
+ * transfers recently expired or cleared whose replies may yet arrive.
+ *
+ * Representation: byId and byBall index the same transfers by id and by ball
+ * (by identity, since a Ball is mutable). byDeadline holds them in the order
+ * they started; since every transfer gets the same timeout, that is also the
+ * order of their deadlines, so expiring is a walk from the head. Transfers
+ * settled by a reply are left in byDeadline and skipped when they reach the
+ * head. tombstones indexes the expired and cleared transfers by id, and
+ * tombstonesByDeadline holds them in the same order, kept until timeoutNanos
+ * past their deadlines and skipped the same way once settled.
+ *
+ * Rep Invariant: byId and byBall hold the same transfers; every transfer in
+ * byId is in byDeadline and every one in tombstones is in
+ * tombstonesByDeadline; no id is in both byId and tombstones; deadlines in
+ * byDeadline and in tombstonesByDeadline never decrease; timeoutNanos > 0.
+ *
+ * Thread-safety argument: Not thread-safe. It is confined to the thread
+ * running its board, which both starts transfers and applies the server's
+ * replies.
+ */
+public class PortalTransfers {
+
+    /** Default time to wait for the server to answer a transfer. */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    /**
+     * One ball in flight.
+     */
+    private static final class Transfer {
+        private final int id;
+        private final Ball ball;
+        private final String portalName;
+        private final long deadline;
+
+        private Transfer(int id, Ball ball, String portalName, long deadline) {
+            this.id = id;
+            this.ball = ball;
+            this.portalName = portalName;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long timeoutNanos;
+    private final Map<Integer, Transfer> byId =
+            new HashMap<Integer, Transfer>();
+    private final Map<Ball, Transfer> byBall =
+            new IdentityHashMap<Ball, Transfer>();
+    private final ArrayDeque<Transfer> byDeadline =
+            new ArrayDeque<Transfer>();
+    private final Map<Integer, Transfer> tombstones =
+            new HashMap<Integer, Transfer>();
+    private final ArrayDeque<Transfer> tombstonesByDeadline =
+            new ArrayDeque<Transfer>();
+    private int nextId = 0;
+
+    /**
+     * Creates an empty table whose transfers expire after timeoutMillis.
+     *
+     * @param timeoutMillis
+     *            long time to wait for a reply, > 0
+     */
+    public PortalTransfers(long timeoutMillis) {
+        if (timeoutMillis <= 0)
+            throw new IllegalArgumentException("timeout must be positive");
+        timeoutNanos = timeoutMillis * NANOS_PER_MILLI;
+        checkRep();
+    }
+
+    /**
+     * Creates an empty table with the default timeout.
+     */
+    public PortalTransfers() {
+        this(DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Checks the rep invariant.
+     */
+    private void checkRep() {
+        assert timeoutNanos > 0;
+        assert byId.size() == byBall.size();
+        assert byDeadline.size() >= byId.size();
+        assert tombstonesByDeadline.size() >= tombstones.size();
+    }
+
+    /**
+     * Records a ball entering a portal.
+     *
+     * @param ball
+     *            Ball sent, not already in flight
+     * @param portalName
+     *            String portal the ball entered
+     * @param now
+     *            long System.nanoTime() when it was sent
+     * @return int id of the new transfer, to send to the server
+     */
+    public int start(Ball ball, String portalName, long now) {
+        if (byBall.containsKey(ball))
+            throw new IllegalArgumentException("ball already in flight");
+        int id = nextId++;
+        // ids wrap around; one still in flight after 2^32 transfers is
+        // long expired
+        Transfer transfer = new Transfer(id, ball, portalName, now
+                + timeoutNanos);
+        byId.put(id, transfer);
+        byBall.put(ball, transfer);
+        byDeadline.addLast(transfer);
+        checkRep();
+        return id;
+    }
+
+    /**
+     * Settles a transfer the server answered, whether still in flight or
+     * recently expired or cleared.
+     *
+     * @param id
+     *            int id echoed by the server
+     * @return Ball of the transfer, or null if no transfer with that id is in
+     *         flight or tombstoned (the reply is a duplicate, or came too
+     *         late)
+     */
+    public Ball settle(int id) {
+        Transfer transfer = byId.remove(id);
+        if (transfer != null)
+            byBall.remove(transfer.ball);
+        else
+            transfer = tombstones.remove(id);
+        checkRep();
+        return transfer == null ? null : transfer.ball;
+    }
+
+    /**
+     * Expires every transfer whose deadline has passed, and drops tombstones
+     * a timeout past theirs. The balls of expired transfers stay on the
+     * board.
+     *
+     * @param now
+     *            long System.nanoTime()
+     * @return int number of transfers that expired
+     */
+    public int expire(long now) {
+        int expired = 0;
+        while (!byDeadline.isEmpty()) {
+            Transfer head = byDeadline.peekFirst();
+            if (byId.get(head.id) != head) {
+                // settled already
+                byDeadline.removeFirst();
+            } else if (now - head.deadline >= 0) {
+                byDeadline.removeFirst();
+                bury(head);
+                expired++;
+            } else {
+                break;
+            }
+        }
+        while (!tombstonesByDeadline.isEmpty()) {
+            Transfer head = tombstonesByDeadline.peekFirst();
+            if (tombstones.get(head.id) != head) {
+                // settled already
+                tombstonesByDeadline.removeFirst();
+            } else if (now - (head.deadline + timeoutNanos) >= 0) {
+                tombstonesByDeadline.removeFirst();
+                tombstones.remove(head.id);
+            } else {
+                break;
+            }
+        }
+        checkRep();
+        return expired;
+    }
+
+    /**
+     * Ends every transfer, for when the connection that would carry the
+     * replies is gone. Their balls stay on the board, and they are kept as
+     * tombstones like expired transfers.
+     */
+    public void clear() {
+        for (Transfer transfer : byDeadline)
+            if (byId.get(transfer.id) == transfer)
+                bury(transfer);
+        byDeadline.clear();
+        checkRep();
+    }
+
+    /**
+     * Moves a transfer from those in flight to the tombstones.
+     */
+    private void bury(Transfer transfer) {
+        byId.remove(transfer.id);
+        byBall.remove(transfer.ball);
+        tombstones.put(transfer.id, transfer);
+        tombstonesByDeadline.addLast(transfer);
+    }
+
+    /** OBSERVER METHODS **/
+
+    /**
+     * Checks whether a ball is in flight.
+     *
+     * @param ball
+     *            Ball to look up
+     * @return boolean true if the ball was sent and not yet answered
+     */
+    public boolean isInFlight(Ball ball) {
+        return byBall.containsKey(ball);
+    }
+
+    /**
+     * Checks whether a ball is in flight through a particular portal.
+     *
+     * @param ball
+     *            Ball to look up
+     * @param portalName
+     *            String name of the portal
+     * @return boolean true if the ball was sent through that portal and not
+     *         yet answered
+     */
+    public boolean isInFlight(Ball ball, String portalName) {
+        Transfer transfer = byBall.get(ball);
+        return transfer != null && transfer.portalName.equals(portalName);
+    }
+
+    /**
+     * Gets the number of transfers in flight.
+     *
+     * @return int number of transfers not yet answered or expired
+     */
+    public int size() {
+        return byId.size();
+    }
+}
@@ -0,0 +1,109 @@
+package gadgets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PortalTransfersTest {
+    /**
+     * Testing Strategy
+     * 
+     * start: 
+     * -several balls in flight through the same portal get distinct ids
+     * 
+     * settle: 
+     * -each id settles exactly its own ball, in any order
+     * -an unknown or repeated id settles nothing
+     * 
+     * expire: 
+     * -nothing expires before the deadline, everything unanswered after it
+     * -settled transfers are skipped
+     * -a reply after the deadline still settles the ball, until a timeout
+     * past it
+     * 
+     * clear: 
+     * -no ball is in flight afterwards, but a late reply still settles it
+     */
+
+    private static final long MILLI = 1000000;
+
+    @Test
+    public void testManyBallsThroughOnePortal() {
+        PortalTransfers transfers = new PortalTransfers(100);
+        Ball first = new Ball(1, 1);
+        Ball second = new Ball(2, 2);
+        Ball third = new Ball(3, 3);
+        int firstId = transfers.start(first, "Alpha", 0);
+        int secondId = transfers.start(second, "Alpha", 0);
+        int thirdId = transfers.start(third, "Beta", 0);
+        assertTrue(firstId != secondId && secondId != thirdId);
+        assertTrue(transfers.isInFlight(second, "Alpha"));
+        assertFalse(transfers.isInFlight(third, "Alpha"));
+        assertEquals(3, transfers.size());
+
+        assertSame(second, transfers.settle(secondId));
+        assertFalse(transfers.isInFlight(second));
+        assertTrue(transfers.isInFlight(first));
+        assertNull(transfers.settle(secondId));
+        assertNull(transfers.settle(12345));
+        assertSame(first, transfers.settle(firstId));
+        assertEquals(1, transfers.size());
+    }
+
+    @Test
+    public void testExpire() {
+        PortalTransfers transfers = new PortalTransfers(100);
+        Ball first = new Ball(1, 1);
+        Ball second = new Ball(2, 2);
+        Ball third = new Ball(3, 3);
+        int firstId = transfers.start(first, "Alpha", 0);
+        transfers.start(second, "Alpha", 10 * MILLI);
+        transfers.start(third, "Alpha", 50 * MILLI);
+        transfers.settle(firstId);
+
+        assertEquals(0, transfers.expire(100 * MILLI - 1));
+        assertEquals(1, transfers.expire(110 * MILLI));
+        assertFalse(transfers.isInFlight(second));
+        assertTrue(transfers.isInFlight(third));
+        assertEquals(1, transfers.expire(1000 * MILLI));
+        assertEquals(0, transfers.size());
+    }
+
+    @Test
+    public void testClear() {
+        PortalTransfers transfers = new PortalTransfers();
+        Ball ball = new Ball(1, 1);
+        int id = transfers.start(ball, "Alpha", 0);
+        transfers.clear();
+        assertFalse(transfers.isInFlight(ball));
+        assertEquals(0, transfers.size());
+        assertSame(ball, transfers.settle(id));
+        assertNull(transfers.settle(id));
+        // the ball may be sent again
+        transfers.start(ball, "Alpha", 0);
+        assertTrue(transfers.isInFlight(ball, "Alpha"));
+    }
+
+    @Test
+    public void testAckAfterExpiry() {
+        PortalTransfers transfers = new PortalTransfers(100);
+        Ball first = new Ball(1, 1);
+        Ball second = new Ball(2, 2);
+        int firstId = transfers.start(first, "Alpha", 0);
+        int secondId = transfers.start(second, "Alpha", 0);
+        assertEquals(2, transfers.expire(100 * MILLI));
+        assertFalse(transfers.isInFlight(first));
+
+        // the server delivered the ball after all
+        assertSame(first, transfers.settle(firstId));
+        assertNull(transfers.settle(firstId));
+        assertEquals(0, transfers.expire(199 * MILLI));
+        // too late: the tombstone is gone
+        assertEquals(0, transfers.expire(200 * MILLI));
+        assertNull(transfers.settle(secondId));
+    }
+}
@@ -117,8 +117,8 @@ public class SquareBumper implements Gadget {
             }
         }
 
-        double newX = ball.getLoc().getX() + ball.getVec().x() * minTime;
-        double newY = ball.getLoc().getY() + ball.getVec().y() * minTime;
+        double newX = ball.getX() + ball.getVx() * minTime;
+        double newY = ball.getY() + ball.getVy() * minTime;
         ball.setLoc(newX, newY);
 
         if (minCorner != null) {
@@ -0,0 +1,181 @@
+package gadgets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import parser.BoardBuilder;
+
+/**
+ * TerminalRenderer draws a Board on an ANSI terminal incrementally. It keeps
+ * the previously written text frame, compares it cell by cell with the
+ * current one, and writes only the cells that changed, using ANSI cursor
+ * movement sequences. Each frame is emitted with a single write.
+ *
+ * Abstraction Function: Represents what an ANSI terminal currently shows for
+ * a board, and the means to bring it up to date.
+ *
+ * Representation: Two text frames of Board.getTextSize() rows and columns:
+ * the one the terminal is known to show, and a scratch frame the board is
+ * rendered into. They are swapped after every frame so neither is reallocated.
+ * A reusable StringBuilder collects the escape sequences for one frame.
+ *
+ * Rep Invariant: Both frames are square with side Board.getTextSize(). If
+ * hasPrevious is true, shown equals the text last written to the terminal.
+ *
+ * Thread-Safety Argument: A TerminalRenderer is meant to be confined to the
+ * thread that renders frames. The board itself is read under its own lock by
+ * Board.renderText.
+ */
+public class TerminalRenderer {
+
+    private static final char ESCAPE = '\u001b';
+    private static final double FRAMERATE = 50;
+
+    private final Board board;
+    private final Writer terminal;
+    private final int size;
+    private final StringBuilder buffer;
+
+    private char[][] shown;
+    private char[][] scratch;
+    private boolean hasPrevious = false;
+
+    /**
+     * Creates a renderer for a board writing to a terminal.
+     *
+     * @param board
+     *            Board to be drawn
+     * @param terminal
+     *            Writer connected to an ANSI terminal; it is flushed after
+     *            each frame but never closed
+     */
+    public TerminalRenderer(Board board, Writer terminal) {
+        this.board = board;
+        this.terminal = terminal;
+        this.size = Board.getTextSize();
+        this.shown = new char[size][size];
+        this.scratch = new char[size][size];
+        this.buffer = new StringBuilder(size * size * 4);
+        checkRep();
+    }
+
+    /**
+     * Checks that the frames have the board's text size.
+     */
+    private void checkRep() {
+        assert board != null;
+        assert terminal != null;
+        assert shown.length == size && scratch.length == size;
+    }
+
+    /**
+     * Brings the terminal up to date with the board. The first frame clears
+     * the screen and writes every cell; later frames write only the cells that
+     * differ from what is already on screen.
+     *
+     * @return int number of cells written
+     * @throws IOException
+     *             if writing to the terminal fails
+     */
+    public int renderFrame() throws IOException {
+        board.renderText(scratch);
+        buffer.setLength(0);
+
+        int written = 0;
+        if (!hasPrevious) {
+            // hide the cursor, clear the screen and home the cursor
+            buffer.append(ESCAPE).append("[?25l");
+            buffer.append(ESCAPE).append("[2J");
+            for (int row = 0; row < size; row++) {
+                moveCursor(row, 0);
+                buffer.append(scratch[row]);
+            }
+            written = size * size;
+        } else {
+            for (int row = 0; row < size; row++) {
+                char[] oldRow = shown[row];
+                char[] newRow = scratch[row];
+                int cursorColumn = -1;
+                for (int column = 0; column < size; column++) {
+                    if (oldRow[column] != newRow[column]) {
+                        // a cell right after the last one written needs no
+                        // cursor movement
+                        if (column != cursorColumn)
+                            moveCursor(row, column);
+                        buffer.append(newRow[column]);
+                        cursorColumn = column + 1;
+                        written++;
+                    }
+                }
+            }
+        }
+        if (written > 0) {
+            moveCursor(size, 0);
+            terminal.append(buffer);
+            terminal.flush();
+        }
+
+        char[][] swap = shown;
+        shown = scratch;
+        scratch = swap;
+        hasPrevious = true;
+        checkRep();
+        return written;
+    }
+
+    /**
+     * Forces the next frame to redraw every cell, e.g. after the terminal was
+     * cleared by someone else.
+     */
+    public void invalidate() {
+        hasPrevious = false;
+    }
+
+    /**
+     * Appends the ANSI sequence that moves the cursor to a cell.
+     *
+     * @param row
+     *            int zero-based row
+     * @param column
+     *            int zero-based column
+     */
+    private void moveCursor(int row, int column) {
+        buffer.append(ESCAPE).append('[').append(row + 1).append(';')
+                .append(column + 1).append('H');
+    }
+
+    /**
+     * Runs a board file in the terminal at the Pingball frame rate.
+     *
+     * usage: TerminalRenderer FILE
+     *
+     * @param args
+     *            arguments as described
+     * @throws Exception
+     *             if the board file cannot be parsed or the terminal cannot be
+     *             written to
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: TerminalRenderer FILE");
+            return;
+        }
+        Board board = BoardBuilder.constructBoard(new File(args[0]));
+        TerminalRenderer renderer = new TerminalRenderer(board,
+                new OutputStreamWriter(System.out, StandardCharsets.US_ASCII));
+
+        long frameMillis = (long) (1000 / FRAMERATE);
+        while (true) {
+            long start = System.currentTimeMillis();
+            board.moveForwardFrame();
+            renderer.renderFrame();
+            long remaining = frameMillis
+                    - (System.currentTimeMillis() - start);
+            if (remaining > 0)
+                Thread.sleep(remaining);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package gadgets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class TerminalRendererTest {
+    /**
+     * Testing Strategy
+     *
+     * renderFrame:
+     * -first frame writes every cell
+     * -unchanged board writes nothing
+     * -moved ball rewrites exactly the old and the new cell
+     * -invalidate forces a full redraw
+     */
+
+    private final static int SIZE = Board.getTextSize();
+
+    @Test
+    public void testFirstFrameWritesEveryCell() throws Exception {
+        StringWriter terminal = new StringWriter();
+        TerminalRenderer renderer = new TerminalRenderer(new Board(), terminal);
+        assertEquals(SIZE * SIZE, renderer.renderFrame());
+        assertTrue(terminal.toString().contains("\u001b[2J"));
+    }
+
+    @Test
+    public void testUnchangedBoardWritesNothing() throws Exception {
+        StringWriter terminal = new StringWriter();
+        TerminalRenderer renderer = new TerminalRenderer(new Board(), terminal);
+        renderer.renderFrame();
+        int length = terminal.toString().length();
+        assertEquals(0, renderer.renderFrame());
+        assertEquals(length, terminal.toString().length());
+    }
+
+    @Test
+    public void testMovedBallWritesTwoCells() throws Exception {
+        StringWriter terminal = new StringWriter();
+        Board board = new Board();
+        Ball ball = new Ball(5.5, 5.5);
+        board.addBall(ball);
+        TerminalRenderer renderer = new TerminalRenderer(board, terminal);
+        renderer.renderFrame();
+        terminal.getBuffer().setLength(0);
+
+        ball.setLoc(8.5, 5.5);
+        assertEquals(2, renderer.renderFrame());
+        // old cell at row 7, column 7 is cleared; new cell at column 10
+        assertEquals("\u001b[7;7H \u001b[7;10H*\u001b[23;1H",
+                terminal.toString());
+    }
+
+    @Test
+    public void testInvalidateRedrawsEverything() throws Exception {
+        StringWriter terminal = new StringWriter();
+        TerminalRenderer renderer = new TerminalRenderer(new Board(), terminal);
+        renderer.renderFrame();
+        renderer.invalidate();
+        assertEquals(SIZE * SIZE, renderer.renderFrame());
+    }
+}
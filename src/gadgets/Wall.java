@@ -153,47 +153,43 @@ public class Wall implements Gadget {
     @Override
     public void affectBall(Ball ball) {
         double minTime = Double.MAX_VALUE;
-        Ball newBall = null;
+        Vect newVec = null;
 
-        double newX = ball.getLoc().getX() + ball.getVec().x()
-                * timeUntilCollision(ball);
-        double newY = ball.getLoc().getY() + ball.getVec().y()
-                * timeUntilCollision(ball);
+        double collisionTime = timeUntilCollision(ball);
+        double newX = ball.getX() + ball.getVx() * collisionTime;
+        double newY = ball.getY() + ball.getVy() * collisionTime;
         ball.setLoc(newX, newY);
 
         if (this.isInvisible) {
             if (this.side == 0)
-                board.sendBall(ball, ball.getLoc().getX(), 19.75, clientName);
+                board.sendBall(ball, ball.getX(), 19.75, clientName);
             else if (this.side == 1)
-                board.sendBall(ball, 0.25, ball.getLoc().getY(), clientName);
+                board.sendBall(ball, 0.25, ball.getY(), clientName);
             else if (this.side == 2)
-                board.sendBall(ball, ball.getLoc().getX(), 0.25, clientName);
+                board.sendBall(ball, ball.getX(), 0.25, clientName);
             else
-                board.sendBall(ball, 19.75, ball.getLoc().getY(), clientName);
+                board.sendBall(ball, 19.75, ball.getY(), clientName);
         } else {
+            Circle ballCirc = ball.getCirc();
+            Vect ballVec = ball.getVec();
             for (LineSegment line : allLineSegs) {
-                double collisionTime = Geometry.timeUntilWallCollision(line,
-                        ball.getCirc(), ball.getVec());
+                collisionTime = Geometry.timeUntilWallCollision(line,
+                        ballCirc, ballVec);
                 if (collisionTime < minTime) {
                     minTime = collisionTime;
-                    newBall = new Ball(ball.getLoc().getX(), ball.getLoc()
-                            .getY());
-                    newBall.setVec(Geometry.reflectWall(line, ball.getVec()));
+                    newVec = Geometry.reflectWall(line, ballVec);
                 }
             }
             for (Circle circ : allCircles) {
-                double collisionTime = Geometry.timeUntilCircleCollision(circ,
-                        ball.getCirc(), ball.getVec());
+                collisionTime = Geometry.timeUntilCircleCollision(circ,
+                        ballCirc, ballVec);
                 if (collisionTime < minTime) {
                     minTime = collisionTime;
-                    newBall = new Ball(ball.getLoc().getX(), ball.getLoc()
-                            .getY());
-                    newBall.setVec(Geometry.reflectCircle(circ.getCenter(),
-                            ball.getCirc().getCenter(), ball.getVec()));
+                    newVec = Geometry.reflectCircle(circ.getCenter(),
+                            ballCirc.getCenter(), ballVec);
                 }
             }
-            ball.setLoc(newBall.getLoc().getX(), newBall.getLoc().getY());
-            ball.setVec(newBall.getVec());
+            ball.setVec(newVec);
         }
     }
 
@@ -228,6 +224,14 @@ public class Wall implements Gadget {
         this.isInvisible = isInvisible;
     }
 
+    /**
+     * @return boolean true if balls pass through the wall to a neighbouring
+     *         board
+     */
+    public boolean isInvisible() {
+        return this.isInvisible;
+    }
+
     @Override
     public void setClientName(String name) {
         this.clientName = name;
@@ -15,8 +15,10 @@ import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import gadgets.Ball;
 import gadgets.Board;
@@ -147,6 +149,7 @@ public class BoardBuilder {
         // Step 2: Using adjusted BoardElement objects created, we proceed to
         // construct the Board
         Board board = null;
+        Set<String> ballNames = new HashSet<String>();
 
         for (BoardElement element : listOfElements) {
             String type = element.getElementType();
@@ -159,28 +162,14 @@ public class BoardBuilder {
             } else if (type.equals("fire")) { // Fire case
                 // Finding triggerObject within gadget objects
                 String triggerName = element.getString("trigger", "", false);
-                boolean found = false;
-                Gadget triggerGadget = null;
-                for (Gadget gadget : board.getListOfGadgets())
-                    if (gadget.getName().equals(triggerName)) {
-                        found = true;
-                        triggerGadget = gadget;
-                        break;
-                    }
-                if (!found || triggerGadget == null)
+                Gadget triggerGadget = board.getGadget(triggerName);
+                if (triggerGadget == null)
                     throw new IllegalArgumentException("Trigger not found");
 
                 // Finding actionObject within gadget objects
                 String actionName = element.getString("action", "", false);
-                found = false;
-                Gadget actionGadget = null;
-                for (Gadget gadget : board.getListOfGadgets())
-                    if (gadget.getName().equals(actionName)) {
-                        found = true;
-                        actionGadget = gadget;
-                        break;
-                    }
-                if (!found || actionGadget == null)
+                Gadget actionGadget = board.getGadget(actionName);
+                if (actionGadget == null)
                     throw new IllegalArgumentException("Action not found");
 
                 triggerGadget.addToTriggered(actionGadget);
@@ -192,13 +181,7 @@ public class BoardBuilder {
                             "Board not defined first");
                 Ball ballToAdd = constructBall(element, board);
 
-                boolean found = false;
-                for (Ball ball : board.getListOfBalls())
-                    if (ball.getName().equals(ballToAdd.getName())) {
-                        found = true;
-                        break;
-                    }
-                if (found) {
+                if (!ballNames.add(ballToAdd.getName())) {
                     throw new IllegalArgumentException("Duplicate ball found");
                 }
 
@@ -230,23 +213,16 @@ public class BoardBuilder {
                             "Board not defined first");
                 Gadget gadgetToAdd = constructGadget(element, board);
 
-                if (board.getListOfGadgets().size() > 0) {
-                    boolean found = false;
-                    for (Gadget gadget : board.getListOfGadgets()) {
-                        if (gadget.getName().equals(gadgetToAdd.getName())) {
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (found) {
-                        throw new IllegalArgumentException(
-                                "Duplicate element found");
-                    }
+                if (board.getGadget(gadgetToAdd.getName()) != null) {
+                    throw new IllegalArgumentException(
+                            "Duplicate element found");
                 }
                 board.addGadget(gadgetToAdd);
             }
         }
 
+        if (board != null)
+            board.resolveKeyBindings();
         return board;
     }
 
@@ -0,0 +1,33 @@
+package pingball.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Listening end of a Transport, on which the server accepts clients.
+ */
+public interface Acceptor extends Closeable {
+
+    /**
+     * Blocks until a client connects.
+     *
+     * @return Link to the new client
+     * @throws IOException
+     *             if the acceptor is closed or fails
+     */
+    Link accept() throws IOException;
+
+    /**
+     * Gets the port the acceptor listens on, which was picked by the
+     * transport if 0 was asked for.
+     *
+     * @return int port of the acceptor
+     */
+    int getPort();
+
+    /**
+     * Stops listening. A thread blocked in accept fails with an IOException.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,170 @@
+package pingball.protocol;
+
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MessageCodec for the binary protocol negotiated by Handshake. Every message
+ * is one length-prefixed frame (all integers big-endian):
+ *
+ * <pre>
+ * int    length of the rest of the frame
+ * byte   MessageType code
+ * byte   number of names
+ * short  name reference, once per name:
+ *          id >= 0          a name defined earlier on this connection
+ *          -(id + 1) < 0    defines name id; followed by the name
+ *          Short.MIN_VALUE  a name that is not interned; followed by the name
+ *        where a name is a short byte count and that many UTF-8 bytes
+ * double numeric field, getNumberCount() times, raw IEEE 754
+ * </pre>
+ *
+ * Names (clients and portals) are interned per connection and direction: the
+ * first message that mentions a name carries it, later ones only its id, so
+ * steady-state ball traffic contains no strings at all.
+ *
+ * Abstraction Function: Represents both ends' name tables for one
+ * connection: the names this side has defined for its peer, and the names
+ * the peer has defined for this side.
+ *
+ * Representation: sentIds maps each name already defined for the peer to its
+ * id; receivedNames holds the names the peer defined, indexed by id.
+ *
+ * Rep Invariant: sentIds has ids 0 .. sentIds.size() - 1, each exactly once;
+ * neither table holds more than MAX_NAMES names.
+ *
+ * Thread-safety argument: encode and decode touch disjoint state, so one
+ * thread may encode while another decodes; each must be confined to one
+ * thread at a time.
+ */
+public class BinaryCodec implements MessageCodec {
+
+    /**
+     * Version of the binary protocol offered in the handshake. Version 2
+     * added heartbeats and portal transfers, which version 1 peers would
+     * reject as unknown frames; they answer with the text protocol instead.
+     */
+    public static final int VERSION = 2;
+
+    /** Largest frame accepted, not counting the length field. */
+    public static final int MAX_FRAME_LENGTH = 1 << 16;
+    /** Number of names that can be interned in each direction. */
+    private static final int MAX_NAMES = Short.MAX_VALUE;
+    private static final short LITERAL = Short.MIN_VALUE;
+
+    private static final int HEADER_LENGTH = 4 + 1 + 1;
+    private static final int REFERENCE_LENGTH = 2;
+
+    private final Map<String, Integer> sentIds = new HashMap<String, Integer>();
+    private final List<String> receivedNames = new ArrayList<String>();
+
+    @Override
+    public void encode(Message message, ByteBuffer out) {
+        int nameCount = message.getNameCount();
+        // UTF-8 bytes of the names that have to be spelled out in this frame
+        byte[][] spelled = null;
+        int length = HEADER_LENGTH + REFERENCE_LENGTH * nameCount + 8
+                * message.getType().getNumberCount();
+        for (int i = 0; i < nameCount; i++) {
+            String name = message.getName(i);
+            if (!sentIds.containsKey(name)) {
+                if (spelled == null)
+                    spelled = new byte[nameCount][];
+                spelled[i] = name.getBytes(StandardCharsets.UTF_8);
+                length += 2 + spelled[i].length;
+            }
+        }
+        if (length > out.remaining())
+            throw new BufferOverflowException();
+        if (length - 4 > MAX_FRAME_LENGTH)
+            throw new IllegalArgumentException("message too long: " + message);
+
+        out.putInt(length - 4);
+        out.put(message.getType().getCode());
+        out.put((byte) nameCount);
+        for (int i = 0; i < nameCount; i++) {
+            if (spelled == null || spelled[i] == null) {
+                out.putShort((short) (int) sentIds.get(message.getName(i)));
+                continue;
+            }
+            if (sentIds.size() < MAX_NAMES) {
+                int id = sentIds.size();
+                sentIds.put(message.getName(i), id);
+                out.putShort((short) -(id + 1));
+            } else {
+                out.putShort(LITERAL);
+            }
+            out.putShort((short) spelled[i].length);
+            out.put(spelled[i]);
+        }
+        for (int i = 0; i < message.getType().getNumberCount(); i++)
+            out.putDouble(message.getNumber(i));
+    }
+
+    @Override
+    public Message decode(ByteBuffer in) throws ProtocolException {
+        if (in.remaining() < 4)
+            return null;
+        int length = in.getInt(in.position());
+        if (length < HEADER_LENGTH - 4 || length > MAX_FRAME_LENGTH)
+            throw new ProtocolException("invalid frame length " + length);
+        if (in.remaining() < 4 + length)
+            return null;
+
+        int end = in.position() + 4 + length;
+        in.position(in.position() + 4);
+        try {
+            MessageType type = MessageType.fromCode(in.get());
+            if (type == null)
+                throw new ProtocolException("unknown message type");
+            String[] names = new String[in.get() & 0xff];
+            for (int i = 0; i < names.length; i++)
+                names[i] = readName(in);
+            double[] numbers = new double[type.getNumberCount()];
+            for (int i = 0; i < numbers.length; i++)
+                numbers[i] = in.getDouble();
+            if (in.position() != end)
+                throw new ProtocolException("frame length mismatch");
+            return Message.wrap(type, names, numbers);
+        } catch (RuntimeException re) {
+            // BufferUnderflowException, or an invalid name
+            throw new ProtocolException("malformed frame: " + re);
+        }
+    }
+
+    /**
+     * Reads one name reference, and the name itself if it is spelled out.
+     *
+     * @param in
+     *            ByteBuffer positioned at a name reference
+     * @return String name referred to
+     * @throws ProtocolException
+     *             if the reference is to an undefined id or defines an id out
+     *             of order
+     */
+    private String readName(ByteBuffer in) throws ProtocolException {
+        short reference = in.getShort();
+        if (reference >= 0) {
+            if (reference >= receivedNames.size())
+                throw new ProtocolException("undefined name id " + reference);
+            return receivedNames.get(reference);
+        }
+
+        byte[] bytes = new byte[in.getShort() & 0xffff];
+        in.get(bytes);
+        String name = new String(bytes, StandardCharsets.UTF_8);
+        if (reference != LITERAL) {
+            int id = -reference - 1;
+            if (id != receivedNames.size())
+                throw new ProtocolException("name id " + id + " out of order");
+            receivedNames.add(name);
+        }
+        return name;
+    }
+}
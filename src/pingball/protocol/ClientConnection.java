@@ -0,0 +1,142 @@
+package pingball.protocol;
+
+import java.io.IOException;
+
+/**
+ * A client's connection to the server, after the handshake. Received
+ * messages are collected in the background and polled without blocking;
+ * outgoing messages are queued into a batch and sent by flush. The
+ * connection also keeps the heartbeat with the server (see
+ * HeartbeatMonitor): PING and PONG are handled internally and never polled.
+ *
+ * A connection closes when the server closes it, when reading or writing
+ * fails, when the server stops answering heartbeats, or when close is called.
+ * It cannot be reopened.
+ *
+ * poll must be called from a single thread; every other method may be
+ * called from any thread.
+ */
+public interface ClientConnection {
+
+    /**
+     * Changes the heartbeat interval and idle timeout of the connection.
+     * Round-trip time samples taken so far are discarded.
+     *
+     * @param intervalMillis
+     *            long time between PINGs, > 0
+     * @param timeoutMillis
+     *            long silence after which the server counts as dead, > 0
+     */
+    void setHeartbeat(long intervalMillis, long timeoutMillis);
+
+    /**
+     * Adds a message to the current batch without sending it. If the send
+     * buffer is full because the server has stopped reading, the message is
+     * dropped.
+     *
+     * @param message
+     *            Message to be sent at the next flush
+     * @return boolean true if the message was queued, false if it was dropped
+     *         or the connection is closed
+     */
+    boolean queue(Message message);
+
+    /**
+     * Sends every message queued since the last flush. Does nothing if no
+     * message was queued.
+     *
+     * @return boolean false if the connection is closed, true otherwise
+     */
+    boolean flush();
+
+    /**
+     * Sends a single message right away; equivalent to queue followed by
+     * flush.
+     *
+     * @param message
+     *            Message to be sent
+     * @return boolean true if the message was queued for sending, false if it
+     *         was dropped or the connection is closed
+     */
+    boolean send(Message message);
+
+    /**
+     * Takes the oldest message received and not yet polled, without blocking.
+     * Must only be called from one thread, usually the one running the board.
+     *
+     * @return Message received, or null if there is none
+     */
+    Message poll();
+
+    /**
+     * Closes the connection. Messages already received can still be polled.
+     */
+    void close();
+
+    /** OBSERVER METHODS **/
+
+    /**
+     * Gets whether the connection is still open.
+     *
+     * @return boolean true until the connection closes for any reason
+     */
+    boolean isOpen();
+
+    /**
+     * Gets the error that closed the connection, if any.
+     *
+     * @return IOException that closed the connection, or null if it is open
+     *         or was closed with close
+     */
+    IOException getFailure();
+
+    /**
+     * Gets the number of messages dropped because the send buffer was full.
+     *
+     * @return long number of dropped messages
+     */
+    long getDroppedMessages();
+
+    /**
+     * Gets the number of messages in the most recent flush.
+     *
+     * @return int size of the last batch, or 0 before the first flush
+     */
+    int getLastBatchSize();
+
+    /**
+     * Gets the time the most recent flush took to hand its batch over.
+     *
+     * @return long duration of the last flush in nanoseconds
+     */
+    long getLastFlushTime();
+
+    /**
+     * Gets the average number of messages per flush.
+     *
+     * @return double mean batch size, or 0 before the first flush
+     */
+    double getAverageBatchSize();
+
+    /**
+     * Gets the most recent round-trip time to the server.
+     *
+     * @return long nanoseconds, or -1 if the server has not answered a PING
+     */
+    long getRoundTripTime();
+
+    /**
+     * Gets the smoothed round-trip time to the server.
+     *
+     * @return long nanoseconds, or -1 if the server has not answered a PING
+     */
+    long getSmoothedRoundTripTime();
+
+    /**
+     * Gets whether the server has shown that it speaks heartbeats, and so the
+     * rest of the protocol version that introduced them.
+     *
+     * @return boolean true if the server has sent a PING or PONG
+     */
+    boolean isServerSpeakingHeartbeats();
+}
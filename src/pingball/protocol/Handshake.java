@@ -0,0 +1,361 @@
+package pingball.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The opening exchange of a connection between a Pingball client and the
+ * server, which also picks the codec for the rest of the connection.
+ *
+ * A client that wants the binary protocol starts with the line "HELLO binary
+ * VERSION". The server answers "HELLO binary VERSION" if it speaks that
+ * version and "HELLO text" otherwise. Since a board name cannot contain
+ * spaces, the line can never be mistaken for one. Clients that do not send it
+ * use the text protocol, exactly as before. A client reconnecting after its
+ * connection dropped appends " resume" to the line ("HELLO text resume" if it
+ * wants the text protocol), so the server can restore its session. Either
+ * way the client then sends the original text handshake: its name, its
+ * number of portals and one portal name per line. Every later message uses
+ * the agreed codec.
+ *
+ * Handshake lines are read one byte at a time straight from the stream, so
+ * that no byte of the first message is consumed by a reader buffer.
+ *
+ * Abstraction Function: Represents a completed handshake: the client that
+ * connected, the portals on its board, the codec agreed on and whether the
+ * client is resuming an earlier session.
+ *
+ * Representation: The client name, an unmodifiable list of portal names, the
+ * codec and the resume flag.
+ *
+ * Rep Invariant: None of the fields is null.
+ */
+public class Handshake {
+
+    /** First word of the line a client sends to ask for another protocol. */
+    private static final String HELLO = "HELLO";
+    private static final String BINARY_HELLO = HELLO + " binary "
+            + BinaryCodec.VERSION;
+    private static final String TEXT_HELLO = HELLO + " text";
+    private static final String RESUME = " resume";
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private final String clientName;
+    private final List<String> portalNames;
+    private final MessageCodec codec;
+    private final boolean resume;
+
+    private Handshake(String clientName, List<String> portalNames,
+            MessageCodec codec, boolean resume) {
+        this.clientName = clientName;
+        this.portalNames = Collections.unmodifiableList(portalNames);
+        this.codec = codec;
+        this.resume = resume;
+    }
+
+    /**
+     * Performs the client side of the handshake.
+     *
+     * @param in
+     *            InputStream from the server
+     * @param out
+     *            OutputStream to the server
+     * @param clientName
+     *            String name of the client's board
+     * @param portalNames
+     *            List<String> names of the portals on the client's board
+     * @param offerBinary
+     *            boolean true to ask for the binary protocol; the server must
+     *            understand the request, since older servers would take it
+     *            for the client's name
+     * @return Handshake completed, with the codec the server agreed to
+     * @throws IOException
+     *             if the connection fails or the server answers with an
+     *             invalid line
+     */
+    public static Handshake connect(InputStream in, OutputStream out,
+            String clientName, List<String> portalNames, boolean offerBinary)
+            throws IOException {
+        return connect(in, out, clientName, portalNames, offerBinary, false);
+    }
+
+    /**
+     * Performs the client side of the handshake, possibly resuming a session.
+     *
+     * @param in
+     *            InputStream from the server
+     * @param out
+     *            OutputStream to the server
+     * @param clientName
+     *            String name of the client's board
+     * @param portalNames
+     *            List<String> names of the portals on the client's board
+     * @param offerBinary
+     *            boolean true to ask for the binary protocol
+     * @param resume
+     *            boolean true if the client is reconnecting after its
+     *            connection dropped and wants its session back
+     * @return Handshake completed, with the codec the server agreed to
+     * @throws IOException
+     *             if the connection fails or the server answers with an
+     *             invalid line
+     */
+    public static Handshake connect(InputStream in, OutputStream out,
+            String clientName, List<String> portalNames, boolean offerBinary,
+            boolean resume) throws IOException {
+        MessageCodec codec = new TextCodec();
+        if (offerBinary || resume) {
+            writeLine(out, (offerBinary ? BINARY_HELLO : TEXT_HELLO)
+                    + (resume ? RESUME : ""));
+            out.flush();
+            String reply = readLine(in);
+            if (reply.equals(BINARY_HELLO))
+                codec = new BinaryCodec();
+            else if (!reply.startsWith(HELLO + " "))
+                throw new ProtocolException("unexpected reply " + reply);
+        }
+
+        writeLine(out, clientName);
+        writeLine(out, Integer.toString(portalNames.size()));
+        for (String portalName : portalNames)
+            writeLine(out, portalName);
+        out.flush();
+        return new Handshake(clientName, new ArrayList<String>(portalNames),
+                codec, resume);
+    }
+
+    /**
+     * Performs the server side of the handshake, blocking until the client
+     * has sent its name and portals.
+     *
+     * @param in
+     *            InputStream from the client
+     * @param out
+     *            OutputStream to the client
+     * @return Handshake completed, with the client's name and portals and the
+     *         codec agreed on
+     * @throws IOException
+     *             if the connection fails or the client sends an invalid
+     *             handshake
+     */
+    public static Handshake accept(InputStream in, OutputStream out)
+            throws IOException {
+        MessageCodec codec = new TextCodec();
+        boolean resume = false;
+        String line = readLine(in);
+        if (isHello(line)) {
+            resume = line.endsWith(RESUME);
+            codec = answerHello(line, out);
+            out.flush();
+            line = readLine(in);
+        }
+        return readClient(line, in, codec, resume);
+    }
+
+    /**
+     * Server side of a handshake for servers that read with a selector. It is
+     * fed the bytes received so far after each read, and consumes them only
+     * once a whole step has arrived: the HELLO line, which it answers at once
+     * since the client waits for the answer, and then the rest.
+     *
+     * Rep Invariant: helloDone is true once the first line has been read, if
+     * it was a HELLO line; codec and resume reflect that line.
+     *
+     * Thread-safety argument: Not thread-safe; it belongs to the thread
+     * reading the connection.
+     */
+    public static final class Incremental {
+        private boolean helloDone = false;
+        private MessageCodec codec = new TextCodec();
+        private boolean resume = false;
+
+        /**
+         * Continues the handshake with the bytes received so far, without
+         * blocking.
+         *
+         * @param in
+         *            ByteBuffer of bytes received from the client, in read
+         *            mode; positioned after what was consumed
+         * @param out
+         *            OutputStream to write the answer to a HELLO line to
+         * @return Handshake completed, or null if more bytes are needed
+         * @throws IOException
+         *             if the client sent an invalid handshake
+         */
+        public Handshake accept(ByteBuffer in, OutputStream out)
+                throws IOException {
+            ByteArrayInputStream received = new ByteArrayInputStream(
+                    in.array(), in.arrayOffset() + in.position(),
+                    in.remaining());
+            try {
+                String line = readLine(received);
+                if (!helloDone && isHello(line)) {
+                    resume = line.endsWith(RESUME);
+                    codec = answerHello(line, out);
+                    helloDone = true;
+                    in.position(in.limit() - received.available());
+                    line = readLine(received);
+                }
+                helloDone = true;
+                Handshake handshake = readClient(line, received, codec,
+                        resume);
+                in.position(in.limit() - received.available());
+                return handshake;
+            } catch (EOFException eofe) {
+                // the rest is still on its way
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Checks whether the first line of a handshake asks for a protocol.
+     *
+     * @param line
+     *            String first line
+     * @return boolean true if it is a HELLO line
+     */
+    private static boolean isHello(String line) {
+        return line.startsWith(HELLO + " ");
+    }
+
+    /**
+     * Answers a HELLO line, without flushing.
+     *
+     * @param line
+     *            String HELLO line, possibly ending in " resume"
+     * @param out
+     *            OutputStream to the client
+     * @return MessageCodec agreed on
+     * @throws IOException
+     *             if the stream fails
+     */
+    private static MessageCodec answerHello(String line, OutputStream out)
+            throws IOException {
+        if (line.endsWith(RESUME))
+            line = line.substring(0, line.length() - RESUME.length());
+        if (line.equals(BINARY_HELLO)) {
+            writeLine(out, BINARY_HELLO);
+            return new BinaryCodec();
+        }
+        writeLine(out, TEXT_HELLO);
+        return new TextCodec();
+    }
+
+    /**
+     * Reads the rest of the original text handshake: the number of portals
+     * and their names.
+     *
+     * @param clientName
+     *            String name line already read
+     * @param in
+     *            InputStream from the client
+     * @param codec
+     *            MessageCodec agreed on
+     * @param resume
+     *            boolean true if the client asked to resume
+     * @return Handshake completed
+     * @throws IOException
+     *             if the stream fails or the number is invalid
+     */
+    private static Handshake readClient(String clientName, InputStream in,
+            MessageCodec codec, boolean resume) throws IOException {
+        int numPortals;
+        try {
+            numPortals = Integer.parseInt(readLine(in));
+        } catch (NumberFormatException nfe) {
+            throw new ProtocolException("unable to parse number of portals");
+        }
+        List<String> portalNames = new ArrayList<String>();
+        for (int i = 0; i < numPortals; i++)
+            portalNames.add(readLine(in));
+        return new Handshake(clientName, portalNames, codec, resume);
+    }
+
+    /**
+     * Reads one line of the handshake without reading past it.
+     *
+     * @param in
+     *            InputStream positioned at the start of a line
+     * @return String line without its terminator or a trailing '\r'
+     * @throws IOException
+     *             if the stream fails or ends before the line does
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0)
+                throw new EOFException("connection closed during handshake");
+            if (line.size() >= MAX_LINE_LENGTH)
+                throw new ProtocolException("handshake line too long");
+            line.write(b);
+        }
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        if (text.endsWith("\r"))
+            text = text.substring(0, text.length() - 1);
+        return text;
+    }
+
+    /**
+     * Writes one line of the handshake, without flushing.
+     *
+     * @param out
+     *            OutputStream to write to
+     * @param line
+     *            String line without a terminator
+     * @throws IOException
+     *             if the stream fails
+     */
+    private static void writeLine(OutputStream out, String line)
+            throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** OBSERVER METHODS **/
+
+    /**
+     * Gets the name the client connected with.
+     *
+     * @return String name of the client's board
+     */
+    public String getClientName() {
+        return clientName;
+    }
+
+    /**
+     * Gets the names of the portals on the client's board.
+     *
+     * @return List<String> unmodifiable list of portal names
+     */
+    public List<String> getPortalNames() {
+        return portalNames;
+    }
+
+    /**
+     * Gets the codec agreed on for the rest of the connection.
+     *
+     * @return MessageCodec of the connection
+     */
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Gets whether the client asked to resume an earlier session.
+     *
+     * @return boolean true if the client is reconnecting
+     */
+    public boolean isResume() {
+        return resume;
+    }
+}
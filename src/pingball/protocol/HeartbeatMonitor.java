@@ -0,0 +1,190 @@
+package pingball.protocol;
+
+/**
+ * Heartbeat bookkeeping for one end of a connection. The owner sends a PING
+ * whenever pingDue says so, answers every PING with a PONG, and reports every
+ * message it receives. The monitor then tells a slow peer from a dead one and
+ * turns each PONG into a round-trip time sample.
+ *
+ * A peer only counts as dead once it has shown that it speaks heartbeats (by
+ * sending a PING or PONG) and has then been silent for longer than the idle
+ * timeout. Peers that predate heartbeats ignore PING and are never timed out,
+ * as before.
+ *
+ * Abstraction Function: Represents what one end knows about the liveness of
+ * its peer: when it last heard from it, when it last pinged it, whether the
+ * peer speaks heartbeats, and the round-trip times measured so far.
+ *
+ * Representation: Times are System.nanoTime() values. PING timestamps are
+ * nanoseconds since epoch, the creation time of the monitor, so they stay
+ * exact as doubles. smoothedRoundTrip is an exponentially weighted moving
+ * average with weight 1/8, as TCP uses.
+ *
+ * Rep Invariant: intervalNanos > 0 and timeoutNanos > 0.
+ *
+ * Thread-safety argument: Every method is synchronized, so the threads that
+ * read from and write to a connection may share a monitor.
+ */
+public class HeartbeatMonitor {
+
+    /** Default time between PINGs. */
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+    /** Default silence after which a peer counts as dead. */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private final long intervalNanos;
+    private final long timeoutNanos;
+    private final long epoch;
+
+    private long lastReceived;
+    private long lastPingSent;
+    private boolean peerSpeaksHeartbeats = false;
+    private long lastRoundTrip = -1;
+    private long smoothedRoundTrip = -1;
+    private long samples = 0;
+
+    /**
+     * Creates a monitor for a connection that has just been opened.
+     *
+     * @param intervalMillis
+     *            long time between PINGs, > 0
+     * @param timeoutMillis
+     *            long silence after which the peer counts as dead, > 0
+     */
+    public HeartbeatMonitor(long intervalMillis, long timeoutMillis) {
+        if (intervalMillis <= 0 || timeoutMillis <= 0)
+            throw new IllegalArgumentException("heartbeat interval and "
+                    + "timeout must be positive");
+        intervalNanos = intervalMillis * NANOS_PER_MILLI;
+        timeoutNanos = timeoutMillis * NANOS_PER_MILLI;
+        epoch = System.nanoTime();
+        lastReceived = epoch;
+        lastPingSent = epoch;
+    }
+
+    /**
+     * Creates a monitor with the default interval and timeout.
+     */
+    public HeartbeatMonitor() {
+        this(DEFAULT_INTERVAL_MILLIS, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Records a message received from the peer.
+     *
+     * @param message
+     *            Message received
+     * @param now
+     *            long System.nanoTime() when it was received
+     * @return Message PONG to send back if message is a PING; null otherwise
+     */
+    public synchronized Message received(Message message, long now) {
+        lastReceived = now;
+        switch (message.getType()) {
+        case PING:
+            peerSpeaksHeartbeats = true;
+            return Message.pong(message.getNumber(0));
+        case PONG:
+            peerSpeaksHeartbeats = true;
+            long sample = now - (epoch + (long) message.getNumber(0));
+            if (sample >= 0) {
+                lastRoundTrip = sample;
+                smoothedRoundTrip = smoothedRoundTrip < 0 ? sample
+                        : smoothedRoundTrip + (sample - smoothedRoundTrip) / 8;
+                samples++;
+            }
+            return null;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether it is time to send a PING.
+     *
+     * @param now
+     *            long System.nanoTime()
+     * @return boolean true if a full interval has passed since the last PING
+     */
+    public synchronized boolean pingDue(long now) {
+        return now - lastPingSent >= intervalNanos;
+    }
+
+    /**
+     * Creates the next PING and records that it is being sent.
+     *
+     * @param now
+     *            long System.nanoTime() when it is sent
+     * @return Message PING to send
+     */
+    public synchronized Message ping(long now) {
+        lastPingSent = now;
+        return Message.ping(now - epoch);
+    }
+
+    /**
+     * Gets how long the owner may wait before it must send the next PING or
+     * check the peer again.
+     *
+     * @param now
+     *            long System.nanoTime()
+     * @return long milliseconds until the next PING is due, at least 1
+     */
+    public synchronized long millisUntilDue(long now) {
+        long nanos = lastPingSent + intervalNanos - now;
+        return Math.max(1, (nanos + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI);
+    }
+
+    /**
+     * Checks whether the peer should be considered dead.
+     *
+     * @param now
+     *            long System.nanoTime()
+     * @return boolean true if the peer speaks heartbeats and has been silent
+     *         for longer than the idle timeout
+     */
+    public synchronized boolean isPeerDead(long now) {
+        return peerSpeaksHeartbeats && now - lastReceived > timeoutNanos;
+    }
+
+    /** OBSERVER METHODS **/
+
+    /**
+     * Gets whether the peer has shown that it speaks heartbeats, and so the
+     * rest of the protocol version that introduced them.
+     *
+     * @return boolean true if the peer has sent a PING or PONG
+     */
+    public synchronized boolean isPeerSpeakingHeartbeats() {
+        return peerSpeaksHeartbeats;
+    }
+
+    /**
+     * Gets the most recent round-trip time sample.
+     *
+     * @return long nanoseconds, or -1 if no PONG has arrived yet
+     */
+    public synchronized long getLastRoundTripTime() {
+        return lastRoundTrip;
+    }
+
+    /**
+     * Gets the smoothed round-trip time.
+     *
+     * @return long nanoseconds, or -1 if no PONG has arrived yet
+     */
+    public synchronized long getSmoothedRoundTripTime() {
+        return smoothedRoundTrip;
+    }
+
+    /**
+     * Gets the number of round-trip time samples taken.
+     *
+     * @return long number of PONGs received
+     */
+    public synchronized long getRoundTripSamples() {
+        return samples;
+    }
+}
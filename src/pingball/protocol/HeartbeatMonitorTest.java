@@ -0,0 +1,77 @@
+package pingball.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HeartbeatMonitorTest {
+    /**
+     * Testing Strategy
+     *
+     * -PING is answered with a PONG carrying its timestamp, other messages
+     * are not answered
+     * -PINGs are due once per interval, not before
+     * -a peer that never sent a heartbeat is never dead; one that did is dead
+     * after the timeout, and alive again once it speaks
+     * -PONGs become round-trip samples, smoothed with weight 1/8
+     */
+
+    private static final long MILLI = 1000000;
+
+    @Test
+    public void testAnswersPing() {
+        HeartbeatMonitor monitor = new HeartbeatMonitor(100, 500);
+        assertEquals(Message.pong(42), monitor.received(Message.ping(42),
+                System.nanoTime()));
+        assertNull(monitor.received(Message.portalBallAccepted("Alpha"),
+                System.nanoTime()));
+        assertNull(monitor.received(Message.pong(0), System.nanoTime()));
+    }
+
+    @Test
+    public void testPingDue() {
+        HeartbeatMonitor monitor = new HeartbeatMonitor(100, 500);
+        long start = System.nanoTime();
+        Message ping = monitor.ping(start);
+        assertEquals(MessageType.PING, ping.getType());
+        assertFalse(monitor.pingDue(start + 99 * MILLI));
+        assertEquals(100, monitor.millisUntilDue(start));
+        assertTrue(monitor.pingDue(start + 100 * MILLI));
+        assertEquals(1, monitor.millisUntilDue(start + 200 * MILLI));
+    }
+
+    @Test
+    public void testDeadPeer() {
+        HeartbeatMonitor monitor = new HeartbeatMonitor(100, 500);
+        long start = System.nanoTime();
+        // a peer that predates heartbeats is never timed out
+        monitor.received(Message.newBall(0, 0, 0, 0), start);
+        assertFalse(monitor.isPeerDead(start + 10000 * MILLI));
+
+        monitor.received(Message.ping(0), start);
+        assertFalse(monitor.isPeerDead(start + 500 * MILLI));
+        assertTrue(monitor.isPeerDead(start + 501 * MILLI));
+        monitor.received(Message.newBall(0, 0, 0, 0), start + 600 * MILLI);
+        assertFalse(monitor.isPeerDead(start + 700 * MILLI));
+    }
+
+    @Test
+    public void testRoundTripTime() {
+        HeartbeatMonitor monitor = new HeartbeatMonitor(100, 500);
+        assertEquals(-1, monitor.getSmoothedRoundTripTime());
+        long sent = System.nanoTime();
+        Message ping = monitor.ping(sent);
+        monitor.received(Message.pong(ping.getNumber(0)), sent + 8 * MILLI);
+        assertEquals(8 * MILLI, monitor.getLastRoundTripTime(), 1);
+        assertEquals(8 * MILLI, monitor.getSmoothedRoundTripTime(), 1);
+
+        ping = monitor.ping(sent + 100 * MILLI);
+        monitor.received(Message.pong(ping.getNumber(0)), sent + 116 * MILLI);
+        assertEquals(16 * MILLI, monitor.getLastRoundTripTime(), 1);
+        assertEquals(9 * MILLI, monitor.getSmoothedRoundTripTime(), 1);
+        assertEquals(2, monitor.getRoundTripSamples());
+    }
+}
@@ -0,0 +1,324 @@
+package pingball.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport that connects clients and a server in the same JVM. Each link is
+ * a pair of bounded byte queues, one per direction, so messages are encoded,
+ * handshaken and decoded exactly as over TCP, but never reach the network
+ * stack. Ports form a namespace private to the transport, and the host name
+ * is ignored; boards and a server only see each other if they share the
+ * InMemoryTransport instance.
+ *
+ * Abstraction Function: Represents a private network: the ports being
+ * listened on, and for each, the links waiting to be accepted.
+ *
+ * Representation: acceptors maps each port being listened on to its acceptor;
+ * nextPort is the next candidate for a port picked by the transport.
+ *
+ * Rep Invariant: every acceptor in acceptors is open and listens on the port
+ * it is mapped from.
+ *
+ * Thread-safety argument: acceptors is a ConcurrentHashMap and ports are
+ * claimed with putIfAbsent, so concurrent listens cannot share a port.
+ * Pending links are handed over through a BlockingQueue. Each Pipe guards its
+ * state with its own lock.
+ */
+public class InMemoryTransport implements Transport {
+
+    /** Bytes each direction of a link buffers, like a socket buffer. */
+    private static final int PIPE_CAPACITY = 1 << 18;
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private final Map<Integer, MemoryAcceptor> acceptors =
+            new ConcurrentHashMap<Integer, MemoryAcceptor>();
+    private final AtomicInteger nextPort = new AtomicInteger(1);
+
+    /**
+     * One direction of a link: a bounded ring buffer of bytes. Writers block
+     * while it is full and readers while it is empty.
+     *
+     * Rep Invariant: 0 <= head < buffer.length; 0 <= count <= buffer.length.
+     */
+    private static final class Pipe {
+        private final byte[] buffer = new byte[PIPE_CAPACITY];
+        private int head = 0;
+        private int count = 0;
+        private boolean writerClosed = false;
+        private boolean readerClosed = false;
+
+        private synchronized int read(byte[] bytes, int offset, int length,
+                int timeoutMillis) throws IOException {
+            if (length == 0)
+                return 0;
+            long deadline = System.nanoTime() + timeoutMillis
+                    * NANOS_PER_MILLI;
+            while (count == 0) {
+                if (readerClosed)
+                    throw new SocketException("link closed");
+                if (writerClosed)
+                    return -1;
+                long waitMillis = 0;
+                if (timeoutMillis > 0) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0)
+                        throw new SocketTimeoutException("read timed out");
+                    waitMillis = (left + NANOS_PER_MILLI - 1)
+                            / NANOS_PER_MILLI;
+                }
+                await(waitMillis);
+            }
+            if (readerClosed)
+                throw new SocketException("link closed");
+            int n = Math.min(length, count);
+            int first = Math.min(n, buffer.length - head);
+            System.arraycopy(buffer, head, bytes, offset, first);
+            System.arraycopy(buffer, 0, bytes, offset + first, n - first);
+            head = (head + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        private synchronized void write(byte[] bytes, int offset, int length)
+                throws IOException {
+            while (length > 0) {
+                if (writerClosed || readerClosed)
+                    throw new SocketException("link closed");
+                if (count == buffer.length) {
+                    await(0);
+                    continue;
+                }
+                int tail = (head + count) % buffer.length;
+                int n = Math.min(length, Math.min(buffer.length - count,
+                        buffer.length - tail));
+                System.arraycopy(bytes, offset, buffer, tail, n);
+                count += n;
+                offset += n;
+                length -= n;
+                notifyAll();
+            }
+        }
+
+        private synchronized int available() {
+            return count;
+        }
+
+        private synchronized void closeWriter() {
+            writerClosed = true;
+            notifyAll();
+        }
+
+        private synchronized void closeReader() {
+            readerClosed = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the other end, turning an interrupt into an
+         * InterruptedIOException as blocking socket streams do.
+         */
+        private void await(long millis) throws InterruptedIOException {
+            try {
+                wait(millis);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted");
+            }
+        }
+    }
+
+    /**
+     * One end of a link: reads from one pipe and writes to the other.
+     */
+    private static final class MemoryLink implements Link {
+        private final Pipe incoming;
+        private final Pipe outgoing;
+        private volatile int readTimeout = 0;
+
+        private final InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length)
+                    throws IOException {
+                return incoming.read(bytes, offset, length, readTimeout);
+            }
+
+            @Override
+            public int available() {
+                return incoming.available();
+            }
+
+            @Override
+            public void close() {
+                MemoryLink.this.close();
+            }
+        };
+
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length)
+                    throws IOException {
+                outgoing.write(bytes, offset, length);
+            }
+
+            @Override
+            public void close() {
+                MemoryLink.this.close();
+            }
+        };
+
+        private MemoryLink(Pipe incoming, Pipe outgoing) {
+            this.incoming = incoming;
+            this.outgoing = outgoing;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void setReadTimeout(int timeoutMillis) throws IOException {
+            if (timeoutMillis < 0)
+                throw new IllegalArgumentException("negative timeout");
+            readTimeout = timeoutMillis;
+        }
+
+        @Override
+        public SocketChannel getChannel() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            outgoing.closeWriter();
+            incoming.closeReader();
+        }
+    }
+
+    /**
+     * Listening end: a queue of links waiting to be accepted.
+     */
+    private final class MemoryAcceptor implements Acceptor {
+        private final int port;
+        private final BlockingQueue<MemoryLink> pending =
+                new LinkedBlockingQueue<MemoryLink>();
+        private volatile boolean closed = false;
+
+        private MemoryAcceptor(int port) {
+            this.port = port;
+        }
+
+        @Override
+        public Link accept() throws IOException {
+            try {
+                MemoryLink link = pending.take();
+                if (closed) {
+                    // wake the next thread blocked in accept too
+                    pending.add(link);
+                    throw new SocketException("acceptor closed");
+                }
+                return link;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted");
+            }
+        }
+
+        @Override
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            acceptors.remove(port, this);
+            // a closed link to unblock accept; links not yet accepted are
+            // refused, as by a closed server socket
+            MemoryLink sentinel = new MemoryLink(new Pipe(), new Pipe());
+            pending.add(sentinel);
+            for (MemoryLink link : pending)
+                link.close();
+        }
+    }
+
+    @Override
+    public Acceptor listen(int port) throws IOException {
+        if (port < 0)
+            throw new IllegalArgumentException("negative port");
+        if (port != 0) {
+            MemoryAcceptor acceptor = new MemoryAcceptor(port);
+            if (acceptors.putIfAbsent(port, acceptor) != null)
+                throw new BindException("port " + port + " already in use");
+            return acceptor;
+        }
+        while (true) {
+            int candidate = nextPort.getAndIncrement();
+            if (candidate <= 0) {
+                nextPort.compareAndSet(candidate + 1, 1);
+                continue;
+            }
+            MemoryAcceptor acceptor = new MemoryAcceptor(candidate);
+            if (acceptors.putIfAbsent(candidate, acceptor) == null)
+                return acceptor;
+        }
+    }
+
+    @Override
+    public Link open(String host, int port) throws IOException {
+        MemoryAcceptor acceptor = acceptors.get(port);
+        if (acceptor == null)
+            throw new ConnectException("nothing listening on port " + port);
+        Pipe toServer = new Pipe();
+        Pipe toClient = new Pipe();
+        acceptor.pending.add(new MemoryLink(toServer, toClient));
+        return new MemoryLink(toClient, toServer);
+    }
+
+    @Override
+    public ClientConnection connect(String host, int port, String clientName,
+            List<String> portalNames, boolean offerBinary, boolean resume)
+            throws IOException {
+        Link client = open(host, port);
+        try {
+            Handshake handshake = Handshake.connect(client.getInputStream(),
+                    client.getOutputStream(), clientName, portalNames,
+                    offerBinary, resume);
+            return new StreamClientConnection(client, handshake.getCodec());
+        } catch (IOException ioe) {
+            client.close();
+            throw ioe;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package pingball.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class InMemoryTransportTest {
+    /**
+     * Testing Strategy
+     *
+     * -messages in both directions, text and binary, through a real handshake
+     * -more bytes than a pipe holds get through
+     * -reads time out and can be retried; closing one end is end of stream
+     * for the other
+     * -connecting to a port nobody listens on fails; a picked port is unique
+     */
+
+    static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Polls a connection until a message arrives or the test times out.
+     */
+    static Message await(ClientConnection connection)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            Message message = connection.poll();
+            if (message != null)
+                return message;
+            Thread.sleep(1);
+        }
+        return null;
+    }
+
+    private static void exchange(boolean binary) throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        Acceptor acceptor = transport.listen(0);
+        ClientConnection[] client = new ClientConnection[1];
+        Thread connector = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    client[0] = transport.connect("anywhere",
+                            acceptor.getPort(), "Mars", Arrays.asList("Alpha"),
+                            binary, false);
+                } catch (Exception e) {
+                }
+            }
+        });
+        connector.start();
+        Link link = acceptor.accept();
+        BufferedOutputStream out = new BufferedOutputStream(
+                link.getOutputStream());
+        Handshake handshake = Handshake.accept(link.getInputStream(), out);
+        connector.join();
+        assertNotNull(client[0]);
+        assertEquals(Arrays.asList("Alpha"), handshake.getPortalNames());
+        assertEquals(binary, handshake.getCodec() instanceof BinaryCodec);
+        MessageStream stream = new MessageStream(link.getInputStream(), out,
+                handshake.getCodec());
+
+        Message toClient = Message.newBall(1.5, 2.0, -3.25, 4.0);
+        stream.write(toClient);
+        assertEquals(toClient, await(client[0]));
+
+        // more than the pipe holds, written while the server reads
+        int count = 20000;
+        Thread batcher = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    client[0].queue(Message.newBall("Earth", i, 0, 0, 0));
+                    if (i % 1000 == 999)
+                        client[0].flush();
+                }
+            }
+        });
+        batcher.start();
+        for (int i = 0; i < count; i++) {
+            Message message = stream.read();
+            // the client's heartbeat may interleave with the batch
+            while (message.getType() == MessageType.PING)
+                message = stream.read();
+            assertEquals(Message.newBall("Earth", i, 0, 0, 0), message);
+        }
+        batcher.join();
+
+        link.close();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (client[0].isOpen() && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertFalse(client[0].isOpen());
+        assertNotNull(client[0].getFailure());
+        acceptor.close();
+    }
+
+    @Test
+    public void testTextExchange() throws Exception {
+        exchange(false);
+    }
+
+    @Test
+    public void testBinaryExchange() throws Exception {
+        exchange(true);
+    }
+
+    @Test
+    public void testReadTimeoutAndClose() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        Acceptor acceptor = transport.listen(7);
+        Thread connector = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    ClientConnection client = transport.connect("", 7,
+                            "Mars", Arrays.<String> asList(), false, false);
+                    client.close();
+                } catch (Exception e) {
+                }
+            }
+        });
+        connector.start();
+        Link link = acceptor.accept();
+        InputStream in = link.getInputStream();
+        // the client's handshake: "Mars\n0\n"
+        for (int i = 0; i < 7; i++)
+            assertTrue(in.read() >= 0);
+        connector.join();
+        assertEquals(-1, in.read());
+
+        // a fresh, silent link times out instead
+        Thread silent = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    transport.connect("", 7, "Earth",
+                            Arrays.<String> asList(), false, false);
+                } catch (Exception e) {
+                }
+            }
+        });
+        silent.start();
+        Link quiet = acceptor.accept();
+        silent.join();
+        for (int i = 0; i < 8; i++)
+            quiet.getInputStream().read();
+        quiet.setReadTimeout(20);
+        try {
+            quiet.getInputStream().read();
+            assertTrue(false);
+        } catch (SocketTimeoutException ste) {
+        }
+        quiet.close();
+        acceptor.close();
+    }
+
+    @Test
+    public void testPorts() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        Acceptor first = transport.listen(0);
+        Acceptor second = transport.listen(0);
+        assertTrue(first.getPort() != second.getPort());
+        try {
+            transport.listen(first.getPort());
+            assertTrue(false);
+        } catch (IOException ioe) {
+        }
+        first.close();
+        try {
+            transport.connect("", first.getPort(), "Mars",
+                    Arrays.<String> asList(), false, false);
+            assertTrue(false);
+        } catch (ConnectException ce) {
+        }
+        second.close();
+    }
+}
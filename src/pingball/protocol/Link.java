@@ -0,0 +1,58 @@
+package pingball.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One end of a two-way byte stream between a client and the server, opened
+ * by a Transport. It behaves like a connected socket: reads block until data
+ * arrives, the peer closes its end (end of stream), or the read timeout
+ * passes (SocketTimeoutException, after which reading may continue).
+ */
+public interface Link extends Closeable {
+
+    /**
+     * Gets the stream of bytes from the peer.
+     *
+     * @return InputStream of the link, the same one every time
+     */
+    InputStream getInputStream();
+
+    /**
+     * Gets the stream of bytes to the peer.
+     *
+     * @return OutputStream of the link, the same one every time
+     */
+    OutputStream getOutputStream();
+
+    /**
+     * Sets how long a read may block before it fails with a
+     * SocketTimeoutException.
+     *
+     * @param timeoutMillis
+     *            int timeout in milliseconds, 0 to block indefinitely
+     * @throws IOException
+     *             if the link is closed
+     */
+    void setReadTimeout(int timeoutMillis) throws IOException;
+
+    /**
+     * Gets the socket channel under the link, so that a server with an event
+     * loop can serve it without blocking. Once a selector owns the channel,
+     * the link's streams must no longer be used.
+     *
+     * @return SocketChannel of the link, or null if it has none (e.g. an
+     *         in-memory link)
+     */
+    SocketChannel getChannel();
+
+    /**
+     * Closes both directions of the link. The peer reads the end of the
+     * stream once it has read everything sent before.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,96 @@
+package pingball.protocol;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free mailbox for many producers and a single consumer.
+ * Producers link a new node in with one atomic swap of the tail; the
+ * consumer unlinks from the head with plain reads and writes. Neither side
+ * ever blocks or takes a lock, and an empty poll costs a single volatile
+ * read, so the consumer can afford to check the mailbox very often.
+ *
+ * An element whose add has swapped the tail but not yet linked its
+ * predecessor is not visible to poll yet; poll then reports the mailbox
+ * empty and the element shows up on a later poll.
+ *
+ * Abstraction Function: Represents the sequence of elements added and not
+ * yet polled, in the order their adds swapped the tail.
+ *
+ * Representation: A singly linked list from head to tail. head is a
+ * sentinel whose value has already been consumed; the elements are the
+ * values of the nodes after it.
+ *
+ * Rep Invariant: head and tail are not null; tail is reachable from head
+ * once every add in progress has completed; only the nodes after head hold
+ * values.
+ *
+ * Thread-safety argument: tail is only changed by atomic swaps, so
+ * concurrent adds each get a distinct predecessor and link to it exactly
+ * once. A node's value is written before the volatile write of the link to
+ * it, so the consumer sees it once it sees the link. head and the values of
+ * consumed nodes are confined to the single consumer thread.
+ *
+ * @param <T>
+ *            type of the elements
+ */
+public class Mailbox<T> {
+
+    private static final class Node<T> {
+        private T value;
+        private volatile Node<T> next;
+
+        private Node(T value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReference<Node<T>> tail;
+    private Node<T> head;
+
+    /**
+     * Creates an empty mailbox.
+     */
+    public Mailbox() {
+        head = new Node<T>(null);
+        tail = new AtomicReference<Node<T>>(head);
+    }
+
+    /**
+     * Adds an element. May be called from any thread.
+     *
+     * @param value
+     *            T element to add, not null
+     */
+    public void add(T value) {
+        if (value == null)
+            throw new NullPointerException();
+        Node<T> node = new Node<T>(value);
+        tail.getAndSet(node).next = node;
+    }
+
+    /**
+     * Takes the oldest element. Must only be called from the consumer
+     * thread.
+     *
+     * @return T oldest element, or null if there is none
+     */
+    public T poll() {
+        Node<T> next = head.next;
+        if (next == null)
+            return null;
+        T value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * Checks whether there is an element to poll. Must only be called from
+     * the consumer thread.
+     *
+     * @return boolean true if poll would return null
+     */
+    public boolean isEmpty() {
+        return head.next == null;
+    }
+}
@@ -0,0 +1,74 @@
+package pingball.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MailboxTest {
+    /**
+     * Testing Strategy
+     *
+     * -empty mailbox, single producer order
+     * -several concurrent producers: nothing lost or duplicated, and each
+     * producer's elements arrive in the order it added them
+     */
+
+    @Test
+    public void testEmpty() {
+        Mailbox<String> mailbox = new Mailbox<String>();
+        assertTrue(mailbox.isEmpty());
+        assertNull(mailbox.poll());
+    }
+
+    @Test
+    public void testOrder() {
+        Mailbox<String> mailbox = new Mailbox<String>();
+        mailbox.add("a");
+        mailbox.add("b");
+        assertFalse(mailbox.isEmpty());
+        assertEquals("a", mailbox.poll());
+        mailbox.add("c");
+        assertEquals("b", mailbox.poll());
+        assertEquals("c", mailbox.poll());
+        assertNull(mailbox.poll());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 20000;
+        Mailbox<int[]> mailbox = new Mailbox<int[]>();
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perProducer; i++)
+                        mailbox.add(new int[] { producer, i });
+                }
+            });
+            threads[p].start();
+        }
+
+        int[] expected = new int[producers];
+        int received = 0;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received < producers * perProducer
+                && System.currentTimeMillis() < deadline) {
+            int[] element = mailbox.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(expected[element[0]]++, element[1]);
+            received++;
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(producers * perProducer, received);
+        assertNull(mailbox.poll());
+    }
+}
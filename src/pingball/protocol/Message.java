@@ -0,0 +1,565 @@
+package pingball.protocol;
+
+import java.util.Arrays;
+
+/**
+ * Immutable message exchanged between a Pingball client and the server,
+ * independent of how it is encoded on the wire.
+ *
+ * Abstraction Function: Represents one protocol message: its type, the names
+ * of the clients and portals it refers to, in order, and its numeric fields,
+ * in order.
+ *
+ * Representation: The type, an array of names and an array of numbers. The
+ * arrays are never exposed.
+ *
+ * Rep Invariant: type, names and every name are not null; no name is empty
+ * or contains whitespace; numbers has exactly type.getNumberCount() elements.
+ */
+public class Message {
+
+    private final MessageType type;
+    private final String[] names;
+    private final double[] numbers;
+
+    /**
+     * Creates a message.
+     *
+     * @param type
+     *            MessageType of the message
+     * @param names
+     *            String[] names referred to by the message, in order; each
+     *            must be non-empty and contain no whitespace
+     * @param numbers
+     *            double[] numeric fields, exactly type.getNumberCount() of them
+     */
+    public Message(MessageType type, String[] names, double[] numbers) {
+        this(names.clone(), numbers.clone(), type);
+    }
+
+    /**
+     * Creates a message that keeps the given arrays as its rep.
+     */
+    private Message(String[] names, double[] numbers, MessageType type) {
+        if (numbers.length != type.getNumberCount())
+            throw new IllegalArgumentException(type + " takes "
+                    + type.getNumberCount() + " numbers");
+        for (String name : names)
+            if (!isValidName(name))
+                throw new IllegalArgumentException("invalid name " + name);
+        this.type = type;
+        this.names = names;
+        this.numbers = numbers;
+        checkRep();
+    }
+
+    /**
+     * Creates a message without copying its arrays, for codecs that build
+     * fresh arrays for every message they decode.
+     *
+     * @param type
+     *            MessageType of the message
+     * @param names
+     *            String[] names, as for the public constructor; must not be
+     *            modified afterwards
+     * @param numbers
+     *            double[] numeric fields, as for the public constructor; must
+     *            not be modified afterwards
+     * @return Message with the given fields
+     */
+    static Message wrap(MessageType type, String[] names, double[] numbers) {
+        return new Message(names, numbers, type);
+    }
+
+    /**
+     * Checks the rep invariant.
+     */
+    private void checkRep() {
+        assert type != null;
+        assert numbers.length == type.getNumberCount();
+        for (String name : names)
+            assert isValidName(name);
+    }
+
+    /**
+     * Checks whether a String can be used as a name in a message.
+     *
+     * @param name
+     *            String candidate name
+     * @return boolean true if name is non-null, non-empty and has no
+     *         whitespace
+     */
+    public static boolean isValidName(String name) {
+        if (name == null || name.isEmpty())
+            return false;
+        for (int i = 0; i < name.length(); i++)
+            if (Character.isWhitespace(name.charAt(i)))
+                return false;
+        return true;
+    }
+
+    /** FACTORY METHODS **/
+
+    /**
+     * Creates a NEWBALL message from a client to the server.
+     *
+     * @param newClientName
+     *            String client the ball should be sent to
+     * @param xLoc
+     *            double x location the ball should appear at
+     * @param yLoc
+     *            double y location the ball should appear at
+     * @param xVelocity
+     *            double x component of the ball's velocity
+     * @param yVelocity
+     *            double y component of the ball's velocity
+     * @return Message NEWBALL newClientName xLoc yLoc xVelocity yVelocity
+     */
+    public static Message newBall(String newClientName, double xLoc,
+            double yLoc, double xVelocity, double yVelocity) {
+        return new Message(MessageType.NEWBALL, new String[] { newClientName },
+                new double[] { xLoc, yLoc, xVelocity, yVelocity });
+    }
+
+    /**
+     * Creates a NEWBALL message from the server to the receiving client.
+     *
+     * @param xLoc
+     *            double x location the ball should appear at
+     * @param yLoc
+     *            double y location the ball should appear at
+     * @param xVelocity
+     *            double x component of the ball's velocity
+     * @param yVelocity
+     *            double y component of the ball's velocity
+     * @return Message NEWBALL xLoc yLoc xVelocity yVelocity
+     */
+    public static Message newBall(double xLoc, double yLoc, double xVelocity,
+            double yVelocity) {
+        return new Message(MessageType.NEWBALL, new String[0], new double[] {
+                xLoc, yLoc, xVelocity, yVelocity });
+    }
+
+    /**
+     * Creates a NEWBALLTIMED message from a client to the server.
+     *
+     * @param newClientName
+     *            String client the ball should be sent to
+     * @param xLoc
+     *            double x location the ball should appear at
+     * @param yLoc
+     *            double y location the ball should appear at
+     * @param xVelocity
+     *            double x component of the ball's velocity
+     * @param yVelocity
+     *            double y component of the ball's velocity
+     * @param age
+     *            double seconds of simulation time since the ball had this
+     *            location and velocity, >= 0
+     * @return Message NEWBALLTIMED newClientName xLoc yLoc xVelocity
+     *         yVelocity age
+     */
+    public static Message newBallTimed(String newClientName, double xLoc,
+            double yLoc, double xVelocity, double yVelocity, double age) {
+        return new Message(MessageType.NEWBALLTIMED,
+                new String[] { newClientName }, new double[] { xLoc, yLoc,
+                        xVelocity, yVelocity, age });
+    }
+
+    /**
+     * Creates a NEWBALLTIMED message from the server to the receiving client.
+     *
+     * @param xLoc
+     *            double x location the ball should appear at
+     * @param yLoc
+     *            double y location the ball should appear at
+     * @param xVelocity
+     *            double x component of the ball's velocity
+     * @param yVelocity
+     *            double y component of the ball's velocity
+     * @param age
+     *            double seconds of simulation time since the ball had this
+     *            location and velocity, >= 0
+     * @return Message NEWBALLTIMED xLoc yLoc xVelocity yVelocity age
+     */
+    public static Message newBallTimed(double xLoc, double yLoc,
+            double xVelocity, double yVelocity, double age) {
+        return new Message(MessageType.NEWBALLTIMED, new String[0],
+                new double[] { xLoc, yLoc, xVelocity, yVelocity, age });
+    }
+
+    /**
+     * Creates a NEWBALLTHROUGHPORTAL message from a client to the server.
+     *
+     * @param oldClientName
+     *            String client the ball leaves
+     * @param oldPortalName
+     *            String portal the ball entered
+     * @param newClientName
+     *            String client the ball should be sent to
+     * @param newPortalName
+     *            String portal the ball should come out of
+     * @param xVelocity
+     *            double x component of the ball's velocity
+     * @param yVelocity
+     *            double y component of the ball's velocity
+     * @return Message NEWBALLTHROUGHPORTAL oldClientName oldPortalName
+     *         newClientName newPortalName xVelocity yVelocity
+     */
+    public static Message newBallThroughPortal(String oldClientName,
+            String oldPortalName, String newClientName, String newPortalName,
+            double xVelocity, double yVelocity) {
+        return new Message(MessageType.NEWBALLTHROUGHPORTAL, new String[] {
+                oldClientName, oldPortalName, newClientName, newPortalName },
+                new double[] { xVelocity, yVelocity });
+    }
+
+    /**
+     * Creates a NEWBALLTHROUGHPORTAL message from the server to the receiving
+     * client.
+     *
+     * @param portalName
+     *            String portal the ball should come out of
+     * @param xVelocity
+     *            double x component of the ball's velocity
+     * @param yVelocity
+     *            double y component of the ball's velocity
+     * @return Message NEWBALLTHROUGHPORTAL portalName xVelocity yVelocity
+     */
+    public static Message newBallThroughPortal(String portalName,
+            double xVelocity, double yVelocity) {
+        return new Message(MessageType.NEWBALLTHROUGHPORTAL,
+                new String[] { portalName },
+                new double[] { xVelocity, yVelocity });
+    }
+
+    /**
+     * Creates a NEWCLIENT message telling a client a wall is now joined.
+     *
+     * @param clientName
+     *            String client on the other side of the wall
+     * @param side
+     *            int the wall: 0 top, 1 right, 2 bottom, 3 left
+     * @return Message NEWCLIENT clientName side
+     */
+    public static Message newClient(String clientName, int side) {
+        return new Message(MessageType.NEWCLIENT, new String[] { clientName },
+                new double[] { side });
+    }
+
+    /**
+     * Creates a DISCONNECT message telling a client a wall is solid again.
+     *
+     * @param clientName
+     *            String client that was on the other side of the wall
+     * @param side
+     *            int the wall: 0 top, 1 right, 2 bottom, 3 left
+     * @return Message DISCONNECT clientName side
+     */
+    public static Message disconnect(String clientName, int side) {
+        return new Message(MessageType.DISCONNECT, new String[] { clientName },
+                new double[] { side });
+    }
+
+    /**
+     * Creates a PORTALBALLACCEPTED message.
+     *
+     * @param portalName
+     *            String portal the accepted ball entered
+     * @return Message PORTALBALLACCEPTED portalName
+     */
+    public static Message portalBallAccepted(String portalName) {
+        return new Message(MessageType.PORTALBALLACCEPTED,
+                new String[] { portalName }, new double[0]);
+    }
+
+    /**
+     * Creates a PORTALBALLREJECTED message.
+     *
+     * @param portalName
+     *            String portal the rejected ball entered
+     * @return Message PORTALBALLREJECTED portalName
+     */
+    public static Message portalBallRejected(String portalName) {
+        return new Message(MessageType.PORTALBALLREJECTED,
+                new String[] { portalName }, new double[0]);
+    }
+
+    /**
+     * Creates a PORTALTRANSFER message from a client to the server.
+     *
+     * @param oldClientName
+     *            String client the ball is leaving
+     * @param oldPortalName
+     *            String portal the ball entered
+     * @param newClientName
+     *            String client the ball should be sent to
+     * @param newPortalName
+     *            String portal the ball should come out of
+     * @param transferId
+     *            int id of the transfer, unique among the sender's transfers
+     *            in flight
+     * @param xVelocity
+     *            double x component of the ball's velocity
+     * @param yVelocity
+     *            double y component of the ball's velocity
+     * @return Message PORTALTRANSFER oldClientName oldPortalName
+     *         newClientName newPortalName transferId xVelocity yVelocity
+     */
+    public static Message portalTransfer(String oldClientName,
+            String oldPortalName, String newClientName, String newPortalName,
+            int transferId, double xVelocity, double yVelocity) {
+        return new Message(MessageType.PORTALTRANSFER, new String[] {
+                oldClientName, oldPortalName, newClientName, newPortalName },
+                new double[] { transferId, xVelocity, yVelocity });
+    }
+
+    /**
+     * Creates a PORTALACK message, telling a client its ball was delivered.
+     *
+     * @param transferId
+     *            int id of the PORTALTRANSFER being answered
+     * @return Message PORTALACK transferId
+     */
+    public static Message portalAck(int transferId) {
+        return new Message(MessageType.PORTALACK, new String[0],
+                new double[] { transferId });
+    }
+
+    /**
+     * Creates a PORTALNACK message, telling a client its ball had nowhere to
+     * go.
+     *
+     * @param transferId
+     *            int id of the PORTALTRANSFER being answered
+     * @return Message PORTALNACK transferId
+     */
+    public static Message portalNack(int transferId) {
+        return new Message(MessageType.PORTALNACK, new String[0],
+                new double[] { transferId });
+    }
+
+    /**
+     * Creates a PING heartbeat message.
+     *
+     * @param timestamp
+     *            double time the ping was sent, in the sender's own clock
+     * @return Message PING timestamp
+     */
+    public static Message ping(double timestamp) {
+        return new Message(MessageType.PING, new String[0],
+                new double[] { timestamp });
+    }
+
+    /**
+     * Creates a PONG message answering a PING.
+     *
+     * @param timestamp
+     *            double timestamp of the PING being answered
+     * @return Message PONG timestamp
+     */
+    public static Message pong(double timestamp) {
+        return new Message(MessageType.PONG, new String[0],
+                new double[] { timestamp });
+    }
+
+    /**
+     * Creates a NODE message, naming the cluster node that opened a link.
+     *
+     * @param nodeName
+     *            String name of the node
+     * @return Message NODE nodeName
+     */
+    public static Message node(String nodeName) {
+        return new Message(MessageType.NODE, new String[] { nodeName },
+                new double[0]);
+    }
+
+    /**
+     * Creates a BOARDUP message, telling the other cluster nodes a board has
+     * connected to the sending node.
+     *
+     * @param boardName
+     *            String name of the board
+     * @param resumed
+     *            boolean true if the board resumed its earlier session, and
+     *            so keeps its joins
+     * @return Message BOARDUP boardName resumed
+     */
+    public static Message boardUp(String boardName, boolean resumed) {
+        return new Message(MessageType.BOARDUP, new String[] { boardName },
+                new double[] { resumed ? 1 : 0 });
+    }
+
+    /**
+     * Creates a BOARDDOWN message, telling the other cluster nodes a board's
+     * connection to the sending node has dropped.
+     *
+     * @param boardName
+     *            String name of the board
+     * @return Message BOARDDOWN boardName
+     */
+    public static Message boardDown(String boardName) {
+        return new Message(MessageType.BOARDDOWN, new String[] { boardName },
+                new double[0]);
+    }
+
+    /**
+     * Creates a JOIN message, telling the other cluster nodes two boards
+     * were joined.
+     *
+     * @param firstBoardName
+     *            String board whose right or bottom wall is joined
+     * @param secondBoardName
+     *            String board joined to it
+     * @param side
+     *            int wall of the first board, 1 (right) or 2 (bottom)
+     * @return Message JOIN firstBoardName secondBoardName side
+     */
+    public static Message join(String firstBoardName, String secondBoardName,
+            int side) {
+        return new Message(MessageType.JOIN, new String[] { firstBoardName,
+                secondBoardName }, new double[] { side });
+    }
+
+    /**
+     * Creates an UNJOIN message, telling the other cluster nodes the join at
+     * a wall of a board was removed.
+     *
+     * @param boardName
+     *            String board whose wall is no longer joined
+     * @param side
+     *            int wall of the board, 0 <= side < 4
+     * @return Message UNJOIN boardName side
+     */
+    public static Message unjoin(String boardName, int side) {
+        return new Message(MessageType.UNJOIN, new String[] { boardName },
+                new double[] { side });
+    }
+
+    /**
+     * Creates a PORTALRESULT message, answering a portal ball that one
+     * cluster node forwarded to another.
+     *
+     * @param oldClientName
+     *            String client the ball left
+     * @param oldPortalName
+     *            String portal the ball entered
+     * @param transferId
+     *            int id of the PORTALTRANSFER, or -1 for a
+     *            NEWBALLTHROUGHPORTAL
+     * @param accepted
+     *            boolean true if the ball was handed to its new client
+     * @return Message PORTALRESULT oldClientName oldPortalName transferId
+     *         accepted
+     */
+    public static Message portalResult(String oldClientName,
+            String oldPortalName, int transferId, boolean accepted) {
+        return new Message(MessageType.PORTALRESULT, new String[] {
+                oldClientName, oldPortalName }, new double[] { transferId,
+                accepted ? 1 : 0 });
+    }
+
+    /** OBSERVER METHODS **/
+
+    /**
+     * Gets the type of the message.
+     *
+     * @return MessageType of the message
+     */
+    public MessageType getType() {
+        return type;
+    }
+
+    /**
+     * Gets the number of names in the message.
+     *
+     * @return int number of names
+     */
+    public int getNameCount() {
+        return names.length;
+    }
+
+    /**
+     * Gets one of the names in the message.
+     *
+     * @param index
+     *            int position of the name, 0 <= index < getNameCount()
+     * @return String name at that position
+     */
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * Gets one of the numeric fields of the message.
+     *
+     * @param index
+     *            int position of the field, 0 <= index <
+     *            getType().getNumberCount()
+     * @return double value of the field
+     */
+    public double getNumber(int index) {
+        return numbers[index];
+    }
+
+    /**
+     * Gets one of the numeric fields of the message as a whole number.
+     *
+     * @param index
+     *            int position of the field, 0 <= index <
+     *            getType().getNumberCount()
+     * @return int value of the field, truncated
+     */
+    public int getInt(int index) {
+        return (int) numbers[index];
+    }
+
+    /**
+     * Appends the message in the text protocol, without a line terminator.
+     * Numbers are appended with StringBuilder.append, which writes the same
+     * digits as Double.toString without creating a String.
+     *
+     * @param text
+     *            StringBuilder to append to
+     * @return StringBuilder text, for chaining
+     */
+    public StringBuilder appendTo(StringBuilder text) {
+        text.append(type.name());
+        for (String name : names)
+            text.append(' ').append(name);
+        for (int i = 0; i < numbers.length; i++) {
+            text.append(' ');
+            if (type.isIntegral(i))
+                text.append((long) numbers[i]);
+            else
+                text.append(numbers[i]);
+        }
+        return text;
+    }
+
+    /**
+     * Gets the message in the text protocol, without a line terminator.
+     *
+     * @return String e.g. "NEWCLIENT Mars 1" or "NEWBALL 0.0 3.3 -5.0 6.0"
+     */
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder()).toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Message))
+            return false;
+        Message that = (Message) other;
+        return type == that.type && Arrays.equals(names, that.names)
+                && Arrays.equals(numbers, that.numbers);
+    }
+
+    @Override
+    public int hashCode() {
+        return type.hashCode() + 31 * Arrays.hashCode(names) + 961
+                * Arrays.hashCode(numbers);
+    }
+}
@@ -0,0 +1,42 @@
+package pingball.protocol;
+
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A MessageCodec turns Messages into bytes and back for one direction pair of
+ * a single connection. Codecs may keep per-connection state (e.g. name
+ * tables), so each connection needs its own instance, and encode and decode
+ * must each be called from one thread at a time.
+ */
+public interface MessageCodec {
+
+    /**
+     * Writes one message at the position of a buffer. Either the whole
+     * message is written and the position advanced past it, or nothing is
+     * written and the buffer and the codec are left unchanged.
+     *
+     * @param message
+     *            Message to be encoded
+     * @param out
+     *            ByteBuffer in write mode
+     * @throws BufferOverflowException
+     *             if the buffer has too little space left for the message
+     */
+    public void encode(Message message, ByteBuffer out);
+
+    /**
+     * Reads one message from the position of a buffer. If the buffer holds a
+     * complete message, the position is advanced past it; otherwise the
+     * position is left unchanged and more bytes are needed.
+     *
+     * @param in
+     *            ByteBuffer in read mode
+     * @return Message decoded, or null if the buffer does not hold a complete
+     *         message yet
+     * @throws ProtocolException
+     *             if the bytes do not form a valid message
+     */
+    public Message decode(ByteBuffer in) throws ProtocolException;
+}
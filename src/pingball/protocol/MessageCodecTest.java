@@ -0,0 +1,307 @@
+package pingball.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MessageCodecTest {
+    /**
+     * Testing Strategy
+     *
+     * TextCodec:
+     * -every message type round trips
+     * -lines written by the original clients (trailing space) are parsed
+     * -whole-number fields are written without a fractional part
+     * -unknown lines are skipped, partial lines wait for more bytes
+     *
+     * BinaryCodec:
+     * -every message type round trips, doubles bit for bit
+     * -a repeated name is only spelled out once
+     * -partial frames wait for more bytes, an undefined name id is rejected
+     * -a full buffer leaves both the buffer and the name table unchanged
+     *
+     * Handshake:
+     * -binary offered and accepted, text client to new server
+     * -resume requested with text and with binary
+     * -incremental server side fed one byte at a time: HELLO answered as soon
+     * as its line is complete, first message left unconsumed
+     *
+     * MessageStream:
+     * -a batch larger than the write buffer, with both codecs, is flushed
+     * once and reads back in order
+     */
+
+    private static final Message[] MESSAGES = {
+            Message.newBall("Mars", 0.0, 3.3, -5.0, 6.0),
+            Message.newBall(0.1, 19.75, -1e-9, Double.MAX_VALUE),
+            Message.newBallThroughPortal("Earth", "Alpha", "Mars", "Gamma",
+                    -5.0, 6.0),
+            Message.newBallThroughPortal("Gamma", 1.0 / 3, -2.5),
+            Message.newClient("Mars", 1), Message.disconnect("Mars", 3),
+            Message.portalBallAccepted("Alpha"),
+            Message.portalBallRejected("Alpha"), Message.ping(123456789.0),
+            Message.pong(0.0),
+            Message.portalTransfer("Earth", "Alpha", "Mars", "Gamma", 7,
+                    -5.0, 6.0), Message.portalAck(7), Message.portalNack(8),
+            Message.newBallTimed("Mars", 0.0, 3.3, -5.0, 6.0, 0.035),
+            Message.newBallTimed(19.75, 4.0, 1.0, -2.0, 0.0),
+            Message.node("node1"), Message.boardUp("Mars", true),
+            Message.boardDown("Mars"), Message.join("Mars", "Earth", 2),
+            Message.portalResult("Earth", "Alpha", -1, false),
+            Message.unjoin("Mars", 3) };
+
+    private static ByteBuffer encodeAll(MessageCodec codec) {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (Message message : MESSAGES)
+            codec.encode(message, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void assertDecodesAll(MessageCodec codec, ByteBuffer buffer)
+            throws Exception {
+        for (Message message : MESSAGES)
+            assertEquals(message, codec.decode(buffer));
+        assertNull(codec.decode(buffer));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void testTextRoundTrip() throws Exception {
+        assertDecodesAll(new TextCodec(), encodeAll(new TextCodec()));
+    }
+
+    @Test
+    public void testTextOriginalFormat() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(("hello there\n"
+                + "NEWBALL Mars 0.0 3.3 -5.0 6.0 \n" + "NEWCLIENT Mars 1\n"
+                + "DISCONNECT Ma").getBytes(StandardCharsets.UTF_8));
+        TextCodec codec = new TextCodec();
+        assertEquals(MESSAGES[0], codec.decode(buffer));
+        assertEquals(MESSAGES[4], codec.decode(buffer));
+        assertNull(codec.decode(buffer));
+        assertEquals(13, buffer.remaining());
+        assertEquals("NEWCLIENT Mars 1", MESSAGES[4].toString());
+        assertEquals("PORTALTRANSFER Earth Alpha Mars Gamma 7 -5.0 6.0",
+                MESSAGES[10].toString());
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws Exception {
+        assertDecodesAll(new BinaryCodec(), encodeAll(new BinaryCodec()));
+    }
+
+    @Test
+    public void testBinaryInternsNames() throws Exception {
+        BinaryCodec codec = new BinaryCodec();
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        codec.encode(MESSAGES[0], buffer);
+        int first = buffer.position();
+        codec.encode(MESSAGES[0], buffer);
+        // header, one name reference and four doubles
+        assertEquals(4 + 1 + 1 + 2 + 4 * 8, buffer.position() - first);
+        assertTrue(first > buffer.position() - first);
+    }
+
+    @Test
+    public void testBinaryPartialFrame() throws Exception {
+        ByteBuffer whole = encodeAll(new BinaryCodec());
+        BinaryCodec codec = new BinaryCodec();
+        ByteBuffer buffer = ByteBuffer.allocate(whole.remaining());
+        buffer.flip();
+        int decoded = 0;
+        // feed the bytes one at a time
+        while (whole.hasRemaining()) {
+            buffer.compact();
+            buffer.put(whole.get());
+            buffer.flip();
+            Message message = codec.decode(buffer);
+            if (message != null)
+                assertEquals(MESSAGES[decoded++], message);
+        }
+        assertEquals(MESSAGES.length, decoded);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testBinaryUndefinedName() throws Exception {
+        BinaryCodec sender = new BinaryCodec();
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        sender.encode(MESSAGES[0], buffer);
+        buffer.clear();
+        sender.encode(MESSAGES[0], buffer);
+        buffer.flip();
+        new BinaryCodec().decode(buffer);
+    }
+
+    @Test
+    public void testBinaryOverflowLeavesStateUnchanged() throws Exception {
+        BinaryCodec sender = new BinaryCodec();
+        ByteBuffer small = ByteBuffer.allocate(10);
+        try {
+            sender.encode(MESSAGES[0], small);
+            assertTrue(false);
+        } catch (BufferOverflowException boe) {
+        }
+        assertEquals(0, small.position());
+
+        // "Mars" must still be spelled out for a fresh receiver
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        sender.encode(MESSAGES[0], buffer);
+        buffer.flip();
+        assertEquals(MESSAGES[0], new BinaryCodec().decode(buffer));
+    }
+
+    @Test
+    public void testHandshakeBinary() throws Exception {
+        PipedOutputStream toServer = new PipedOutputStream();
+        PipedInputStream serverIn = new PipedInputStream(toServer);
+        PipedOutputStream toClient = new PipedOutputStream();
+        PipedInputStream clientIn = new PipedInputStream(toClient);
+
+        final Handshake[] accepted = new Handshake[1];
+        Thread server = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    accepted[0] = Handshake.accept(serverIn, toClient);
+                } catch (Exception e) {
+                }
+            }
+        });
+        server.start();
+        Handshake connected = Handshake.connect(clientIn, toServer, "Mars",
+                Arrays.asList("Alpha", "Gamma"), true);
+        server.join();
+
+        assertTrue(connected.getCodec() instanceof BinaryCodec);
+        assertTrue(accepted[0].getCodec() instanceof BinaryCodec);
+        assertEquals("Mars", accepted[0].getClientName());
+        assertEquals(Arrays.asList("Alpha", "Gamma"),
+                accepted[0].getPortalNames());
+    }
+
+    @Test
+    public void testHandshakeTextClient() throws Exception {
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        Handshake.connect(new ByteArrayInputStream(new byte[0]), sent, "Mars",
+                Collections.<String> emptyList(), false);
+        byte[] bytes = sent.toByteArray();
+        assertEquals("Mars\n0\n", new String(bytes, StandardCharsets.UTF_8));
+
+        // the first message follows the handshake without loss
+        byte[] message = "NEWCLIENT Earth 3\n".getBytes(StandardCharsets.UTF_8);
+        byte[] all = Arrays.copyOf(bytes, bytes.length + message.length);
+        System.arraycopy(message, 0, all, bytes.length, message.length);
+        ByteArrayInputStream in = new ByteArrayInputStream(all);
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        Handshake accepted = Handshake.accept(in, reply);
+
+        assertTrue(accepted.getCodec() instanceof TextCodec);
+        assertEquals(0, reply.size());
+        MessageStream stream = new MessageStream(in, reply,
+                accepted.getCodec());
+        assertEquals(Message.newClient("Earth", 3), stream.read());
+        assertNull(stream.read());
+    }
+
+    @Test
+    public void testHandshakeResume() throws Exception {
+        for (boolean binary : new boolean[] { false, true }) {
+            ByteArrayOutputStream sent = new ByteArrayOutputStream();
+            String reply = binary ? "HELLO binary " + BinaryCodec.VERSION + "\n"
+                    : "HELLO text\n";
+            Handshake connected = Handshake.connect(new ByteArrayInputStream(
+                    reply.getBytes(StandardCharsets.UTF_8)), sent, "Mars",
+                    Arrays.asList("Alpha"), binary, true);
+            assertTrue(connected.isResume());
+
+            ByteArrayOutputStream answer = new ByteArrayOutputStream();
+            Handshake accepted = Handshake.accept(new ByteArrayInputStream(
+                    sent.toByteArray()), answer);
+            assertTrue(accepted.isResume());
+            assertEquals("Mars", accepted.getClientName());
+            assertEquals(binary, accepted.getCodec() instanceof BinaryCodec);
+            assertEquals(reply, new String(answer.toByteArray(),
+                    StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testHandshakeIncremental() throws Exception {
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        Handshake.connect(new ByteArrayInputStream(("HELLO binary "
+                + BinaryCodec.VERSION + "\n").getBytes(StandardCharsets.UTF_8)),
+                sent, "Mars", Arrays.asList("Alpha"), true);
+        sent.write(new byte[] { 1, 2 });
+        byte[] bytes = sent.toByteArray();
+        int helloLength = ("HELLO binary " + BinaryCodec.VERSION + "\n")
+                .length();
+
+        Handshake.Incremental incremental = new Handshake.Incremental();
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        Handshake accepted = null;
+        for (int i = 0; i < bytes.length && accepted == null; i++) {
+            buffer.put(bytes[i]);
+            buffer.flip();
+            accepted = incremental.accept(buffer, reply);
+            buffer.compact();
+            // answered exactly when the HELLO line is complete
+            assertEquals(i + 1 >= helloLength, reply.size() > 0);
+        }
+        assertEquals("Mars", accepted.getClientName());
+        assertEquals(Arrays.asList("Alpha"), accepted.getPortalNames());
+        assertTrue(accepted.getCodec() instanceof BinaryCodec);
+        assertEquals("HELLO binary " + BinaryCodec.VERSION + "\n", new String(
+                reply.toByteArray(), StandardCharsets.UTF_8));
+
+        // all at once: the bytes after the handshake are left for the codec
+        ByteBuffer whole = ByteBuffer.wrap(bytes);
+        assertEquals("Mars", new Handshake.Incremental().accept(whole,
+                new ByteArrayOutputStream()).getClientName());
+        assertEquals(2, whole.remaining());
+        assertEquals(1, whole.get());
+    }
+
+    @Test
+    public void testStreamWriteBatch() throws Exception {
+        for (boolean binary : new boolean[] { false, true }) {
+            final int[] flushes = { 0 };
+            ByteArrayOutputStream out = new ByteArrayOutputStream() {
+                @Override
+                public void flush() {
+                    flushes[0]++;
+                }
+            };
+            MessageStream stream = new MessageStream(null, out,
+                    binary ? new BinaryCodec() : new TextCodec());
+            List<Message> batch = new ArrayList<Message>();
+            // more bytes than the write buffer holds
+            while (batch.size() < BinaryCodec.MAX_FRAME_LENGTH / 8)
+                batch.add(MESSAGES[batch.size() % MESSAGES.length]);
+            stream.write(batch);
+            assertEquals(1, flushes[0]);
+
+            MessageStream in = new MessageStream(new ByteArrayInputStream(
+                    out.toByteArray()), null, binary ? new BinaryCodec()
+                    : new TextCodec());
+            for (Message message : batch)
+                assertEquals(message, in.read());
+            assertNull(in.read());
+        }
+    }
+}
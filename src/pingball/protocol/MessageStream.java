@@ -0,0 +1,182 @@
+package pingball.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking message connection over a pair of byte streams, e.g. those of a
+ * Socket, using the codec agreed on in the Handshake.
+ *
+ * Abstraction Function: Represents the message-level view of one connection:
+ * the messages not yet read from it, and a way to write messages to it.
+ *
+ * Representation: readBuffer holds bytes read from the input stream that have
+ * not been decoded yet, in read mode; writeBuffer is scratch space for
+ * encoding a message or a batch of them, reused by every write.
+ *
+ * Rep Invariant: readBuffer and writeBuffer have room for the largest frame
+ * either codec produces.
+ *
+ * Thread-safety argument: read is confined to one thread, which alone uses
+ * readBuffer and the codec's decoding state. write holds writeLock, which
+ * guards writeBuffer, the codec's encoding state and the output stream, so
+ * any number of threads may write. writeLock is a ReentrantLock rather than
+ * a monitor because it is held across a blocking write, during which a
+ * virtual thread would otherwise pin its carrier thread.
+ */
+public class MessageStream {
+
+    private static final int BUFFER_SIZE = BinaryCodec.MAX_FRAME_LENGTH + 4;
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final MessageCodec codec;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final Lock writeLock = new ReentrantLock();
+
+    /**
+     * Creates a MessageStream. The handshake must already have been completed
+     * on the streams.
+     *
+     * @param in
+     *            InputStream of the connection
+     * @param out
+     *            OutputStream of the connection
+     * @param codec
+     *            MessageCodec negotiated for the connection
+     */
+    public MessageStream(InputStream in, OutputStream out, MessageCodec codec) {
+        this.in = in;
+        this.out = out;
+        this.codec = codec;
+        readBuffer.flip();
+    }
+
+    /**
+     * Gets the codec used by this stream.
+     *
+     * @return MessageCodec of the connection
+     */
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Reads the next message, blocking until one has arrived.
+     *
+     * @return Message read, or null if the connection was closed cleanly
+     *         between messages
+     * @throws ProtocolException
+     *             if the peer sent something that is not a valid message
+     * @throws IOException
+     *             if the connection fails, or closes in the middle of a
+     *             message. A SocketTimeoutException leaves the stream intact,
+     *             and read may be called again.
+     */
+    public Message read() throws IOException {
+        while (true) {
+            Message message = codec.decode(readBuffer);
+            if (message != null)
+                return message;
+
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining())
+                throw new ProtocolException("message too long");
+            int count;
+            try {
+                count = in.read(readBuffer.array(), readBuffer.arrayOffset()
+                        + readBuffer.position(), readBuffer.remaining());
+            } catch (IOException ioe) {
+                // leave the undecoded bytes readable, e.g. after a timeout
+                readBuffer.flip();
+                throw ioe;
+            }
+            if (count < 0) {
+                readBuffer.flip();
+                if (readBuffer.hasRemaining())
+                    throw new EOFException("connection closed mid-message");
+                return null;
+            }
+            readBuffer.position(readBuffer.position() + count);
+            readBuffer.flip();
+        }
+    }
+
+    /**
+     * Writes a message and flushes it to the connection.
+     *
+     * @param message
+     *            Message to be sent
+     * @throws IOException
+     *             if the connection fails
+     */
+    public void write(Message message) throws IOException {
+        writeLock.lock();
+        try {
+            writeBuffer.clear();
+            codec.encode(message, writeBuffer);
+            out.write(writeBuffer.array(), writeBuffer.arrayOffset(),
+                    writeBuffer.position());
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a batch of messages and flushes them to the connection once. The
+     * batch is encoded into the write buffer, which is written whenever it
+     * fills up, so a batch of any size costs a single flush.
+     *
+     * @param messages
+     *            List<Message> to be sent, in order
+     * @throws IOException
+     *             if the connection fails
+     */
+    public void write(List<Message> messages) throws IOException {
+        writeLock.lock();
+        try {
+            writeBuffer.clear();
+            for (Message message : messages) {
+                try {
+                    codec.encode(message, writeBuffer);
+                } catch (BufferOverflowException boe) {
+                    // the buffer fits the largest frame once it is empty
+                    out.write(writeBuffer.array(), writeBuffer.arrayOffset(),
+                            writeBuffer.position());
+                    writeBuffer.clear();
+                    codec.encode(message, writeBuffer);
+                }
+            }
+            out.write(writeBuffer.array(), writeBuffer.arrayOffset(),
+                    writeBuffer.position());
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Closes both streams of the connection.
+     *
+     * @throws IOException
+     *             if closing fails
+     */
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package pingball.protocol;
+
+/**
+ * The kinds of messages exchanged between Pingball clients and the server.
+ * Every message carries a number of names (clients and portals) followed by
+ * a fixed number of numeric fields that depends only on its type.
+ *
+ * Text form, client to server:
+ * - NEWBALL newClientName xLoc yLoc xVelocity yVelocity
+ * - NEWBALLTIMED newClientName xLoc yLoc xVelocity yVelocity age
+ * - NEWBALLTHROUGHPORTAL oldClientName oldPortalName newClientName
+ * newPortalName xVelocity yVelocity
+ * - PORTALTRANSFER oldClientName oldPortalName newClientName newPortalName
+ * transferId xVelocity yVelocity
+ *
+ * Text form, server to client:
+ * - NEWBALL xLoc yLoc xVelocity yVelocity
+ * - NEWBALLTIMED xLoc yLoc xVelocity yVelocity age
+ * - NEWBALLTHROUGHPORTAL portalName xVelocity yVelocity
+ * - NEWCLIENT clientName side
+ * - DISCONNECT clientName side
+ * - PORTALBALLACCEPTED portalName
+ * - PORTALBALLREJECTED portalName
+ * - PORTALACK transferId
+ * - PORTALNACK transferId
+ *
+ * Either direction:
+ * - PING timestamp
+ * - PONG timestamp, echoing the timestamp of a PING
+ *
+ * Between the nodes of a server cluster, which also forward the client to
+ * server messages above to the node a board is connected to:
+ * - NODE nodeName, the first message on a link between nodes
+ * - BOARDUP boardName resumed, a board connected to the sending node
+ * - BOARDDOWN boardName, a board's connection to the sending node dropped
+ * - JOIN firstBoardName secondBoardName side, a join made at the sending
+ * node, side being the wall of the first board (1 or 2)
+ * - UNJOIN boardName side, the join at a wall removed at the sending node
+ * - PORTALRESULT oldClientName oldPortalName transferId accepted, the
+ * answer to a forwarded portal ball; transferId is -1 for
+ * NEWBALLTHROUGHPORTAL
+ *
+ * Peers that predate heartbeats ignore PING, so a peer is only expected to
+ * answer once it has sent a PING or PONG of its own.
+ *
+ * PORTALTRANSFER is NEWBALLTHROUGHPORTAL with an id chosen by the sending
+ * client, which the server echoes in PORTALACK or PORTALNACK, so a client can
+ * have many balls in flight through one portal and match each reply to its
+ * ball. Servers still answer NEWBALLTHROUGHPORTAL with PORTALBALLACCEPTED and
+ * PORTALBALLREJECTED for older clients.
+ *
+ * NEWBALLTIMED is NEWBALL stamped with the age of the ball's state in
+ * seconds: how much simulation time has passed since the ball was at xLoc,
+ * yLoc, as estimated by the sender and then the server. The receiving board
+ * advances the ball by that much before inserting it. The server only sends
+ * it to clients that speak heartbeats, which arrived in the same protocol
+ * version; older clients get a plain NEWBALL.
+ */
+public enum MessageType {
+    NEWBALL(1, 4, 0),
+    NEWBALLTHROUGHPORTAL(2, 2, 0),
+    NEWCLIENT(3, 1, 1),
+    DISCONNECT(4, 1, 1),
+    PORTALBALLACCEPTED(5, 0, 0),
+    PORTALBALLREJECTED(6, 0, 0),
+    PING(7, 1, 0),
+    PONG(8, 1, 0),
+    PORTALTRANSFER(9, 3, 1),
+    PORTALACK(10, 1, 1),
+    PORTALNACK(11, 1, 1),
+    NEWBALLTIMED(12, 5, 0),
+    NODE(13, 0, 0),
+    BOARDUP(14, 1, 1),
+    BOARDDOWN(15, 0, 0),
+    JOIN(16, 1, 1),
+    PORTALRESULT(17, 2, 2),
+    UNJOIN(18, 1, 1);
+
+    private static final MessageType[] BY_CODE = new MessageType[128];
+    static {
+        for (MessageType type : values())
+            BY_CODE[type.code] = type;
+    }
+
+    private final byte code;
+    private final int numberCount;
+    private final int integralCount;
+
+    /**
+     * @param code
+     *            int identifying the type in binary frames, 0 < code < 128
+     * @param numberCount
+     *            int number of numeric fields carried by the type
+     * @param integralCount
+     *            int number of leading numeric fields that are whole numbers,
+     *            written without a fractional part in the text protocol
+     */
+    private MessageType(int code, int numberCount, int integralCount) {
+        this.code = (byte) code;
+        this.numberCount = numberCount;
+        this.integralCount = integralCount;
+    }
+
+    /**
+     * Gets the code identifying this type in binary frames.
+     *
+     * @return byte code of the type
+     */
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * Gets the number of numeric fields a message of this type carries.
+     *
+     * @return int number of numeric fields
+     */
+    public int getNumberCount() {
+        return numberCount;
+    }
+
+    /**
+     * Gets whether a numeric field is a whole number, which the text protocol
+     * writes without a fractional part (e.g. "NEWCLIENT Mars 1").
+     *
+     * @param index
+     *            int position of the field, 0 <= index < getNumberCount()
+     * @return boolean true if the field is integral
+     */
+    public boolean isIntegral(int index) {
+        return index < integralCount;
+    }
+
+    /**
+     * Looks up a type by its binary code.
+     *
+     * @param code
+     *            int code read from a binary frame
+     * @return MessageType with that code, or null if there is none
+     */
+    public static MessageType fromCode(int code) {
+        if (code <= 0 || code >= BY_CODE.length)
+            return null;
+        return BY_CODE[code];
+    }
+
+    /**
+     * Looks up a type by its name in the text protocol.
+     *
+     * @param name
+     *            String first token of a text message
+     * @return MessageType with that name, or null if there is none
+     */
+    public static MessageType fromName(String name) {
+        for (MessageType type : values())
+            if (type.name().equals(name))
+                return type;
+        return null;
+    }
+}
@@ -0,0 +1,481 @@
+package pingball.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Non-blocking client connection to a Pingball server. After a blocking
+ * Handshake, the channel is switched to non-blocking mode and served by its
+ * own selector thread, which decodes incoming messages into a lock-free
+ * Mailbox. Messages are queued by encoding them into a send buffer, and
+ * flushed by writing as much of it as the socket accepts right away; the
+ * selector thread writes the rest once the socket is writable again. Queueing
+ * the messages of a whole frame and flushing once sends them in one write
+ * and, with Nagle's algorithm off, usually one TCP segment. Neither send nor
+ * poll ever blocks on the network, so a stalled connection cannot hold up the
+ * thread running a board.
+ *
+ * The selector thread also keeps the connection's heartbeat: it pings the
+ * server every interval, answers the server's pings, and closes the
+ * connection if a server that speaks heartbeats stays silent for longer than
+ * the idle timeout. PING and PONG never reach the mailbox.
+ *
+ * A connection closes when the server closes it, when reading or writing
+ * fails, when the server stops answering heartbeats, or when close is called.
+ * It cannot be reopened.
+ *
+ * Abstraction Function: Represents one connection to the server: the
+ * messages received and not yet polled, and the bytes sent and not yet
+ * accepted by the socket.
+ *
+ * Representation: inbound holds the decoded messages in arrival order;
+ * readBuffer holds received bytes not yet decoded, in write mode; sendBuffer
+ * holds encoded bytes not yet written, in write mode.
+ *
+ * batchSize counts the messages queued since the last flush; the other
+ * counters describe the flushes so far.
+ *
+ * Rep Invariant: writePending is true exactly when the key is interested in
+ * OP_WRITE; it is set whenever a write leaves bytes in sendBuffer.
+ *
+ * Thread-safety argument: readBuffer and the decoding half of the codec are
+ * confined to the selector thread. sendBuffer, the encoding half of the
+ * codec, writes to the channel and the batch counters are guarded by
+ * sendLock, so queue, flush and send may be called from any thread. The
+ * figures of the last flush are volatile so they can be read without it.
+ * inbound is a Mailbox with the selector thread as its only producer; poll
+ * must be called from a single consumer thread. heartbeat is a volatile
+ * reference to a synchronized HeartbeatMonitor. closed and failure are
+ * volatile.
+ */
+public class NioClientConnection implements ClientConnection {
+
+    private static final int READ_BUFFER_SIZE = BinaryCodec.MAX_FRAME_LENGTH + 4;
+    private static final int SEND_BUFFER_SIZE = 1 << 18;
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final MessageCodec codec;
+
+    private final Mailbox<Message> inbound = new Mailbox<Message>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+    private final Object sendLock = new Object();
+    private long droppedMessages = 0;
+    private boolean writePending = false;
+    private int batchSize = 0;
+    private long flushCount = 0;
+    private long flushedMessages = 0;
+    private volatile int lastBatchSize = 0;
+    private volatile long lastFlushNanos = 0;
+
+    private volatile HeartbeatMonitor heartbeat = new HeartbeatMonitor();
+    private volatile boolean closed = false;
+    private volatile IOException failure = null;
+
+    /**
+     * Opens a connection to a server and performs the handshake.
+     *
+     * @param host
+     *            String name of the server host
+     * @param port
+     *            int port the server listens on
+     * @param clientName
+     *            String name of the client's board
+     * @param portalNames
+     *            List<String> names of the portals on the client's board
+     * @param offerBinary
+     *            boolean true to ask the server for the binary protocol
+     * @param resume
+     *            boolean true to ask the server to resume the session of a
+     *            connection that dropped
+     * @return NioClientConnection open and ready to send and receive
+     * @throws IOException
+     *             if the server cannot be reached or the handshake fails
+     */
+    public static NioClientConnection connect(String host, int port,
+            String clientName, List<String> portalNames, boolean offerBinary,
+            boolean resume) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(
+                host, port));
+        try {
+            channel.socket().setTcpNoDelay(true);
+            Handshake handshake = Handshake.connect(
+                    Channels.newInputStream(channel), new BufferedOutputStream(
+                            Channels.newOutputStream(channel)), clientName,
+                    portalNames, offerBinary, resume);
+            return new NioClientConnection(channel, handshake.getCodec());
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Wraps a connected channel whose handshake is complete and starts its
+     * selector thread.
+     *
+     * @param channel
+     *            SocketChannel connected to the server, in blocking mode
+     * @param codec
+     *            MessageCodec agreed on in the handshake
+     * @throws IOException
+     *             if the channel cannot be made non-blocking
+     */
+    private NioClientConnection(SocketChannel channel, MessageCodec codec)
+            throws IOException {
+        this.channel = channel;
+        this.codec = codec;
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        key = channel.register(selector, SelectionKey.OP_READ);
+
+        /**
+         * ==============================================================
+         * ===================== SELECTOR THREAD ========================
+         * ==============================================================
+         */
+        Thread selectorThread = new Thread(new Runnable() {
+            public void run() {
+                runSelector();
+            }
+        }, "pingball-client-io");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Serves the channel until the connection closes.
+     */
+    private void runSelector() {
+        try {
+            while (!closed) {
+                selector.select(heartbeat.millisUntilDue(System.nanoTime()));
+                Iterator<SelectionKey> selected = selector.selectedKeys()
+                        .iterator();
+                while (selected.hasNext()) {
+                    SelectionKey ready = selected.next();
+                    selected.remove();
+                    if (ready.isValid() && ready.isReadable())
+                        readMessages();
+                    if (ready.isValid() && ready.isWritable()) {
+                        synchronized (sendLock) {
+                            writeSendBuffer();
+                        }
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (heartbeat.isPeerDead(now))
+                    throw new SocketTimeoutException(
+                            "server stopped answering heartbeats");
+                if (heartbeat.pingDue(now))
+                    sendNow(heartbeat.ping(now));
+            }
+        } catch (IOException ioe) {
+            if (!closed)
+                failure = ioe;
+        } finally {
+            close();
+            try {
+                selector.close();
+            } catch (IOException ioe) {
+                // Do nothing with exceptions
+            }
+        }
+    }
+
+    /**
+     * Reads whatever the socket has and decodes every complete message in it.
+     *
+     * @throws IOException
+     *             if reading fails, the server closed the connection, or it
+     *             sent an invalid message
+     */
+    private void readMessages() throws IOException {
+        if (channel.read(readBuffer) < 0)
+            throw new EOFException("server closed the connection");
+        readBuffer.flip();
+        try {
+            Message message;
+            while ((message = codec.decode(readBuffer)) != null) {
+                Message reply = heartbeat.received(message, System.nanoTime());
+                if (reply != null)
+                    sendNow(reply);
+                else if (message.getType() != MessageType.PONG)
+                    inbound.add(message);
+            }
+        } finally {
+            readBuffer.compact();
+        }
+        if (!readBuffer.hasRemaining())
+            throw new ProtocolException("message too long");
+    }
+
+    /**
+     * Writes as much of the send buffer as the socket accepts without
+     * blocking, and asks the selector to finish the job if it did not take
+     * everything. Must be called holding sendLock.
+     *
+     * @throws IOException
+     *             if writing fails
+     */
+    private void writeSendBuffer() throws IOException {
+        sendBuffer.flip();
+        try {
+            channel.write(sendBuffer);
+        } finally {
+            sendBuffer.compact();
+        }
+        writePending = sendBuffer.position() > 0;
+        try {
+            if (writePending) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                selector.wakeup();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (CancelledKeyException cke) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Sends a heartbeat message from the selector thread, outside the batch
+     * counters. If the send buffer is full, the message is dropped; a
+     * connection that stalled cannot be kept alive anyway.
+     *
+     * @param message
+     *            Message PING or PONG to send
+     * @throws IOException
+     *             if writing fails
+     */
+    private void sendNow(Message message) throws IOException {
+        synchronized (sendLock) {
+            try {
+                codec.encode(message, sendBuffer);
+            } catch (BufferOverflowException boe) {
+                return;
+            }
+            if (!writePending)
+                writeSendBuffer();
+        }
+    }
+
+    /**
+     * Changes the heartbeat interval and idle timeout of the connection.
+     * Round-trip time samples taken so far are discarded.
+     *
+     * @param intervalMillis
+     *            long time between PINGs, > 0
+     * @param timeoutMillis
+     *            long silence after which the server counts as dead, > 0
+     */
+    public void setHeartbeat(long intervalMillis, long timeoutMillis) {
+        heartbeat = new HeartbeatMonitor(intervalMillis, timeoutMillis);
+        selector.wakeup();
+    }
+
+    /**
+     * Adds a message to the current batch without sending it. If the send
+     * buffer is full because the server has stopped reading, the message is
+     * dropped.
+     *
+     * @param message
+     *            Message to be sent at the next flush
+     * @return boolean true if the message was queued, false if it was dropped
+     *         or the connection is closed
+     */
+    public boolean queue(Message message) {
+        if (closed)
+            return false;
+        synchronized (sendLock) {
+            try {
+                codec.encode(message, sendBuffer);
+            } catch (BufferOverflowException boe) {
+                droppedMessages++;
+                return false;
+            }
+            batchSize++;
+        }
+        return true;
+    }
+
+    /**
+     * Sends every message queued since the last flush, without blocking. Does
+     * nothing if no message was queued.
+     *
+     * @return boolean false if the connection is closed, true otherwise
+     */
+    public boolean flush() {
+        if (closed)
+            return false;
+        synchronized (sendLock) {
+            if (batchSize == 0)
+                return true;
+            long start = System.nanoTime();
+            // while a write is pending the socket is not writable, and the
+            // selector thread will write the batch along with it
+            if (!writePending) {
+                try {
+                    writeSendBuffer();
+                } catch (IOException ioe) {
+                    if (!closed)
+                        failure = ioe;
+                    close();
+                    return false;
+                }
+            }
+            lastFlushNanos = System.nanoTime() - start;
+            lastBatchSize = batchSize;
+            flushCount++;
+            flushedMessages += batchSize;
+            batchSize = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Sends a single message right away, without blocking; equivalent to queue
+     * followed by flush.
+     *
+     * @param message
+     *            Message to be sent
+     * @return boolean true if the message was queued for sending, false if it
+     *         was dropped or the connection is closed
+     */
+    public boolean send(Message message) {
+        synchronized (sendLock) {
+            return queue(message) && flush();
+        }
+    }
+
+    /**
+     * Takes the oldest message received and not yet polled, without blocking
+     * or locking. Must only be called from one thread, usually the one
+     * running the board.
+     *
+     * @return Message received, or null if there is none
+     */
+    public Message poll() {
+        return inbound.poll();
+    }
+
+    /**
+     * Closes the connection. Messages already received can still be polled.
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            // Do nothing with exceptions
+        }
+    }
+
+    /** OBSERVER METHODS **/
+
+    /**
+     * Gets whether the connection is still open.
+     *
+     * @return boolean true until the connection closes for any reason
+     */
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Gets the error that closed the connection, if any.
+     *
+     * @return IOException that closed the connection, or null if it is open
+     *         or was closed with close
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Gets the number of messages dropped because the send buffer was full.
+     *
+     * @return long number of dropped messages
+     */
+    public long getDroppedMessages() {
+        synchronized (sendLock) {
+            return droppedMessages;
+        }
+    }
+
+    /**
+     * Gets the number of messages in the most recent flush.
+     *
+     * @return int size of the last batch, or 0 before the first flush
+     */
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    /**
+     * Gets the time the most recent flush took to hand its batch to the
+     * socket.
+     *
+     * @return long duration of the last flush in nanoseconds
+     */
+    public long getLastFlushTime() {
+        return lastFlushNanos;
+    }
+
+    /**
+     * Gets the average number of messages per flush.
+     *
+     * @return double mean batch size, or 0 before the first flush
+     */
+    public double getAverageBatchSize() {
+        synchronized (sendLock) {
+            return flushCount == 0 ? 0 : (double) flushedMessages / flushCount;
+        }
+    }
+
+    /**
+     * Gets the most recent round-trip time to the server.
+     *
+     * @return long nanoseconds, or -1 if the server has not answered a PING
+     */
+    public long getRoundTripTime() {
+        return heartbeat.getLastRoundTripTime();
+    }
+
+    /**
+     * Gets the smoothed round-trip time to the server.
+     *
+     * @return long nanoseconds, or -1 if the server has not answered a PING
+     */
+    public long getSmoothedRoundTripTime() {
+        return heartbeat.getSmoothedRoundTripTime();
+    }
+
+    /**
+     * Gets whether the server has shown that it speaks heartbeats, and so the
+     * rest of the protocol version that introduced them.
+     *
+     * @return boolean true if the server has sent a PING or PONG
+     */
+    public boolean isServerSpeakingHeartbeats() {
+        return heartbeat.isPeerSpeakingHeartbeats();
+    }
+}
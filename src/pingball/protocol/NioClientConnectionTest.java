@@ -0,0 +1,205 @@
+package pingball.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static pingball.protocol.InMemoryTransportTest.TIMEOUT_MILLIS;
+import static pingball.protocol.InMemoryTransportTest.await;
+
+import java.io.BufferedOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class NioClientConnectionTest {
+    /**
+     * Testing Strategy
+     *
+     * -messages in both directions, text and binary
+     * -server closing the connection is detected, with a failure
+     * -close by the client is not a failure, and send fails afterwards
+     * -queued messages are only sent on flush, and the batch is measured
+     * -heartbeats are sent and answered without reaching the mailbox, and a
+     * server that falls silent after speaking heartbeats is timed out
+     */
+
+    private static void exchange(boolean binary) throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            NioClientConnection[] client = new NioClientConnection[1];
+            Thread connector = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        client[0] = NioClientConnection.connect("localhost",
+                                server.getLocalPort(), "Mars",
+                                Arrays.asList("Alpha"), binary, false);
+                    } catch (Exception e) {
+                    }
+                }
+            });
+            connector.start();
+            try (Socket socket = server.accept()) {
+                BufferedOutputStream out = new BufferedOutputStream(
+                        socket.getOutputStream());
+                Handshake handshake = Handshake.accept(socket.getInputStream(),
+                        out);
+                connector.join();
+                assertNotNull(client[0]);
+                assertEquals("Mars", handshake.getClientName());
+                MessageStream stream = new MessageStream(
+                        socket.getInputStream(), out, handshake.getCodec());
+
+                Message toClient = Message.newBall(1.5, 2.0, -3.25, 4.0);
+                stream.write(toClient);
+                assertEquals(toClient, await(client[0]));
+
+                Message toServer = Message.newBallThroughPortal("Mars",
+                        "Alpha", "Earth", "Gamma", -5.0, 6.0);
+                assertTrue(client[0].send(toServer));
+                assertEquals(toServer, stream.read());
+            }
+
+            // the server side is closed now
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (client[0].isOpen()
+                    && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+            assertFalse(client[0].isOpen());
+            assertNotNull(client[0].getFailure());
+        }
+    }
+
+    @Test
+    public void testTextExchange() throws Exception {
+        exchange(false);
+    }
+
+    @Test
+    public void testBinaryExchange() throws Exception {
+        exchange(true);
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            NioClientConnection[] client = new NioClientConnection[1];
+            Thread connector = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        client[0] = NioClientConnection.connect("localhost",
+                                server.getLocalPort(), "Mars",
+                                Arrays.<String> asList(), true, false);
+                    } catch (Exception e) {
+                    }
+                }
+            });
+            connector.start();
+            try (Socket socket = server.accept()) {
+                BufferedOutputStream out = new BufferedOutputStream(
+                        socket.getOutputStream());
+                Handshake handshake = Handshake.accept(socket.getInputStream(),
+                        out);
+                connector.join();
+                MessageStream stream = new MessageStream(
+                        socket.getInputStream(), out, handshake.getCodec());
+
+                for (int i = 0; i < 3; i++)
+                    assertTrue(client[0].queue(Message.newBall("Earth", i, 0,
+                            0, 0)));
+                Thread.sleep(50);
+                assertEquals(0, socket.getInputStream().available());
+                assertEquals(0, client[0].getLastBatchSize());
+
+                assertTrue(client[0].flush());
+                assertEquals(3, client[0].getLastBatchSize());
+                assertTrue(client[0].getLastFlushTime() >= 0);
+                for (int i = 0; i < 3; i++)
+                    assertEquals(Message.newBall("Earth", i, 0, 0, 0),
+                            stream.read());
+
+                // an empty frame is not a batch
+                assertTrue(client[0].flush());
+                assertEquals(3, client[0].getLastBatchSize());
+                assertEquals(3.0, client[0].getAverageBatchSize(), 0);
+            }
+            client[0].close();
+        }
+    }
+
+    @Test
+    public void testCloseByClient() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread acceptor = new Thread(new Runnable() {
+                public void run() {
+                    try (Socket socket = server.accept()) {
+                        Handshake.accept(socket.getInputStream(),
+                                socket.getOutputStream());
+                        socket.getInputStream().read();
+                    } catch (Exception e) {
+                    }
+                }
+            });
+            acceptor.start();
+            NioClientConnection client = NioClientConnection.connect(
+                    "localhost", server.getLocalPort(), "Mars",
+                    Arrays.<String> asList(), false, false);
+            client.close();
+            acceptor.join();
+            assertFalse(client.isOpen());
+            assertEquals(null, client.getFailure());
+            assertFalse(client.send(Message.portalBallAccepted("Alpha")));
+        }
+    }
+
+    @Test
+    public void testHeartbeat() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            NioClientConnection[] client = new NioClientConnection[1];
+            Thread connector = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        client[0] = NioClientConnection.connect("localhost",
+                                server.getLocalPort(), "Mars",
+                                Arrays.<String> asList(), true, false);
+                        client[0].setHeartbeat(20, 200);
+                    } catch (Exception e) {
+                    }
+                }
+            });
+            connector.start();
+            try (Socket socket = server.accept()) {
+                BufferedOutputStream out = new BufferedOutputStream(
+                        socket.getOutputStream());
+                Handshake handshake = Handshake.accept(socket.getInputStream(),
+                        out);
+                connector.join();
+                MessageStream stream = new MessageStream(
+                        socket.getInputStream(), out, handshake.getCodec());
+
+                Message ping = stream.read();
+                assertEquals(MessageType.PING, ping.getType());
+                stream.write(Message.pong(ping.getNumber(0)));
+                stream.write(Message.ping(7));
+                Message pong;
+                do {
+                    pong = stream.read();
+                } while (pong.getType() == MessageType.PING);
+                assertEquals(Message.pong(7), pong);
+                assertTrue(client[0].getRoundTripTime() >= 0);
+                assertEquals(null, client[0].poll());
+
+                // stop answering
+                long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+                while (client[0].isOpen()
+                        && System.currentTimeMillis() < deadline)
+                    Thread.sleep(1);
+                assertFalse(client[0].isOpen());
+                assertTrue(client[0].getFailure() instanceof
+                        SocketTimeoutException);
+            }
+        }
+    }
+}
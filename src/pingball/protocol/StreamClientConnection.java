@@ -0,0 +1,279 @@
+package pingball.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Client connection over any Link, using blocking streams and a reader
+ * thread instead of a selector. The reader thread decodes incoming messages
+ * into a lock-free Mailbox and keeps the heartbeat; its reads time out once
+ * per heartbeat interval so it can ping the server and notice when it has
+ * gone silent. Sending encodes messages into a send buffer, and flush hands
+ * the whole batch to the link in one write, which blocks only as long as the
+ * link's buffer is full.
+ *
+ * Abstraction Function: Represents an open or closed connection to the
+ * server: the messages received and not yet polled, and the messages queued
+ * and not yet sent.
+ *
+ * Representation: inbound holds the decoded messages in arrival order;
+ * sendBuffer holds encoded messages not yet written, in write mode. batchSize
+ * counts the messages queued since the last flush; the other counters
+ * describe the flushes so far.
+ *
+ * Rep Invariant: sendBuffer holds only messages queued since the last write
+ * to the link.
+ *
+ * Thread-safety argument: stream and the decoding half of the codec are
+ * confined to the reader thread. sendBuffer, the encoding half of the codec,
+ * writes to the link and the batch counters are guarded by sendLock. The
+ * figures of the last flush are volatile. inbound is a Mailbox with the
+ * reader thread as its only producer. heartbeat is a volatile reference to a
+ * synchronized HeartbeatMonitor. closed and failure are volatile.
+ */
+public class StreamClientConnection implements ClientConnection {
+
+    private static final int SEND_BUFFER_SIZE = 1 << 18;
+
+    private final Link link;
+    private final MessageStream stream;
+    private final OutputStream out;
+    private final MessageCodec codec;
+
+    private final Mailbox<Message> inbound = new Mailbox<Message>();
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+    private final Object sendLock = new Object();
+    private long droppedMessages = 0;
+    private int batchSize = 0;
+    private long flushCount = 0;
+    private long flushedMessages = 0;
+    private volatile int lastBatchSize = 0;
+    private volatile long lastFlushNanos = 0;
+
+    private volatile HeartbeatMonitor heartbeat = new HeartbeatMonitor();
+    private volatile boolean closed = false;
+    private volatile IOException failure = null;
+
+    /**
+     * Wraps a link whose handshake is complete and starts its reader thread.
+     *
+     * @param link
+     *            Link connected to the server
+     * @param codec
+     *            MessageCodec agreed on in the handshake
+     */
+    public StreamClientConnection(Link link, MessageCodec codec) {
+        this.link = link;
+        this.codec = codec;
+        this.out = link.getOutputStream();
+        this.stream = new MessageStream(link.getInputStream(), out, codec);
+
+        /**
+         * ==============================================================
+         * ====================== READER THREAD =========================
+         * ==============================================================
+         */
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                runReader();
+            }
+        }, "pingball-client-io");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Reads from the link until the connection closes.
+     */
+    private void runReader() {
+        try {
+            while (!closed) {
+                link.setReadTimeout((int) Math.min(Integer.MAX_VALUE,
+                        heartbeat.millisUntilDue(System.nanoTime())));
+                Message message = null;
+                try {
+                    message = stream.read();
+                    if (message == null)
+                        throw new EOFException("server closed the connection");
+                } catch (SocketTimeoutException ste) {
+                    // time to check on the heartbeat
+                }
+
+                long now = System.nanoTime();
+                if (message != null) {
+                    Message reply = heartbeat.received(message, now);
+                    if (reply != null)
+                        sendNow(reply);
+                    else if (message.getType() != MessageType.PONG)
+                        inbound.add(message);
+                }
+                if (heartbeat.isPeerDead(now))
+                    throw new SocketTimeoutException(
+                            "server stopped answering heartbeats");
+                if (heartbeat.pingDue(now))
+                    sendNow(heartbeat.ping(now));
+            }
+        } catch (IOException ioe) {
+            if (!closed)
+                failure = ioe;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Writes the send buffer to the link. Must be called holding sendLock.
+     *
+     * @throws IOException
+     *             if writing fails
+     */
+    private void writeSendBuffer() throws IOException {
+        try {
+            out.write(sendBuffer.array(), sendBuffer.arrayOffset(),
+                    sendBuffer.position());
+            out.flush();
+        } finally {
+            sendBuffer.clear();
+        }
+    }
+
+    /**
+     * Sends a heartbeat message from the reader thread, outside the batch
+     * counters, along with any messages already queued.
+     *
+     * @param message
+     *            Message PING or PONG to send
+     * @throws IOException
+     *             if writing fails
+     */
+    private void sendNow(Message message) throws IOException {
+        synchronized (sendLock) {
+            try {
+                codec.encode(message, sendBuffer);
+            } catch (BufferOverflowException boe) {
+                return;
+            }
+            writeSendBuffer();
+        }
+    }
+
+    @Override
+    public void setHeartbeat(long intervalMillis, long timeoutMillis) {
+        // the reader picks the new interval up at its next timeout
+        heartbeat = new HeartbeatMonitor(intervalMillis, timeoutMillis);
+    }
+
+    @Override
+    public boolean queue(Message message) {
+        if (closed)
+            return false;
+        synchronized (sendLock) {
+            try {
+                codec.encode(message, sendBuffer);
+            } catch (BufferOverflowException boe) {
+                droppedMessages++;
+                return false;
+            }
+            batchSize++;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean flush() {
+        if (closed)
+            return false;
+        synchronized (sendLock) {
+            if (batchSize == 0)
+                return true;
+            long start = System.nanoTime();
+            try {
+                writeSendBuffer();
+            } catch (IOException ioe) {
+                if (!closed)
+                    failure = ioe;
+                close();
+                return false;
+            }
+            lastFlushNanos = System.nanoTime() - start;
+            lastBatchSize = batchSize;
+            flushCount++;
+            flushedMessages += batchSize;
+            batchSize = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean send(Message message) {
+        synchronized (sendLock) {
+            return queue(message) && flush();
+        }
+    }
+
+    @Override
+    public Message poll() {
+        return inbound.poll();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        link.close();
+    }
+
+    /** OBSERVER METHODS **/
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public IOException getFailure() {
+        return failure;
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        synchronized (sendLock) {
+            return droppedMessages;
+        }
+    }
+
+    @Override
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    @Override
+    public long getLastFlushTime() {
+        return lastFlushNanos;
+    }
+
+    @Override
+    public double getAverageBatchSize() {
+        synchronized (sendLock) {
+            return flushCount == 0 ? 0 : (double) flushedMessages / flushCount;
+        }
+    }
+
+    @Override
+    public long getRoundTripTime() {
+        return heartbeat.getLastRoundTripTime();
+    }
+
+    @Override
+    public long getSmoothedRoundTripTime() {
+        return heartbeat.getSmoothedRoundTripTime();
+    }
+
+    @Override
+    public boolean isServerSpeakingHeartbeats() {
+        return heartbeat.isPeerSpeakingHeartbeats();
+    }
+}
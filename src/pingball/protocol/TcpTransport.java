@@ -0,0 +1,145 @@
+package pingball.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * Transport over TCP sockets. The server side accepts socket channels in
+ * blocking mode, with keepalive on so the operating system also notices
+ * vanished peers; a server may use their streams or hand the channels to a
+ * selector. The client side is a NioClientConnection.
+ *
+ * Thread-safety argument: The transport is stateless. Each TcpLink is a
+ * socket channel and its streams, which are safe for one reader and one
+ * writer at a time.
+ */
+public class TcpTransport implements Transport {
+
+    /** Connections the OS queues for accept, for boards joining in bursts. */
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    /**
+     * Link over a connected socket.
+     */
+    private static final class TcpLink implements Link {
+        private final SocketChannel channel;
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        private TcpLink(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.socket = channel.socket();
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void setReadTimeout(int timeoutMillis) throws IOException {
+            socket.setSoTimeout(timeoutMillis);
+        }
+
+        @Override
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                // Do nothing with exceptions
+            }
+        }
+    }
+
+    /**
+     * Acceptor over a server socket channel.
+     */
+    private static final class TcpAcceptor implements Acceptor {
+        private final ServerSocketChannel serverChannel;
+
+        private TcpAcceptor(ServerSocketChannel serverChannel) {
+            this.serverChannel = serverChannel;
+        }
+
+        @Override
+        public Link accept() throws IOException {
+            SocketChannel channel = serverChannel.accept();
+            try {
+                channel.socket().setKeepAlive(true);
+                return new TcpLink(channel);
+            } catch (IOException ioe) {
+                channel.close();
+                throw ioe;
+            }
+        }
+
+        @Override
+        public int getPort() {
+            return serverChannel.socket().getLocalPort();
+        }
+
+        @Override
+        public void close() {
+            try {
+                serverChannel.close();
+            } catch (IOException ioe) {
+                // Do nothing with exceptions
+            }
+        }
+    }
+
+    @Override
+    public Acceptor listen(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            // as a ServerSocket does, so a restarted server can rebind at once
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        } catch (IOException ioe) {
+            serverChannel.close();
+            throw ioe;
+        }
+        return new TcpAcceptor(serverChannel);
+    }
+
+    @Override
+    public Link open(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host,
+                port));
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            return new TcpLink(channel);
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+    }
+
+    @Override
+    public ClientConnection connect(String host, int port, String clientName,
+            List<String> portalNames, boolean offerBinary, boolean resume)
+            throws IOException {
+        return NioClientConnection.connect(host, port, clientName,
+                portalNames, offerBinary, resume);
+    }
+}
@@ -0,0 +1,96 @@
+package pingball.protocol;
+
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * MessageCodec for the original newline-delimited text protocol, e.g.
+ * "NEWBALL Mars 0.0 3.3 -5.0 6.0". Lines whose first token is not a known
+ * message type are skipped, as the original clients and server did.
+ *
+ * Incoming lines are read by a TextTokenizer without splitting them into
+ * Strings, but each line is still copied into a new Message, since decode
+ * returns Messages. Outgoing lines are built in a reused StringBuilder and
+ * written to the buffer char by char.
+ *
+ * Abstraction Function: Represents the text protocol on one connection.
+ *
+ * Representation: tokenizer holds the fields of the last line read; line
+ * holds the last line written.
+ *
+ * Rep Invariant: true.
+ *
+ * Thread-safety argument: encode only uses line and decode only uses
+ * tokenizer, so one thread may encode while another decodes; each must be
+ * confined to one thread at a time.
+ */
+public class TextCodec implements MessageCodec {
+
+    private final TextTokenizer tokenizer = new TextTokenizer();
+    private final StringBuilder line = new StringBuilder();
+
+    @Override
+    public void encode(Message message, ByteBuffer out) {
+        line.setLength(0);
+        message.appendTo(line).append('\n');
+        if (utf8Length(line) > out.remaining())
+            throw new BufferOverflowException();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xc0 | c >> 6));
+                out.put((byte) (0x80 | c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < line.length()
+                    && Character.isLowSurrogate(line.charAt(i + 1))) {
+                int code = Character.toCodePoint(c, line.charAt(++i));
+                out.put((byte) (0xf0 | code >> 18));
+                out.put((byte) (0x80 | code >> 12 & 0x3f));
+                out.put((byte) (0x80 | code >> 6 & 0x3f));
+                out.put((byte) (0x80 | code & 0x3f));
+            } else {
+                out.put((byte) (0xe0 | c >> 12));
+                out.put((byte) (0x80 | c >> 6 & 0x3f));
+                out.put((byte) (0x80 | c & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes encode writes for a line.
+     *
+     * @param text
+     *            CharSequence line to be encoded
+     * @return int length of text in UTF-8
+     */
+    private static int utf8Length(CharSequence text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public Message decode(ByteBuffer in) throws ProtocolException {
+        while (tokenizer.next(in)) {
+            Message message = tokenizer.toMessage();
+            if (message != null)
+                return message;
+        }
+        return null;
+    }
+}
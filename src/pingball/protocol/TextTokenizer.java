@@ -0,0 +1,345 @@
+package pingball.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tokenizer for lines of the text protocol. Each call to next reads one line
+ * straight out of a ByteBuffer into reusable typed fields: the MessageType,
+ * the names and the numbers. It makes three passes over the line's bytes: one
+ * to find the newline, one to count the tokens, since the number fields are
+ * the last ones, and one to convert them. Numbers are converted from their
+ * digits without a String, and names are looked up in a 256-entry cache of
+ * names seen before; a name missing from the cache allocates its String.
+ *
+ * toMessage copies the fields into a new Message, which allocates the Message
+ * and its arrays. TextCodec does this for every line on purpose: Board and the
+ * server consume Messages, which they queue and hand to other threads, so the
+ * fields have to be copied out of this reused tokenizer somewhere.
+ *
+ * Numbers are parsed exactly whenever the decimal has at most 18 significant
+ * digits and a power of ten of at most 22, in which case one correctly
+ * rounded multiplication or division gives the same result as
+ * Double.parseDouble. This covers everything Double.toString writes for
+ * ordinary ball positions and velocities; anything else falls back to
+ * Double.parseDouble.
+ *
+ * Abstraction Function: Represents the most recent line tokenized: its type,
+ * names and numbers, or an unknown line if type is null.
+ *
+ * Representation: type, nameCount and the first nameCount elements of names
+ * and type.getNumberCount() elements of numbers describe the last line.
+ * nameCache is an open hash table of names seen before, indexed by the hash
+ * of their UTF-8 bytes.
+ *
+ * Rep Invariant: nameCount <= MAX_NAMES; every element of nameCache is null
+ * or sits in the slot for the hash of its bytes.
+ *
+ * Thread-safety argument: TextTokenizer is mutable and not thread-safe; it
+ * must be confined to the thread that reads its connection.
+ */
+public class TextTokenizer {
+
+    /** Most names a known message may carry. */
+    public static final int MAX_NAMES = 4;
+
+    private static final int NAME_CACHE_SIZE = 256;
+    private static final int MAX_EXACT_DIGITS = 18;
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final int MAX_NUMBERS;
+    static {
+        int maxNumbers = 0;
+        for (MessageType type : TYPES)
+            maxNumbers = Math.max(maxNumbers, type.getNumberCount());
+        MAX_NUMBERS = maxNumbers;
+    }
+    private static final byte[][] TYPE_NAMES = new byte[TYPES.length][];
+    static {
+        for (int i = 0; i < TYPES.length; i++)
+            TYPE_NAMES[i] = TYPES[i].name().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private MessageType type;
+    private int nameCount;
+    private final String[] names = new String[MAX_NAMES];
+    private final double[] numbers = new double[MAX_NUMBERS];
+    private final String[] nameCache = new String[NAME_CACHE_SIZE];
+
+    /**
+     * Tokenizes the next line of a buffer, if the buffer holds a whole line.
+     *
+     * @param in
+     *            ByteBuffer in read mode, positioned at the start of a line
+     * @return boolean true if a line was tokenized and the position advanced
+     *         past its terminator; false if the buffer holds no complete line,
+     *         in which case the position is unchanged
+     * @throws ProtocolException
+     *             if the line starts with a known message type but its fields
+     *             are malformed; the position is advanced past the line
+     */
+    public boolean next(ByteBuffer in) throws ProtocolException {
+        int start = in.position();
+        int limit = in.limit();
+        int newline = start;
+        while (newline < limit && in.get(newline) != '\n')
+            newline++;
+        if (newline == limit)
+            return false;
+        in.position(newline + 1);
+
+        type = null;
+        nameCount = 0;
+        int numberCount = 0;
+        // the number fields are the last getNumberCount() tokens, so tokens
+        // are taken as names until the remaining ones are all numbers
+        int fieldCount = -1;
+        int tokenCount = countTokens(in, start, newline);
+        for (int i = start; i < newline;) {
+            while (i < newline && isSeparator(in.get(i)))
+                i++;
+            if (i == newline)
+                break;
+            int end = i;
+            while (end < newline && !isSeparator(in.get(end)))
+                end++;
+
+            if (fieldCount < 0) {
+                type = matchType(in, i, end);
+                if (type == null)
+                    return true; // not a message, skip the whole line
+                fieldCount = tokenCount - 1;
+                if (fieldCount < type.getNumberCount())
+                    throw new ProtocolException("too few fields for " + type);
+                if (fieldCount - type.getNumberCount() > MAX_NAMES)
+                    throw new ProtocolException("too many fields for " + type);
+            } else if (nameCount < fieldCount - type.getNumberCount()) {
+                names[nameCount++] = intern(in, i, end);
+            } else {
+                numbers[numberCount++] = parseNumber(in, i, end);
+            }
+            i = end;
+        }
+        return true;
+    }
+
+    /**
+     * Builds a Message from the fields of the last line tokenized. Allocates
+     * the Message and copies of the names and numbers arrays, since the
+     * tokenizer's own arrays are overwritten by the next line.
+     *
+     * @return Message with the type, names and numbers of the last line, or
+     *         null if it did not start with a known message type
+     * @throws ProtocolException
+     *             if a name is not valid in a Message
+     */
+    public Message toMessage() throws ProtocolException {
+        if (type == null)
+            return null;
+        String[] messageNames = new String[nameCount];
+        System.arraycopy(names, 0, messageNames, 0, nameCount);
+        double[] messageNumbers = new double[type.getNumberCount()];
+        System.arraycopy(numbers, 0, messageNumbers, 0, messageNumbers.length);
+        try {
+            return Message.wrap(type, messageNames, messageNumbers);
+        } catch (IllegalArgumentException iae) {
+            throw new ProtocolException(iae.getMessage());
+        }
+    }
+
+    /** OBSERVER METHODS **/
+
+    /**
+     * Gets the type of the last line tokenized.
+     *
+     * @return MessageType of the line, or null if it did not start with a
+     *         known message type
+     */
+    public MessageType getType() {
+        return type;
+    }
+
+    /**
+     * Gets the number of names in the last line tokenized.
+     *
+     * @return int number of names
+     */
+    public int getNameCount() {
+        return nameCount;
+    }
+
+    /**
+     * Gets one of the names in the last line tokenized.
+     *
+     * @param index
+     *            int position of the name, 0 <= index < getNameCount()
+     * @return String name at that position
+     */
+    public String getName(int index) {
+        if (index >= nameCount)
+            throw new IndexOutOfBoundsException("no name " + index);
+        return names[index];
+    }
+
+    /**
+     * Gets one of the numeric fields of the last line tokenized.
+     *
+     * @param index
+     *            int position of the field, 0 <= index <
+     *            getType().getNumberCount()
+     * @return double value of the field
+     */
+    public double getNumber(int index) {
+        if (index >= type.getNumberCount())
+            throw new IndexOutOfBoundsException("no number " + index);
+        return numbers[index];
+    }
+
+    /** HELPER METHODS **/
+
+    private static boolean isSeparator(byte b) {
+        // same characters String.trim() removes, including a trailing '\r'
+        return b >= 0 && b <= ' ';
+    }
+
+    private static int countTokens(ByteBuffer in, int start, int end) {
+        int count = 0;
+        boolean inToken = false;
+        for (int i = start; i < end; i++) {
+            boolean separator = isSeparator(in.get(i));
+            if (!separator && !inToken)
+                count++;
+            inToken = !separator;
+        }
+        return count;
+    }
+
+    private static MessageType matchType(ByteBuffer in, int start, int end) {
+        for (int t = 0; t < TYPES.length; t++) {
+            byte[] typeName = TYPE_NAMES[t];
+            if (typeName.length != end - start)
+                continue;
+            int i = 0;
+            while (i < typeName.length && typeName[i] == in.get(start + i))
+                i++;
+            if (i == typeName.length)
+                return TYPES[t];
+        }
+        return null;
+    }
+
+    /**
+     * Gets the String for a name, reusing the one created the last time the
+     * same name was seen if it is still in the cache.
+     */
+    private String intern(ByteBuffer in, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + in.get(i);
+        int slot = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+
+        String cached = nameCache[slot];
+        if (cached != null && cached.length() == end - start) {
+            // a cached name is only equal if it is all ASCII, so comparing
+            // chars with bytes is enough
+            int i = 0;
+            while (i < cached.length() && cached.charAt(i) == in.get(start + i))
+                i++;
+            if (i == cached.length())
+                return cached;
+        }
+
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = in.get(start + i);
+        String name = new String(bytes, StandardCharsets.UTF_8);
+        nameCache[slot] = name;
+        return name;
+    }
+
+    /**
+     * Parses a decimal number such as "-5.0", "0.3333333333333333" or
+     * "1.0E-9", falling back to Double.parseDouble for anything the exact
+     * fast path cannot handle.
+     */
+    private static double parseNumber(ByteBuffer in, int start, int end)
+            throws ProtocolException {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (in.get(i) == '-' || in.get(i) == '+'))
+            negative = in.get(i++) == '-';
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean sawDigit = false;
+        boolean exact = true;
+        for (; i < end && isDigit(in.get(i)); i++) {
+            sawDigit = true;
+            if (digits < MAX_EXACT_DIGITS) {
+                mantissa = 10 * mantissa + (in.get(i) - '0');
+                if (mantissa != 0)
+                    digits++;
+            } else {
+                exact = false;
+            }
+        }
+        if (i < end && in.get(i) == '.') {
+            for (i++; i < end && isDigit(in.get(i)); i++) {
+                sawDigit = true;
+                if (digits < MAX_EXACT_DIGITS) {
+                    mantissa = 10 * mantissa + (in.get(i) - '0');
+                    exponent--;
+                    if (mantissa != 0)
+                        digits++;
+                } else {
+                    exact = false;
+                }
+            }
+        }
+        if (sawDigit && i < end && (in.get(i) == 'E' || in.get(i) == 'e')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (in.get(i) == '-' || in.get(i) == '+'))
+                negativeExponent = in.get(i++) == '-';
+            int written = 0;
+            boolean sawExponentDigit = false;
+            for (; i < end && isDigit(in.get(i)); i++) {
+                sawExponentDigit = true;
+                if (written < 1000)
+                    written = 10 * written + (in.get(i) - '0');
+            }
+            if (!sawExponentDigit)
+                sawDigit = false;
+            exponent += negativeExponent ? -written : written;
+        }
+
+        if (sawDigit && i == end && exact && mantissa <= MAX_EXACT_MANTISSA
+                && Math.abs(exponent) < POWERS_OF_TEN.length) {
+            double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent]
+                    : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+
+        byte[] bytes = new byte[end - start];
+        for (int j = 0; j < bytes.length; j++)
+            bytes[j] = in.get(start + j);
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException nfe) {
+            throw new ProtocolException("unable to parse number " + text);
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
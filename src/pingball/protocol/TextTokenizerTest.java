@@ -0,0 +1,120 @@
+package pingball.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TextTokenizerTest {
+    /**
+     * Testing Strategy
+     *
+     * next:
+     * -each field typed correctly, surrounding spaces and '\r' ignored
+     * -incomplete line leaves the position unchanged
+     * -unknown line is skipped with a null type
+     * -too few fields, malformed number
+     *
+     * numbers:
+     * -whatever Double.toString writes parses to the same bits, on and off
+     * the fast path (long fractions, exponents, NaN, infinities, -0.0)
+     *
+     * names:
+     * -a name seen before is the same String instance
+     */
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static double parse(double value) throws Exception {
+        TextTokenizer tokenizer = new TextTokenizer();
+        assertTrue(tokenizer.next(bytes("NEWBALL 0 0 " + value + " 0\n")));
+        return tokenizer.getNumber(2);
+    }
+
+    @Test
+    public void testFields() throws Exception {
+        TextTokenizer tokenizer = new TextTokenizer();
+        ByteBuffer buffer = bytes("  NEWBALLTHROUGHPORTAL Earth Alpha Mars "
+                + "Gamma -5.0 6.25 \r\n");
+        assertTrue(tokenizer.next(buffer));
+        assertEquals(0, buffer.remaining());
+        assertEquals(MessageType.NEWBALLTHROUGHPORTAL, tokenizer.getType());
+        assertEquals(4, tokenizer.getNameCount());
+        assertEquals("Earth", tokenizer.getName(0));
+        assertEquals("Gamma", tokenizer.getName(3));
+        assertEquals(-5.0, tokenizer.getNumber(0), 0);
+        assertEquals(6.25, tokenizer.getNumber(1), 0);
+        assertEquals(Message.newBallThroughPortal("Earth", "Alpha", "Mars",
+                "Gamma", -5.0, 6.25), tokenizer.toMessage());
+    }
+
+    @Test
+    public void testIncompleteLine() throws Exception {
+        TextTokenizer tokenizer = new TextTokenizer();
+        ByteBuffer buffer = bytes("NEWCLIENT Mars 1");
+        assertFalse(tokenizer.next(buffer));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void testUnknownLine() throws Exception {
+        TextTokenizer tokenizer = new TextTokenizer();
+        ByteBuffer buffer = bytes("HELLO a b c d e f g h i\nDISCONNECT Mars 0\n");
+        assertTrue(tokenizer.next(buffer));
+        assertNull(tokenizer.getType());
+        assertNull(tokenizer.toMessage());
+        assertTrue(tokenizer.next(buffer));
+        assertEquals(Message.disconnect("Mars", 0), tokenizer.toMessage());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testTooFewFields() throws Exception {
+        new TextTokenizer().next(bytes("NEWBALL 1.0 2.0\n"));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testMalformedNumber() throws Exception {
+        new TextTokenizer().next(bytes("NEWBALL 1.0 2.0 3..0 4\n"));
+    }
+
+    @Test
+    public void testNumbersMatchParseDouble() throws Exception {
+        double[] special = { 0.0, -0.0, 3.3, -5.0, 19.75, 1.0 / 3, 1e-9,
+                1.2345678901234567e-300, 4.9e-324, Double.MAX_VALUE, 1e23,
+                Double.NaN, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY };
+        for (double value : special)
+            assertEquals(Double.doubleToRawLongBits(value),
+                    Double.doubleToRawLongBits(parse(value)));
+
+        Random random = new Random(6031);
+        for (int i = 0; i < 2000; i++) {
+            double value = (random.nextDouble() - 0.5) * 40;
+            if (i % 2 == 0)
+                value = Math.round(value * 1000) / 1000.0;
+            assertEquals(Double.doubleToRawLongBits(value),
+                    Double.doubleToRawLongBits(parse(value)));
+        }
+    }
+
+    @Test
+    public void testNamesReused() throws Exception {
+        TextTokenizer tokenizer = new TextTokenizer();
+        ByteBuffer buffer = bytes("PORTALBALLACCEPTED Alpha\n"
+                + "PORTALBALLREJECTED Alpha\n");
+        tokenizer.next(buffer);
+        String first = tokenizer.getName(0);
+        tokenizer.next(buffer);
+        assertSame(first, tokenizer.getName(0));
+    }
+}
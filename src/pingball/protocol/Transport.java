@@ -0,0 +1,63 @@
+package pingball.protocol;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The means by which Pingball clients reach the server. TcpTransport uses
+ * real sockets; InMemoryTransport connects a server and boards in the same
+ * JVM through queues of bytes, without touching the network stack, so many
+ * boards can be run and measured in one process. Messages are encoded the
+ * same way on either.
+ */
+public interface Transport {
+
+    /**
+     * Starts listening for clients.
+     *
+     * @param port
+     *            int port to listen on, 0 to let the transport pick one
+     * @return Acceptor listening on the port
+     * @throws IOException
+     *             if the port cannot be listened on
+     */
+    Acceptor listen(int port) throws IOException;
+
+    /**
+     * Opens a bare link to a listening acceptor, with no handshake, for peers
+     * that are not clients, e.g. the nodes of a server cluster.
+     *
+     * @param host
+     *            String name of the host
+     * @param port
+     *            int port the acceptor listens on
+     * @return Link open to the acceptor
+     * @throws IOException
+     *             if nothing listens there
+     */
+    Link open(String host, int port) throws IOException;
+
+    /**
+     * Connects a client to a listening server and performs the handshake.
+     *
+     * @param host
+     *            String name of the server host
+     * @param port
+     *            int port the server listens on
+     * @param clientName
+     *            String name of the client's board
+     * @param portalNames
+     *            List<String> names of the portals on the client's board
+     * @param offerBinary
+     *            boolean true to ask the server for the binary protocol
+     * @param resume
+     *            boolean true to ask the server to resume the session of a
+     *            connection that dropped
+     * @return ClientConnection open and ready to send and receive
+     * @throws IOException
+     *             if the server cannot be reached or the handshake fails
+     */
+    ClientConnection connect(String host, int port, String clientName,
+            List<String> portalNames, boolean offerBinary, boolean resume)
+            throws IOException;
+}
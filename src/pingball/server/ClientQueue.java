@@ -0,0 +1,232 @@
+package pingball.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pingball.protocol.Message;
+
+/**
+ * Queue of the messages the server has yet to send to one client, which
+ * holds at most ballLimit balls. Once it is full, a new ball is handled as
+ * its OverflowPolicy says: offer refuses it, returning false so the server
+ * can give the ball back to its sender, or the oldest queued ball makes room
+ * for it, or the queue refuses it and every later ball and tells overflowed
+ * that the client should be disconnected. Other messages are
+ * always queued, so the queue only grows past the limit by the few control
+ * messages a client gets.
+ *
+ * The queue also keeps the largest number of messages it has held and the
+ * number of balls it refused or dropped, for monitoring.
+ *
+ * Abstraction Function: Represents the messages queued for a client, oldest
+ * first, with its limit, policy and statistics.
+ *
+ * Representation: the LinkedBlockingQueue holds the messages; balls counts
+ * those that are balls. highWaterMark and droppedBalls are the statistics;
+ * overflowed is true once a DISCONNECT queue has overflowed.
+ *
+ * Rep Invariant: balls is the number of balls in the queue, except while a
+ * producer or the consumer is between changing the queue and the count, and
+ * ballLimit > 0.
+ *
+ * Thread-safety argument: The queue is a LinkedBlockingQueue and the counts
+ * are atomic. Producers add with offer, add or put; the consumer removes with
+ * poll, take or drainTo, which keep balls in step. A producer counts its
+ * ball before queueing it, so racing producers never get more than
+ * ballLimit balls in between them.
+ */
+class ClientQueue extends LinkedBlockingQueue<Message> {
+    private static final long serialVersionUID = 1L;
+
+    private final int ballLimit;
+    private final OverflowPolicy policy;
+    private final AtomicInteger balls = new AtomicInteger();
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+    private final AtomicLong droppedBalls = new AtomicLong();
+    private final AtomicBoolean overflowed = new AtomicBoolean(false);
+
+    /**
+     * Makes an empty queue.
+     *
+     * @param ballLimit
+     *            int most balls the queue holds, > 0
+     * @param policy
+     *            OverflowPolicy for a ball that finds the queue full
+     */
+    ClientQueue(int ballLimit, OverflowPolicy policy) {
+        if (ballLimit <= 0)
+            throw new IllegalArgumentException("ball limit must be positive");
+        this.ballLimit = ballLimit;
+        this.policy = policy;
+    }
+
+    /**
+     * Checks whether a message carries a ball to the client.
+     *
+     * @param message
+     *            Message to check
+     * @return boolean true for NEWBALL, NEWBALLTIMED and NEWBALLTHROUGHPORTAL
+     */
+    static boolean isBall(Message message) {
+        switch (message.getType()) {
+        case NEWBALL:
+        case NEWBALLTIMED:
+        case NEWBALLTHROUGHPORTAL:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Queues a message. A ball that finds the queue full is handled as the
+     * policy says.
+     *
+     * @param message
+     *            Message to send to the client
+     * @return boolean true if the message was queued, false if it was
+     *         refused
+     */
+    @Override
+    public boolean offer(Message message) {
+        if (!isBall(message)) {
+            super.offer(message);
+            recordDepth();
+            return true;
+        }
+        if (overflowed.get()) {
+            droppedBalls.incrementAndGet();
+            return false;
+        }
+        if (balls.incrementAndGet() > ballLimit) {
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                // finds none if the consumer took them all meanwhile, in
+                // which case there is room anyway
+                dropOldestBall();
+            } else {
+                balls.decrementAndGet();
+                droppedBalls.incrementAndGet();
+                if (policy == OverflowPolicy.DISCONNECT
+                        && overflowed.compareAndSet(false, true))
+                    overflowed();
+                return false;
+            }
+        }
+        super.offer(message);
+        recordDepth();
+        return true;
+    }
+
+    @Override
+    public boolean offer(Message message, long timeout, TimeUnit unit) {
+        return offer(message);
+    }
+
+    @Override
+    public void put(Message message) {
+        offer(message);
+    }
+
+    @Override
+    public Message poll() {
+        return taken(super.poll());
+    }
+
+    @Override
+    public Message poll(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return taken(super.poll(timeout, unit));
+    }
+
+    @Override
+    public Message take() throws InterruptedException {
+        return taken(super.take());
+    }
+
+    @Override
+    public int drainTo(Collection<? super Message> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Message> collection,
+            int maxElements) {
+        List<Message> drained = new ArrayList<Message>();
+        int count = super.drainTo(drained, maxElements);
+        for (Message message : drained)
+            taken(message);
+        collection.addAll(drained);
+        return count;
+    }
+
+    private Message taken(Message message) {
+        if (message != null && isBall(message))
+            balls.decrementAndGet();
+        return message;
+    }
+
+    /**
+     * Removes the oldest ball still in the queue, if any.
+     *
+     * @return boolean true if a ball was removed
+     */
+    private boolean dropOldestBall() {
+        Iterator<Message> messages = iterator();
+        while (messages.hasNext()) {
+            Message message = messages.next();
+            if (isBall(message) && remove(message)) {
+                balls.decrementAndGet();
+                droppedBalls.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void recordDepth() {
+        int depth = size();
+        int mark;
+        while (depth > (mark = highWaterMark.get()))
+            if (highWaterMark.compareAndSet(mark, depth))
+                return;
+    }
+
+    /**
+     * Called once when a DISCONNECT queue overflows, by the producer whose
+     * ball overflowed it. The queue's consumer should close the connection.
+     * Does nothing by default.
+     */
+    protected void overflowed() {
+    }
+
+    /** OBSERVER METHODS **/
+
+    /**
+     * @return boolean true if the queue has overflowed and its policy is
+     *         DISCONNECT
+     */
+    boolean isOverflowed() {
+        return overflowed.get();
+    }
+
+    /**
+     * @return int the largest number of messages the queue has held
+     */
+    int getHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    /**
+     * @return long the number of balls refused or dropped so far
+     */
+    long getDroppedBalls() {
+        return droppedBalls.get();
+    }
+}
@@ -0,0 +1,97 @@
+package pingball.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import pingball.protocol.Message;
+
+public class ClientQueueTest {
+    /**
+     * Testing Strategy
+     *
+     * -each policy: reject, drop-oldest, disconnect
+     * -control messages queued past the limit under every policy
+     * -taking a ball, one at a time or by draining, makes room for another
+     * -high-water mark counts every message, dropped balls only balls
+     */
+
+    private static Message ball(double x) {
+        return Message.newBall(x, 1.0, 2.0, 3.0);
+    }
+
+    @Test
+    public void testReject() {
+        ClientQueue queue = new ClientQueue(2, OverflowPolicy.REJECT);
+        assertTrue(queue.offer(ball(1)));
+        assertTrue(queue.offer(ball(2)));
+        assertFalse(queue.offer(ball(3)));
+        assertTrue(queue.offer(Message.newClient("Mars", 1)));
+        assertEquals(3, queue.size());
+        assertEquals(1, queue.getDroppedBalls());
+
+        assertEquals(ball(1), queue.poll());
+        assertTrue(queue.offer(ball(4)));
+        assertEquals(3, queue.getHighWaterMark());
+
+        List<Message> drained = new ArrayList<Message>();
+        assertEquals(3, queue.drainTo(drained));
+        assertEquals(Arrays.asList(ball(2), Message.newClient("Mars", 1),
+                ball(4)), drained);
+        assertTrue(queue.offer(ball(5)));
+        assertTrue(queue.offer(ball(6)));
+        assertFalse(queue.offer(ball(7)));
+        assertFalse(queue.isOverflowed());
+    }
+
+    @Test
+    public void testDropOldest() {
+        ClientQueue queue = new ClientQueue(2, OverflowPolicy.DROP_OLDEST);
+        queue.add(Message.disconnect("Mars", 1));
+        queue.add(ball(1));
+        queue.add(ball(2));
+        queue.add(ball(3));
+        assertEquals(3, queue.size());
+        assertEquals(1, queue.getDroppedBalls());
+        assertEquals(Message.disconnect("Mars", 1), queue.poll());
+        assertEquals(ball(2), queue.poll());
+        assertEquals(ball(3), queue.poll());
+        assertEquals(3, queue.getHighWaterMark());
+    }
+
+    @Test
+    public void testDisconnect() {
+        final AtomicInteger overflows = new AtomicInteger();
+        ClientQueue queue = new ClientQueue(1, OverflowPolicy.DISCONNECT) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void overflowed() {
+                overflows.incrementAndGet();
+            }
+        };
+        assertTrue(queue.offer(ball(1)));
+        assertFalse(queue.offer(ball(2)));
+        assertTrue(queue.isOverflowed());
+        queue.poll();
+        assertFalse(queue.offer(ball(3)));
+        assertTrue(queue.offer(Message.newClient("Mars", 0)));
+        assertEquals(1, overflows.get());
+        assertEquals(2, queue.getDroppedBalls());
+    }
+
+    @Test
+    public void testParsePolicy() {
+        for (OverflowPolicy policy : OverflowPolicy.values())
+            assertEquals(policy, OverflowPolicy.parse(policy.toString()));
+        assertEquals(OverflowPolicy.DROP_OLDEST,
+                OverflowPolicy.parse("drop-oldest"));
+    }
+}
@@ -0,0 +1,360 @@
+package pingball.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+import pingball.protocol.Acceptor;
+import pingball.protocol.BinaryCodec;
+import pingball.protocol.Link;
+import pingball.protocol.Message;
+import pingball.protocol.MessageStream;
+import pingball.protocol.MessageType;
+import pingball.protocol.Transport;
+
+/**
+ * The links of one PingballServer to the other servers of a cluster, each a
+ * node that boards connect to directly. A board is owned by the node it is
+ * connected to; the nodes tell each other which boards they own, so each
+ * keeps a directory of where every board is, and forward each other the
+ * balls, portal results, joins and disconnections that concern boards they
+ * do not own.
+ *
+ * Every node dials every peer it is told about, and sends all its messages
+ * over that outbound link; what it receives comes in over the links its
+ * peers dialled. A link starts with NODE and the sender's snapshot: a
+ * BOARDUP for each board it owns and a JOIN for each join it knows, so a
+ * node that (re)connects catches up. A dropped outbound link is redialled
+ * every RETRY_MILLIS; while it is down, messages for that peer are dropped,
+ * and portal balls for its boards are rejected. When an inbound link drops,
+ * the boards of that node count as disconnected until it links up again.
+ *
+ * Abstraction Function: Represents this node's view of the cluster: its
+ * peers, and the node owning each board connected elsewhere.
+ *
+ * Representation: peers maps each peer's name to its outbound link; inbound
+ * maps each peer's name to the link it dialled. directory maps the name of
+ * each board connected to another node to that node's name.
+ *
+ * Rep Invariant: no board in directory is connected to this node, and
+ * nodeName is not a key of peers.
+ *
+ * Thread-safety argument: The maps are ConcurrentHashMaps. Each outbound
+ * link is written only by its sender thread, from its queue, a thread-safe
+ * ClientQueue; each inbound link is read only by its reader thread. The
+ * server applies what the readers receive holding its topology lock, which
+ * also orders the directory updates it makes.
+ */
+class ClusterNode {
+
+    /** Time between attempts to reach a peer that is down. */
+    private static final long RETRY_MILLIS = 1000;
+    /** Most messages a sender writes with one flush. */
+    private static final int MAX_SEND_BATCH = 1024;
+
+    private final PingballServer server;
+    private final String nodeName;
+    private final Transport transport;
+    private final Acceptor acceptor;
+    private final ThreadFactory threadFactory;
+    private final Map<String, Peer> peers =
+            new ConcurrentHashMap<String, Peer>();
+    private final Map<String, Link> inbound =
+            new ConcurrentHashMap<String, Link>();
+    private final Map<String, String> directory =
+            new ConcurrentHashMap<String, String>();
+    private volatile boolean closed = false;
+
+    /**
+     * Outbound link to one peer, and the queue its sender thread writes from.
+     */
+    private final class Peer implements Runnable {
+        private final String host;
+        private final int port;
+        private final ClientQueue queue;
+        private volatile boolean connected = false;
+        private volatile Link link = null;
+        private Thread sender;
+
+        private Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.queue = new ClientQueue(server.getBallLimit(),
+                    OverflowPolicy.REJECT);
+        }
+
+        private boolean send(Message message) {
+            return connected && queue.offer(message);
+        }
+
+        public void run() {
+            List<Message> batch = new ArrayList<Message>();
+            while (!closed) {
+                try {
+                    link = transport.open(host, port);
+                } catch (IOException ioe) {
+                    try {
+                        Thread.sleep(RETRY_MILLIS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    MessageStream stream = new MessageStream(
+                            link.getInputStream(), new BufferedOutputStream(
+                                    link.getOutputStream()), new BinaryCodec());
+                    // leftovers of an earlier link are covered by the
+                    // snapshot
+                    batch.clear();
+                    queue.drainTo(batch);
+                    batch.clear();
+                    connected = true;
+                    batch.add(Message.node(nodeName));
+                    server.snapshotCluster(batch);
+                    while (!closed) {
+                        stream.write(batch);
+                        batch.clear();
+                        batch.add(queue.take());
+                        queue.drainTo(batch, MAX_SEND_BATCH - 1);
+                    }
+                } catch (IOException ioe) {
+                    // dropped; redial
+                } catch (InterruptedException ie) {
+                    return;
+                } finally {
+                    connected = false;
+                    link.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a node: listens for the links of its peers.
+     *
+     * @param server
+     *            PingballServer the node belongs to
+     * @param nodeName
+     *            String name of the node, unique in the cluster
+     * @param transport
+     *            Transport the nodes reach each other over
+     * @param port
+     *            int port to listen on for peers, 0 to let the transport pick
+     * @param threadFactory
+     *            ThreadFactory making the node's threads
+     * @throws IOException
+     *             if the port cannot be listened on
+     */
+    ClusterNode(PingballServer server, String nodeName, Transport transport,
+            int port, ThreadFactory threadFactory) throws IOException {
+        this.server = server;
+        this.nodeName = nodeName;
+        this.transport = transport;
+        this.threadFactory = threadFactory;
+        this.acceptor = transport.listen(port);
+        threadFactory.newThread(new Runnable() {
+            public void run() {
+                try {
+                    while (true)
+                        startReader(acceptor.accept());
+                } catch (IOException ioe) {
+                    // closed
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Starts the thread reading what a peer sends over a link it dialled.
+     *
+     * @param link
+     *            Link accepted from a peer
+     */
+    private void startReader(final Link link) {
+        threadFactory.newThread(new Runnable() {
+            public void run() {
+                String peerName = null;
+                try {
+                    MessageStream stream = new MessageStream(
+                            link.getInputStream(), link.getOutputStream(),
+                            new BinaryCodec());
+                    Message hello = stream.read();
+                    if (hello == null || hello.getType() != MessageType.NODE)
+                        return;
+                    peerName = hello.getName(0);
+                    Link old = inbound.put(peerName, link);
+                    if (old != null)
+                        old.close();
+                    Message message;
+                    while ((message = stream.read()) != null)
+                        server.handlePeerMessage(peerName, message);
+                } catch (IOException ioe) {
+                    // dropped
+                } finally {
+                    link.close();
+                    // unless the peer has linked up again meanwhile
+                    if (peerName != null && inbound.remove(peerName, link)) {
+                        server.nodeLost(peerName);
+                        // the peer may have restarted, and the link to it
+                        // only fails once written to; redial it now, so
+                        // that it gets a snapshot
+                        Peer peer = peers.get(peerName);
+                        Link outbound = peer == null ? null : peer.link;
+                        if (outbound != null)
+                            outbound.close();
+                    }
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Adds a peer and starts dialling it.
+     *
+     * @param peerName
+     *            String name of the peer node
+     * @param host
+     *            String host the peer runs on
+     * @param port
+     *            int port the peer listens on for nodes
+     */
+    void addPeer(String peerName, String host, int port) {
+        if (peerName.equals(nodeName))
+            throw new IllegalArgumentException("node " + nodeName
+                    + " cannot be its own peer");
+        Peer peer = new Peer(host, port);
+        if (peers.putIfAbsent(peerName, peer) != null)
+            throw new IllegalArgumentException("peer " + peerName
+                    + " already added");
+        peer.sender = threadFactory.newThread(peer);
+        peer.sender.start();
+    }
+
+    /**
+     * Sends a message to every peer that is linked up.
+     *
+     * @param message
+     *            Message to send
+     */
+    void broadcast(Message message) {
+        for (Peer peer : peers.values())
+            peer.send(message);
+    }
+
+    /**
+     * Sends a message to the node owning a board.
+     *
+     * @param boardName
+     *            String name of the board
+     * @param message
+     *            Message to send
+     * @return boolean true if the message was queued for the owner, false if
+     *         no peer owns the board, the owner is down or its queue is full
+     */
+    boolean forward(String boardName, Message message) {
+        String owner = directory.get(boardName);
+        Peer peer = owner == null ? null : peers.get(owner);
+        return peer != null && peer.send(message);
+    }
+
+    /**
+     * Records that a board is connected to another node.
+     *
+     * @param boardName
+     *            String name of the board
+     * @param owner
+     *            String name of the node it is connected to
+     */
+    void place(String boardName, String owner) {
+        directory.put(boardName, owner);
+    }
+
+    /**
+     * Forgets where a board is connected, e.g. because it disconnected or
+     * connected to this node.
+     *
+     * @param boardName
+     *            String name of the board
+     * @param owner
+     *            String name of the node that must own it, or null for any
+     * @return boolean true if the board was owned by that node
+     */
+    boolean unplace(String boardName, String owner) {
+        if (owner == null)
+            return directory.remove(boardName) != null;
+        return directory.remove(boardName, owner);
+    }
+
+    /**
+     * Forgets every board of a node.
+     *
+     * @param owner
+     *            String name of the node
+     * @return List<String> names of the boards it owned
+     */
+    List<String> unplaceAll(String owner) {
+        List<String> boards = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : directory.entrySet())
+            if (entry.getValue().equals(owner)
+                    && directory.remove(entry.getKey(), owner))
+                boards.add(entry.getKey());
+        return boards;
+    }
+
+    /**
+     * Stops listening for peers and closes every link.
+     */
+    void close() {
+        closed = true;
+        acceptor.close();
+        for (Peer peer : peers.values()) {
+            peer.sender.interrupt();
+            Link link = peer.link;
+            if (link != null)
+                link.close();
+        }
+        for (Link link : inbound.values())
+            link.close();
+    }
+
+    /** OBSERVER METHODS **/
+
+    /**
+     * @return String name of this node
+     */
+    String getNodeName() {
+        return nodeName;
+    }
+
+    /**
+     * @return int port the node listens on for peers
+     */
+    int getPort() {
+        return acceptor.getPort();
+    }
+
+    /**
+     * @param boardName
+     *            String name of a board
+     * @return String name of the node the board is connected to, or null if
+     *         it is not connected to another node
+     */
+    String nodeOf(String boardName) {
+        return directory.get(boardName);
+    }
+
+    /**
+     * @param peerName
+     *            String name of a peer
+     * @return boolean true if this node's link to the peer is up
+     */
+    boolean isLinked(String peerName) {
+        Peer peer = peers.get(peerName);
+        return peer != null && peer.connected;
+    }
+}
@@ -0,0 +1,97 @@
+package pingball.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static pingball.server.PingballServerTest.TIMEOUT_MILLIS;
+import static pingball.server.PingballServerTest.await;
+import static pingball.server.PingballServerTest.startServer;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.Test;
+
+import pingball.protocol.ClientConnection;
+import pingball.protocol.InMemoryTransport;
+import pingball.protocol.Message;
+
+public class ClusterNodeTest {
+    /**
+     * Testing Strategy
+     *
+     * -two nodes on one InMemoryTransport, a board connected to each
+     * -each node learns where the other's board is connected
+     * -a join made at one node opens the walls of boards on both nodes
+     * -a ball crosses the join between nodes
+     * -a portal ball to a board on the other node: accepted for a portal it
+     * has, rejected for one it does not
+     * -a node going down disconnects its boards on the node left
+     */
+
+    private static final ThreadFactory DAEMONS = new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private static void awaitNode(PingballServer server, String clientName,
+            String nodeName) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!nodeName.equals(server.getClientNode(clientName))
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(nodeName, server.getClientNode(clientName));
+    }
+
+    @Test
+    public void testTwoNodes() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        PingballServer east = startServer(transport, 0, DAEMONS);
+        PingballServer west = startServer(transport, 0, DAEMONS);
+        int eastPort = east.startCluster("east", 0);
+        int westPort = west.startCluster("west", 0);
+        east.addClusterPeer("west", "memory", westPort);
+        west.addClusterPeer("east", "memory", eastPort);
+
+        ClientConnection left = transport.connect("memory", east.getPort(),
+                "Left", Arrays.asList("Alpha"), true, false);
+        ClientConnection right = transport.connect("memory", west.getPort(),
+                "Right", Arrays.asList("Beta"), false, false);
+        awaitNode(east, "Right", "west");
+        awaitNode(west, "Left", "east");
+        assertEquals("east", east.getClientNode("Left"));
+        assertNull(east.getClientNode("Nowhere"));
+
+        // joined at one node, announced to the boards of both
+        east.parseSystemInCommand("h Left Right");
+        assertEquals(Message.newClient("Right", 1), await(left));
+        assertEquals(Message.newClient("Left", 3), await(right));
+
+        assertTrue(left.send(Message.newBall("Right", 0.25, 5, 10, 0)));
+        assertEquals(Message.newBall(0.25, 5, 10, 0), await(right));
+
+        assertTrue(left.send(Message.portalTransfer("Left", "Alpha", "Right",
+                "Beta", 7, -1, 2)));
+        assertEquals(Message.newBallThroughPortal("Beta", -1, 2),
+                await(right));
+        assertEquals(Message.portalAck(7), await(left));
+        assertTrue(left.send(Message.portalTransfer("Left", "Alpha", "Right",
+                "Gamma", 8, -1, 2)));
+        assertEquals(Message.portalNack(8), await(left));
+        assertTrue(right.send(Message.newBallThroughPortal("Right", "Beta",
+                "Left", "Alpha", 3, 4)));
+        assertEquals(Message.newBallThroughPortal("Alpha", 3, 4), await(left));
+        assertEquals(Message.portalBallAccepted("Beta"), await(right));
+
+        // the node of Right goes down
+        west.close();
+        assertEquals(Message.disconnect("Right", 1), await(left));
+        assertNull(east.getClientNode("Right"));
+        left.close();
+        right.close();
+        east.close();
+    }
+}
@@ -0,0 +1,514 @@
+package pingball.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import pingball.protocol.BinaryCodec;
+import pingball.protocol.Handshake;
+import pingball.protocol.HeartbeatMonitor;
+import pingball.protocol.Message;
+import pingball.protocol.MessageCodec;
+
+/**
+ * One selector thread of a PingballServer in event-loop mode. It serves any
+ * number of client connections without a thread of their own: it reads and
+ * decodes what they send, hands each message to the server's routing, and
+ * writes out whatever the routing put in their queues.
+ *
+ * A client's queue is an OutboundQueue, a ClientQueue that schedules its
+ * connection on the loop whenever a message is added, so the routing in
+ * PingballServer adds to it exactly as to the queue of a client thread. A
+ * queue that overflows with the DISCONNECT policy schedules its connection
+ * too, and the loop closes it. The
+ * loop drains a scheduled queue into the connection's send buffer, writes as
+ * much as the socket takes, and waits for the socket to become writable for
+ * the rest; all the messages queued for a client during one pass of the loop
+ * go out in one write.
+ *
+ * Buffers start small and only grow, up to the largest frame, while a
+ * message does not fit, so tens of thousands of connections fit in memory.
+ * Heartbeats are kept by sweeping all connections SWEEPS_PER_INTERVAL times
+ * per heartbeat interval, rather than with a timer per connection.
+ *
+ * Abstraction Function: Represents a set of open client connections, each
+ * with the bytes received and not yet handled and the bytes to send not yet
+ * taken by its socket.
+ *
+ * Representation: connections holds every connection registered with the
+ * selector. registrations holds channels handed over by the accept thread
+ * and not yet registered; scheduled holds connections whose queues may have
+ * messages to send.
+ *
+ * Rep Invariant: A connection's queue and codec are null until its handshake
+ * is complete. A connection is in scheduled at most once, exactly when its
+ * flag is set, until the loop takes it off.
+ *
+ * Thread-safety argument: The selector, connections and every Connection's
+ * buffers and codec are confined to the loop thread. Other threads only add
+ * to registrations and scheduled, which are concurrent queues, and wake the
+ * selector. Routing into another loop's queues goes through the server's
+ * locks, exactly as in thread-per-client mode.
+ */
+class EventLoop {
+
+    /** Initial size of each connection's read and send buffers. */
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    /** Largest buffer, enough for the largest frame either codec produces. */
+    private static final int MAX_BUFFER_SIZE = BinaryCodec.MAX_FRAME_LENGTH + 4;
+    /** How often per heartbeat interval the loop checks every connection. */
+    private static final int SWEEPS_PER_INTERVAL = 10;
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private final PingballServer server;
+    private final long heartbeatMillis;
+    private final long timeoutMillis;
+    private final long sweepNanos;
+    private final Selector selector;
+    private final Thread thread;
+
+    private final Set<Connection> connections = new HashSet<Connection>();
+    private final Queue<SocketChannel> registrations =
+            new ConcurrentLinkedQueue<SocketChannel>();
+    private final Queue<Connection> scheduled =
+            new ConcurrentLinkedQueue<Connection>();
+    private volatile boolean closed = false;
+
+    /**
+     * One client connection served by the loop.
+     */
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final HeartbeatMonitor monitor;
+        private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+        /** Bytes received and not yet decoded, in write mode */
+        private ByteBuffer readBuffer = ByteBuffer
+                .allocate(INITIAL_BUFFER_SIZE);
+        /** Bytes encoded and not yet written, in write mode */
+        private ByteBuffer sendBuffer = ByteBuffer
+                .allocate(INITIAL_BUFFER_SIZE);
+        /** Handshake in progress, or null once it is complete */
+        private Handshake.Incremental handshake = new Handshake.Incremental();
+        private MessageCodec codec = null;
+        private String clientName = null;
+        private OutboundQueue queue = null;
+        /**
+         * Message taken off the queue that did not fit in the send buffer,
+         * sent before anything else, or null
+         */
+        private Message pending = null;
+
+        private Connection(SocketChannel channel, SelectionKey key,
+                HeartbeatMonitor monitor) {
+            this.channel = channel;
+            this.key = key;
+            this.monitor = monitor;
+        }
+    }
+
+    /**
+     * Queue of the messages for one client, which schedules the client's
+     * connection on its loop whenever a message is added. ClientQueue sends
+     * add and put through offer.
+     */
+    private static final class OutboundQueue extends ClientQueue {
+        private static final long serialVersionUID = 1L;
+
+        private final transient EventLoop loop;
+        private final transient Connection connection;
+
+        private OutboundQueue(EventLoop loop, Connection connection) {
+            super(loop.server.getBallLimit(), loop.server.getOverflowPolicy());
+            this.loop = loop;
+            this.connection = connection;
+        }
+
+        @Override
+        public boolean offer(Message message) {
+            boolean added = super.offer(message);
+            if (added)
+                loop.schedule(connection);
+            return added;
+        }
+
+        @Override
+        protected void overflowed() {
+            loop.schedule(connection);
+        }
+    }
+
+    /**
+     * Opens the loop's selector and starts its thread.
+     *
+     * @param server
+     *            PingballServer whose routing handles the messages
+     * @param heartbeatMillis
+     *            long time between PINGs to each client, > 0
+     * @param timeoutMillis
+     *            long silence after which a client counts as disconnected,
+     *            > 0
+     * @param index
+     *            int number of the loop, for the name of its thread
+     * @throws IOException
+     *             if the selector cannot be opened
+     */
+    EventLoop(PingballServer server, long heartbeatMillis, long timeoutMillis,
+            int index) throws IOException {
+        this.server = server;
+        this.heartbeatMillis = heartbeatMillis;
+        this.timeoutMillis = timeoutMillis;
+        sweepNanos = Math.max(1, heartbeatMillis * NANOS_PER_MILLI
+                / SWEEPS_PER_INTERVAL);
+        selector = Selector.open();
+
+        /**
+         * ==============================================================
+         * ====================== EVENT LOOP THREAD =====================
+         * ==============================================================
+         */
+        thread = new Thread(new Runnable() {
+            public void run() {
+                runLoop();
+            }
+        }, "pingball-server-loop-" + index);
+        thread.start();
+    }
+
+    /**
+     * Hands a newly accepted channel over to the loop, which then owns it.
+     *
+     * @param channel
+     *            SocketChannel of a client, before its handshake
+     */
+    void register(SocketChannel channel) {
+        registrations.add(channel);
+        selector.wakeup();
+        if (closed)
+            registerPending();
+    }
+
+    /**
+     * Stops the loop and closes its connections.
+     */
+    void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Schedules a connection whose queue got a message. Called from any
+     * thread.
+     */
+    private void schedule(Connection connection) {
+        if (connection.isScheduled.compareAndSet(false, true)) {
+            scheduled.add(connection);
+            if (Thread.currentThread() != thread)
+                selector.wakeup();
+        }
+    }
+
+    /**
+     * Serves the loop's connections until the loop is closed.
+     */
+    private void runLoop() {
+        long nextSweep = System.nanoTime() + sweepNanos;
+        try {
+            while (!closed) {
+                long wait = (nextSweep - System.nanoTime()) / NANOS_PER_MILLI;
+                selector.select(Math.max(1, wait));
+                registerPending();
+
+                Iterator<SelectionKey> selected = selector.selectedKeys()
+                        .iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            read(connection);
+                        if (key.isValid() && key.isWritable())
+                            flush(connection);
+                    } catch (IOException | RuntimeException e) {
+                        // a failure ends this client's connection only, as
+                        // it ends only its thread in thread-per-client mode
+                        close(connection);
+                    }
+                }
+
+                // before flushing, so PINGs leave right away
+                long now = System.nanoTime();
+                if (now - nextSweep >= 0) {
+                    sweep(now);
+                    nextSweep = now + sweepNanos;
+                }
+
+                Connection connection;
+                while ((connection = scheduled.poll()) != null) {
+                    connection.isScheduled.set(false);
+                    if (!connection.key.isValid())
+                        continue;
+                    if (connection.queue != null
+                            && connection.queue.isOverflowed()) {
+                        close(connection);
+                        continue;
+                    }
+                    try {
+                        flush(connection);
+                    } catch (IOException | RuntimeException e) {
+                        close(connection);
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            // the selector broke; drop the connections below
+        } finally {
+            closed = true;
+            for (Connection connection : new ArrayList<Connection>(
+                    connections))
+                close(connection);
+            registerPending();
+            try {
+                selector.close();
+            } catch (IOException ioe) {
+                // Do nothing with exceptions
+            }
+        }
+    }
+
+    /**
+     * Registers the channels handed over since the last pass, or closes them
+     * if the loop is closed.
+     */
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            try {
+                if (closed)
+                    throw new IOException("event loop closed");
+                channel.configureBlocking(false);
+                // the loop already batches; do not let Nagle hold back PONGs
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector,
+                        SelectionKey.OP_READ);
+                Connection connection = new Connection(channel, key,
+                        new HeartbeatMonitor(heartbeatMillis, timeoutMillis));
+                key.attach(connection);
+                connections.add(connection);
+            } catch (IOException ioe) {
+                try {
+                    channel.close();
+                } catch (IOException closeFailure) {
+                    // Do nothing with exceptions
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads whatever the socket has, completes the handshake if it has not
+     * been, and hands every complete message to the server.
+     *
+     * @param connection
+     *            Connection that is readable
+     * @throws IOException
+     *             if reading fails, the client closed the connection, or it
+     *             sent something invalid
+     */
+    private void read(Connection connection) throws IOException {
+        if (connection.channel.read(connection.readBuffer) < 0)
+            throw new EOFException("client closed the connection");
+        ByteBuffer readBuffer = connection.readBuffer;
+        readBuffer.flip();
+        try {
+            if (connection.handshake != null && !handshake(connection))
+                return;
+            Message message;
+            while (connection.key.isValid()
+                    && (message = connection.codec.decode(readBuffer)) != null)
+                server.handleMessage(message, connection.queue,
+                        connection.monitor);
+        } finally {
+            readBuffer.compact();
+        }
+        if (!readBuffer.hasRemaining())
+            connection.readBuffer = grow(readBuffer);
+        else if (readBuffer.position() == 0
+                && readBuffer.capacity() > INITIAL_BUFFER_SIZE)
+            connection.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    }
+
+    /**
+     * Completes a connection's handshake if all of it has arrived, and opens
+     * the client's session.
+     *
+     * @param connection
+     *            Connection before its handshake, with its read buffer in
+     *            read mode
+     * @return boolean true if the handshake is complete
+     * @throws IOException
+     *             if the client sent an invalid handshake
+     */
+    private boolean handshake(Connection connection) throws IOException {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        Handshake handshake = connection.handshake.accept(
+                connection.readBuffer, reply);
+        // an answer to HELLO is a single short line, and nothing else has
+        // been sent yet
+        connection.sendBuffer.put(reply.toByteArray());
+        if (handshake == null) {
+            if (reply.size() > 0)
+                flush(connection);
+            return false;
+        }
+        connection.handshake = null;
+        connection.codec = handshake.getCodec();
+        connection.clientName = handshake.getClientName();
+        connection.queue = new OutboundQueue(this, connection);
+        server.openSession(handshake, connection.queue, connection.monitor);
+        schedule(connection);
+        return true;
+    }
+
+    /**
+     * Encodes a connection's queued messages and writes them, until the queue
+     * is empty or the socket takes no more; in that case the loop finishes
+     * the job once the socket is writable.
+     *
+     * @param connection
+     *            Connection to write to
+     * @throws IOException
+     *             if writing fails
+     */
+    private void flush(Connection connection) throws IOException {
+        while (true) {
+            if (connection.queue != null)
+                fill(connection);
+            ByteBuffer sendBuffer = connection.sendBuffer;
+            sendBuffer.flip();
+            try {
+                connection.channel.write(sendBuffer);
+            } finally {
+                sendBuffer.compact();
+            }
+            if (sendBuffer.position() > 0) {
+                connection.key.interestOps(SelectionKey.OP_READ
+                        | SelectionKey.OP_WRITE);
+                return;
+            }
+            if (connection.queue == null || connection.pending == null
+                    && connection.queue.isEmpty()) {
+                connection.key.interestOps(SelectionKey.OP_READ);
+                if (sendBuffer.capacity() > INITIAL_BUFFER_SIZE)
+                    connection.sendBuffer = ByteBuffer
+                            .allocate(INITIAL_BUFFER_SIZE);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Encodes queued messages into the send buffer until it is full or the
+     * queue is empty. Each message is taken off the queue before it is
+     * encoded, since routing threads may remove balls from the queue
+     * meanwhile under DROP_OLDEST; one that does not fit waits in pending.
+     *
+     * @param connection
+     *            Connection with a complete handshake
+     * @throws ProtocolException
+     *             if a message is larger than the largest buffer
+     */
+    private void fill(Connection connection) throws ProtocolException {
+        Message message = connection.pending;
+        connection.pending = null;
+        if (message == null)
+            message = connection.queue.poll();
+        while (message != null) {
+            try {
+                connection.codec.encode(message, connection.sendBuffer);
+            } catch (BufferOverflowException boe) {
+                if (connection.sendBuffer.position() > 0) {
+                    connection.pending = message;
+                    return;
+                }
+                connection.sendBuffer = grow(connection.sendBuffer);
+                continue;
+            }
+            message = connection.queue.poll();
+        }
+    }
+
+    /**
+     * Pings the connections that are due and closes those whose clients have
+     * gone silent.
+     *
+     * @param now
+     *            long System.nanoTime()
+     */
+    private void sweep(long now) {
+        List<Connection> dead = new ArrayList<Connection>();
+        for (Connection connection : connections) {
+            if (connection.monitor.isPeerDead(now))
+                dead.add(connection);
+            else if (connection.queue != null
+                    && connection.monitor.pingDue(now))
+                connection.queue.add(connection.monitor.ping(now));
+        }
+        for (Connection connection : dead)
+            close(connection);
+    }
+
+    /**
+     * Closes a connection and ends the client's session.
+     *
+     * @param connection
+     *            Connection to close
+     */
+    private void close(Connection connection) {
+        if (!connections.remove(connection))
+            return;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ioe) {
+            // Do nothing with exceptions
+        }
+        if (connection.queue != null)
+            server.closeSession(connection.clientName, connection.queue);
+    }
+
+    /**
+     * Doubles a full buffer, keeping its contents.
+     *
+     * @param buffer
+     *            ByteBuffer in write mode, with no room left
+     * @return ByteBuffer larger copy, in write mode
+     * @throws ProtocolException
+     *             if the buffer is already as large as the largest frame
+     */
+    private static ByteBuffer grow(ByteBuffer buffer)
+            throws ProtocolException {
+        if (buffer.capacity() >= MAX_BUFFER_SIZE)
+            throw new ProtocolException("message too long");
+        ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_BUFFER_SIZE,
+                2 * buffer.capacity()));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
@@ -0,0 +1,183 @@
+package pingball.server;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which walls of which boards are joined. Each board has at most one
+ * neighbour per wall, and a join always links a wall of one board to the
+ * opposite wall of another (or of the same board, which then wraps around):
+ * the right wall to the left wall, or the bottom wall to the top wall.
+ *
+ * Joining, unjoining and looking up a neighbour take constant time; removing
+ * a board takes time proportional to its number of joins, at most four.
+ *
+ * Abstraction Function: Represents an undirected graph whose vertices are
+ * board names and whose edges are joins, each labelled with the wall of
+ * either board it connects.
+ *
+ * Representation: neighbours maps each board with at least one join to an
+ * array indexed by wall (TOP, RIGHT, BOTTOM, LEFT) holding the name of the
+ * board across that wall, or null.
+ *
+ * Rep Invariant: neighbours.get(a)[side] == b exactly when
+ * neighbours.get(b)[opposite(side)] == a; no array in neighbours is all
+ * null.
+ *
+ * Thread-safety argument: Not thread-safe. PingballServer only uses it
+ * holding its topology lock.
+ */
+public class JoinGraph {
+
+    /** Walls, numbered as in NEWCLIENT and DISCONNECT messages. */
+    public static final int TOP = 0;
+    public static final int RIGHT = 1;
+    public static final int BOTTOM = 2;
+    public static final int LEFT = 3;
+    private static final int WALLS = 4;
+
+    private final Map<String, String[]> neighbours =
+            new HashMap<String, String[]>();
+
+    /**
+     * Checks the rep invariant.
+     */
+    private void checkRep() {
+        for (Map.Entry<String, String[]> entry : neighbours.entrySet()) {
+            boolean any = false;
+            for (int side = 0; side < WALLS; side++) {
+                String other = entry.getValue()[side];
+                if (other == null)
+                    continue;
+                any = true;
+                assert entry.getKey().equals(neighbour(other, opposite(side)));
+            }
+            assert any;
+        }
+    }
+
+    /**
+     * Gets the wall facing a wall across a join.
+     *
+     * @param side
+     *            int wall, 0 <= side < 4
+     * @return int the opposite wall: TOP for BOTTOM, LEFT for RIGHT and so on
+     */
+    public static int opposite(int side) {
+        checkSide(side);
+        return (side + 2) % WALLS;
+    }
+
+    private static void checkSide(int side) {
+        if (side < 0 || side >= WALLS)
+            throw new IllegalArgumentException("no wall " + side);
+    }
+
+    /**
+     * Joins a wall of one board to the opposite wall of another. Any joins
+     * those two walls had before are removed first; callers that must tell
+     * the boards displaced should look them up with neighbour beforehand.
+     *
+     * @param board
+     *            String name of the first board
+     * @param side
+     *            int wall of the first board
+     * @param other
+     *            String name of the board joined to it, possibly the same
+     */
+    public void join(String board, int side, String other) {
+        unjoin(board, side);
+        unjoin(other, opposite(side));
+        link(board, side, other);
+        link(other, opposite(side), board);
+        checkRep();
+    }
+
+    /**
+     * Removes the join at a wall of a board, if there is one, from both
+     * boards.
+     *
+     * @param board
+     *            String name of the board
+     * @param side
+     *            int wall of the board
+     * @return String name of the board that was joined there, or null
+     */
+    public String unjoin(String board, int side) {
+        String other = neighbour(board, side);
+        if (other != null) {
+            unlink(board, side);
+            unlink(other, opposite(side));
+        }
+        checkRep();
+        return other;
+    }
+
+    /**
+     * Removes every join of a board.
+     *
+     * @param board
+     *            String name of the board
+     */
+    public void remove(String board) {
+        for (int side = 0; side < WALLS; side++)
+            unjoin(board, side);
+    }
+
+    private void link(String board, int side, String other) {
+        String[] walls = neighbours.get(board);
+        if (walls == null) {
+            walls = new String[WALLS];
+            neighbours.put(board, walls);
+        }
+        walls[side] = other;
+    }
+
+    private void unlink(String board, int side) {
+        String[] walls = neighbours.get(board);
+        walls[side] = null;
+        for (String other : walls)
+            if (other != null)
+                return;
+        neighbours.remove(board);
+    }
+
+    /** OBSERVER METHODS **/
+
+    /**
+     * Gets the board across a wall.
+     *
+     * @param board
+     *            String name of the board
+     * @param side
+     *            int wall of the board
+     * @return String name of the board joined at that wall, or null
+     */
+    public String neighbour(String board, int side) {
+        checkSide(side);
+        String[] walls = neighbours.get(board);
+        return walls == null ? null : walls[side];
+    }
+
+    /**
+     * Checks whether a board has any joins.
+     *
+     * @param board
+     *            String name of the board
+     * @return boolean true if at least one wall of the board is joined
+     */
+    public boolean hasJoins(String board) {
+        return neighbours.containsKey(board);
+    }
+
+    /**
+     * Gets every board with at least one join.
+     *
+     * @return Set<String> names of the boards, a snapshot
+     */
+    public Set<String> getBoards() {
+        return new HashSet<String>(neighbours.keySet());
+    }
+}
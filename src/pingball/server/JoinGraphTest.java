@@ -0,0 +1,89 @@
+package pingball.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class JoinGraphTest {
+    /**
+     * Testing Strategy
+     *
+     * -horizontal and vertical joins seen from both boards
+     * -joining a wall that is already joined replaces the old join on both
+     * boards
+     * -unjoin, remove with several joins, board joined to itself
+     * -names that contain each other do not interfere
+     */
+
+    @Test
+    public void testJoinBothSides() {
+        JoinGraph graph = new JoinGraph();
+        graph.join("Mars", JoinGraph.RIGHT, "Earth");
+        graph.join("Mars", JoinGraph.BOTTOM, "Venus");
+        assertEquals("Earth", graph.neighbour("Mars", JoinGraph.RIGHT));
+        assertEquals("Mars", graph.neighbour("Earth", JoinGraph.LEFT));
+        assertEquals("Venus", graph.neighbour("Mars", JoinGraph.BOTTOM));
+        assertEquals("Mars", graph.neighbour("Venus", JoinGraph.TOP));
+        assertNull(graph.neighbour("Mars", JoinGraph.LEFT));
+        assertNull(graph.neighbour("Pluto", JoinGraph.TOP));
+        assertEquals(JoinGraph.LEFT, JoinGraph.opposite(JoinGraph.RIGHT));
+        assertEquals(JoinGraph.BOTTOM, JoinGraph.opposite(JoinGraph.TOP));
+        assertEquals(new HashSet<String>(Arrays.asList("Mars", "Earth",
+                "Venus")), graph.getBoards());
+    }
+
+    @Test
+    public void testJoinReplaces() {
+        JoinGraph graph = new JoinGraph();
+        graph.join("Mars", JoinGraph.RIGHT, "Earth");
+        graph.join("Venus", JoinGraph.RIGHT, "Earth");
+        assertEquals("Venus", graph.neighbour("Earth", JoinGraph.LEFT));
+        assertNull(graph.neighbour("Mars", JoinGraph.RIGHT));
+        assertFalse(graph.hasJoins("Mars"));
+    }
+
+    @Test
+    public void testUnjoinAndRemove() {
+        JoinGraph graph = new JoinGraph();
+        graph.join("Mars", JoinGraph.RIGHT, "Earth");
+        graph.join("Venus", JoinGraph.RIGHT, "Mars");
+        graph.join("Mars", JoinGraph.BOTTOM, "Moon");
+        assertEquals("Mars", graph.unjoin("Earth", JoinGraph.LEFT));
+        assertNull(graph.neighbour("Mars", JoinGraph.RIGHT));
+        assertNull(graph.unjoin("Earth", JoinGraph.LEFT));
+
+        graph.remove("Mars");
+        assertFalse(graph.hasJoins("Mars"));
+        assertFalse(graph.hasJoins("Venus"));
+        assertFalse(graph.hasJoins("Moon"));
+    }
+
+    @Test
+    public void testSelfJoin() {
+        JoinGraph graph = new JoinGraph();
+        graph.join("Mars", JoinGraph.RIGHT, "Mars");
+        assertEquals("Mars", graph.neighbour("Mars", JoinGraph.RIGHT));
+        assertEquals("Mars", graph.neighbour("Mars", JoinGraph.LEFT));
+        graph.join("Mars", JoinGraph.RIGHT, "Earth");
+        assertNull(graph.neighbour("Mars", JoinGraph.LEFT));
+        graph.remove("Mars");
+        assertFalse(graph.hasJoins("Earth"));
+    }
+
+    @Test
+    public void testNamesContainingEachOther() {
+        JoinGraph graph = new JoinGraph();
+        graph.join("Mars", JoinGraph.RIGHT, "Mars2");
+        graph.join("Mars2", JoinGraph.RIGHT, "ars");
+        graph.remove("Mars");
+        assertTrue(graph.hasJoins("Mars2"));
+        assertEquals("ars", graph.neighbour("Mars2", JoinGraph.RIGHT));
+        assertNull(graph.neighbour("Mars2", JoinGraph.LEFT));
+    }
+}
@@ -0,0 +1,49 @@
+package pingball.server;
+
+/**
+ * What a PingballServer does with a ball for a client whose queue already
+ * holds as many balls as it may. Only balls are limited: NEWCLIENT,
+ * DISCONNECT, the replies to portal transfers and heartbeats are always
+ * queued, since losing one would leave a board out of step with the server.
+ */
+public enum OverflowPolicy {
+    /**
+     * The new ball is refused and goes back to its sender. A ball sent
+     * through a portal is rejected, so its sender keeps it; a ball sent
+     * across a wall, which its sender has already let go of, is queued for
+     * the sender again, reflected as if the wall were solid.
+     */
+    REJECT,
+    /**
+     * The oldest ball still queued is dropped to make room for the new one,
+     * so a client that catches up gets the most recent balls.
+     */
+    DROP_OLDEST,
+    /**
+     * The client is disconnected, as if its connection had dropped, and may
+     * resume once it keeps up again.
+     */
+    DISCONNECT;
+
+    /**
+     * Finds a policy by its command-line name: reject, drop-oldest or
+     * disconnect.
+     *
+     * @param name
+     *            String name of the policy
+     * @return OverflowPolicy with that name
+     * @throws IllegalArgumentException
+     *             if no policy has that name
+     */
+    public static OverflowPolicy parse(String name) {
+        for (OverflowPolicy policy : values())
+            if (policy.toString().equals(name))
+                return policy;
+        throw new IllegalArgumentException("unknown overflow policy " + name);
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase().replace('_', '-');
+    }
+}
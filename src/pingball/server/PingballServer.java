@@ -1,23 +1,49 @@
 package pingball.server;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import pingball.protocol.Acceptor;
+import pingball.protocol.Handshake;
+import pingball.protocol.HeartbeatMonitor;
+import pingball.protocol.Link;
+import pingball.protocol.Message;
+import pingball.protocol.MessageStream;
+import pingball.protocol.MessageType;
+import pingball.protocol.TcpTransport;
+import pingball.protocol.Transport;
 
 /**
  * PingballServer class that instantiates the main server for the Pingball game.
@@ -28,28 +54,39 @@ import java.util.concurrent.LinkedBlockingQueue;
  * between games and with games, while keeping all actions thread-safe.
  * 
  * Representation: Uses a number of Java classes to create the server and to
- * handle all socket communication between games.
+ * handle all communication between games, over the links of a Transport (TCP
+ * sockets by default). sessions holds the queue, portals and heartbeat of
+ * each connected client; joins holds the joined walls of all boards. The
+ * optional parts, a ClusterNode, a TopologyLog and EventLoops, are null or
+ * empty when unused.
  * 
  * Rep Invariant: Maintain that each of the instance variables of the class are
- * not null.
+ * not null, except the optional parts.
  * 
  * Thread safety argument: We used the "confinement of data" thread-safe
- * pattern. Each client is allocated it's own queue, stored in the thread-safe
- * Map clientQueues. All access to create and destroy queues are protected by
- * locks.
- * 
- * Each client queue in clientQueues is stores the messages that are to be sent
- * to that client. Since each client thread only adds messages to their queue,
- * there is no chance of two threads adding to the same queue at the same time
- * and causing a race condition.
+ * pattern. Each client is allocated it's own queue, stored with its portals
+ * and heartbeat in an immutable ClientSession in the ConcurrentHashMap
+ * sessions. Routing a message takes no lock: it looks up the destination's
+ * session and adds to its queue, which is thread-safe, so messages to
+ * different clients are routed in parallel on all cores. Since a session is
+ * replaced as a whole, a lookup always sees one consistent session, even
+ * while its client reconnects. A message routed to a session that is being
+ * closed is dropped with the session's queue, as if it had been sent just
+ * before the disconnection.
  * 
- * Any modification of clientPortalNames is guarded by a lock. The Lists inside
- * are also wrapped by Collections.synchronizedList, and connections is also
- * wrapped by Collections.synchronizedList. Access or modification of the above
- * are all guarded by locks. Messages are sent as Strings, which are immutable.
+ * Registering and unregistering clients, joins and the System.in commands
+ * are guarded by topologyLock instead, so they never hold up routing. It is
+ * a ReentrantLock rather than the server's monitor, so that virtual threads
+ * waiting for it or holding it never pin their carrier threads. joins,
+ * disconnectedClients, disconnectedAcks, restoredClients, portalRegistry,
+ * topologyLog and resumeGraceMillis are only used holding topologyLock. A
+ * session's recentAcks is a concurrent deque, added to by routing threads.
  * 
- * A new thread is created for each socket, and the printWriter of each socket
- * is called within its respective thread only. Thus, the system is thread-safe.
+ * Messages are immutable Message objects, encoded separately for each
+ * connection with the codec chosen in its Handshake. The MessageStream of
+ * each link is read only by its reader and written only by its sender,
+ * either threads of its own or the EventLoop serving it. Thus, the system is
+ * thread-safe.
  */
 public class PingballServer {
 
@@ -57,20 +94,114 @@ public class PingballServer {
     private static final int DEFAULT_PORT = 10987;
     /** Maximum port number as defined by ServerSocket. */
     private static final int MAXIMUM_PORT = 65535;
+    /** How long the joins of a disconnected client are kept for a resume. */
+    private static final long RESUME_GRACE_MILLIS = 60000;
+    /** Most PORTALACKs kept per client, to send again when it resumes. */
+    private static final int RECENT_ACKS = 64;
+    /** Most a sender waits for a burst of messages to grow into a batch. */
+    private static final long SEND_LINGER_NANOS = 500000;
+    /** Most messages a sender writes with one flush. */
+    private static final int MAX_SEND_BATCH = 1024;
+    /** Default number of balls queued for a client before it overflows. */
+    public static final int DEFAULT_QUEUE_LIMIT = 1000;
+    /** Width and height of a board, in its own units. */
+    private static final double BOARD_SIZE = 20;
 
-    /** Socket for receiving incoming connections. */
-    private final ServerSocket serverSocket;
+    /** Acceptor for receiving incoming connections. */
+    private final Acceptor acceptor;
+    /** Transport the acceptor listens on, which cluster nodes use too */
+    private final Transport transport;
+
+    /** Session of each connected client, by name */
+    private final Map<String, ClientSession> sessions;
+    /** Joined walls of all boards */
+    private final JoinGraph joins;
+    /**
+     * Clients whose connection dropped, with the time it did, whose joins are
+     * kept in case they resume
+     */
+    private final Map<String, Long> disconnectedClients;
+    /**
+     * Recent PORTALACKs of each client in disconnectedClients that has had
+     * any, to send again if it resumes
+     */
+    private final Map<String, Deque<Message>> disconnectedAcks =
+            new HashMap<String, Deque<Message>>();
+    /** How long the joins of a disconnected client are kept for a resume */
+    private long resumeGraceMillis = RESUME_GRACE_MILLIS;
+    /**
+     * Clients whose joins were restored from the topology log, which have
+     * not connected since
+     */
+    private final Set<String> restoredClients = new HashSet<String>();
+    /** Portal names of each client that has connected, as last seen */
+    private final Map<String, List<String>> portalRegistry =
+            new HashMap<String, List<String>>();
+    /** Log the joins and portals are kept in, or null if they are not */
+    private TopologyLog topologyLog = null;
+    /**
+     * Commands read since "begin", or null outside a batch; only used by the
+     * command thread
+     */
+    private List<String> pendingCommands = null;
+    /** Time between PINGs to each client */
+    private final long heartbeatMillis;
+    /** Silence after which a client counts as disconnected */
+    private final long timeoutMillis;
+    /** Selector threads serving TCP clients, or 0 for a thread per client */
+    private int eventLoopThreads = 0;
+    /** Most balls queued for one client */
+    private int ballLimit = DEFAULT_QUEUE_LIMIT;
+    /** What to do with a ball for a client whose queue is full */
+    private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+    /** Makes the command, client and sender threads */
+    private ThreadFactory threadFactory = new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            // like the thread running serve, e.g. a daemon in tests
+            return new Thread(runnable);
+        }
+    };
+    /** Guards changes to sessions, joins and disconnections */
+    private final Lock topologyLock = new ReentrantLock();
 
-    /** Map mapping client names to their respective queues */
-    private final Map<String, BlockingQueue<String>> clientQueues;
-    /** Map giving the list of names of portals on a given client's board */
-    private final Map<String, List<String>> clientPortalNames;
-    /** List of all horizontal connections */
-    private final List<String> connections;
+    /** Counters of the messages routed */
+    private final ServerMetrics metrics = new ServerMetrics();
+    /** HTTP server of the metrics endpoint, or null if it is not started */
+    private volatile HttpServer metricsServer = null;
+    /** Links to the other nodes of a cluster, or null if there are none */
+    private volatile ClusterNode cluster = null;
 
     /** System.out message for debugging */
     private final boolean verbose = false;
 
+    /**
+     * What routing needs to know about one connected client: its queue, the
+     * portals on its board and its heartbeat. Immutable, so that a router
+     * sees a consistent session without taking a lock.
+     */
+    private static final class ClientSession {
+        private final ClientQueue queue;
+        private final Set<String> portalNames;
+        private final HeartbeatMonitor monitor;
+        /** Last RECENT_ACKS PORTALACKs queued for the client, oldest first */
+        private final Deque<Message> recentAcks =
+                new ConcurrentLinkedDeque<Message>();
+
+        private ClientSession(ClientQueue queue,
+                List<String> portalNames, HeartbeatMonitor monitor) {
+            this.queue = queue;
+            this.portalNames = Collections.unmodifiableSet(new HashSet<String>(
+                    portalNames));
+            this.monitor = monitor;
+        }
+
+        private void acked(Message ack) {
+            recentAcks.addLast(ack);
+            if (recentAcks.size() > RECENT_ACKS)
+                recentAcks.pollFirst();
+        }
+    }
+
     /**
      * Make a PingballServer that listens for connections on port.
      * 
@@ -80,10 +211,59 @@ public class PingballServer {
      *             if an error occurs opening the server socket
      */
     public PingballServer(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
-        clientQueues = new ConcurrentHashMap<String, BlockingQueue<String>>();
-        clientPortalNames = new ConcurrentHashMap<String, List<String>>();
-        connections = Collections.synchronizedList(new ArrayList<String>());
+        this(port, HeartbeatMonitor.DEFAULT_INTERVAL_MILLIS,
+                HeartbeatMonitor.DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Make a PingballServer that listens for connections on port, with the
+     * given heartbeat settings.
+     * 
+     * @param port
+     *            port number, require 0 <= port <= 65535
+     * @param heartbeatMillis
+     *            long time between PINGs to each client, > 0
+     * @param timeoutMillis
+     *            long silence after which a client counts as disconnected,
+     *            > 0
+     * @throws IOException
+     *             if an error occurs opening the server socket
+     */
+    public PingballServer(int port, long heartbeatMillis, long timeoutMillis)
+            throws IOException {
+        this(new TcpTransport(), port, heartbeatMillis, timeoutMillis);
+    }
+
+    /**
+     * Make a PingballServer that listens for connections on port of the given
+     * transport, with the given heartbeat settings.
+     * 
+     * @param transport
+     *            Transport to listen on, e.g. an InMemoryTransport to run the
+     *            server and its boards in one JVM
+     * @param port
+     *            port number, require 0 <= port <= 65535; 0 lets the
+     *            transport pick one
+     * @param heartbeatMillis
+     *            long time between PINGs to each client, > 0
+     * @param timeoutMillis
+     *            long silence after which a client counts as disconnected,
+     *            > 0
+     * @throws IOException
+     *             if an error occurs opening the acceptor
+     */
+    public PingballServer(Transport transport, int port, long heartbeatMillis,
+            long timeoutMillis) throws IOException {
+        if (heartbeatMillis <= 0 || timeoutMillis <= 0)
+            throw new IllegalArgumentException("heartbeat interval and "
+                    + "timeout must be positive");
+        this.heartbeatMillis = heartbeatMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.transport = transport;
+        acceptor = transport.listen(port);
+        sessions = new ConcurrentHashMap<String, ClientSession>();
+        joins = new JoinGraph();
+        disconnectedClients = new ConcurrentHashMap<String, Long>();
         checkRep();
         if (verbose)
             System.out.println("Server started on port " + port);
@@ -93,19 +273,372 @@ public class PingballServer {
      * Check the rep invariant that each of the instance variables are not null.
      */
     private void checkRep() {
-        assert serverSocket != null;
-        assert clientQueues != null;
-        assert clientPortalNames != null;
-        assert connections != null;
+        assert acceptor != null;
+        assert transport != null;
+        assert sessions != null;
+        assert joins != null;
+        assert disconnectedClients != null;
+        assert heartbeatMillis > 0 && timeoutMillis > 0;
     }
 
     /**
      * Helper method to return the list of active boards.
      * 
-     * @return connections, list of active boards.
+     * @return Map from the name of each connected board to its queue, a
+     *         snapshot
+     */
+    public Map<String, BlockingQueue<Message>> returnBoards() {
+        Map<String, BlockingQueue<Message>> boards =
+                new HashMap<String, BlockingQueue<Message>>();
+        for (Map.Entry<String, ClientSession> entry : sessions.entrySet())
+            boards.put(entry.getKey(), entry.getValue().queue);
+        return boards;
+    }
+
+    /**
+     * Gets the most messages each connected client's queue has held, which
+     * shows how far behind the slowest clients have fallen.
+     * 
+     * @return Map from the name of each connected board to the high-water
+     *         mark of its queue, a snapshot
+     */
+    public Map<String, Integer> returnQueueHighWaterMarks() {
+        Map<String, Integer> marks = new HashMap<String, Integer>();
+        for (Map.Entry<String, ClientSession> entry : sessions.entrySet())
+            marks.put(entry.getKey(), entry.getValue().queue
+                    .getHighWaterMark());
+        return marks;
+    }
+
+    /**
+     * Gets the number of balls each connected client's queue has refused or
+     * dropped because it was full.
+     * 
+     * @return Map from the name of each connected board to its dropped balls,
+     *         a snapshot
+     */
+    public Map<String, Long> returnDroppedBalls() {
+        Map<String, Long> dropped = new HashMap<String, Long>();
+        for (Map.Entry<String, ClientSession> entry : sessions.entrySet())
+            dropped.put(entry.getKey(), entry.getValue().queue
+                    .getDroppedBalls());
+        return dropped;
+    }
+
+    /**
+     * Gets the queue of a connected client.
+     * 
+     * @param clientName
+     *            String name of the client
+     * @return BlockingQueue<Message> of messages to send to the client, or
+     *         null if it is not connected
+     */
+    private BlockingQueue<Message> queueOf(String clientName) {
+        ClientSession session = sessions.get(clientName);
+        return session == null ? null : session.queue;
+    }
+
+    /**
+     * Gets the smoothed round-trip time to a connected client, measured with
+     * heartbeats.
+     * 
+     * @param clientName
+     *            String name of the client
+     * @return long nanoseconds, or -1 if the client is not connected or has
+     *         not answered a PING yet
+     */
+    public long getRoundTripTime(String clientName) {
+        ClientSession session = sessions.get(clientName);
+        return session == null ? -1 : session.monitor
+                .getSmoothedRoundTripTime();
+    }
+
+    /**
+     * Gets the port the server listens on, which the transport picked if the
+     * server was created with port 0.
+     * 
+     * @return int port of the server
+     */
+    public int getPort() {
+        return acceptor.getPort();
+    }
+
+    /**
+     * Chooses how serve handles TCP clients: with a thread per client (0, the
+     * default), or with a few selector threads shared by all clients, which
+     * scales to many more boards. Must be called before serve.
+     * 
+     * @param threads
+     *            int number of event loops, >= 0
+     */
+    public void setEventLoopThreads(int threads) {
+        if (threads < 0)
+            throw new IllegalArgumentException("negative number of threads");
+        this.eventLoopThreads = threads;
+    }
+
+    /**
+     * Sets how long the joins of a disconnected client are kept for it to
+     * resume; RESUME_GRACE_MILLIS by default.
+     * 
+     * @param millis
+     *            long grace period, >= 0
+     */
+    void setResumeGraceMillis(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("negative grace period");
+        topologyLock.lock();
+        try {
+            resumeGraceMillis = millis;
+        } finally {
+            topologyLock.unlock();
+        }
+    }
+
+    /**
+     * Bounds the queue of each client connecting from now on. A ball for a
+     * client that falls that far behind is refused, replaces the oldest
+     * queued ball, or gets the client disconnected, as the policy says;
+     * control messages are always queued.
+     * 
+     * @param ballLimit
+     *            int most balls queued for one client, > 0
+     * @param policy
+     *            OverflowPolicy for a ball that finds a client's queue full
+     */
+    public void setQueueLimit(int ballLimit, OverflowPolicy policy) {
+        if (ballLimit <= 0 || policy == null)
+            throw new IllegalArgumentException("queue limit must be positive "
+                    + "and policy not null");
+        this.ballLimit = ballLimit;
+        this.overflowPolicy = policy;
+    }
+
+    /**
+     * @return int most balls queued for one client
+     */
+    int getBallLimit() {
+        return ballLimit;
+    }
+
+    /**
+     * @return OverflowPolicy for a ball that finds a client's queue full
+     */
+    OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Chooses the factory of the threads serve starts: the command thread, and
+     * in thread-per-client mode each client's reader and sender. Must be
+     * called before serve.
+     * 
+     * @param threadFactory
+     *            ThreadFactory to use, e.g. virtualThreadFactory()
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        if (threadFactory == null)
+            throw new IllegalArgumentException("null thread factory");
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Gets a factory of virtual threads, if the running Java has them (Java
+     * 21 and later). It is looked up reflectively, so the server still builds
+     * and runs on older releases.
+     * 
+     * @return ThreadFactory of virtual threads, or null if there are none
+     */
+    public static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException roe) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts serving the server's metrics over HTTP at /metrics, on the
+     * loopback interface only, in the Prometheus text format.
+     * 
+     * @param port
+     *            port number, require 0 <= port <= 65535; 0 picks a free one
+     * @return int port the endpoint listens on
+     * @throws IOException
+     *             if the port cannot be bound
+     */
+    public int startMetricsEndpoint(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = renderMetrics().getBytes(
+                        StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type",
+                        "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        http.start();
+        metricsServer = http;
+        return http.getAddress().getPort();
+    }
+
+    /**
+     * Gets the server's metrics as served by the metrics endpoint.
+     * 
+     * @return String metrics in the Prometheus text format
+     */
+    public String renderMetrics() {
+        Map<String, ClientQueue> queues = new HashMap<String, ClientQueue>();
+        for (Map.Entry<String, ClientSession> entry : sessions.entrySet())
+            queues.put(entry.getKey(), entry.getValue().queue);
+        StringBuilder out = new StringBuilder();
+        metrics.write(out, queues, disconnectedClients.size());
+        return out.toString();
+    }
+
+    /**
+     * Keeps the joins and the portals of each board in a file, so that they
+     * survive a restart: replays what the file holds, compacts it, and then
+     * appends every change to it. Boards get their restored joins back the
+     * first time they connect. Must be called before serve.
+     * 
+     * @param file
+     *            File to keep the topology in; created if it does not exist
+     * @return int number of boards with joins restored from the file
+     * @throws IOException
+     *             if the file cannot be read or written
+     */
+    public int persistTopology(File file) throws IOException {
+        topologyLock.lock();
+        try {
+            TopologyLog log = new TopologyLog(file);
+            int skipped = log.replay(joins, portalRegistry);
+            if (skipped > 0)
+                System.err.println("topology log " + file + ": skipped "
+                        + skipped + " unreadable lines");
+            log.compact(joins, portalRegistry);
+            if (topologyLog != null)
+                topologyLog.close();
+            topologyLog = log;
+            restoredClients.addAll(joins.getBoards());
+            return restoredClients.size();
+        } finally {
+            topologyLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the portals of every board that has connected, as each last
+     * connected with, including those restored from the topology log.
+     * 
+     * @return Map from the name of each board to its portal names, a snapshot
+     */
+    public Map<String, List<String>> returnPortalRegistry() {
+        topologyLock.lock();
+        try {
+            Map<String, List<String>> registry =
+                    new HashMap<String, List<String>>();
+            for (Map.Entry<String, List<String>> entry : portalRegistry
+                    .entrySet())
+                registry.put(entry.getKey(), new ArrayList<String>(entry
+                        .getValue()));
+            return registry;
+        } finally {
+            topologyLock.unlock();
+        }
+    }
+
+    /**
+     * Makes the server a node of a cluster, listening for the links of the
+     * other nodes on the same transport as its clients. Must be called before
+     * addClusterPeer, and at most once.
+     * 
+     * @param nodeName
+     *            String name of the node, unique in the cluster
+     * @param port
+     *            port number, require 0 <= port <= 65535; 0 lets the
+     *            transport pick one
+     * @return int port the node listens on for other nodes
+     * @throws IOException
+     *             if the port cannot be listened on
+     */
+    public int startCluster(String nodeName, int port) throws IOException {
+        if (cluster != null)
+            throw new IllegalStateException("cluster already started");
+        cluster = new ClusterNode(this, nodeName, transport, port,
+                threadFactory);
+        return cluster.getPort();
+    }
+
+    /**
+     * Adds another node of the cluster, which the server links up with, and
+     * keeps linking up with whenever the link drops.
+     * 
+     * @param nodeName
+     *            String name of the other node
+     * @param host
+     *            String host the other node runs on
+     * @param port
+     *            int port the other node listens on for nodes
+     */
+    public void addClusterPeer(String nodeName, String host, int port) {
+        if (cluster == null)
+            throw new IllegalStateException("cluster not started");
+        cluster.addPeer(nodeName, host, port);
+    }
+
+    /**
+     * Checks whether the server's link to another node of its cluster is up.
+     * 
+     * @param nodeName
+     *            String name of the other node
+     * @return boolean true if the link is up
+     */
+    public boolean isClusterPeerLinked(String nodeName) {
+        ClusterNode node = cluster;
+        return node != null && node.isLinked(nodeName);
+    }
+
+    /**
+     * Finds the node of the cluster a client is connected to.
+     * 
+     * @param clientName
+     *            String name of the client
+     * @return String name of the node, this server's own if the client is
+     *         connected here, or null if it is not connected to any node this
+     *         server knows of (or the server is not in a cluster)
+     */
+    public String getClientNode(String clientName) {
+        ClusterNode node = cluster;
+        if (node == null)
+            return null;
+        return sessions.containsKey(clientName) ? node.getNodeName() : node
+                .nodeOf(clientName);
+    }
+
+    /**
+     * Stops accepting clients; serve then throws. Clients already connected
+     * stay connected. The metrics endpoint and the links to other nodes of
+     * the cluster, if any, stop too.
      */
-    public Map<String, BlockingQueue<String>> returnBoards() {
-        return clientQueues; // modify this.
+    public void close() {
+        acceptor.close();
+        HttpServer http = metricsServer;
+        if (http != null)
+            http.stop(0);
+        ClusterNode node = cluster;
+        if (node != null)
+            node.close();
     }
 
     /**
@@ -114,7 +647,7 @@ public class PingballServer {
      * unless an exception is thrown.
      * 
      * @throws IOException
-     *             if the main server socket is broken (IOExceptions from
+     *             if the acceptor is broken or closed (IOExceptions from
      *             individual clients do *not* terminate serve())
      */
     public void serve() throws IOException {
@@ -124,11 +657,12 @@ public class PingballServer {
          * ============== THREAD 1 : SYSTEM.IN ARGUMENTS ===============
          * =============================================================
          */
-        Thread commands = new Thread(new Runnable() {
+        Thread commands = threadFactory.newThread(new Runnable() {
             Scanner in = new Scanner(System.in);
 
             public void run() {
-                while (true) {
+                // stops at the end of input, e.g. when run without a console
+                while (in.hasNextLine()) {
                     String command = in.nextLine(); // e.g. h NAME_left
                                                     // NAME_right
                     // Parse System.in arguments
@@ -137,23 +671,34 @@ public class PingballServer {
             }
         });
         commands.start();
+        EventLoop[] loops = new EventLoop[eventLoopThreads];
+        for (int i = 0; i < loops.length; i++)
+            loops[i] = new EventLoop(this, heartbeatMillis, timeoutMillis, i);
+        int nextLoop = 0;
         while (true) {
             // block until a client connects
-            final Socket socket = serverSocket.accept();
+            final Link link = acceptor.accept();
+            SocketChannel channel = link.getChannel();
+            if (loops.length > 0 && channel != null) {
+                // spread the clients over the loops in turn
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+                continue;
+            }
             // create new thread for the new client
             /**
              * ==========================================================
              * ================== CLIENT THREADS ========================
              * ==========================================================
              */
-            Thread handler = new Thread(new Runnable() {
+            Thread handler = threadFactory.newThread(new Runnable() {
                 public void run() {
                     try {
                         try {
                             // handle the client
-                            handleConnection(socket);
+                            handleConnection(link);
                         } finally {
-                            socket.close();
+                            link.close();
                         }
                     } catch (IOException ioe) {
                         // ioe.printStackTrace(); // but don't terminate serve()
@@ -168,75 +713,109 @@ public class PingballServer {
     /**
      * Method to parse the command sent when actions are done between client and
      * server, such as disconnects and connects, and linking walls of boards
-     * together.
+     * together. Any command applyTopology takes is understood; the lines
+     * between "begin" and "end" are collected and applied as one batch.
      * 
      * @param command
      *            String representing the command sent to be executed.
      */
     protected void parseSystemInCommand(String command) {
-        String commandType = command.split(" ")[0];
+        String trimmed = command.trim();
         try {
-            // New client message format: NEWCLIENT clientName side
-            // Example: NEWCLIENT Mars 0
-            if (commandType.equals("h")) {
-                String NAME_left = command.split(" ")[1];
-                String NAME_right = command.split(" ")[2];
-                String NAME_leftmessage = "NEWCLIENT " + NAME_right + " 1";
-                String NAME_rightmessage = "NEWCLIENT " + NAME_left + " 3";
-                synchronized (this) {
-                    clientQueues.get(NAME_left).put(NAME_leftmessage);
-                    clientQueues.get(NAME_right).put(NAME_rightmessage);
-                    connections.add(command);
-                }
-            } else if (commandType.equals("v")) {
-                String NAME_top = command.split(" ")[1];
-                String NAME_bottom = command.split(" ")[2];
-                String NAME_topmessage = "NEWCLIENT " + NAME_bottom + " 2";
-                String NAME_bottommessage = "NEWCLIENT " + NAME_top + " 0";
-
-                synchronized (this) {
-                    clientQueues.get(NAME_top).put(NAME_topmessage);
-                    clientQueues.get(NAME_bottom).put(NAME_bottommessage);
-                    connections.add(command);
-                }
+            if (trimmed.equals("begin")) {
+                pendingCommands = new ArrayList<String>();
+            } else if (pendingCommands == null) {
+                applyTopology(Collections.singletonList(command));
+            } else if (trimmed.equals("end")) {
+                List<String> batch = pendingCommands;
+                pendingCommands = null;
+                applyTopology(batch);
+            } else {
+                pendingCommands.add(command);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Applies a batch of topology commands as one change: h, v, row, column,
+     * grid, torus, unjoin and load, as TopologyScript describes. Either all
+     * of them are applied or, if any is malformed or names a client that is
+     * not connected, none. Each client whose walls changed is then told of
+     * its walls' final state, once per wall, however many commands changed
+     * them.
+     * 
+     * @param commands
+     *            List<String> commands, one per element
+     * @throws IllegalArgumentException
+     *             if a command is malformed or names a client that is not
+     *             connected, to this server or to another node of its
+     *             cluster
+     * @throws IOException
+     *             if a command loads a file that cannot be read
+     */
+    public void applyTopology(List<String> commands) throws IOException {
+        TopologyScript script = new TopologyScript();
+        for (String command : commands)
+            script.add(command);
+        topologyLock.lock();
+        try {
+            for (String name : script.getBoards())
+                if (!isConnected(name))
+                    throw new IllegalArgumentException("no client " + name);
+            List<Message> applied = applyEdits(script.getEdits());
+            ClusterNode node = cluster;
+            if (node != null)
+                for (Message edit : applied)
+                    node.broadcast(edit);
+        } finally {
+            topologyLock.unlock();
+        }
+    }
+
     /**
      * Handle a single client connection. Returns when client disconnects.
      * 
-     * @param socket
-     *            socket where the client is connected
+     * The link gets a reader, this thread, and a sender thread, both from
+     * threadFactory. The sender writes whatever has been queued since its
+     * last write as one batch, with one flush, and PINGs the client once per
+     * heartbeat interval. The reader answers the client's PINGs and wakes up
+     * once per interval to check that a client that speaks heartbeats has
+     * not gone silent for longer than the idle timeout; a silent client is
+     * disconnected as if its connection had dropped.
+     * 
+     * @param link
+     *            link where the client is connected
      * @throws IOException
      *             if the connection encounters an error or terminates
      *             unexpectedly
      */
-    private void handleConnection(Socket socket) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(
-                socket.getInputStream()));
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+    private void handleConnection(final Link link) throws IOException {
+        // blocks until client sends their name, agreeing on a protocol first
+        // if the client asks for one
+        BufferedOutputStream linkOut = new BufferedOutputStream(
+                link.getOutputStream());
+        Handshake handshake = Handshake.accept(link.getInputStream(),
+                linkOut);
+        final MessageStream stream = new MessageStream(link.getInputStream(),
+                linkOut, handshake.getCodec());
+        final String clientName = handshake.getClientName();
+        // wake the reader up once per interval to check on the client
+        link.setReadTimeout((int) Math.min(heartbeatMillis, Integer.MAX_VALUE));
+        final HeartbeatMonitor monitor = new HeartbeatMonitor(heartbeatMillis,
+                timeoutMillis);
 
-        // blocks until client sends their name
-        final String clientName = in.readLine();
-        if (verbose)
-            System.out.println("Connection: " + clientName);
+        final ClientQueue queue = new ClientQueue(ballLimit, overflowPolicy) {
+            private static final long serialVersionUID = 1L;
 
-        synchronized (this) {
-            // Create new LinkedBlockingQueue for this client
-            clientQueues.put(clientName, new LinkedBlockingQueue<String>());
-
-            // Create new Set to keep track of the portal names in this client's
-            // board
-            final int numPortals = Integer.parseInt(in.readLine());
-            List<String> portalNames = Collections
-                    .synchronizedList(new ArrayList<String>());
-            for (int i = 0; i < numPortals; i++)
-                portalNames.add(in.readLine());
-            clientPortalNames.put(clientName, portalNames);
-        }
+            @Override
+            protected void overflowed() {
+                // wakes the reader, which closes the session
+                link.close();
+            }
+        };
+        openSession(handshake, queue, monitor);
         // Create new thread to send messages from the client queue to the
         // client
         /**
@@ -244,15 +823,26 @@ public class PingballServer {
          * ================ THREAD TO SEND MESSAGES TO CLIENT =================
          * ====================================================================
          */
-        Thread sender = new Thread(new Runnable() {
+        Thread sender = threadFactory.newThread(new Runnable() {
             public void run() {
+                List<Message> batch = new ArrayList<Message>();
                 try {
                     while (true) {
-                        String message = clientQueues.get(clientName).take();
+                        Message message = queue.poll(
+                                monitor.millisUntilDue(System.nanoTime()),
+                                TimeUnit.MILLISECONDS);
+                        if (message != null)
+                            collectBatch(message, queue, batch);
+                        long now = System.nanoTime();
+                        if (monitor.pingDue(now))
+                            batch.add(monitor.ping(now));
+                        if (batch.isEmpty())
+                            continue;
                         if (verbose)
-                            System.out.printf("Sent message to %s: %s\n",
-                                    message, clientName);
-                        out.println(message);
+                            System.out.printf("Sent messages to %s: %s\n",
+                                    clientName, batch);
+                        stream.write(batch);
+                        batch.clear();
                     }
                 } catch (Exception e) {
                 }
@@ -261,128 +851,723 @@ public class PingballServer {
         sender.start();
 
         try {
-            // Parse input from clients and put messages in the correct queue
-            // Possible messages:
-            // - NEWBALL newClientName xLoc yLoc xVelocity yVelocity
-            // e.g. NEWBALL Mars 0.0 3.3 -5.0 6.0
-            // - NEWBALLTHROUGHPORTAL oldClientName oldPortalname newClientName
-            // newPortalName xVelocity
-            // yVelocity
-            // e.g. NEWBALLTHROUGHPORTAL Earth Alpha Mars Gamma -5.0 6.0
-            for (String line = in.readLine(); line != null; line = in
-                    .readLine()) {
-                if (verbose)
-                    System.out.println("Client message: " + line);
-                String messageType = line.split(" ")[0];
-                if (messageType.equals("NEWBALL")) {
-                    String newClientName = line.split(" ")[1];
-                    String xLoc = line.split(" ")[2];
-                    String yLoc = line.split(" ")[3];
-                    String xVec = line.split(" ")[4];
-                    String yVec = line.split(" ")[5];
-                    String message = messageType + " " + xLoc + " " + yLoc
-                            + " " + xVec + " " + yVec;
-                    // Put message in client's queue
-                    try {
-                        synchronized (this) {
-                            clientQueues.get(newClientName).put(message);
-                        }
-                    } catch (Exception e) {
-                    }
+            while (true) {
+                Message line;
+                try {
+                    line = stream.read();
+                } catch (SocketTimeoutException ste) {
+                    if (monitor.isPeerDead(System.nanoTime()))
+                        break;
+                    continue;
                 }
-                if (messageType.equals("NEWBALLTHROUGHPORTAL")) {
-                    String oldClientName = line.split(" ")[1];
-                    String oldClientPortalName = line.split(" ")[2];
-                    String newClientName = line.split(" ")[3];
-                    String newClientPortalName = line.split(" ")[4];
-                    String xVec = line.split(" ")[5];
-                    String yVec = line.split(" ")[6];
-                    String message = messageType + " " + newClientPortalName
-                            + " " + xVec + " " + yVec;
-
-                    synchronized (this) {
-                        // If the new client exists, and the new portal exists
-                        // too
-                        if (clientPortalNames.containsKey(newClientName)
-                                && clientPortalNames.get(newClientName)
-                                        .contains(newClientPortalName)) {
-                            // Put message in client's queue
-                            try {
-                                clientQueues.get(newClientName).put(message);
-                                String acceptanceMessage = "PORTALBALLACCEPTED "
-                                        + oldClientPortalName;
-                                clientQueues.get(oldClientName).add(
-                                        acceptanceMessage);
-                            } catch (Exception e) {
-                            }
-                        } else { // Otherwise, send a message back to the
-                                 // original
-                            // ball sender
-                            String rejectionMessage = "PORTALBALLREJECTED "
-                                    + oldClientPortalName;
-                            clientQueues.get(oldClientName).add(
-                                    rejectionMessage);
-                        }
-                    }
+                if (line == null)
+                    break;
+                handleMessage(line, queue, monitor);
+            }
+        } finally {
+            closeSession(clientName, queue);
+            sender.interrupt();
+            stream.close();
+        }
+    }
+
+    /**
+     * Gathers a batch for a sender thread to write with one flush: the
+     * message it took and everything else already queued. If more was queued,
+     * a burst is under way, and the sender waits up to SEND_LINGER_NANOS for
+     * it to go on, so a lone message goes out at once and a burst goes out in
+     * a few large writes.
+     * 
+     * @param first
+     *            Message the sender took from the queue
+     * @param queue
+     *            BlockingQueue<Message> the sender consumes
+     * @param batch
+     *            List<Message> to add the messages to, in order
+     * @throws InterruptedException
+     *             if the sender is interrupted while it waits
+     */
+    private static void collectBatch(Message first,
+            BlockingQueue<Message> queue, List<Message> batch)
+            throws InterruptedException {
+        batch.add(first);
+        if (queue.drainTo(batch, MAX_SEND_BATCH - batch.size()) == 0)
+            return;
+        long deadline = System.nanoTime() + SEND_LINGER_NANOS;
+        while (batch.size() < MAX_SEND_BATCH) {
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0)
+                return;
+            Message next = queue.poll(wait, TimeUnit.NANOSECONDS);
+            if (next == null)
+                return;
+            batch.add(next);
+            queue.drainTo(batch, MAX_SEND_BATCH - batch.size());
+        }
+    }
+
+    /**
+     * Registers a client whose handshake is complete: its queue, heartbeat and
+     * portals, and the joins it gets back if it resumes.
+     * 
+     * @param handshake
+     *            Handshake completed with the client
+     * @param queue
+     *            ClientQueue of messages to send to the client
+     * @param monitor
+     *            HeartbeatMonitor of the client's connection
+     */
+    void openSession(Handshake handshake, ClientQueue queue,
+            HeartbeatMonitor monitor) {
+        String clientName = handshake.getClientName();
+        if (verbose)
+            System.out.println("Connection: " + clientName);
+        topologyLock.lock();
+        try {
+            // Replaces any earlier session of the same name in one step
+            ClientSession previous = sessions.put(clientName,
+                    new ClientSession(queue, handshake.getPortalNames(),
+                            monitor));
+
+            List<String> portalNames = handshake.getPortalNames();
+            if (!portalNames.equals(portalRegistry.get(clientName))) {
+                portalRegistry.put(clientName, new ArrayList<String>(
+                        portalNames));
+                if (topologyLog != null)
+                    topologyLog.portals(clientName, portalNames);
+            }
+
+            boolean resumed = restoreJoins(clientName, handshake.isResume(),
+                    previous);
+            ClusterNode node = cluster;
+            if (node != null) {
+                // e.g. a board that was connected to another node before
+                node.unplace(clientName, null);
+                node.broadcast(Message.boardUp(clientName, resumed));
+            }
+        } finally {
+            topologyLock.unlock();
+        }
+    }
+
+    /**
+     * Handles one message from a client: answers its heartbeat and puts what
+     * it sends to other clients in the correct queues.
+     * 
+     * @param line
+     *            Message received from the client
+     * @param queue
+     *            BlockingQueue<Message> of the client that sent it, for the
+     *            replies
+     * @param monitor
+     *            HeartbeatMonitor of the client's connection
+     */
+    void handleMessage(Message line, BlockingQueue<Message> queue,
+            HeartbeatMonitor monitor) {
+        // Possible messages:
+        // - NEWBALL newClientName xLoc yLoc xVelocity yVelocity
+        // e.g. NEWBALL Mars 0.0 3.3 -5.0 6.0
+        // - NEWBALLTIMED newClientName xLoc yLoc xVelocity yVelocity age
+        // e.g. NEWBALLTIMED Mars 0.0 3.3 -5.0 6.0 0.035
+        // - NEWBALLTHROUGHPORTAL oldClientName oldPortalname newClientName
+        // newPortalName xVelocity
+        // yVelocity
+        // e.g. NEWBALLTHROUGHPORTAL Earth Alpha Mars Gamma -5.0 6.0
+        // - PORTALTRANSFER oldClientName oldPortalName newClientName
+        // newPortalName transferId xVelocity yVelocity
+        // e.g. PORTALTRANSFER Earth Alpha Mars Gamma 7 -5.0 6.0
+        if (verbose)
+            System.out.println("Client message: " + line);
+        long start = System.nanoTime();
+        Message reply = monitor.received(line, start);
+        if (reply != null)
+            queue.add(reply);
+        route(line, queue);
+        metrics.routed(line.getType(), System.nanoTime() - start);
+    }
+
+    /**
+     * Puts a ball or portal ball in the queue of the client it is for, or
+     * forwards it to the cluster node that client is connected to, and
+     * answers a portal ball. A ball across a wall that cannot be delivered
+     * goes back to its sender, reflected at that wall. Other messages are
+     * ignored.
+     * 
+     * @param line
+     *            Message received from a client or forwarded by another node
+     * @param queue
+     *            BlockingQueue<Message> of the client that sent it, for the
+     *            replies, or null if another node forwarded it
+     */
+    private void route(Message line, BlockingQueue<Message> queue) {
+        ClusterNode node = cluster;
+        switch (line.getType()) {
+        case NEWBALL: {
+            String newClientName = line.getName(0);
+            Message message = Message.newBall(line.getNumber(0),
+                    line.getNumber(1), line.getNumber(2), line.getNumber(3));
+            // Put message in client's queue
+            BlockingQueue<Message> newClientQueue = queueOf(newClientName);
+            boolean delivered;
+            if (newClientQueue != null)
+                delivered = newClientQueue.offer(message);
+            else
+                delivered = node != null && queue != null
+                        && node.forward(newClientName, line);
+            if (!delivered && queue != null)
+                queue.offer(reflected(line));
+            break;
+        }
+        case NEWBALLTIMED: {
+            String newClientName = line.getName(0);
+            ClientSession newClient = sessions.get(newClientName);
+            boolean delivered;
+            if (newClient != null)
+                delivered = newClient.queue.offer(timedBall(newClient, line));
+            else
+                delivered = node != null && queue != null
+                        && node.forward(newClientName, line);
+            if (!delivered && queue != null)
+                queue.offer(reflected(line));
+            break;
+        }
+        case NEWBALLTHROUGHPORTAL:
+        case PORTALTRANSFER: {
+            // The same but for the reply, which carries the sender's
+            // transfer id instead of its portal name
+            boolean transfer = line.getType() == MessageType.PORTALTRANSFER;
+            String newClientName = line.getName(2);
+            String newClientPortalName = line.getName(3);
+            int velocity = transfer ? 1 : 0;
+            Message message = Message.newBallThroughPortal(
+                    newClientPortalName, line.getNumber(velocity),
+                    line.getNumber(velocity + 1));
+
+            ClientSession newClient = sessions.get(newClientName);
+            if (newClient == null && node != null && queue != null
+                    && node.nodeOf(newClientName) != null) {
+                // the other node answers; if it cannot be reached, the
+                // ball goes back
+                if (!node.forward(newClientName, line))
+                    answerPortal(line, queue, false);
+                break;
+            }
+            // If the new client exists, the new portal exists too, and the
+            // new client is keeping up
+            answerPortal(line, queue, newClient != null
+                    && newClient.portalNames.contains(newClientPortalName)
+                    && newClient.queue.offer(message));
+            break;
+        }
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Tells the sender of a portal ball whether it was handed over: with
+     * PORTALACK or PORTALNACK in the sender's queue for a PORTALTRANSFER, or
+     * PORTALBALLACCEPTED or PORTALBALLREJECTED in the queue of the client the
+     * ball left for a NEWBALLTHROUGHPORTAL. A ball forwarded by another node
+     * is answered through the cluster.
+     * 
+     * @param line
+     *            Message NEWBALLTHROUGHPORTAL or PORTALTRANSFER
+     * @param queue
+     *            BlockingQueue<Message> of the client that sent it, or null
+     *            if another node forwarded it
+     * @param accepted
+     *            boolean true if the ball was handed to its new client
+     */
+    private void answerPortal(Message line, BlockingQueue<Message> queue,
+            boolean accepted) {
+        metrics.portalBall(accepted);
+        String oldClientName = line.getName(0);
+        String oldClientPortalName = line.getName(1);
+        int transferId = line.getType() == MessageType.PORTALTRANSFER ? line
+                .getInt(0) : -1;
+        if (queue == null)
+            cluster.forward(oldClientName, Message.portalResult(oldClientName,
+                    oldClientPortalName, transferId, accepted));
+        else
+            replyToPortal(oldClientName, oldClientPortalName, transferId,
+                    accepted, queue);
+    }
+
+    /**
+     * Puts the answer to a portal ball in the right queue.
+     * 
+     * @param oldClientName
+     *            String client the ball left
+     * @param oldClientPortalName
+     *            String portal the ball entered
+     * @param transferId
+     *            int id of the PORTALTRANSFER, or -1 for a
+     *            NEWBALLTHROUGHPORTAL
+     * @param accepted
+     *            boolean true if the ball was handed to its new client
+     * @param queue
+     *            BlockingQueue<Message> of the client that sent the ball, or
+     *            null to look it up
+     */
+    private void replyToPortal(String oldClientName,
+            String oldClientPortalName, int transferId, boolean accepted,
+            BlockingQueue<Message> queue) {
+        if (transferId >= 0) {
+            ClientSession session = sessions.get(oldClientName);
+            if (queue == null && session != null)
+                queue = session.queue;
+            if (queue == null)
+                return;
+            if (!accepted) {
+                queue.add(Message.portalNack(transferId));
+                return;
+            }
+            Message ack = Message.portalAck(transferId);
+            queue.add(ack);
+            // sent again if the connection drops before the client has
+            // read it and the client resumes
+            if (session != null && session.queue == queue)
+                session.acked(ack);
+            return;
+        }
+        // Otherwise, send a message back to the original ball sender
+        BlockingQueue<Message> oldClientQueue = queueOf(oldClientName);
+        if (oldClientQueue != null)
+            oldClientQueue.add(accepted ? Message
+                    .portalBallAccepted(oldClientPortalName) : Message
+                    .portalBallRejected(oldClientPortalName));
+    }
+
+    /**
+     * Unregisters a client whose connection has closed. Its queue is removed,
+     * its joins are kept for a resume, and its neighbours are told their
+     * walls are solid again.
+     * 
+     * @param clientName
+     *            String name of the client
+     * @param queue
+     *            BlockingQueue<Message> of the closed connection
+     */
+    void closeSession(String clientName, BlockingQueue<Message> queue) {
+        if (verbose)
+            System.out.println("Disconnection: " + clientName);
+        // Client disconnect message: DISCONNECT clientName side
+        // Example: DISCONNECT Mars 0
+        topologyLock.lock();
+        try {
+            // A resumed session may already have replaced this one
+            if (queueOf(clientName) == queue) {
+                for (int side = JoinGraph.TOP; side <= JoinGraph.LEFT; side++) {
+                    String neighbour = joins.neighbour(clientName, side);
+                    if (neighbour != null)
+                        sendJoinMessage(neighbour, clientName,
+                                JoinGraph.opposite(side), false, clientName);
                 }
 
+                disconnectedClients.put(clientName, System.currentTimeMillis());
+                disconnectedAcks.put(clientName, sessions.remove(clientName)
+                        .recentAcks);
+                ClusterNode node = cluster;
+                if (node != null)
+                    node.broadcast(Message.boardDown(clientName));
             }
         } finally {
-            if (verbose)
-                System.out.println("Disconnection: " + clientName);
-            // Disconnect client. Remove their queue, remove their connections,
-            // and send messages to other clients about the disconnection.
-            // Client disconnect message: DISCONNECT clientName side
-            // Example: DISCONNECT Mars 0
-
-            synchronized (this) {
-                List<String> connectionsToRemove = new ArrayList<String>();
-                for (String s : connections)
-                    if (s.indexOf(clientName) != -1)
-                        connectionsToRemove.add(s);
-
-                for (String s : connectionsToRemove) {
-                    String connectionType = s.split(" ")[0];
-                    if (connectionType.equals("h")) {
-                        String leftClient = s.split(" ")[1];
-                        String rightClient = s.split(" ")[2];
-                        String leftClientMessage = "DISCONNECT " + rightClient
-                                + " 1";
-                        String rightClientMessage = "DISCONNECT " + leftClient
-                                + " 3";
-                        try {
-                            clientQueues.get(leftClient).put(leftClientMessage);
-                            clientQueues.get(rightClient).put(
-                                    rightClientMessage);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    } else if (connectionType.equals("v")) {
-                        String topClient = s.split(" ")[1];
-                        String bottomClient = s.split(" ")[2];
-                        String topClientMessage = "DISCONNECT " + bottomClient
-                                + " 2";
-                        String bottomClientMessage = "DISCONNECT " + topClient
-                                + " 0";
-                        try {
-                            clientQueues.get(topClient).put(topClientMessage);
-                            clientQueues.get(bottomClient).put(
-                                    bottomClientMessage);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    connections.remove(s);
+            topologyLock.unlock();
+        }
+    }
+
+    /**
+     * Builds the message that gives a ball back to the client that sent it
+     * across a wall, as if the wall had been solid. The sender put the ball
+     * just past the wall, on the new client's side of it, so the wall it
+     * crossed is the edge of the board the ball is closest to; the ball comes
+     * back mirrored across that wall, with its velocity reflected.
+     * 
+     * @param line
+     *            Message NEWBALL or NEWBALLTIMED received from the sender
+     * @return Message NEWBALL to put in the sender's queue
+     */
+    static Message reflected(Message line) {
+        double x = line.getNumber(0);
+        double y = line.getNumber(1);
+        double vx = line.getNumber(2);
+        double vy = line.getNumber(3);
+        double fromX = Math.min(x, BOARD_SIZE - x);
+        double fromY = Math.min(y, BOARD_SIZE - y);
+        // in a corner, the wall the ball crosses the faster
+        boolean acrossX = fromX < fromY || fromX == fromY
+                && Math.abs(vx) > Math.abs(vy);
+        if (acrossX)
+            return Message.newBall(BOARD_SIZE - x, y, -vx, vy);
+        return Message.newBall(x, BOARD_SIZE - y, vx, -vy);
+    }
+
+    /**
+     * Builds the message that hands a timed ball over to its new client. A
+     * client that speaks heartbeats gets NEWBALLTIMED, with the age grown by
+     * half its round-trip time, the estimated delay of the last leg. Older
+     * clients get a plain NEWBALL.
+     * 
+     * @param newClient
+     *            ClientSession of the client the ball is handed to
+     * @param line
+     *            Message NEWBALLTIMED received from the sending client
+     * @return Message to put in the new client's queue
+     */
+    private Message timedBall(ClientSession newClient, Message line) {
+        HeartbeatMonitor monitor = newClient.monitor;
+        if (!monitor.isPeerSpeakingHeartbeats())
+            return Message.newBall(line.getNumber(0), line.getNumber(1),
+                    line.getNumber(2), line.getNumber(3));
+        double age = line.getNumber(4);
+        long roundTrip = monitor.getSmoothedRoundTripTime();
+        if (roundTrip > 0)
+            age += roundTrip / 2e9;
+        return Message.newBallTimed(line.getNumber(0), line.getNumber(1),
+                line.getNumber(2), line.getNumber(3), age);
+    }
+
+    /**
+     * Brings a newly connected client's joins up to date. A client resuming
+     * within resumeGraceMillis of its disconnection gets its joins back, as
+     * does a client connecting for the first time since its joins were
+     * restored from the topology log, and both sides of each join whose other
+     * side is connected are told about it. A client may resume before the
+     * server has noticed its old connection drop, replacing the session of
+     * that connection. Any other client starts without joins, as do clients
+     * whose grace period has run out.
+     * 
+     * A resuming client is also sent its last PORTALACKs again. The client
+     * keeps the transfers its lost connection left unanswered as tombstones,
+     * so an ACK it never read removes the ball the server delivered, and one
+     * it already handled settles nothing. Must be called holding
+     * topologyLock.
+     * 
+     * @param clientName
+     *            String name of the client that connected
+     * @param resume
+     *            boolean true if the client asked to resume its session
+     * @param previous
+     *            ClientSession the new session replaced, or null
+     * @return boolean true if the client got its joins back
+     */
+    private boolean restoreJoins(String clientName, boolean resume,
+            ClientSession previous) {
+        long now = System.currentTimeMillis();
+        Long disconnectedAt = disconnectedClients.remove(clientName);
+        Deque<Message> acks = disconnectedAcks.remove(clientName);
+        if (previous != null)
+            acks = previous.recentAcks;
+        boolean resumed = restoredClients.remove(clientName) || resume
+                && (previous != null || disconnectedAt != null
+                        && now - disconnectedAt <= resumeGraceMillis);
+
+        // Forget the joins of clients that did not come back in time
+        List<String> expired = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : disconnectedClients.entrySet())
+            if (now - entry.getValue() > resumeGraceMillis)
+                expired.add(entry.getKey());
+        if (disconnectedAt != null && !resumed)
+            expired.add(clientName);
+        for (String name : expired) {
+            disconnectedClients.remove(name);
+            disconnectedAcks.remove(name);
+            if (joins.hasJoins(name)) {
+                joins.remove(name);
+                if (topologyLog != null)
+                    topologyLog.removed(name);
+            }
+        }
+
+        if (resumed && acks != null) {
+            ClientSession session = sessions.get(clientName);
+            for (Message ack : acks) {
+                session.queue.add(ack);
+                session.acked(ack);
+            }
+        }
+        if (resumed)
+            for (int side = JoinGraph.TOP; side <= JoinGraph.LEFT; side++) {
+                String neighbour = joins.neighbour(clientName, side);
+                if (neighbour != null) {
+                    // a wall to a board that has yet to reconnect stays
+                    // solid until it does
+                    if (isConnected(neighbour))
+                        sendJoinMessage(clientName, neighbour, side, true,
+                                null);
+                    sendJoinMessage(neighbour, clientName,
+                            JoinGraph.opposite(side), true, clientName);
                 }
-                clientQueues.remove(clientName);
-                clientPortalNames.remove(clientName);
+            }
+        return resumed;
+    }
+
+    /**
+     * Checks whether a client is connected, to this server or to another node
+     * of its cluster.
+     * 
+     * @param clientName
+     *            String name of the client
+     * @return boolean true if it is connected
+     */
+    private boolean isConnected(String clientName) {
+        ClusterNode node = cluster;
+        return queueOf(clientName) != null
+                || (node != null && node.nodeOf(clientName) != null);
+    }
+
+    /**
+     * Makes joins and unjoins, replacing the joins of walls that are joined
+     * anew, then tells each client of this server whose walls changed: a
+     * NEWCLIENT for each wall now joined to another board than before, and a
+     * DISCONNECT for each wall no longer joined. Edits that change nothing
+     * are skipped. Must be called holding topologyLock.
+     * 
+     * @param edits
+     *            List<Message> JOIN and UNJOIN messages, applied in order
+     * @return List<Message> the edits that changed a join
+     */
+    private List<Message> applyEdits(List<Message> edits) {
+        // the walls of each board concerned, as they were before
+        Map<String, String[]> before = new LinkedHashMap<String, String[]>();
+        List<Message> applied = new ArrayList<Message>();
+        for (Message edit : edits) {
+            String clientName = edit.getName(0);
+            int side = edit.getInt(0);
+            String neighbour = joins.neighbour(clientName, side);
+            if (edit.getType() == MessageType.JOIN) {
+                String otherClientName = edit.getName(1);
+                if (otherClientName.equals(neighbour))
+                    continue;
+                remember(before, clientName);
+                remember(before, otherClientName);
+                // the boards displaced from these walls
+                remember(before, neighbour);
+                remember(before, joins.neighbour(otherClientName,
+                        JoinGraph.opposite(side)));
+                joins.join(clientName, side, otherClientName);
+                if (topologyLog != null)
+                    topologyLog.joined(clientName, side, otherClientName);
+            } else {
+                if (neighbour == null)
+                    continue;
+                remember(before, clientName);
+                remember(before, neighbour);
+                joins.unjoin(clientName, side);
+                if (topologyLog != null)
+                    topologyLog.unjoined(clientName, side);
+            }
+            applied.add(edit);
+        }
+
+        for (Map.Entry<String, String[]> entry : before.entrySet()) {
+            String clientName = entry.getKey();
+            for (int side = JoinGraph.TOP; side <= JoinGraph.LEFT; side++) {
+                String was = entry.getValue()[side];
+                String now = joins.neighbour(clientName, side);
+                if (now != null && !now.equals(was))
+                    sendJoinMessage(clientName, now, side, true, null);
+                else if (now == null && was != null)
+                    sendJoinMessage(clientName, was, side, false, null);
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Notes the walls of a board, unless they were noted already.
+     * 
+     * @param before
+     *            Map from each board noted to its neighbours by wall
+     * @param clientName
+     *            String name of the board, or null for none
+     */
+    private void remember(Map<String, String[]> before, String clientName) {
+        if (clientName == null || before.containsKey(clientName))
+            return;
+        String[] walls = new String[JoinGraph.LEFT + 1];
+        for (int side = JoinGraph.TOP; side <= JoinGraph.LEFT; side++)
+            walls[side] = joins.neighbour(clientName, side);
+        before.put(clientName, walls);
+    }
+
+    /**
+     * Handles one message from another node of the cluster: a ball or
+     * portal ball for a client of this server, the answer to a portal ball
+     * this server forwarded, a join or unjoin, or a board connecting to or
+     * disconnecting from that node.
+     * 
+     * @param nodeName
+     *            String name of the node that sent it
+     * @param line
+     *            Message received from the node
+     */
+    void handlePeerMessage(String nodeName, Message line) {
+        if (verbose)
+            System.out.println("Node " + nodeName + " message: " + line);
+        switch (line.getType()) {
+        case NEWBALL:
+        case NEWBALLTIMED:
+        case NEWBALLTHROUGHPORTAL:
+        case PORTALTRANSFER:
+            route(line, null);
+            break;
+        case PORTALRESULT:
+            replyToPortal(line.getName(0), line.getName(1), line.getInt(0),
+                    line.getInt(1) != 0, null);
+            break;
+        case JOIN:
+        case UNJOIN:
+            topologyLock.lock();
+            try {
+                // skips the joins of snapshots that are already made
+                applyEdits(Collections.singletonList(line));
+            } finally {
+                topologyLock.unlock();
+            }
+            break;
+        case BOARDUP:
+            boardUp(nodeName, line.getName(0), line.getInt(0) != 0);
+            break;
+        case BOARDDOWN:
+            topologyLock.lock();
+            try {
+                if (cluster.unplace(line.getName(0), nodeName))
+                    boardDown(line.getName(0));
+            } finally {
+                topologyLock.unlock();
+            }
+            break;
+        default:
+            break;
+        }
+    }
 
-                out.close();
-                in.close();
+    /**
+     * Records that a client connected to another node of the cluster. If it
+     * resumed, the clients of this server joined to it are told their walls
+     * are open again; otherwise its joins are dropped, as they would be on
+     * its own node.
+     * 
+     * @param nodeName
+     *            String name of the node it connected to
+     * @param clientName
+     *            String name of the client
+     * @param resumed
+     *            boolean true if it got its joins back
+     */
+    private void boardUp(String nodeName, String clientName, boolean resumed) {
+        topologyLock.lock();
+        try {
+            cluster.place(clientName, nodeName);
+            restoredClients.remove(clientName);
+            boolean wasDown = disconnectedClients.remove(clientName) != null;
+            for (int side = JoinGraph.TOP; side <= JoinGraph.LEFT; side++) {
+                if (resumed) {
+                    String neighbour = joins.neighbour(clientName, side);
+                    if (neighbour != null)
+                        sendJoinMessage(neighbour, clientName,
+                                JoinGraph.opposite(side), true, clientName);
+                } else {
+                    String neighbour = joins.unjoin(clientName, side);
+                    if (neighbour != null && topologyLog != null)
+                        topologyLog.unjoined(clientName, side);
+                    // those that still saw it connected had open walls
+                    if (neighbour != null && !wasDown)
+                        sendJoinMessage(neighbour, clientName,
+                                JoinGraph.opposite(side), false, clientName);
+                }
             }
+        } finally {
+            topologyLock.unlock();
+        }
+    }
+
+    /**
+     * Records that a client of another node of the cluster disconnected: the
+     * clients of this server joined to it are told their walls are solid, and
+     * its joins are kept for a resume. Must be called holding topologyLock.
+     * 
+     * @param clientName
+     *            String name of the client
+     */
+    private void boardDown(String clientName) {
+        for (int side = JoinGraph.TOP; side <= JoinGraph.LEFT; side++) {
+            String neighbour = joins.neighbour(clientName, side);
+            if (neighbour != null)
+                sendJoinMessage(neighbour, clientName,
+                        JoinGraph.opposite(side), false, clientName);
+        }
+        disconnectedClients.put(clientName, System.currentTimeMillis());
+    }
+
+    /**
+     * Records that the link from another node of the cluster dropped: its
+     * clients count as disconnected until it links up again.
+     * 
+     * @param nodeName
+     *            String name of the node
+     */
+    void nodeLost(String nodeName) {
+        topologyLock.lock();
+        try {
+            for (String clientName : cluster.unplaceAll(nodeName))
+                boardDown(clientName);
+        } finally {
+            topologyLock.unlock();
+        }
+    }
+
+    /**
+     * Adds what a node linking up to this one must know first: a BOARDUP for
+     * each client of this server and a JOIN for each join.
+     * 
+     * @param messages
+     *            List<Message> to add the messages to
+     */
+    void snapshotCluster(List<Message> messages) {
+        topologyLock.lock();
+        try {
+            for (String clientName : sessions.keySet())
+                messages.add(Message.boardUp(clientName, true));
+            // each join once, from its left or top board
+            int[] sides = { JoinGraph.RIGHT, JoinGraph.BOTTOM };
+            for (String clientName : joins.getBoards())
+                for (int side : sides) {
+                    String neighbour = joins.neighbour(clientName, side);
+                    if (neighbour != null)
+                        messages.add(Message.join(clientName, neighbour, side));
+                }
+        } finally {
+            topologyLock.unlock();
         }
     }
 
+    /**
+     * Tells a connected client that one of its walls is now open (NEWCLIENT)
+     * or solid (DISCONNECT). Must be called holding topologyLock.
+     * 
+     * @param clientName
+     *            String name of the client to tell
+     * @param otherClientName
+     *            String name of the client across the wall
+     * @param side
+     *            int wall of the client to tell
+     * @param joined
+     *            boolean true to open the wall, false to make it solid
+     * @param skip
+     *            String name of a client not to tell, or null
+     */
+    private void sendJoinMessage(String clientName, String otherClientName,
+            int side, boolean joined, String skip) {
+        BlockingQueue<Message> queue = queueOf(clientName);
+        if (queue == null || clientName.equals(skip))
+            return;
+        queue.add(joined ? Message.newClient(otherClientName, side) : Message
+                .disconnect(otherClientName, side));
+    }
+
     /**
      * Start a PingballServer using the given arguments. The only specified
      * argument is the port value, which is and integer in the range 0 to 65535,
@@ -394,6 +1579,17 @@ public class PingballServer {
      */
     public static void main(String[] args) {
         int port = DEFAULT_PORT;
+        long heartbeatMillis = HeartbeatMonitor.DEFAULT_INTERVAL_MILLIS;
+        long timeoutMillis = HeartbeatMonitor.DEFAULT_TIMEOUT_MILLIS;
+        int eventLoops = 0;
+        boolean virtualThreads = false;
+        int queueLimit = DEFAULT_QUEUE_LIMIT;
+        OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+        int metricsPort = -1;
+        String nodeName = null;
+        int clusterPort = 0;
+        List<String[]> peers = new ArrayList<String[]>();
+        File topologyFile = null;
 
         Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
         try {
@@ -406,6 +1602,57 @@ public class PingballServer {
                             throw new IllegalArgumentException("port " + port
                                     + " out of range");
                         }
+                    } else if (flag.equals("--heartbeat")) {
+                        heartbeatMillis = Long.parseLong(arguments.remove());
+                        if (heartbeatMillis <= 0)
+                            throw new IllegalArgumentException(
+                                    "heartbeat must be positive");
+                    } else if (flag.equals("--timeout")) {
+                        timeoutMillis = Long.parseLong(arguments.remove());
+                        if (timeoutMillis <= 0)
+                            throw new IllegalArgumentException(
+                                    "timeout must be positive");
+                    } else if (flag.equals("--virtual-threads")) {
+                        virtualThreads = true;
+                    } else if (flag.equals("--event-loops")) {
+                        eventLoops = Integer.parseInt(arguments.remove());
+                        if (eventLoops < 0)
+                            throw new IllegalArgumentException(
+                                    "event loops must not be negative");
+                    } else if (flag.equals("--queue-limit")) {
+                        queueLimit = Integer.parseInt(arguments.remove());
+                        if (queueLimit <= 0)
+                            throw new IllegalArgumentException(
+                                    "queue limit must be positive");
+                    } else if (flag.equals("--overflow")) {
+                        overflowPolicy = OverflowPolicy.parse(arguments
+                                .remove());
+                    } else if (flag.equals("--metrics-port")) {
+                        metricsPort = Integer.parseInt(arguments.remove());
+                        if (metricsPort < 0 || metricsPort > MAXIMUM_PORT)
+                            throw new IllegalArgumentException("port "
+                                    + metricsPort + " out of range");
+                    } else if (flag.equals("--topology")) {
+                        topologyFile = new File(arguments.remove());
+                    } else if (flag.equals("--node")) {
+                        nodeName = arguments.remove();
+                    } else if (flag.equals("--cluster-port")) {
+                        clusterPort = Integer.parseInt(arguments.remove());
+                        if (clusterPort < 0 || clusterPort > MAXIMUM_PORT)
+                            throw new IllegalArgumentException("port "
+                                    + clusterPort + " out of range");
+                    } else if (flag.equals("--peer")) {
+                        // NAME@HOST:PORT
+                        String peer = arguments.remove();
+                        int at = peer.indexOf('@');
+                        int colon = peer.lastIndexOf(':');
+                        if (at <= 0 || colon <= at + 1)
+                            throw new IllegalArgumentException("peer " + peer
+                                    + " is not NAME@HOST:PORT");
+                        Integer.parseInt(peer.substring(colon + 1));
+                        peers.add(new String[] { peer.substring(0, at),
+                                peer.substring(at + 1, colon),
+                                peer.substring(colon + 1) });
                     }
                 } catch (NoSuchElementException nsee) {
                     throw new IllegalArgumentException("missing argument for "
@@ -415,14 +1662,50 @@ public class PingballServer {
                             "unable to parse number for " + flag);
                 }
             }
+            if (nodeName == null && !peers.isEmpty())
+                throw new IllegalArgumentException("--peer needs --node");
         } catch (IllegalArgumentException iae) {
             System.err.println(iae.getMessage());
-            System.err.println("usage: PingballServer [--port PORT]");
+            System.err.println("usage: PingballServer [--port PORT] "
+                    + "[--heartbeat MILLIS] [--timeout MILLIS] "
+                    + "[--event-loops THREADS] [--virtual-threads] "
+                    + "[--queue-limit BALLS] "
+                    + "[--overflow reject|drop-oldest|disconnect] "
+                    + "[--metrics-port PORT] [--topology FILE] [--node NAME "
+                    + "[--cluster-port PORT] [--peer NAME@HOST:PORT ...]]");
             return;
         }
 
         try {
-            runPingballServer(port);
+            PingballServer server = new PingballServer(port, heartbeatMillis,
+                    timeoutMillis);
+            server.setEventLoopThreads(eventLoops);
+            server.setQueueLimit(queueLimit, overflowPolicy);
+            if (metricsPort >= 0)
+                System.err.println("metrics at http://localhost:"
+                        + server.startMetricsEndpoint(metricsPort)
+                        + "/metrics");
+            if (virtualThreads) {
+                ThreadFactory factory = virtualThreadFactory();
+                if (factory != null)
+                    server.setThreadFactory(factory);
+                else
+                    System.err.println("virtual threads need Java 21 or "
+                            + "later; using platform threads");
+            }
+            if (topologyFile != null)
+                System.err.println("restored the joins of "
+                        + server.persistTopology(topologyFile)
+                        + " boards from " + topologyFile);
+            if (nodeName != null) {
+                System.err.println("node " + nodeName + " listening for "
+                        + "nodes on port "
+                        + server.startCluster(nodeName, clusterPort));
+                for (String[] peer : peers)
+                    server.addClusterPeer(peer[0], peer[1], Integer
+                            .parseInt(peer[2]));
+            }
+            server.serve();
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -441,4 +1724,25 @@ public class PingballServer {
         PingballServer server = new PingballServer(port);
         server.serve();
     }
+
+    /**
+     * Start a PingballServer running on the specified port with the given
+     * heartbeat settings
+     * 
+     * @param port
+     *            The network port on which the server should listen.
+     * @param heartbeatMillis
+     *            Time between PINGs to each client, > 0
+     * @param timeoutMillis
+     *            Silence after which a client counts as disconnected, > 0
+     * @throws IOException
+     *             if a network error occurs
+     */
+    public static void runPingballServer(int port, long heartbeatMillis,
+            long timeoutMillis) throws IOException {
+
+        PingballServer server = new PingballServer(port, heartbeatMillis,
+                timeoutMillis);
+        server.serve();
+    }
 }
@@ -0,0 +1,692 @@
+package pingball.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import gadgets.Ball;
+import gadgets.Board;
+import gadgets.Wall;
+import physics.Vect;
+import pingball.protocol.Acceptor;
+import pingball.protocol.ClientConnection;
+import pingball.protocol.HeartbeatMonitor;
+import pingball.protocol.InMemoryTransport;
+import pingball.protocol.Link;
+import pingball.protocol.Message;
+import pingball.protocol.MessageType;
+import pingball.protocol.TcpTransport;
+import pingball.protocol.Transport;
+
+public class PingballServerTest {
+    /**
+     * Testing Strategy
+     *
+     * -a server and many boards share one InMemoryTransport in this JVM
+     * -many boards over TCP to a server in event-loop mode
+     * -client threads made by a custom factory (virtual threads when the
+     * runtime has them)
+     * -boards joined by the server hand a ball across their shared wall, in
+     * both modes
+     * -a closed server refuses new boards
+     * -a board whose connection drops reconnects by itself and resumes its
+     * joins, so a ball crosses again
+     * -resume within the grace period: joins announced again to both sides,
+     * and the last PORTALACKs sent again; after it: joins gone, no ACKs
+     * -several boards route balls at once while another board keeps
+     * connecting and disconnecting, with a client thread each and on event
+     * loops: every ball arrives once or comes back to its sender once
+     * -drop-oldest in event-loop mode, with balls from several senders and
+     * joins changing meanwhile: no control message is lost, and every ball
+     * arrives once or is counted as dropped
+     * -the metrics endpoint reports the boards connected and their messages
+     * -joins and portals kept in a topology file come back after a restart,
+     * each join once both its boards have reconnected
+     * -a batch of topology commands tells each board only the final state of
+     * its walls; a batch naming a board that is not connected changes nothing
+     * -a ball across a wall that cannot be delivered comes back to its sender,
+     * reflected at that wall, whichever wall it crossed
+     */
+
+    private static final int BOARDS = 100;
+    static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Board whose frames the test steps by hand.
+     */
+    private static class SteppedBoard extends Board {
+        private void step() {
+            moveForwardFrame();
+        }
+    }
+
+    /**
+     * InMemoryTransport whose client connections the test can cut, as if
+     * the network dropped them.
+     */
+    private static class CuttableTransport implements Transport {
+        private final InMemoryTransport transport = new InMemoryTransport();
+        private final List<ClientConnection> connections =
+                new CopyOnWriteArrayList<ClientConnection>();
+
+        public Acceptor listen(int port) throws IOException {
+            return transport.listen(port);
+        }
+
+        public Link open(String host, int port) throws IOException {
+            return transport.open(host, port);
+        }
+
+        public ClientConnection connect(String host, int port,
+                String clientName, List<String> portalNames,
+                boolean offerBinary, boolean resume) throws IOException {
+            ClientConnection connection = transport.connect(host, port,
+                    clientName, portalNames, offerBinary, resume);
+            connections.add(connection);
+            return connection;
+        }
+
+        private void cut() {
+            for (ClientConnection connection : connections)
+                connection.close();
+            connections.clear();
+        }
+    }
+
+    /**
+     * Starts a server on a transport, serving from a daemon thread.
+     * 
+     * @param eventLoops
+     *            int selector threads, or 0 for a thread per client
+     * @param factory
+     *            ThreadFactory for the server's threads, or null for the
+     *            default
+     */
+    static PingballServer startServer(Transport transport, int eventLoops,
+            ThreadFactory factory) throws IOException {
+        final PingballServer server = new PingballServer(transport, 0,
+                HeartbeatMonitor.DEFAULT_INTERVAL_MILLIS,
+                HeartbeatMonitor.DEFAULT_TIMEOUT_MILLIS);
+        server.setEventLoopThreads(eventLoops);
+        if (factory != null)
+            server.setThreadFactory(factory);
+        Thread serving = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException ioe) {
+                    // closed
+                }
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+        return server;
+    }
+
+    private static SteppedBoard connect(Transport transport,
+            PingballServer server, String name, boolean binary) {
+        SteppedBoard board = new SteppedBoard();
+        board.setBoardName(name);
+        board.setTransport(transport);
+        board.setBinaryProtocol(binary);
+        assertTrue(board.setHostAndPort("localhost", server.getPort()));
+        return board;
+    }
+
+    /**
+     * Waits for the next message that is not a heartbeat.
+     * 
+     * @return Message received, or null if none came within TIMEOUT_MILLIS
+     */
+    static Message await(ClientConnection connection)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            Message message = connection.poll();
+            if (message == null)
+                Thread.sleep(1);
+            else if (message.getType() != MessageType.PING
+                    && message.getType() != MessageType.PONG)
+                return message;
+        }
+        return null;
+    }
+
+    /**
+     * Connects many boards, then joins the first two and checks that a ball
+     * crosses from one to the other.
+     */
+    private static void play(Transport transport, int eventLoops,
+            ThreadFactory factory) throws Exception {
+        PingballServer server = startServer(transport, eventLoops, factory);
+        List<SteppedBoard> boards = new ArrayList<SteppedBoard>();
+        for (int i = 0; i < BOARDS; i++)
+            boards.add(connect(transport, server, "B" + i, i % 2 == 0));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (server.returnBoards().size() < BOARDS
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(BOARDS, server.returnBoards().size());
+
+        SteppedBoard left = boards.get(0);
+        SteppedBoard right = boards.get(1);
+        server.parseSystemInCommand("h B0 B1");
+        Ball ball = new Ball(18, 10);
+        ball.setVec(new Vect(20, 0));
+        left.addBall(ball);
+        deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (right.getBallsView().isEmpty()
+                && System.currentTimeMillis() < deadline) {
+            left.step();
+            right.step();
+            Thread.sleep(5);
+        }
+        assertEquals(0, left.getBallsView().size());
+        assertEquals(1, right.getBallsView().size());
+        for (Board board : boards)
+            board.setAutoReconnect(false);
+        server.close();
+    }
+
+    @Test
+    public void testManyBoardsInMemory() throws Exception {
+        play(new InMemoryTransport(), 0, null);
+    }
+
+    @Test
+    public void testManyBoardsOnEventLoops() throws Exception {
+        play(new TcpTransport(), 2, null);
+    }
+
+    /**
+     * Has several boards send balls at once, half to a board that stays
+     * connected and half to one that never connects, while a third board,
+     * joined to the first, disconnects and resumes over and over. Checks
+     * that every ball arrives once or comes back to its sender once.
+     */
+    private static void routeWhileChurning(Transport transport,
+            int eventLoops) throws Exception {
+        final int senders = 4;
+        final int ballsEach = 2000;
+        final PingballServer server = startServer(transport, eventLoops,
+                null);
+        ClientConnection sink = transport.connect("localhost", server
+                .getPort(), "Sink", Arrays.<String> asList(), false, false);
+        ClientConnection churn = transport.connect("localhost", server
+                .getPort(), "Churn", Arrays.<String> asList(), false, true);
+        final List<ClientConnection> from = new ArrayList<ClientConnection>();
+        for (int i = 0; i < senders; i++)
+            from.add(transport.connect("localhost", server.getPort(), "S" + i,
+                    Arrays.<String> asList(), false, false));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (server.returnBoards().size() < senders + 2
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        server.parseSystemInCommand("h Sink Churn");
+
+        // each ball is told apart by its y coordinate
+        final Set<Double> returned = Collections
+                .newSetFromMap(new ConcurrentHashMap<Double, Boolean>());
+        final AtomicInteger duplicates = new AtomicInteger(0);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < senders; i++) {
+            final ClientConnection sender = from.get(i);
+            final int first = i * ballsEach;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    int b = first;
+                    while (!stop.get()) {
+                        if (b < first + ballsEach) {
+                            String to = b % 2 == 0 ? "Sink" : "Gone";
+                            if (sender.send(Message.newBall(to, 0.25,
+                                    1 + b / 10000.0, 10, 0)))
+                                b++;
+                        }
+                        Message message = sender.poll();
+                        if (message != null
+                                && message.getType() == MessageType.NEWBALL
+                                && !returned.add(message.getNumber(1)))
+                            duplicates.incrementAndGet();
+                        if (message == null && b == first + ballsEach)
+                            Thread.yield();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        Set<Double> arrived = new HashSet<Double>();
+        int toggles = 0;
+        while (arrived.size() + returned.size() < senders * ballsEach
+                && System.currentTimeMillis() < deadline) {
+            churn.close();
+            churn = transport.connect("localhost", server.getPort(), "Churn",
+                    Arrays.<String> asList(), false, true);
+            toggles++;
+            for (Message message = sink.poll(); message != null; message = sink
+                    .poll())
+                if (message.getType() == MessageType.NEWBALL)
+                    assertTrue(arrived.add(message.getNumber(1)));
+        }
+        stop.set(true);
+        for (Thread thread : threads)
+            thread.join();
+
+        assertTrue(toggles > 1);
+        assertEquals(0, duplicates.get());
+        for (int b = 0; b < senders * ballsEach; b++) {
+            double y = 1 + b / 10000.0;
+            if (b % 2 == 0)
+                assertTrue(arrived.contains(y) != returned.contains(y));
+            else
+                assertTrue(returned.contains(y) && !arrived.contains(y));
+        }
+        churn.close();
+        sink.close();
+        for (ClientConnection sender : from)
+            sender.close();
+        server.close();
+    }
+
+    @Test
+    public void testRouteWhileChurning() throws Exception {
+        routeWhileChurning(new InMemoryTransport(), 0);
+    }
+
+    @Test
+    public void testRouteWhileChurningOnEventLoops() throws Exception {
+        routeWhileChurning(new TcpTransport(), 2);
+    }
+
+    @Test
+    public void testDropOldestOnEventLoop() throws Exception {
+        final int senders = 4;
+        final int ballsEach = 5000;
+        final int toggles = 200;
+        TcpTransport transport = new TcpTransport();
+        PingballServer server = startServer(transport, 1, null);
+        server.setQueueLimit(4, OverflowPolicy.DROP_OLDEST);
+        ClientConnection sink = transport.connect("localhost", server
+                .getPort(), "Sink", Arrays.<String> asList(), true, false);
+        final List<ClientConnection> from = new ArrayList<ClientConnection>();
+        for (int i = 0; i < senders; i++)
+            from.add(transport.connect("localhost", server.getPort(), "S" + i,
+                    Arrays.<String> asList(), true, false));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (server.returnBoards().size() < senders + 1
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < senders; i++) {
+            final ClientConnection sender = from.get(i);
+            final int first = i * ballsEach;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    for (int b = first; b < first + ballsEach; b++) {
+                        sender.queue(Message.newBall("Sink", b, 1, 0, 0));
+                        if (b % 50 == 49)
+                            sender.flush();
+                    }
+                    sender.flush();
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (int i = 0; i < toggles; i++) {
+            server.parseSystemInCommand("h Sink S0");
+            server.parseSystemInCommand("unjoin Sink");
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        int joined = 0;
+        int unjoined = 0;
+        Set<Double> balls = new HashSet<Double>();
+        int received = 0;
+        deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            Message message = sink.poll();
+            if (message == null) {
+                Long dropped = server.returnDroppedBalls().get("Sink");
+                if (unjoined == toggles && received + dropped == senders
+                        * ballsEach)
+                    break;
+                Thread.sleep(1);
+            } else if (message.getType() == MessageType.NEWBALL) {
+                received++;
+                assertTrue(balls.add(message.getNumber(0)));
+            } else if (message.getType() == MessageType.NEWCLIENT) {
+                assertEquals(joined++, unjoined);
+            } else if (message.getType() == MessageType.DISCONNECT) {
+                assertEquals(++unjoined, joined);
+            }
+        }
+        assertEquals(toggles, joined);
+        assertEquals(toggles, unjoined);
+        assertEquals(senders * ballsEach, received
+                + server.returnDroppedBalls().get("Sink"));
+        sink.close();
+        for (ClientConnection sender : from)
+            sender.close();
+        server.close();
+    }
+
+    @Test
+    public void testThreadFactory() throws Exception {
+        final ThreadFactory virtual = PingballServer.virtualThreadFactory();
+        final AtomicInteger made = new AtomicInteger(0);
+        play(new TcpTransport(), 0, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                made.incrementAndGet();
+                if (virtual != null)
+                    return virtual.newThread(runnable);
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // the command thread, and a reader and a sender per board
+        assertEquals(1 + 2 * BOARDS, made.get());
+    }
+
+    @Test
+    public void testClosedServer() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        PingballServer server = startServer(transport, 0, null);
+        server.close();
+        Board board = new Board();
+        board.setBoardName("Late");
+        board.setTransport(transport);
+        assertTrue(!board.setHostAndPort("memory", server.getPort()));
+    }
+
+    @Test
+    public void testMetricsEndpoint() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        PingballServer server = startServer(transport, 0, null);
+        int port = server.startMetricsEndpoint(0);
+        List<SteppedBoard> boards = new ArrayList<SteppedBoard>();
+        for (int i = 0; i < 2; i++)
+            boards.add(connect(transport, server, "M" + i, true));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (server.returnBoards().size() < 2
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+
+        HttpURLConnection http = (HttpURLConnection) new URL(
+                "http://localhost:" + port + "/metrics").openConnection();
+        assertEquals(200, http.getResponseCode());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        InputStream in = http.getInputStream();
+        try {
+            byte[] chunk = new byte[4096];
+            int count;
+            while ((count = in.read(chunk)) >= 0)
+                body.write(chunk, 0, count);
+        } finally {
+            in.close();
+        }
+        String text = new String(body.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(text.contains("\npingball_boards_connected 2\n"));
+        assertTrue(text.contains("pingball_queue_depth{board=\"M1\"}"));
+        for (Board board : boards)
+            board.setAutoReconnect(false);
+        server.close();
+    }
+
+    @Test
+    public void testPersistTopology() throws Exception {
+        File file = File.createTempFile("topology", ".log");
+        file.deleteOnExit();
+        InMemoryTransport transport = new InMemoryTransport();
+        PingballServer first = startServer(transport, 0, null);
+        assertEquals(0, first.persistTopology(file));
+        ClientConnection mars = transport.connect("memory", first.getPort(),
+                "Mars", Arrays.asList("Alpha"), true, false);
+        ClientConnection earth = transport.connect("memory",
+                first.getPort(), "Earth", Arrays.<String> asList(), true,
+                false);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (first.returnBoards().size() < 2
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        first.parseSystemInCommand("v Mars Earth");
+        assertEquals(Message.newClient("Earth", 2), await(mars));
+        mars.close();
+        earth.close();
+        first.close();
+
+        // a new server, which the boards reach without resuming
+        PingballServer second = startServer(transport, 0, null);
+        assertEquals(2, second.persistTopology(file));
+        assertEquals(Arrays.asList("Alpha"), second.returnPortalRegistry()
+                .get("Mars"));
+        mars = transport.connect("memory", second.getPort(), "Mars",
+                Arrays.asList("Alpha"), true, false);
+        earth = transport.connect("memory", second.getPort(), "Earth",
+                Arrays.<String> asList(), false, false);
+        assertEquals(Message.newClient("Mars", 0), await(earth));
+        assertEquals(Message.newClient("Earth", 2), await(mars));
+        mars.close();
+        earth.close();
+        second.close();
+    }
+
+    @Test
+    public void testTopologyBatch() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        PingballServer server = startServer(transport, 0, null);
+        List<ClientConnection> grid = new ArrayList<ClientConnection>();
+        for (String name : Arrays.asList("G0_0", "G0_1", "G1_0", "G1_1"))
+            grid.add(transport.connect("memory", server.getPort(), name,
+                    Arrays.<String> asList(), true, false));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (server.returnBoards().size() < grid.size()
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        ClientConnection corner = grid.get(0);
+
+        server.applyTopology(Arrays.asList("grid G{r}_{c} 2 2"));
+        assertEquals(Message.newClient("G0_1", 1), await(corner));
+        assertEquals(Message.newClient("G1_0", 2), await(corner));
+        assertEquals(Message.newClient("G1_1", 2), await(grid.get(1)));
+        assertEquals(Message.newClient("G0_0", 3), await(grid.get(1)));
+
+        // joined elsewhere and back: nothing changes, nobody is told
+        server.applyTopology(Arrays.asList("h G0_0 G1_1", "h G0_0 G0_1"));
+        // fails as a whole
+        server.parseSystemInCommand("begin");
+        server.parseSystemInCommand("unjoin G0_0");
+        server.parseSystemInCommand("row G1_0 Nobody");
+        server.parseSystemInCommand("end");
+
+        server.parseSystemInCommand("unjoin G1_0");
+        assertEquals(Message.disconnect("G1_0", 2), await(corner));
+        server.applyTopology(Arrays.asList("unjoin G0_0"));
+        assertEquals(Message.disconnect("G0_1", 1), await(corner));
+        for (ClientConnection connection : grid)
+            connection.close();
+        server.close();
+    }
+
+    @Test
+    public void testRefusedWallBall() throws Exception {
+        // the handed-off location is past the wall the sender's ball crossed
+        assertEquals(Message.newBall(5, 0.25, 1, 4), PingballServer
+                .reflected(Message.newBall("Top", 5, 19.75, 1, -4)));
+        assertEquals(Message.newBall(19.75, 5, -10, 1), PingballServer
+                .reflected(Message.newBall("Right", 0.25, 5, 10, 1)));
+        assertEquals(Message.newBall(5, 19.75, 1, -4), PingballServer
+                .reflected(Message.newBallTimed("Bottom", 5, 0.25, 1, 4, 0)));
+        assertEquals(Message.newBall(0.25, 5, 10, 1), PingballServer
+                .reflected(Message.newBall("Left", 19.75, 5, -10, 1)));
+        // in a corner, the wall the ball crosses the faster
+        assertEquals(Message.newBall(0.25, 0.25, 1, 4), PingballServer
+                .reflected(Message.newBall("Top", 0.25, 19.75, 1, -4)));
+
+        InMemoryTransport transport = new InMemoryTransport();
+        PingballServer server = startServer(transport, 0, null);
+        ClientConnection left = transport.connect("memory", server.getPort(),
+                "Left", Arrays.<String> asList(), false, false);
+        ClientConnection right = transport.connect("memory",
+                server.getPort(), "Right", Arrays.<String> asList(), false,
+                false);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (server.returnBoards().size() < 2
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        server.parseSystemInCommand("h Left Right");
+        assertEquals(Message.newClient("Right", 1), await(left));
+
+        // sent before Left heard that Right is gone
+        right.close();
+        assertEquals(Message.disconnect("Right", 1), await(left));
+        assertTrue(left.send(Message.newBall("Right", 0.25, 5, 10, 1)));
+        assertEquals(Message.newBall(19.75, 5, -10, 1), await(left));
+        assertTrue(left.send(Message.newBallTimed("Right", 0.25, 5, 10, 1,
+                0.01)));
+        assertEquals(Message.newBall(19.75, 5, -10, 1), await(left));
+        left.close();
+        server.close();
+    }
+
+    @Test
+    public void testBoardReconnects() throws Exception {
+        CuttableTransport transport = new CuttableTransport();
+        PingballServer server = startServer(transport, 0, null);
+        SteppedBoard left = connect(transport, server, "A", false);
+        SteppedBoard right = connect(transport, server, "B", true);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (server.returnBoards().size() < 2
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        server.parseSystemInCommand("h A B");
+
+        // both links drop; the boards notice on their next step
+        transport.cut();
+        deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ((server.returnBoards().size() < 2 || transport.connections
+                .size() < 2) && System.currentTimeMillis() < deadline) {
+            left.step();
+            right.step();
+            Thread.sleep(5);
+        }
+        assertEquals(2, transport.connections.size());
+
+        // resumed within the grace period, so joined again
+        Wall wall = (Wall) left.getListOfGadgets().get(JoinGraph.RIGHT);
+        deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!wall.isInvisible() && System.currentTimeMillis() < deadline) {
+            left.step();
+            Thread.sleep(5);
+        }
+        assertTrue(wall.isInvisible());
+        Ball ball = new Ball(18, 10);
+        ball.setVec(new Vect(20, 0));
+        left.addBall(ball);
+        deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (right.getBallsView().isEmpty()
+                && System.currentTimeMillis() < deadline) {
+            left.step();
+            right.step();
+            Thread.sleep(5);
+        }
+        assertEquals(0, left.getBallsView().size());
+        assertEquals(1, right.getBallsView().size());
+        left.setAutoReconnect(false);
+        right.setAutoReconnect(false);
+        server.close();
+    }
+
+    /**
+     * Joins Left to Right, hands a portal ball from Left to Right, then drops
+     * Left's connection and waits until Right is told.
+     */
+    private static ClientConnection[] joinAndDrop(InMemoryTransport transport,
+            PingballServer server) throws Exception {
+        ClientConnection left = transport.connect("memory", server.getPort(),
+                "Left", Arrays.asList("Alpha"), false, false);
+        ClientConnection right = transport.connect("memory",
+                server.getPort(), "Right", Arrays.asList("Beta"), true, false);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (server.returnBoards().size() < 2
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        server.parseSystemInCommand("h Left Right");
+        assertEquals(Message.newClient("Right", 1), await(left));
+        assertEquals(Message.newClient("Left", 3), await(right));
+        assertTrue(left.send(Message.portalTransfer("Left", "Alpha", "Right",
+                "Beta", 7, -1, 2)));
+        assertEquals(Message.newBallThroughPortal("Beta", -1, 2),
+                await(right));
+        assertEquals(Message.portalAck(7), await(left));
+        left.close();
+        assertEquals(Message.disconnect("Left", 3), await(right));
+        return new ClientConnection[] { left, right };
+    }
+
+    @Test
+    public void testResumeWithinGrace() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        PingballServer server = startServer(transport, 0, null);
+        ClientConnection right = joinAndDrop(transport, server)[1];
+
+        ClientConnection left = transport.connect("memory", server.getPort(),
+                "Left", Arrays.asList("Alpha"), false, true);
+        // in case the ACK was lost with the connection
+        assertEquals(Message.portalAck(7), await(left));
+        assertEquals(Message.newClient("Right", 1), await(left));
+        assertEquals(Message.newClient("Left", 3), await(right));
+        left.close();
+        right.close();
+        server.close();
+    }
+
+    @Test
+    public void testResumeAfterGrace() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        PingballServer server = startServer(transport, 0, null);
+        server.setResumeGraceMillis(20);
+        ClientConnection right = joinAndDrop(transport, server)[1];
+        Thread.sleep(100);
+
+        ClientConnection left = transport.connect("memory", server.getPort(),
+                "Left", Arrays.asList("Alpha"), false, true);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (server.returnBoards().size() < 2
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        // the old join is gone, so the first news is of a new one
+        server.parseSystemInCommand("h Right Left");
+        assertEquals(Message.newClient("Right", 3), await(left));
+        assertEquals(Message.newClient("Left", 1), await(right));
+        left.close();
+        right.close();
+        server.close();
+    }
+}
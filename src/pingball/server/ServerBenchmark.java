@@ -0,0 +1,243 @@
+package pingball.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ThreadFactory;
+
+import pingball.protocol.HeartbeatMonitor;
+
+/**
+ * Compares the ways a PingballServer can serve its clients: a platform thread
+ * per client ("threads"), a virtual thread per client ("virtual", Java 21 and
+ * later) and selector threads ("loops"). It starts a server in one mode,
+ * connects many bare text clients to it over loopback, and reports how long
+ * connecting took, the platform threads and heap in use once all are
+ * connected, the latency of routing a ball from one client to a joined
+ * neighbour, and the throughput of routing when many pairs of neighbours
+ * exchange balls at once. Clients run in the same JVM, so compare the modes
+ * with each other rather than with a deployed server; run each mode in a
+ * fresh JVM.
+ *
+ * Thread-safety argument: Runs on the main thread, apart from one sender and
+ * one receiver thread per pair in the throughput phase, which each use only
+ * their own client's socket. The server's own threads only touch the server.
+ */
+public class ServerBenchmark {
+
+    private static final int DEFAULT_BOARDS = 1000;
+    private static final int DEFAULT_SAMPLES = 1000;
+    private static final int DEFAULT_LOOPS = 2;
+    private static final int DEFAULT_PAIRS = 4;
+    private static final int BALLS_PER_PAIR = 20000;
+    private static final long CONNECT_TIMEOUT_MILLIS = 120000;
+    private static final long NANOS_PER_MICRO = 1000;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args
+     *            [--mode threads|virtual|loops] [--boards N] [--loops N]
+     *            [--samples N] [--pairs N]
+     * @throws Exception
+     *             if the server or a client fails
+     */
+    public static void main(String[] args) throws Exception {
+        String mode = "threads";
+        int boards = DEFAULT_BOARDS;
+        int loops = DEFAULT_LOOPS;
+        int samples = DEFAULT_SAMPLES;
+        int pairs = DEFAULT_PAIRS;
+
+        Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
+        try {
+            while (!arguments.isEmpty()) {
+                String flag = arguments.remove();
+                try {
+                    if (flag.equals("--mode")) {
+                        mode = arguments.remove();
+                        if (!Arrays.asList("threads", "virtual", "loops")
+                                .contains(mode))
+                            throw new IllegalArgumentException("unknown mode "
+                                    + mode);
+                    } else if (flag.equals("--boards")) {
+                        boards = Integer.parseInt(arguments.remove());
+                    } else if (flag.equals("--loops")) {
+                        loops = Integer.parseInt(arguments.remove());
+                    } else if (flag.equals("--samples")) {
+                        samples = Integer.parseInt(arguments.remove());
+                    } else if (flag.equals("--pairs")) {
+                        pairs = Integer.parseInt(arguments.remove());
+                    } else {
+                        throw new IllegalArgumentException("unknown flag "
+                                + flag);
+                    }
+                } catch (NoSuchElementException nsee) {
+                    throw new IllegalArgumentException("missing argument for "
+                            + flag);
+                } catch (NumberFormatException nfe) {
+                    throw new IllegalArgumentException(
+                            "unable to parse number for " + flag);
+                }
+            }
+            if (boards < 2 || loops < 1 || samples < 1 || pairs < 1)
+                throw new IllegalArgumentException("need at least 2 boards, "
+                        + "1 loop, 1 sample and 1 pair");
+            if (2 * pairs > boards)
+                throw new IllegalArgumentException("need 2 boards per pair");
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println("usage: ServerBenchmark "
+                    + "[--mode threads|virtual|loops] [--boards N] "
+                    + "[--loops N] [--samples N] [--pairs N]");
+            return;
+        }
+
+        final PingballServer server = new PingballServer(0,
+                HeartbeatMonitor.DEFAULT_INTERVAL_MILLIS,
+                HeartbeatMonitor.DEFAULT_TIMEOUT_MILLIS);
+        // a receiver may fall a whole run behind, and must get every ball
+        server.setQueueLimit(BALLS_PER_PAIR, OverflowPolicy.REJECT);
+        if (mode.equals("virtual")) {
+            ThreadFactory factory = PingballServer.virtualThreadFactory();
+            if (factory == null) {
+                System.err.println("virtual threads need Java 21 or later");
+                return;
+            }
+            server.setThreadFactory(factory);
+        } else if (mode.equals("loops")) {
+            server.setEventLoopThreads(loops);
+        }
+        Thread serving = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException ioe) {
+                    // closed
+                }
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        // connect the boards, each with the original text handshake
+        long start = System.nanoTime();
+        List<Socket> clients = new ArrayList<Socket>();
+        for (int i = 0; i < boards; i++) {
+            Socket client = new Socket("localhost", server.getPort());
+            client.setTcpNoDelay(true);
+            client.getOutputStream().write(
+                    ("B" + i + "\n0\n").getBytes(StandardCharsets.UTF_8));
+            clients.add(client);
+        }
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        while (server.returnBoards().size() < boards) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IOException("only " + server.returnBoards().size()
+                        + " boards connected");
+            Thread.sleep(1);
+        }
+        long connectMillis = (System.nanoTime() - start) / 1000000;
+
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long heapMegabytes = (runtime.totalMemory() - runtime.freeMemory())
+                / (1 << 20);
+        int platformThreads = Thread.activeCount();
+
+        // route balls from B0 to B1 across their shared wall
+        server.parseSystemInCommand("h B0 B1");
+        OutputStream sender = clients.get(0).getOutputStream();
+        BufferedReader receiver = new BufferedReader(new InputStreamReader(
+                clients.get(1).getInputStream(), StandardCharsets.UTF_8));
+        byte[] ball = "NEWBALL B1 1.0 2.0 3.0 4.0\n"
+                .getBytes(StandardCharsets.UTF_8);
+        long[] latencies = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            long sent = System.nanoTime();
+            sender.write(ball);
+            String line;
+            do {
+                line = receiver.readLine();
+                if (line == null)
+                    throw new IOException("server closed the connection");
+            } while (!line.startsWith("NEWBALL"));
+            latencies[i] = System.nanoTime() - sent;
+        }
+        Arrays.sort(latencies);
+
+        // pairs of neighbours exchanging balls at once
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < pairs; i++) {
+            final String left = "B" + 2 * i;
+            final String right = "B" + (2 * i + 1);
+            if (i > 0)
+                server.parseSystemInCommand("h " + left + " " + right);
+            final OutputStream out = clients.get(2 * i).getOutputStream();
+            final BufferedReader in = new BufferedReader(new InputStreamReader(
+                    clients.get(2 * i + 1).getInputStream(),
+                    StandardCharsets.UTF_8));
+            final byte[] pairBall = ("NEWBALL " + right + " 1.0 2.0 3.0 4.0\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < BALLS_PER_PAIR; j++)
+                            out.write(pairBall);
+                    } catch (IOException ioe) {
+                        // counted as missing below
+                    }
+                }
+            }));
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        int received = 0;
+                        while (received < BALLS_PER_PAIR) {
+                            String line = in.readLine();
+                            if (line == null)
+                                return;
+                            if (line.startsWith("NEWBALL"))
+                                received++;
+                        }
+                    } catch (IOException ioe) {
+                        // counted as missing below
+                    }
+                }
+            }));
+        }
+        start = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("mode " + mode + (mode.equals("loops") ? " ("
+                + loops + ")" : ""));
+        System.out.println("boards " + boards + " connected in "
+                + connectMillis + " ms");
+        System.out.println("platform threads " + platformThreads);
+        System.out.println("heap " + heapMegabytes + " MB");
+        System.out.println("routing latency median "
+                + latencies[samples / 2] / NANOS_PER_MICRO + " us, p99 "
+                + latencies[samples * 99 / 100] / NANOS_PER_MICRO + " us");
+        System.out.println("routing throughput "
+                + (long) (pairs * BALLS_PER_PAIR / seconds)
+                + " messages/s over " + pairs + " pairs");
+
+        for (Socket client : clients)
+            client.close();
+        server.close();
+        System.exit(0);
+    }
+}
@@ -22,6 +22,8 @@ import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.table.DefaultTableModel;
 
+import pingball.protocol.Message;
+
 /**
  * Additional feature for Pingball Phase 3 - ServerGUI allowing for connection
  * of boards in more user friendly way.
@@ -234,7 +236,7 @@ public class ServerGUI extends JFrame implements ActionListener {
             public void run() {
                 try {
                     while (true) {
-                        Map<String, BlockingQueue<String>> boardMap = server
+                        Map<String, BlockingQueue<Message>> boardMap = server
                                 .returnBoards();
                         // System.out.println("boardList: " +
                         // boardMap.toString());
@@ -0,0 +1,297 @@
+package pingball.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import pingball.protocol.MessageType;
+
+/**
+ * Counters a PingballServer keeps about its routing, and the text it reports
+ * them in: the Prometheus text format, one "name{labels} value" line per
+ * figure, so that any monitoring system that scrapes it can plot the server
+ * and operators can read it with curl.
+ *
+ * Counters only ever grow. Rates are worked out when the metrics are
+ * written, over the time since the previous write, but at least
+ * RATE_WINDOW_NANOS, so that several scrapers share one window instead of
+ * each getting rates over the gaps between them. The time taken to route
+ * each message is kept in a histogram per message type, with buckets from
+ * 1 microsecond doubling up to about a second; only the histograms of types
+ * that have been received are written.
+ *
+ * Abstraction Function: Represents the messages routed by a server since it
+ * started, counted and timed by type, the portal balls it accepted and
+ * rejected, and the rates of both over the last window.
+ *
+ * Representation: messages[t] counts the messages of type with ordinal t;
+ * routing[t][b] counts those that took at most bucketBound(b) to route, or
+ * longer than all bounds for b == BUCKETS. portalBalls[0] counts accepted
+ * portal balls and portalBalls[1] rejected ones. window* hold the counts and
+ * time at the start of the current window, and the rates measured over the
+ * previous one.
+ *
+ * Rep Invariant: every array has one element per type or result, and
+ * windowStart <= the current time.
+ *
+ * Thread-safety argument: The counters are LongAdders, which any number of
+ * routing threads add to without contention. The window is only used by
+ * write, which is synchronized.
+ */
+class ServerMetrics {
+
+    /** Number of finite histogram buckets; the first ends at 1 us. */
+    static final int BUCKETS = 21;
+    /** Shortest time rates are measured over. */
+    private static final long RATE_WINDOW_NANOS = 1000000000L;
+    private static final long NANOS_PER_MICRO = 1000;
+    private static final String[] PORTAL_RESULTS = { "accepted", "rejected" };
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private final long startNanos = System.nanoTime();
+    private final LongAdder[] messages = adders(TYPES.length);
+    private final LongAdder[][] routing = new LongAdder[TYPES.length][];
+    private final LongAdder[] routingNanos = adders(TYPES.length);
+    private final LongAdder[] portalBalls = adders(PORTAL_RESULTS.length);
+
+    private long windowStart = startNanos;
+    private final long[] windowMessages = new long[TYPES.length];
+    private final long[] windowPortalBalls = new long[PORTAL_RESULTS.length];
+    private final double[] messageRates = new double[TYPES.length];
+    private final double[] portalRates = new double[PORTAL_RESULTS.length];
+
+    /**
+     * Makes a registry with every counter at zero.
+     */
+    ServerMetrics() {
+        for (int t = 0; t < TYPES.length; t++)
+            routing[t] = adders(BUCKETS + 1);
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+
+    /**
+     * Gets the upper bound of a histogram bucket.
+     *
+     * @param bucket
+     *            int bucket, 0 <= bucket < BUCKETS
+     * @return long bound in nanoseconds, 1 us doubled bucket times
+     */
+    static long bucketBound(int bucket) {
+        return NANOS_PER_MICRO << bucket;
+    }
+
+    /**
+     * Gets the histogram bucket a duration falls in.
+     *
+     * @param nanos
+     *            long duration in nanoseconds, >= 0
+     * @return int smallest bucket whose bound is at least nanos, or BUCKETS
+     *         if nanos is longer than every bound
+     */
+    static int bucketOf(long nanos) {
+        long micros = Math.max(0, nanos - 1) / NANOS_PER_MICRO;
+        return Math.min(BUCKETS, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Counts a message a client sent, and the time routing it took.
+     *
+     * @param type
+     *            MessageType of the message
+     * @param nanos
+     *            long time from receiving it to queueing what it caused
+     */
+    void routed(MessageType type, long nanos) {
+        int t = type.ordinal();
+        messages[t].increment();
+        routing[t][bucketOf(nanos)].increment();
+        routingNanos[t].add(nanos);
+    }
+
+    /**
+     * Counts a ball sent through a portal.
+     *
+     * @param accepted
+     *            boolean true if it was handed to the other board, false if
+     *            it was sent back
+     */
+    void portalBall(boolean accepted) {
+        portalBalls[accepted ? 0 : 1].increment();
+    }
+
+    /** OBSERVER METHODS **/
+
+    /**
+     * @param type
+     *            MessageType to count
+     * @return long number of messages of that type routed so far
+     */
+    long getMessages(MessageType type) {
+        return messages[type.ordinal()].sum();
+    }
+
+    /**
+     * @param accepted
+     *            boolean true for accepted portal balls, false for rejected
+     * @return long number of such portal balls so far
+     */
+    long getPortalBalls(boolean accepted) {
+        return portalBalls[accepted ? 0 : 1].sum();
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format.
+     *
+     * @param out
+     *            StringBuilder to append the lines to
+     * @param queues
+     *            Map from the name of each connected board to its queue
+     * @param waitingForResume
+     *            int number of disconnected boards whose joins are kept
+     */
+    synchronized void write(StringBuilder out, Map<String, ClientQueue> queues,
+            int waitingForResume) {
+        long now = System.nanoTime();
+        if (now - windowStart >= RATE_WINDOW_NANOS) {
+            double seconds = (now - windowStart) / 1e9;
+            for (int t = 0; t < TYPES.length; t++) {
+                long count = messages[t].sum();
+                messageRates[t] = (count - windowMessages[t]) / seconds;
+                windowMessages[t] = count;
+            }
+            for (int r = 0; r < PORTAL_RESULTS.length; r++) {
+                long count = portalBalls[r].sum();
+                portalRates[r] = (count - windowPortalBalls[r]) / seconds;
+                windowPortalBalls[r] = count;
+            }
+            windowStart = now;
+        }
+
+        header(out, "pingball_uptime_seconds", "gauge",
+                "Time since the server started.");
+        line(out, "pingball_uptime_seconds", "", (now - startNanos) / 1e9);
+        header(out, "pingball_boards_connected", "gauge",
+                "Boards connected now.");
+        line(out, "pingball_boards_connected", "", queues.size());
+        header(out, "pingball_boards_awaiting_resume", "gauge",
+                "Disconnected boards whose joins are kept for a resume.");
+        line(out, "pingball_boards_awaiting_resume", "", waitingForResume);
+
+        header(out, "pingball_messages_total", "counter",
+                "Messages received from boards, by type.");
+        for (int t = 0; t < TYPES.length; t++)
+            line(out, "pingball_messages_total", type(t), messages[t].sum());
+        header(out, "pingball_messages_per_second", "gauge",
+                "Messages received from boards per second, by type.");
+        for (int t = 0; t < TYPES.length; t++)
+            line(out, "pingball_messages_per_second", type(t),
+                    messageRates[t]);
+
+        header(out, "pingball_portal_balls_total", "counter",
+                "Balls sent through portals, by result.");
+        for (int r = 0; r < PORTAL_RESULTS.length; r++)
+            line(out, "pingball_portal_balls_total", result(r),
+                    portalBalls[r].sum());
+        header(out, "pingball_portal_balls_per_second", "gauge",
+                "Balls sent through portals per second, by result.");
+        for (int r = 0; r < PORTAL_RESULTS.length; r++)
+            line(out, "pingball_portal_balls_per_second", result(r),
+                    portalRates[r]);
+
+        header(out, "pingball_routing_seconds", "histogram",
+                "Time taken to route a message, by type.");
+        for (int t = 0; t < TYPES.length; t++) {
+            // only the types clients have sent, to keep the page short
+            if (messages[t].sum() == 0)
+                continue;
+            long count = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                count += routing[t][b].sum();
+                line(out, "pingball_routing_seconds_bucket", type(t)
+                        + ",le=\"" + bucketBound(b) / 1e9 + "\"", count);
+            }
+            count += routing[t][BUCKETS].sum();
+            line(out, "pingball_routing_seconds_bucket", type(t)
+                    + ",le=\"+Inf\"", count);
+            line(out, "pingball_routing_seconds_sum", type(t),
+                    routingNanos[t].sum() / 1e9);
+            line(out, "pingball_routing_seconds_count", type(t), count);
+        }
+
+        // sorted, so that boards keep their place from one scrape to the next
+        Map<String, ClientQueue> sorted = new TreeMap<String, ClientQueue>(
+                queues);
+        header(out, "pingball_queue_depth", "gauge",
+                "Messages queued for each board.");
+        for (Map.Entry<String, ClientQueue> entry : sorted.entrySet())
+            line(out, "pingball_queue_depth", board(entry.getKey()), entry
+                    .getValue().size());
+        header(out, "pingball_queue_high_water_mark", "gauge",
+                "Most messages ever queued for each board.");
+        for (Map.Entry<String, ClientQueue> entry : sorted.entrySet())
+            line(out, "pingball_queue_high_water_mark", board(entry.getKey()),
+                    entry.getValue().getHighWaterMark());
+        header(out, "pingball_queue_dropped_balls_total", "counter",
+                "Balls refused or dropped because a board's queue was full.");
+        for (Map.Entry<String, ClientQueue> entry : sorted.entrySet())
+            line(out, "pingball_queue_dropped_balls_total", board(entry
+                    .getKey()), entry.getValue().getDroppedBalls());
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Runtime runtime = Runtime.getRuntime();
+        header(out, "pingball_threads", "gauge", "Live platform threads.");
+        line(out, "pingball_threads", "", threads.getThreadCount());
+        header(out, "pingball_threads_peak", "gauge",
+                "Most live platform threads since the server started.");
+        line(out, "pingball_threads_peak", "", threads.getPeakThreadCount());
+        header(out, "pingball_heap_used_bytes", "gauge", "Heap in use.");
+        line(out, "pingball_heap_used_bytes", "", runtime.totalMemory()
+                - runtime.freeMemory());
+        header(out, "pingball_heap_max_bytes", "gauge",
+                "Most heap the server may use.");
+        line(out, "pingball_heap_max_bytes", "", runtime.maxMemory());
+    }
+
+    private static String type(int t) {
+        return "type=\"" + TYPES[t] + "\"";
+    }
+
+    private static String result(int r) {
+        return "result=\"" + PORTAL_RESULTS[r] + "\"";
+    }
+
+    private static String board(String name) {
+        return "board=\"" + name.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n") + "\"";
+    }
+
+    private static void header(StringBuilder out, String name, String type,
+            String help) {
+        out.append("# HELP ").append(name).append(' ').append(help)
+                .append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type)
+                .append('\n');
+    }
+
+    private static void line(StringBuilder out, String name, String labels,
+            double value) {
+        out.append(name);
+        if (!labels.isEmpty())
+            out.append('{').append(labels).append('}');
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            out.append((long) value);
+        else
+            out.append(value);
+        out.append('\n');
+    }
+}
@@ -0,0 +1,85 @@
+package pingball.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import pingball.protocol.Message;
+import pingball.protocol.MessageType;
+
+public class ServerMetricsTest {
+    /**
+     * Testing Strategy
+     *
+     * -histogram buckets: zero, on and just past a bound, past every bound
+     * -counters by type and by portal result
+     * -written text: counters, cumulative buckets, per-board queues, and a
+     * board name that needs escaping
+     */
+
+    @Test
+    public void testBuckets() {
+        assertEquals(0, ServerMetrics.bucketOf(0));
+        assertEquals(0, ServerMetrics.bucketOf(1000));
+        assertEquals(1, ServerMetrics.bucketOf(1001));
+        assertEquals(1, ServerMetrics.bucketOf(2000));
+        assertEquals(2, ServerMetrics.bucketOf(2001));
+        assertEquals(ServerMetrics.BUCKETS, ServerMetrics.bucketOf(
+                ServerMetrics.bucketBound(ServerMetrics.BUCKETS - 1) + 1));
+        assertEquals(ServerMetrics.BUCKETS, ServerMetrics
+                .bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testCounters() {
+        ServerMetrics metrics = new ServerMetrics();
+        metrics.routed(MessageType.NEWBALL, 500);
+        metrics.routed(MessageType.NEWBALL, 3000);
+        metrics.routed(MessageType.PORTALTRANSFER, 100);
+        metrics.portalBall(true);
+        metrics.portalBall(false);
+        metrics.portalBall(false);
+        assertEquals(2, metrics.getMessages(MessageType.NEWBALL));
+        assertEquals(0, metrics.getMessages(MessageType.PING));
+        assertEquals(1, metrics.getPortalBalls(true));
+        assertEquals(2, metrics.getPortalBalls(false));
+    }
+
+    @Test
+    public void testWrite() {
+        ServerMetrics metrics = new ServerMetrics();
+        metrics.routed(MessageType.NEWBALL, 500);
+        metrics.routed(MessageType.NEWBALL, 3000);
+        metrics.portalBall(false);
+        Map<String, ClientQueue> queues = new HashMap<String, ClientQueue>();
+        ClientQueue mars = new ClientQueue(10, OverflowPolicy.REJECT);
+        mars.add(Message.newClient("Earth", 1));
+        queues.put("Mars", mars);
+        queues.put("a\"b", new ClientQueue(10, OverflowPolicy.REJECT));
+
+        StringBuilder out = new StringBuilder();
+        metrics.write(out, queues, 3);
+        String text = out.toString();
+        assertTrue(text.contains("\npingball_boards_connected 2\n"));
+        assertTrue(text.contains("\npingball_boards_awaiting_resume 3\n"));
+        assertTrue(text.contains(
+                "\npingball_messages_total{type=\"NEWBALL\"} 2\n"));
+        assertTrue(text.contains("\npingball_portal_balls_total"
+                + "{result=\"rejected\"} 1\n"));
+        assertTrue(text.contains("\npingball_routing_seconds_bucket"
+                + "{type=\"NEWBALL\",le=\"1.0E-6\"} 1\n"));
+        assertTrue(text.contains("\npingball_routing_seconds_bucket"
+                + "{type=\"NEWBALL\",le=\"4.0E-6\"} 2\n"));
+        assertTrue(text.contains("\npingball_routing_seconds_count"
+                + "{type=\"NEWBALL\"} 2\n"));
+        assertTrue(text.contains(
+                "\npingball_queue_depth{board=\"Mars\"} 1\n"));
+        assertTrue(text.contains(
+                "\npingball_queue_depth{board=\"a\\\"b\"} 0\n"));
+        assertTrue(text.contains("\npingball_heap_used_bytes "));
+    }
+}
@@ -0,0 +1,247 @@
+package pingball.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only file recording a server's joins and the portals of each board
+ * it has seen, so that a restarted server gets them back. Each change is one
+ * line, written and flushed as it is made:
+ * - join BOARD SIDE OTHER, BOARD's wall SIDE was joined to OTHER
+ * - unjoin BOARD SIDE, the join at BOARD's wall SIDE was removed
+ * - remove BOARD, every join of BOARD was removed
+ * - portals BOARD [PORTAL ...], BOARD connected with these portals
+ * Board and portal names never contain whitespace, since the text protocol
+ * separates them by spaces.
+ *
+ * Replaying the lines in order rebuilds the state; a line that cannot be
+ * parsed, e.g. one cut short by a crash, is skipped. Once replayed, the file
+ * is compacted: rewritten to hold one line per join and board, through a
+ * temporary file renamed over it, so that it only grows with the changes
+ * made since the server started.
+ *
+ * A failure to write is reported once on System.err and the server goes on
+ * without the log, since the joins in memory are still right.
+ *
+ * Abstraction Function: Represents the file and the changes appended to it.
+ *
+ * Representation: out appends to file, or is null before compact, after
+ * close, or after a write failed.
+ *
+ * Rep Invariant: true.
+ *
+ * Thread-safety argument: Not thread-safe. PingballServer only uses it
+ * holding its topology lock.
+ */
+class TopologyLog {
+
+    private final File file;
+    private Writer out = null;
+
+    /**
+     * Makes a log kept in a file. Nothing is read or written until replay or
+     * compact.
+     *
+     * @param file
+     *            File of the log; it need not exist yet
+     */
+    TopologyLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the log back, applying every change in it.
+     *
+     * @param joins
+     *            JoinGraph to make the joins in
+     * @param portals
+     *            Map to put the portal names of each board in
+     * @return int number of lines skipped because they could not be parsed
+     * @throws IOException
+     *             if the file exists but cannot be read
+     */
+    int replay(JoinGraph joins, Map<String, List<String>> portals)
+            throws IOException {
+        BufferedReader in;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(
+                    file), StandardCharsets.UTF_8));
+        } catch (FileNotFoundException fnfe) {
+            // a server's first start
+            return 0;
+        }
+        int skipped = 0;
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                try {
+                    apply(line.trim().split("\\s+"), joins, portals);
+                } catch (IllegalArgumentException iae) {
+                    skipped++;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return skipped;
+    }
+
+    private static void apply(String[] words, JoinGraph joins,
+            Map<String, List<String>> portals) {
+        String command = words[0];
+        if (command.equals("join") && words.length == 4)
+            joins.join(words[1], Integer.parseInt(words[2]), words[3]);
+        else if (command.equals("unjoin") && words.length == 3)
+            joins.unjoin(words[1], Integer.parseInt(words[2]));
+        else if (command.equals("remove") && words.length == 2)
+            joins.remove(words[1]);
+        else if (command.equals("portals") && words.length >= 2)
+            portals.put(words[1], new ArrayList<String>(Arrays.asList(words)
+                    .subList(2, words.length)));
+        else
+            throw new IllegalArgumentException("bad line");
+    }
+
+    /**
+     * Rewrites the log to hold just the given state, then keeps it open to
+     * append changes to.
+     *
+     * @param joins
+     *            JoinGraph of the joins to keep
+     * @param portals
+     *            Map from each board known to its portal names
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    void compact(JoinGraph joins, Map<String, List<String>> portals)
+            throws IOException {
+        close();
+        File parent = file.getAbsoluteFile().getParentFile();
+        File temporary = File.createTempFile(file.getName(), ".tmp", parent);
+        Writer compacted = writer(temporary, false);
+        try {
+            for (Map.Entry<String, List<String>> entry : portals.entrySet())
+                compacted.write(portalsLine(entry.getKey(), entry.getValue()));
+            // each join once, from its left or top board
+            for (String board : joins.getBoards())
+                for (int side = JoinGraph.RIGHT; side <= JoinGraph.BOTTOM;
+                        side++) {
+                    String other = joins.neighbour(board, side);
+                    if (other != null)
+                        compacted.write("join " + board + " " + side + " "
+                                + other + "\n");
+                }
+        } finally {
+            compacted.close();
+        }
+        Files.move(temporary.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        out = writer(file, true);
+    }
+
+    private static Writer writer(File file, boolean append)
+            throws IOException {
+        return new OutputStreamWriter(new FileOutputStream(file, append),
+                StandardCharsets.UTF_8);
+    }
+
+    private static String portalsLine(String board, List<String> portalNames) {
+        StringBuilder line = new StringBuilder("portals ").append(board);
+        for (String portal : portalNames)
+            line.append(' ').append(portal);
+        return line.append('\n').toString();
+    }
+
+    /**
+     * Records a join.
+     *
+     * @param board
+     *            String name of the first board
+     * @param side
+     *            int wall of the first board
+     * @param other
+     *            String name of the board joined to it
+     */
+    void joined(String board, int side, String other) {
+        append("join " + board + " " + side + " " + other + "\n");
+    }
+
+    /**
+     * Records that the join at one wall was removed.
+     *
+     * @param board
+     *            String name of the board
+     * @param side
+     *            int wall of the board
+     */
+    void unjoined(String board, int side) {
+        append("unjoin " + board + " " + side + "\n");
+    }
+
+    /**
+     * Records that every join of a board was removed.
+     *
+     * @param board
+     *            String name of the board
+     */
+    void removed(String board) {
+        append("remove " + board + "\n");
+    }
+
+    /**
+     * Records the portals of a board.
+     *
+     * @param board
+     *            String name of the board
+     * @param portalNames
+     *            List<String> names of its portals
+     */
+    void portals(String board, List<String> portalNames) {
+        append(portalsLine(board, portalNames));
+    }
+
+    private void append(String line) {
+        if (out == null)
+            return;
+        try {
+            out.write(line);
+            out.flush();
+        } catch (IOException ioe) {
+            System.err.println("topology log " + file + " failed, "
+                    + "no longer written: " + ioe.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Stops appending to the log.
+     */
+    void close() {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException ioe) {
+            // Do nothing with exceptions
+        } finally {
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package pingball.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TopologyLogTest {
+    /**
+     * Testing Strategy
+     *
+     * -a file that does not exist replays as empty
+     * -joins, unjoins, removals and portals appended, then replayed
+     * -a line cut short, or otherwise unreadable, is skipped
+     * -compacting keeps the state and drops the history
+     */
+
+    private static File emptyFile() throws IOException {
+        File file = File.createTempFile("topology", ".log");
+        file.deleteOnExit();
+        assertTrue(file.delete());
+        return file;
+    }
+
+    @Test
+    public void testMissingFile() throws IOException {
+        JoinGraph joins = new JoinGraph();
+        Map<String, List<String>> portals = new HashMap<String, List<String>>();
+        assertEquals(0, new TopologyLog(emptyFile()).replay(joins, portals));
+        assertTrue(joins.getBoards().isEmpty());
+        assertTrue(portals.isEmpty());
+    }
+
+    @Test
+    public void testAppendAndReplay() throws IOException {
+        File file = emptyFile();
+        TopologyLog log = new TopologyLog(file);
+        log.compact(new JoinGraph(), new HashMap<String, List<String>>());
+        log.joined("Mars", JoinGraph.RIGHT, "Earth");
+        log.joined("Mars", JoinGraph.BOTTOM, "Venus");
+        log.joined("Pluto", JoinGraph.RIGHT, "Pluto");
+        log.unjoined("Venus", JoinGraph.TOP);
+        log.joined("Ceres", JoinGraph.BOTTOM, "Io");
+        log.removed("Io");
+        log.portals("Mars", Arrays.asList("Alpha", "Beta"));
+        log.portals("Earth", Arrays.<String> asList());
+        log.close();
+        // ignored once closed
+        log.removed("Mars");
+
+        JoinGraph joins = new JoinGraph();
+        Map<String, List<String>> portals = new HashMap<String, List<String>>();
+        assertEquals(0, new TopologyLog(file).replay(joins, portals));
+        assertEquals("Earth", joins.neighbour("Mars", JoinGraph.RIGHT));
+        assertNull(joins.neighbour("Mars", JoinGraph.BOTTOM));
+        assertEquals("Pluto", joins.neighbour("Pluto", JoinGraph.LEFT));
+        assertFalse(joins.hasJoins("Ceres"));
+        assertEquals(Arrays.asList("Alpha", "Beta"), portals.get("Mars"));
+        assertEquals(Arrays.<String> asList(), portals.get("Earth"));
+    }
+
+    @Test
+    public void testUnreadableLines() throws IOException {
+        File file = emptyFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(("join Mars 1 Earth\nbogus\njoin Mars 7 Venus\n\n"
+                + "unjoin Mars x\njoin Venus 2").getBytes(
+                StandardCharsets.UTF_8));
+        out.close();
+        JoinGraph joins = new JoinGraph();
+        assertEquals(4, new TopologyLog(file).replay(joins,
+                new HashMap<String, List<String>>()));
+        assertEquals("Earth", joins.neighbour("Mars", JoinGraph.RIGHT));
+        assertFalse(joins.hasJoins("Venus"));
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        File file = emptyFile();
+        TopologyLog log = new TopologyLog(file);
+        log.compact(new JoinGraph(), new HashMap<String, List<String>>());
+        for (int i = 0; i < 100; i++)
+            log.joined("Mars", JoinGraph.RIGHT, "Earth" + i);
+        log.joined("Venus", JoinGraph.BOTTOM, "Mars");
+        log.portals("Mars", Arrays.asList("Alpha"));
+        log.close();
+
+        JoinGraph joins = new JoinGraph();
+        Map<String, List<String>> portals = new HashMap<String, List<String>>();
+        log.replay(joins, portals);
+        log.compact(joins, portals);
+        log.close();
+        List<String> lines = Files.readAllLines(file.toPath(),
+                StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        assertTrue(lines.contains("join Mars 1 Earth99"));
+        assertTrue(lines.contains("join Venus 2 Mars"));
+        assertTrue(lines.contains("portals Mars Alpha"));
+    }
+}
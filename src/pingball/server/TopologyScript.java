@@ -0,0 +1,183 @@
+package pingball.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import pingball.protocol.Message;
+
+/**
+ * A batch of topology commands, parsed into the joins and unjoins they make,
+ * for a PingballServer to apply all at once. The commands, one per line:
+ * - h LEFT RIGHT, joins LEFT's right wall to RIGHT
+ * - v TOP BOTTOM, joins TOP's bottom wall to BOTTOM
+ * - row B1 B2 ... Bn, joins each board's right wall to the next board
+ * - column B1 B2 ... Bn, joins each board's bottom wall to the next board
+ * - grid PATTERN ROWS COLUMNS, joins the boards named by PATTERN into a
+ * grid; PATTERN names the board in row r and column c, counted from 0, with
+ * {r} and {c} replaced by r and c, e.g. "grid B{r}_{c} 20 20"
+ * - torus PATTERN ROWS COLUMNS, the same grid with its right column also
+ * joined to its left one and its bottom row to its top one
+ * - unjoin BOARD, removes every join of BOARD
+ * - load FILE, the commands in FILE, one per line
+ * Blank lines and lines starting with # are ignored.
+ *
+ * Abstraction Function: Represents the changes the commands added so far
+ * make to the joins, in order.
+ *
+ * Representation: edits holds a JOIN message for each join and an UNJOIN
+ * message for each wall to unjoin; boards holds every board they name.
+ *
+ * Rep Invariant: every board named in edits is in boards.
+ *
+ * Thread-safety argument: Not thread-safe; a script is built by one thread
+ * and then handed to the server.
+ */
+class TopologyScript {
+
+    /** Deepest chain of files loading each other, to catch cycles. */
+    private static final int MAX_LOAD_DEPTH = 8;
+    private static final int WALLS = 4;
+
+    private final List<Message> edits = new ArrayList<Message>();
+    private final Set<String> boards = new LinkedHashSet<String>();
+
+    /**
+     * Parses a command and adds the changes it makes.
+     *
+     * @param command
+     *            String one command line
+     * @throws IllegalArgumentException
+     *             if the command is malformed
+     * @throws IOException
+     *             if it loads a file that cannot be read
+     */
+    void add(String command) throws IOException {
+        add(command, 0);
+    }
+
+    private void add(String command, int depth) throws IOException {
+        String line = command.trim();
+        if (line.isEmpty() || line.startsWith("#"))
+            return;
+        String[] words = line.split("\\s+");
+        String name = words[0];
+        if (name.equals("h") || name.equals("v")) {
+            expect(words, 3);
+            join(words[1], name.equals("h") ? JoinGraph.RIGHT
+                    : JoinGraph.BOTTOM, words[2]);
+        } else if (name.equals("row") || name.equals("column")) {
+            if (words.length < 3)
+                throw new IllegalArgumentException(name
+                        + " needs at least two boards");
+            int side = name.equals("row") ? JoinGraph.RIGHT : JoinGraph.BOTTOM;
+            for (int i = 1; i + 1 < words.length; i++)
+                join(words[i], side, words[i + 1]);
+        } else if (name.equals("grid") || name.equals("torus")) {
+            expect(words, 4);
+            grid(words[1], count(words[2]), count(words[3]),
+                    name.equals("torus"));
+        } else if (name.equals("unjoin")) {
+            expect(words, 2);
+            boards.add(words[1]);
+            for (int side = 0; side < WALLS; side++)
+                edits.add(Message.unjoin(words[1], side));
+        } else if (name.equals("load")) {
+            if (words.length < 2)
+                throw new IllegalArgumentException("load needs a file");
+            if (depth >= MAX_LOAD_DEPTH)
+                throw new IllegalArgumentException("files loaded too deep");
+            // the rest of the line, so the name may contain spaces
+            load(new File(line.substring(name.length()).trim()), depth + 1);
+        } else {
+            throw new IllegalArgumentException("unknown command " + name);
+        }
+    }
+
+    private static void expect(String[] words, int length) {
+        if (words.length != length)
+            throw new IllegalArgumentException(words[0] + " takes "
+                    + (length - 1) + " arguments");
+    }
+
+    private static int count(String word) {
+        int count = Integer.parseInt(word);
+        if (count <= 0)
+            throw new IllegalArgumentException("size must be positive");
+        return count;
+    }
+
+    private void join(String board, int side, String other) {
+        boards.add(board);
+        boards.add(other);
+        edits.add(Message.join(board, other, side));
+    }
+
+    private void grid(String pattern, int rows, int columns, boolean wrap) {
+        if (!pattern.contains("{r}") && rows > 1 || !pattern.contains("{c}")
+                && columns > 1)
+            throw new IllegalArgumentException("pattern " + pattern
+                    + " must contain {r} and {c}");
+        for (int r = 0; r < rows; r++)
+            for (int c = 0; c < columns; c++) {
+                String board = boardAt(pattern, r, c);
+                if (c + 1 < columns || wrap)
+                    join(board, JoinGraph.RIGHT, boardAt(pattern, r, (c + 1)
+                            % columns));
+                if (r + 1 < rows || wrap)
+                    join(board, JoinGraph.BOTTOM, boardAt(pattern, (r + 1)
+                            % rows, c));
+            }
+    }
+
+    private static String boardAt(String pattern, int row, int column) {
+        return pattern.replace("{r}", Integer.toString(row)).replace("{c}",
+                Integer.toString(column));
+    }
+
+    private void load(File file, int depth) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                number++;
+                try {
+                    add(line, depth);
+                } catch (IllegalArgumentException iae) {
+                    throw new IllegalArgumentException(file + ":" + number
+                            + ": " + iae.getMessage());
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** OBSERVER METHODS **/
+
+    /**
+     * @return List<Message> JOIN and UNJOIN messages for the changes, in the
+     *         order they are made
+     */
+    List<Message> getEdits() {
+        return Collections.unmodifiableList(edits);
+    }
+
+    /**
+     * @return Set<String> names of every board the commands name, in the
+     *         order first named
+     */
+    Set<String> getBoards() {
+        return Collections.unmodifiableSet(boards);
+    }
+}
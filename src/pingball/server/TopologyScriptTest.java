@@ -0,0 +1,118 @@
+package pingball.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import pingball.protocol.Message;
+
+public class TopologyScriptTest {
+    /**
+     * Testing Strategy
+     *
+     * -h and v, row and column of several boards
+     * -grid and torus: number of joins, names from the pattern, wrapping
+     * -unjoin: one UNJOIN per wall
+     * -load: comments and blank lines skipped, nested loads; a bad line
+     * reports the file and line number
+     * -malformed commands: unknown, wrong arguments, bad size or pattern
+     */
+
+    private static TopologyScript parse(String... commands)
+            throws IOException {
+        TopologyScript script = new TopologyScript();
+        for (String command : commands)
+            script.add(command);
+        return script;
+    }
+
+    private static void assertMalformed(String command) throws IOException {
+        try {
+            parse(command);
+            fail("expected " + command + " to be rejected");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+    }
+
+    private static File write(String text) throws IOException {
+        File file = File.createTempFile("topology", ".txt");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void testJoins() throws IOException {
+        TopologyScript script = parse("h Mars Earth", "v Mars Venus",
+                "row A B C", "column A D");
+        assertEquals(Arrays.asList(Message.join("Mars", "Earth", 1),
+                Message.join("Mars", "Venus", 2), Message.join("A", "B", 1),
+                Message.join("B", "C", 1), Message.join("A", "D", 2)),
+                script.getEdits());
+        assertEquals(Arrays.asList("Mars", "Earth", "Venus", "A", "B", "C",
+                "D"), Arrays.asList(script.getBoards().toArray()));
+    }
+
+    @Test
+    public void testGridAndTorus() throws IOException {
+        TopologyScript grid = parse("grid B{r}_{c} 3 4");
+        assertEquals(3 * 3 + 2 * 4, grid.getEdits().size());
+        assertEquals(12, grid.getBoards().size());
+        assertTrue(grid.getEdits().contains(Message.join("B2_2", "B2_3", 1)));
+        assertTrue(grid.getEdits().contains(Message.join("B1_3", "B2_3", 2)));
+
+        TopologyScript torus = parse("torus B{r}_{c} 3 4");
+        assertEquals(2 * 12, torus.getEdits().size());
+        assertTrue(torus.getEdits().contains(Message.join("B2_3", "B2_0", 1)));
+        assertTrue(torus.getEdits().contains(Message.join("B2_1", "B0_1", 2)));
+
+        assertEquals(1, parse("grid Row{c} 1 2").getEdits().size());
+    }
+
+    @Test
+    public void testUnjoin() throws IOException {
+        assertEquals(Arrays.asList(Message.unjoin("Mars", 0), Message.unjoin(
+                "Mars", 1), Message.unjoin("Mars", 2), Message.unjoin("Mars",
+                3)), parse("unjoin Mars").getEdits());
+    }
+
+    @Test
+    public void testLoad() throws IOException {
+        File inner = write("row A B\n");
+        File outer = write("# the wall\n\nh Mars Earth\nload " + inner
+                + "\n");
+        TopologyScript script = parse("load " + outer);
+        assertEquals(Arrays.asList(Message.join("Mars", "Earth", 1), Message
+                .join("A", "B", 1)), script.getEdits());
+
+        File bad = write("h Mars Earth\nh Mars\n");
+        try {
+            parse("load " + bad);
+            fail("expected a bad line");
+        } catch (IllegalArgumentException iae) {
+            assertTrue(iae.getMessage().startsWith(bad + ":2: "));
+        }
+    }
+
+    @Test
+    public void testMalformed() throws IOException {
+        assertMalformed("x Mars Earth");
+        assertMalformed("h Mars");
+        assertMalformed("row Mars");
+        assertMalformed("grid B{r}_{c} 0 4");
+        assertMalformed("torus B{r}_{c} 2 two");
+        assertMalformed("grid B{r} 2 2");
+        assertMalformed("unjoin");
+    }
+}